@@ -0,0 +1,1913 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.AccountAcquisition;
+import com.ning.billing.recurly.model.AccountBalance;
+import com.ning.billing.recurly.model.AccountNotes;
+import com.ning.billing.recurly.model.Accounts;
+import com.ning.billing.recurly.model.AddOn;
+import com.ning.billing.recurly.model.AddOns;
+import com.ning.billing.recurly.model.Adjustment;
+import com.ning.billing.recurly.model.AdjustmentRefund;
+import com.ning.billing.recurly.model.Adjustments;
+import com.ning.billing.recurly.model.BillingInfo;
+import com.ning.billing.recurly.model.Coupon;
+import com.ning.billing.recurly.model.Coupons;
+import com.ning.billing.recurly.model.CreditPayments;
+import com.ning.billing.recurly.model.GiftCard;
+import com.ning.billing.recurly.model.GiftCards;
+import com.ning.billing.recurly.model.Invoice;
+import com.ning.billing.recurly.model.InvoiceCollection;
+import com.ning.billing.recurly.model.InvoiceRefund;
+import com.ning.billing.recurly.model.InvoiceState;
+import com.ning.billing.recurly.model.Invoices;
+import com.ning.billing.recurly.model.Item;
+import com.ning.billing.recurly.model.Items;
+import com.ning.billing.recurly.model.MeasuredUnit;
+import com.ning.billing.recurly.model.MeasuredUnits;
+import com.ning.billing.recurly.model.Plan;
+import com.ning.billing.recurly.model.Plans;
+import com.ning.billing.recurly.model.Purchase;
+import com.ning.billing.recurly.model.RecurlyObject;
+import com.ning.billing.recurly.model.RecurlyObjects;
+import com.ning.billing.recurly.model.Redemption;
+import com.ning.billing.recurly.model.Redemptions;
+import com.ning.billing.recurly.model.RefundMethod;
+import com.ning.billing.recurly.model.RefundOption;
+import com.ning.billing.recurly.model.ShippingAddress;
+import com.ning.billing.recurly.model.ShippingAddresses;
+import com.ning.billing.recurly.model.ShippingMethod;
+import com.ning.billing.recurly.model.ShippingMethods;
+import com.ning.billing.recurly.model.Subscription;
+import com.ning.billing.recurly.model.SubscriptionNotes;
+import com.ning.billing.recurly.model.SubscriptionState;
+import com.ning.billing.recurly.model.SubscriptionUpdate;
+import com.ning.billing.recurly.model.Subscriptions;
+import com.ning.billing.recurly.model.Transaction;
+import com.ning.billing.recurly.model.TransactionState;
+import com.ning.billing.recurly.model.TransactionType;
+import com.ning.billing.recurly.model.Transactions;
+import com.ning.billing.recurly.model.Usage;
+import com.ning.billing.recurly.model.Usages;
+import com.ning.billing.recurly.util.http.SslUtils;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.message.HeaderGroup;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.ning.billing.recurly.RecurlyClient.debug;
+import static com.ning.billing.recurly.RecurlyClient.urlEncode;
+
+/**
+ * Non-blocking variant of {@link RecurlyClient}
+ * <p>
+ * Every endpoint of {@link RecurlyClient} is available here with the same parameters, but returns a
+ * {@link CompletableFuture} instead of blocking the calling thread. Requests are multiplexed on the
+ * I/O reactor of an Apache {@link CloseableHttpAsyncClient}, so thousands of calls can be in flight
+ * on a handful of threads.
+ * <p>
+ * Request building, XML mapping and error mapping are shared with the blocking client: futures complete
+ * exceptionally with {@link TransactionErrorException}, {@link RecurlyAPIException} or
+ * {@link ConnectionErrorException} whenever the corresponding {@link RecurlyClient} method would throw them,
+ * and complete with null whenever it would return null. Futures complete on the callback executor of the
+ * configuration, never on the I/O reactor, see {@link RecurlyClientConfig.Builder#setCallbackExecutor(Executor)}.
+ * <p>
+ * Lazy-loading getters on returned objects (e.g. {@link Invoice#getAccount()}) still go through the
+ * blocking {@link RecurlyClient}.
+ */
+public class AsyncRecurlyClient {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncRecurlyClient.class);
+
+    // Delays calls throttled by the rate governor, and retries
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "recurly-async-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final RecurlyClient recurlyClient;
+    private final boolean ownsRecurlyClient;
+    // Client owning the http client: this client, or the one withOptions was called on
+    private final AsyncRecurlyClient root;
+    private CloseableHttpAsyncClient client;
+
+    public AsyncRecurlyClient(final String apiKey) {
+        this(new RecurlyClient(apiKey), true);
+    }
+
+    public AsyncRecurlyClient(final String apiKey, final String subDomain) {
+        this(new RecurlyClient(apiKey, subDomain), true);
+    }
+
+    public AsyncRecurlyClient(final String apiKey, final String host, final int port, final String version) {
+        this(new RecurlyClient(apiKey, host, port, version), true);
+    }
+
+    public AsyncRecurlyClient(final String apiKey, final String scheme, final String host, final int port, final String version) {
+        this(new RecurlyClient(apiKey, scheme, host, port, version), true);
+    }
+
+    public AsyncRecurlyClient(final String apiKey, final RecurlyClientConfig config) {
+        this(new RecurlyClient(apiKey, config), true);
+    }
+
+    public AsyncRecurlyClient(final String apiKey, final String subDomain, final RecurlyClientConfig config) {
+        this(new RecurlyClient(apiKey, subDomain, config), true);
+    }
+
+    public AsyncRecurlyClient(final String apiKey, final String host, final int port, final String version, final RecurlyClientConfig config) {
+        this(new RecurlyClient(apiKey, host, port, version, config), true);
+    }
+
+    /**
+     * @param config connection pool and timeout settings, applied to both the asynchronous client and the blocking
+     *               client used for lazy-loading. The connection time to live and the background evictor only
+     *               apply to the latter.
+     */
+    public AsyncRecurlyClient(final String apiKey, final String scheme, final String host, final int port, final String version, final RecurlyClientConfig config) {
+        this(new RecurlyClient(apiKey, scheme, host, port, version, config), true);
+    }
+
+    /**
+     * Build an asynchronous client sharing the configuration of an existing blocking client
+     * <p>
+     * The blocking client is used for lazy-loading only: it is neither opened nor closed by this client.
+     *
+     * @param recurlyClient the blocking client
+     */
+    public AsyncRecurlyClient(final RecurlyClient recurlyClient) {
+        this(recurlyClient, false);
+    }
+
+    private AsyncRecurlyClient(final RecurlyClient recurlyClient, final boolean ownsRecurlyClient) {
+        this.recurlyClient = recurlyClient;
+        this.ownsRecurlyClient = ownsRecurlyClient;
+        this.root = this;
+    }
+
+    private AsyncRecurlyClient(final AsyncRecurlyClient client, final RequestOptions options) {
+        this.recurlyClient = client.recurlyClient.withOptions(options);
+        this.ownsRecurlyClient = false;
+        this.root = client.root;
+    }
+
+    /**
+     * Open and start the underlying http client
+     * If you are supplying your own http client, do not call this method.
+     */
+    public synchronized void open() throws NoSuchAlgorithmException, KeyManagementException {
+        checkRoot();
+        if (ownsRecurlyClient) {
+            recurlyClient.open();
+        }
+        client = createHttpAsyncClient();
+        client.start();
+    }
+
+    /**
+     * Set the underlying http client with your custom client, starting it if needed.
+     * If {@link #open()} had already been called, do not call this method.
+     */
+    public synchronized void open(final CloseableHttpAsyncClient client) {
+        checkRoot();
+        this.client = client;
+        if (!client.isRunning()) {
+            client.start();
+        }
+    }
+
+    /**
+     * Close the underlying http client
+     * If you are supplying your own http client, do not call this method.
+     */
+    public synchronized void close() {
+        checkRoot();
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (ownsRecurlyClient) {
+            recurlyClient.close();
+        }
+    }
+
+    /**
+     * Apply per-request settings, see {@link RecurlyClient#withOptions(RequestOptions)}
+     * <p>
+     * The returned client shares the http client of this one: don't call {@link #open()} or {@link #close()} on it.
+     *
+     * @param options settings overriding the ones of this client
+     * @return a view of this client applying the options to all its calls
+     */
+    public AsyncRecurlyClient withOptions(final RequestOptions options) {
+        return new AsyncRecurlyClient(this, options);
+    }
+
+    /**
+     * Returns the number of requests remaining until requests will be denied by rate limiting.
+     * @return Number of requests remaining. Value is valid (> -1) after a successful API call.
+     */
+    public int getRateLimitRemaining() {
+        return recurlyClient.getRateLimitRemaining();
+    }
+
+    /**
+     * See {@link RecurlyClient#createAccount(Account)}
+     */
+    public CompletableFuture<Account> createAccount(final Account account) {
+        return doPOST(Account.ACCOUNT_RESOURCE, account, Account.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccounts()}
+     */
+    public CompletableFuture<Accounts> getAccounts() {
+        return doGET(Accounts.ACCOUNTS_RESOURCE, Accounts.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccounts(QueryParams)}
+     */
+    public CompletableFuture<Accounts> getAccounts(final QueryParams params) {
+        return doGET(Accounts.ACCOUNTS_RESOURCE, Accounts.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccountsCount(QueryParams)}
+     */
+    public CompletableFuture<Integer> getAccountsCount(final QueryParams params) {
+        return doHEAD(Accounts.ACCOUNTS_RESOURCE, params).thenApply(RecurlyClient::getRecordsCount);
+    }
+
+    /**
+     * See {@link RecurlyClient#getCoupons()}
+     */
+    public CompletableFuture<Coupons> getCoupons() {
+        return doGET(Coupons.COUPONS_RESOURCE, Coupons.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getCoupons(QueryParams)}
+     */
+    public CompletableFuture<Coupons> getCoupons(final QueryParams params) {
+        return doGET(Coupons.COUPONS_RESOURCE, Coupons.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getCouponsCount(QueryParams)}
+     */
+    public CompletableFuture<Integer> getCouponsCount(final QueryParams params) {
+        return doHEAD(Coupons.COUPONS_RESOURCE, params).thenApply(RecurlyClient::getRecordsCount);
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccount(String)}
+     */
+    public CompletableFuture<Account> getAccount(final String accountCode) {
+        if (accountCode == null || accountCode.isEmpty())
+            throw new RuntimeException("accountCode cannot be empty!");
+
+        return doGET(Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode), Account.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#updateAccount(String, Account)}
+     */
+    public CompletableFuture<Account> updateAccount(final String accountCode, final Account account) {
+        return doPUT(Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode), account, Account.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccountBalance(String)}
+     */
+    public CompletableFuture<AccountBalance> getAccountBalance(final String accountCode) {
+        return doGET(Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + AccountBalance.ACCOUNT_BALANCE_RESOURCE, AccountBalance.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#closeAccount(String)}
+     */
+    public CompletableFuture<Void> closeAccount(final String accountCode) {
+        return doDELETE(Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode));
+    }
+
+    /**
+     * See {@link RecurlyClient#reopenAccount(String)}
+     */
+    public CompletableFuture<Account> reopenAccount(final String accountCode) {
+        return doPUT(Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + "/reopen",
+                     null, Account.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getChildAccounts(String)}
+     */
+    public CompletableFuture<Accounts> getChildAccounts(final String accountCode) {
+        return doGET(Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + "/child_accounts", Accounts.class, new QueryParams());
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////
+    // Account adjustments
+
+    /**
+     * See {@link RecurlyClient#getAccountAdjustments(String)}
+     */
+    public CompletableFuture<Adjustments> getAccountAdjustments(final String accountCode) {
+        return getAccountAdjustments(accountCode, null, null, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccountAdjustments(String, Adjustments.AdjustmentType)}
+     */
+    public CompletableFuture<Adjustments> getAccountAdjustments(final String accountCode, final Adjustments.AdjustmentType type) {
+        return getAccountAdjustments(accountCode, type, null, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccountAdjustments(String, Adjustments.AdjustmentType, Adjustments.AdjustmentState)}
+     */
+    public CompletableFuture<Adjustments> getAccountAdjustments(final String accountCode, final Adjustments.AdjustmentType type, final Adjustments.AdjustmentState state) {
+        return getAccountAdjustments(accountCode, type, state, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccountAdjustments(String, Adjustments.AdjustmentType, Adjustments.AdjustmentState, QueryParams)}
+     */
+    public CompletableFuture<Adjustments> getAccountAdjustments(final String accountCode, final Adjustments.AdjustmentType type, final Adjustments.AdjustmentState state, final QueryParams params) {
+        final String url = Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + Adjustments.ADJUSTMENTS_RESOURCE;
+
+        if (type != null) params.put("type", type.getType());
+        if (state != null) params.put("state", state.getState());
+
+        return doGET(url, Adjustments.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getAdjustment(String)}
+     */
+    public CompletableFuture<Adjustment> getAdjustment(final String adjustmentUuid) {
+        if (adjustmentUuid == null || adjustmentUuid.isEmpty())
+            throw new RuntimeException("adjustmentUuid cannot be empty!");
+
+        return doGET(Adjustments.ADJUSTMENTS_RESOURCE + "/" + urlEncode(adjustmentUuid), Adjustment.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#createAccountAdjustment(String, Adjustment)}
+     */
+    public CompletableFuture<Adjustment> createAccountAdjustment(final String accountCode, final Adjustment adjustment) {
+        return doPOST(Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + Adjustments.ADJUSTMENTS_RESOURCE,
+                      adjustment,
+                      Adjustment.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#deleteAccountAdjustment(String)}
+     */
+    public CompletableFuture<Void> deleteAccountAdjustment(final String accountCode) {
+        return doDELETE(Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + Adjustments.ADJUSTMENTS_RESOURCE);
+    }
+
+    /**
+     * See {@link RecurlyClient#deleteAdjustment(String)}
+     */
+    public CompletableFuture<Void> deleteAdjustment(final String adjustmentUuid) {
+        return doDELETE(Adjustments.ADJUSTMENTS_RESOURCE + "/" + urlEncode(adjustmentUuid));
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * See {@link RecurlyClient#createSubscription(Subscription)}
+     */
+    public CompletableFuture<Subscription> createSubscription(final Subscription subscription) {
+        return doPOST(Subscription.SUBSCRIPTION_RESOURCE,
+                      subscription, Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#previewSubscription(Subscription)}
+     */
+    public CompletableFuture<Subscription> previewSubscription(final Subscription subscription) {
+        return doPOST(Subscription.SUBSCRIPTION_RESOURCE
+                      + "/preview",
+                      subscription, Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getSubscription(String)}
+     */
+    public CompletableFuture<Subscription> getSubscription(final String uuid) {
+        if (uuid == null || uuid.isEmpty())
+            throw new RuntimeException("uuid cannot be empty!");
+
+        return doGET(Subscriptions.SUBSCRIPTIONS_RESOURCE
+                     + "/" + urlEncode(uuid),
+                     Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#cancelSubscription(Subscription)}
+     */
+    public CompletableFuture<Subscription> cancelSubscription(final Subscription subscription) {
+        return doPUT(Subscription.SUBSCRIPTION_RESOURCE + "/" + urlEncode(subscription.getUuid()) + "/cancel",
+                     subscription, Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#cancelSubscription(String, SubscriptionUpdate.Timeframe)}
+     */
+    public CompletableFuture<Subscription> cancelSubscription(final String subscriptionUuid, final SubscriptionUpdate.Timeframe timeframe) {
+        final QueryParams qp = new QueryParams();
+        if (timeframe != null) qp.put("timeframe", timeframe.toString());
+        return doPUT(Subscription.SUBSCRIPTION_RESOURCE + "/" + urlEncode(subscriptionUuid) + "/cancel",
+                     null, Subscription.class, qp);
+    }
+
+    /**
+     * See {@link RecurlyClient#pauseSubscription(String, int)}
+     */
+    public CompletableFuture<Subscription> pauseSubscription(final String subscriptionUuid, final int remainingPauseCycles) {
+        Subscription request = new Subscription();
+        request.setRemainingPauseCycles(remainingPauseCycles);
+        return doPUT(Subscription.SUBSCRIPTION_RESOURCE + "/" + urlEncode(subscriptionUuid) + "/pause",
+                     request, Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#convertTrialMoto(String)}
+     */
+    public CompletableFuture<Subscription> convertTrialMoto(final String subscriptionUuid) {
+        Subscription request = new Subscription();
+        request.setTransactionType("moto");
+        return doPUT(Subscription.SUBSCRIPTION_RESOURCE + "/" + urlEncode(subscriptionUuid) + "/convert_trial",
+            request, Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#convertTrial(String)}
+     */
+    public CompletableFuture<Subscription> convertTrial(final String subscriptionUuid) {
+        return convertTrial(subscriptionUuid, null);
+    }
+
+    /**
+     * See {@link RecurlyClient#convertTrial(String, String)}
+     */
+    public CompletableFuture<Subscription> convertTrial(final String subscriptionUuid, final String ThreeDSecureActionResultTokenId) {
+        Subscription request;
+        if (ThreeDSecureActionResultTokenId == null) {
+            request = null;
+        } else {
+            request = new Subscription();
+            Account account = new Account();
+            BillingInfo billingInfo = new BillingInfo();
+            billingInfo.setThreeDSecureActionResultTokenId(ThreeDSecureActionResultTokenId); 
+            account.setBillingInfo(billingInfo);
+            request.setAccount(account);   
+        }
+        return doPUT(Subscription.SUBSCRIPTION_RESOURCE + "/" + urlEncode(subscriptionUuid) + "/convert_trial",
+            request, Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#resumeSubscription(String)}
+     */
+    public CompletableFuture<Subscription> resumeSubscription(final String subscriptionUuid) {
+        return doPUT(Subscription.SUBSCRIPTION_RESOURCE + "/" + urlEncode(subscriptionUuid) + "/resume",
+                null, Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#postponeSubscription(Subscription, DateTime)}
+     */
+    public CompletableFuture<Subscription> postponeSubscription(final Subscription subscription, final DateTime renewaldate) {
+        return doPUT(Subscription.SUBSCRIPTION_RESOURCE + "/" + urlEncode(subscription.getUuid()) + "/postpone?next_renewal_date=" + renewaldate,
+                     subscription, Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#terminateSubscription(Subscription, RefundOption)}
+     */
+    public CompletableFuture<Void> terminateSubscription(final Subscription subscription, final RefundOption refund) {
+        return doPUT(Subscription.SUBSCRIPTION_RESOURCE + "/" + urlEncode(subscription.getUuid()) + "/terminate?refund=" + refund,
+                     subscription, Subscription.class).thenAccept(terminated -> { });
+    }
+
+    /**
+     * See {@link RecurlyClient#reactivateSubscription(Subscription)}
+     */
+    public CompletableFuture<Subscription> reactivateSubscription(final Subscription subscription) {
+        return doPUT(Subscription.SUBSCRIPTION_RESOURCE + "/" + urlEncode(subscription.getUuid()) + "/reactivate",
+                     subscription, Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#updateSubscription(String, SubscriptionUpdate)}
+     */
+    public CompletableFuture<Subscription> updateSubscription(final String uuid, final SubscriptionUpdate subscriptionUpdate) {
+        return doPUT(Subscriptions.SUBSCRIPTIONS_RESOURCE
+                     + "/" + urlEncode(uuid),
+                     subscriptionUpdate,
+                     Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#updateSubscriptionPreview(String, SubscriptionUpdate)}
+     */
+    public CompletableFuture<Subscription> updateSubscriptionPreview(final String uuid, final SubscriptionUpdate subscriptionUpdate) {
+        return doPOST(Subscriptions.SUBSCRIPTIONS_RESOURCE
+                      + "/" + urlEncode(uuid) + "/preview",
+                      subscriptionUpdate,
+                      Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#updateSubscriptionNotes(String, SubscriptionNotes)}
+     */
+    public CompletableFuture<Subscription> updateSubscriptionNotes(final String uuid, final SubscriptionNotes subscriptionNotes) {
+      return doPUT(SubscriptionNotes.SUBSCRIPTION_RESOURCE + "/" + urlEncode(uuid) + "/notes",
+                   subscriptionNotes, Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccountSubscriptions(String)}
+     */
+    public CompletableFuture<Subscriptions> getAccountSubscriptions(final String accountCode) {
+        return doGET(Account.ACCOUNT_RESOURCE
+                     + "/" + urlEncode(accountCode)
+                     + Subscriptions.SUBSCRIPTIONS_RESOURCE,
+                     Subscriptions.class,
+                     new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getSubscriptions()}
+     */
+    public CompletableFuture<Subscriptions> getSubscriptions() {
+        return doGET(Subscriptions.SUBSCRIPTIONS_RESOURCE,
+                Subscriptions.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getSubscriptions(SubscriptionState, QueryParams)}
+     */
+    public CompletableFuture<Subscriptions> getSubscriptions(final SubscriptionState state, final QueryParams params) {
+        if (state != null) { params.put("state", state.getType()); }
+
+        return doGET(Subscriptions.SUBSCRIPTIONS_RESOURCE,
+                Subscriptions.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getSubscriptionsCount(QueryParams)}
+     */
+    public CompletableFuture<Integer> getSubscriptionsCount(final QueryParams params) {
+        return doHEAD(Subscription.SUBSCRIPTION_RESOURCE,  params).thenApply(RecurlyClient::getRecordsCount);
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccountSubscriptions(String, SubscriptionState, QueryParams)}
+     */
+    public CompletableFuture<Subscriptions> getAccountSubscriptions(final String accountCode, final SubscriptionState state, final QueryParams params) {
+        if (state != null) params.put("state", state.getType());
+
+        return doGET(Account.ACCOUNT_RESOURCE
+                        + "/" + urlEncode(accountCode)
+                        + Subscriptions.SUBSCRIPTIONS_RESOURCE,
+                Subscriptions.class,
+                params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getInvoiceSubscriptions(String)}
+     */
+    public CompletableFuture<Subscriptions> getInvoiceSubscriptions(final String invoiceId) {
+        return getInvoiceSubscriptions(invoiceId, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getInvoiceSubscriptions(String, QueryParams)}
+     */
+    public CompletableFuture<Subscriptions> getInvoiceSubscriptions(final String invoiceId, final QueryParams params) {
+        return doGET(Invoices.INVOICES_RESOURCE
+                        + "/" + urlEncode(invoiceId) 
+                        + Subscriptions.SUBSCRIPTIONS_RESOURCE,
+                Subscriptions.class, 
+                params);
+    }
+
+    /**
+     * See {@link RecurlyClient#postSubscriptionUsage(String, String, Usage)}
+     */
+    public CompletableFuture<Usage> postSubscriptionUsage(final String subscriptionCode, final String addOnCode, final Usage usage) {
+        return doPOST(Subscription.SUBSCRIPTION_RESOURCE +
+                        "/" +
+                        urlEncode(subscriptionCode) +
+                        AddOn.ADDONS_RESOURCE +
+                        "/" +
+                        urlEncode(addOnCode) +
+                        Usage.USAGE_RESOURCE,
+                usage, Usage.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getSubscriptionUsages(String, String, QueryParams)}
+     */
+    public CompletableFuture<Usages> getSubscriptionUsages(final String subscriptionCode, final String addOnCode, final QueryParams params) {
+       return doGET(Subscription.SUBSCRIPTION_RESOURCE +
+                        "/" +
+                        urlEncode(subscriptionCode) +
+                        AddOn.ADDONS_RESOURCE +
+                        "/" +
+                        urlEncode(addOnCode) +
+                        Usage.USAGE_RESOURCE, Usages.class, params );
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccountSubscriptions(String, String)}
+     *
+     * @deprecated see {@link RecurlyClient#getAccountSubscriptions(String, String)}
+     */
+    @Deprecated
+    public CompletableFuture<Subscriptions> getAccountSubscriptions(final String accountCode, final String status) {
+        final QueryParams params = new QueryParams();
+        if (status != null) params.put("state", status);
+
+        return doGET(Account.ACCOUNT_RESOURCE
+                        + "/" + urlEncode(accountCode)
+                        + Subscriptions.SUBSCRIPTIONS_RESOURCE,
+                Subscriptions.class, params);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * See {@link RecurlyClient#createOrUpdateBillingInfo(String, BillingInfo)}
+     */
+    public CompletableFuture<BillingInfo> createOrUpdateBillingInfo(final String accountCode, final BillingInfo billingInfo) {
+        return doPUT(Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + BillingInfo.BILLING_INFO_RESOURCE,
+                     billingInfo, BillingInfo.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#createOrUpdateBillingInfo(BillingInfo)}
+     *
+     * @deprecated see {@link RecurlyClient#createOrUpdateBillingInfo(BillingInfo)}
+     */
+    @Deprecated
+    public CompletableFuture<BillingInfo> createOrUpdateBillingInfo(final BillingInfo billingInfo) {
+        final String accountCode = billingInfo.getAccount().getAccountCode();
+        // Unset it to avoid confusing Recurly
+        billingInfo.setAccount(null);
+        return doPUT(Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + BillingInfo.BILLING_INFO_RESOURCE,
+                     billingInfo, BillingInfo.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getBillingInfo(String)}
+     */
+    public CompletableFuture<BillingInfo> getBillingInfo(final String accountCode) {
+        return doGET(Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + BillingInfo.BILLING_INFO_RESOURCE,
+                     BillingInfo.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#clearBillingInfo(String)}
+     */
+    public CompletableFuture<Void> clearBillingInfo(final String accountCode) {
+        return doDELETE(Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + BillingInfo.BILLING_INFO_RESOURCE);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Account Notes
+
+    /**
+     * See {@link RecurlyClient#getAccountNotes(String)}
+     */
+    public CompletableFuture<AccountNotes> getAccountNotes(final String accountCode) {
+        return doGET(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + AccountNotes.ACCOUNT_NOTES_RESOURCE,
+                     AccountNotes.class, new QueryParams());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // User transactions
+
+    /**
+     * See {@link RecurlyClient#getAccountTransactions(String)}
+     */
+    public CompletableFuture<Transactions> getAccountTransactions(final String accountCode) {
+        return doGET(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + Transactions.TRANSACTIONS_RESOURCE,
+                     Transactions.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccountTransactions(String, TransactionState, TransactionType, QueryParams)}
+     */
+    public CompletableFuture<Transactions> getAccountTransactions(final String accountCode, final TransactionState state, final TransactionType type, final QueryParams params) {
+        if (state != null) params.put("state", state.getType());
+        if (type != null) params.put("type", type.getType());
+
+        return doGET(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + Transactions.TRANSACTIONS_RESOURCE,
+                Transactions.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getTransactions()}
+     */
+    public CompletableFuture<Transactions> getTransactions() {
+        return doGET(Transactions.TRANSACTIONS_RESOURCE, Transactions.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getTransactions(TransactionState, TransactionType, QueryParams)}
+     */
+    public CompletableFuture<Transactions> getTransactions(final TransactionState state, final TransactionType type, final QueryParams params) {
+        if (state != null) params.put("state", state.getType());
+        if (type != null) params.put("type", type.getType());
+
+        return doGET(Transactions.TRANSACTIONS_RESOURCE, Transactions.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getTransactionsCount(QueryParams)}
+     */
+    public CompletableFuture<Integer> getTransactionsCount(final QueryParams params) {
+        return doHEAD(Transactions.TRANSACTIONS_RESOURCE, params).thenApply(RecurlyClient::getRecordsCount);
+    }
+
+    /**
+     * See {@link RecurlyClient#getTransaction(String)}
+     */
+    public CompletableFuture<Transaction> getTransaction(final String transactionId) {
+        if (transactionId == null || transactionId.isEmpty())
+            throw new RuntimeException("transactionId cannot be empty!");
+
+        return doGET(Transactions.TRANSACTIONS_RESOURCE + "/" + urlEncode(transactionId),
+                     Transaction.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#createTransaction(Transaction)}
+     */
+    public CompletableFuture<Transaction> createTransaction(final Transaction trans) {
+        return doPOST(Transactions.TRANSACTIONS_RESOURCE, trans, Transaction.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#refundTransaction(String, BigDecimal)}
+     */
+    public CompletableFuture<Void> refundTransaction(final String transactionId, @Nullable final BigDecimal amount) {
+        String url = Transactions.TRANSACTIONS_RESOURCE + "/" + urlEncode(transactionId);
+        if (amount != null) {
+            url = url + "?amount_in_cents=" + (amount.intValue() * 100);
+        }
+        return doDELETE(url);
+    }
+
+    /**
+     * See {@link RecurlyClient#getTransactionSubscriptions(String)}
+     */
+    public CompletableFuture<Subscriptions> getTransactionSubscriptions(final String transactionId) {
+        return doGET(Transactions.TRANSACTIONS_RESOURCE
+                        + "/" + urlEncode(transactionId)
+                        + Subscriptions.SUBSCRIPTIONS_RESOURCE,
+                Subscriptions.class,
+                new QueryParams());
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // User invoices
+
+    /**
+     * See {@link RecurlyClient#getInvoice(Integer)}
+     *
+     * @deprecated see {@link RecurlyClient#getInvoice(Integer)}
+     */
+    @Deprecated
+    public CompletableFuture<Invoice> getInvoice(final Integer invoiceId) {
+        return getInvoice(invoiceId.toString());
+    }
+
+    /**
+     * See {@link RecurlyClient#getInvoice(String)}
+     */
+    public CompletableFuture<Invoice> getInvoice(final String invoiceId) {
+        if (invoiceId == null || invoiceId.isEmpty())
+            throw new RuntimeException("invoiceId cannot be empty!");
+
+        return doGET(Invoices.INVOICES_RESOURCE + "/" + urlEncode(invoiceId), Invoice.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#updateInvoice(String, Invoice)}
+     */
+    public CompletableFuture<Invoice> updateInvoice(final String invoiceId, final Invoice invoice) {
+        return doPUT(Invoices.INVOICES_RESOURCE + "/" + urlEncode(invoiceId), invoice, Invoice.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getInvoicePdf(Integer)}
+     *
+     * @deprecated see {@link RecurlyClient#getInvoicePdf(Integer)}
+     */
+    @Deprecated
+    public CompletableFuture<InputStream> getInvoicePdf(final Integer invoiceId) {
+        return getInvoicePdf(invoiceId.toString());
+    }
+
+    /**
+     * See {@link RecurlyClient#getInvoicePdf(String)}
+     */
+    public CompletableFuture<InputStream> getInvoicePdf(final String invoiceId) {
+        if (invoiceId == null || invoiceId.isEmpty())
+            throw new RuntimeException("invoiceId cannot be empty!");
+
+        return doGETPdf(Invoices.INVOICES_RESOURCE + "/" + urlEncode(invoiceId));
+    }
+
+    /**
+     * See {@link RecurlyClient#getInvoices()}
+     */
+    public CompletableFuture<Invoices> getInvoices() {
+        return doGET(Invoices.INVOICES_RESOURCE, Invoices.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getInvoices(QueryParams)}
+     */
+    public CompletableFuture<Invoices> getInvoices(final QueryParams params) {
+        return doGET(Invoices.INVOICES_RESOURCE, Invoices.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getInvoicesCount(QueryParams)}
+     */
+    public CompletableFuture<Integer> getInvoicesCount(final QueryParams params) {
+        return doHEAD(Invoices.INVOICES_RESOURCE, params).thenApply(RecurlyClient::getRecordsCount);
+    }
+
+    /**
+     * See {@link RecurlyClient#getInvoiceTransactions(String)}
+     */
+    public CompletableFuture<Transactions> getInvoiceTransactions(final String invoiceId) {
+        return doGET(Invoices.INVOICES_RESOURCE + "/" + urlEncode(invoiceId) + Transactions.TRANSACTIONS_RESOURCE,
+                     Transactions.class, new QueryParams());
+    }
+    
+    /**
+     * See {@link RecurlyClient#getAccountInvoices(String)}
+     */
+    public CompletableFuture<Invoices> getAccountInvoices(final String accountCode) {
+        return doGET(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + Invoices.INVOICES_RESOURCE,
+                     Invoices.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getOriginalInvoices(String)}
+     */
+    public CompletableFuture<Invoices> getOriginalInvoices(final String invoiceId) {
+        return doGET(Invoices.INVOICES_RESOURCE + "/" + invoiceId + "/original_invoices",
+                    Invoices.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#refundInvoice(String, Integer, RefundMethod)}
+     *
+     * @deprecated see {@link RecurlyClient#refundInvoice(String, Integer, RefundMethod)}
+     */
+    @Deprecated
+    public CompletableFuture<Invoice> refundInvoice(final String invoiceId, final Integer amountInCents, final RefundMethod method) {
+        final InvoiceRefund invoiceRefund = new InvoiceRefund();
+        invoiceRefund.setRefundMethod(method);
+        invoiceRefund.setAmountInCents(amountInCents);
+
+        return refundInvoice(invoiceId, invoiceRefund);
+    }
+
+    /**
+     * See {@link RecurlyClient#refundInvoice(String, List, RefundMethod)}
+     *
+     * @deprecated see {@link RecurlyClient#refundInvoice(String, List, RefundMethod)}
+     */
+    @Deprecated
+    public CompletableFuture<Invoice> refundInvoice(final String invoiceId, List<AdjustmentRefund> lineItems, final RefundMethod method) {
+        final InvoiceRefund invoiceRefund = new InvoiceRefund();
+        invoiceRefund.setRefundMethod(method);
+        invoiceRefund.setLineItems(lineItems);
+
+        return refundInvoice(invoiceId, invoiceRefund);
+    }
+
+    /**
+     * See {@link RecurlyClient#refundInvoice(String, InvoiceRefund)}
+     */
+    public CompletableFuture<Invoice> refundInvoice(final String invoiceId, final InvoiceRefund refundOptions) {
+        return doPOST(Invoices.INVOICES_RESOURCE + "/" + urlEncode(invoiceId) + "/refund", refundOptions, Invoice.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccountShippingAddresses(String)}
+     */
+    public CompletableFuture<ShippingAddresses> getAccountShippingAddresses(final String accountCode) {
+        return doGET(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + ShippingAddresses.SHIPPING_ADDRESSES_RESOURCE,
+                ShippingAddresses.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getShippingAddress(String, long)}
+     */
+    public CompletableFuture<ShippingAddress> getShippingAddress(final String accountCode, final long shippingAddressId) {
+        return doGET(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + ShippingAddresses.SHIPPING_ADDRESSES_RESOURCE + "/" + shippingAddressId,
+                ShippingAddress.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#createShippingAddress(String, ShippingAddress)}
+     */
+    public CompletableFuture<ShippingAddress> createShippingAddress(final String accountCode, final ShippingAddress shippingAddress) {
+        return doPOST(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + ShippingAddresses.SHIPPING_ADDRESSES_RESOURCE, shippingAddress,
+                ShippingAddress.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#updateShippingAddress(String, long, ShippingAddress)}
+     */
+    public CompletableFuture<ShippingAddress> updateShippingAddress(final String accountCode, final long shippingAddressId, ShippingAddress shippingAddress) {
+        return doPUT(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + ShippingAddresses.SHIPPING_ADDRESSES_RESOURCE + "/" + shippingAddressId, shippingAddress,
+                ShippingAddress.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#deleteShippingAddress(String, long)}
+     */
+    public CompletableFuture<Void> deleteShippingAddress(final String accountCode, final long shippingAddressId) {
+        return doDELETE(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + ShippingAddresses.SHIPPING_ADDRESSES_RESOURCE + "/" + shippingAddressId);
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccountInvoices(String, InvoiceState, QueryParams)}
+     */
+    public CompletableFuture<Invoices> getAccountInvoices(final String accountCode, final InvoiceState state, final QueryParams params) {
+        if (state != null) params.put("state", state.getType());
+        return doGET(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + Invoices.INVOICES_RESOURCE,
+                Invoices.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#postAccountInvoice(String, Invoice)}
+     */
+    public CompletableFuture<InvoiceCollection> postAccountInvoice(final String accountCode, final Invoice invoice) {
+        return doPOST(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + Invoices.INVOICES_RESOURCE, invoice, InvoiceCollection.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#markInvoiceSuccessful(Integer)}
+     *
+     * @deprecated see {@link RecurlyClient#markInvoiceSuccessful(Integer)}
+     */
+    @Deprecated
+    public CompletableFuture<Invoice> markInvoiceSuccessful(final Integer invoiceId) {
+        return markInvoiceSuccessful(invoiceId.toString());
+    }
+
+    /**
+     * See {@link RecurlyClient#markInvoiceSuccessful(String)}
+     */
+    public CompletableFuture<Invoice> markInvoiceSuccessful(final String invoiceId) {
+        return doPUT(Invoices.INVOICES_RESOURCE + "/" + urlEncode(invoiceId) + "/mark_successful", null, Invoice.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#markInvoiceFailed(Integer)}
+     *
+     * @deprecated see {@link RecurlyClient#markInvoiceFailed(Integer)}
+     */
+    @Deprecated
+    public CompletableFuture<InvoiceCollection> markInvoiceFailed(final Integer invoiceId) {
+        return markInvoiceFailed(invoiceId.toString());
+    }
+
+    /**
+     * See {@link RecurlyClient#markInvoiceFailed(String)}
+     */
+    public CompletableFuture<InvoiceCollection> markInvoiceFailed(final String invoiceId) {
+        return doPUT(Invoices.INVOICES_RESOURCE + "/" + urlEncode(invoiceId) + "/mark_failed", null, InvoiceCollection.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#forceCollectInvoice(String)}
+     */
+    public CompletableFuture<Invoice> forceCollectInvoice(final String invoiceId) {
+        return doPUT(Invoices.INVOICES_RESOURCE + "/" + urlEncode(invoiceId) + "/collect", null, Invoice.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#forceCollectInvoice(String, String)}
+     */
+    public CompletableFuture<Invoice> forceCollectInvoice(final String invoiceId, final String transactionType) {
+        Invoice request = new Invoice();
+        request.setTransactionType(transactionType);
+        return doPUT(Invoices.INVOICES_RESOURCE + "/" + urlEncode(invoiceId) + "/collect", request, Invoice.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#voidInvoice(String)}
+     */
+    public CompletableFuture<Invoice> voidInvoice(final String invoiceId) {
+        return doPUT(Invoices.INVOICES_RESOURCE + "/" + urlEncode(invoiceId) + "/void", null, Invoice.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#enterOfflinePayment(Integer, Transaction)}
+     *
+     * @deprecated see {@link RecurlyClient#enterOfflinePayment(Integer, Transaction)}
+     */
+    @Deprecated
+    public CompletableFuture<Transaction> enterOfflinePayment(final Integer invoiceId, final Transaction payment) {
+        return enterOfflinePayment(invoiceId.toString(), payment);
+    }
+
+    /**
+     * See {@link RecurlyClient#enterOfflinePayment(String, Transaction)}
+     */
+    public CompletableFuture<Transaction> enterOfflinePayment(final String invoiceId, final Transaction payment) {
+        return doPOST(Invoices.INVOICES_RESOURCE + "/" + urlEncode(invoiceId) + "/transactions", payment, Transaction.class);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * See {@link RecurlyClient#createItem(Item)}
+     */
+    public CompletableFuture<Item> createItem(final Item item) {
+        return doPOST(Item.ITEMS_RESOURCE, item, Item.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#updateItem(String, Item)}
+     */
+    public CompletableFuture<Item> updateItem(final String itemCode, final Item item) {
+        return doPUT(Item.ITEMS_RESOURCE + "/" + urlEncode(itemCode), item, Item.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getItem(String)}
+     */
+    public CompletableFuture<Item> getItem(final String itemCode) {
+        if (itemCode == null || itemCode.isEmpty())
+            throw new RuntimeException("itemCode cannot be empty!");
+
+        return doGET(Item.ITEMS_RESOURCE + "/" + urlEncode(itemCode), Item.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getItems()}
+     */
+    public CompletableFuture<Items> getItems() {
+        return doGET(Items.ITEMS_RESOURCE, Items.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#deleteItem(String)}
+     */
+    public CompletableFuture<Void> deleteItem(final String itemCode) {
+        return doDELETE(Item.ITEMS_RESOURCE +
+                "/" +
+                urlEncode(itemCode));
+    }
+
+    /**
+     * See {@link RecurlyClient#reactivateItem(String)}
+     */
+    public CompletableFuture<Item> reactivateItem(final String itemCode) {
+        return doPUT(Item.ITEMS_RESOURCE + "/" + urlEncode(itemCode) + "/reactivate",
+                null, Item.class);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * See {@link RecurlyClient#createPlan(Plan)}
+     */
+    public CompletableFuture<Plan> createPlan(final Plan plan) {
+        return doPOST(Plan.PLANS_RESOURCE, plan, Plan.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#updatePlan(Plan)}
+     */
+    public CompletableFuture<Plan> updatePlan(final Plan plan) {
+        return doPUT(Plan.PLANS_RESOURCE + "/" + urlEncode(plan.getPlanCode()), plan, Plan.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getPlan(String)}
+     */
+    public CompletableFuture<Plan> getPlan(final String planCode) {
+        if (planCode == null || planCode.isEmpty())
+            throw new RuntimeException("planCode cannot be empty!");
+
+        return doGET(Plan.PLANS_RESOURCE + "/" + urlEncode(planCode), Plan.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getPlans()}
+     */
+    public CompletableFuture<Plans> getPlans() {
+        return doGET(Plans.PLANS_RESOURCE, Plans.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getPlans(QueryParams)}
+     */
+    public CompletableFuture<Plans> getPlans(final QueryParams params) {
+        return doGET(Plans.PLANS_RESOURCE, Plans.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getPlansCount(QueryParams)}
+     */
+    public CompletableFuture<Integer> getPlansCount(final QueryParams params) {
+        return doHEAD(Plans.PLANS_RESOURCE, params).thenApply(RecurlyClient::getRecordsCount);
+    }
+
+    /**
+     * See {@link RecurlyClient#deletePlan(String)}
+     */
+    public CompletableFuture<Void> deletePlan(final String planCode) {
+        return doDELETE(Plan.PLANS_RESOURCE +
+                 "/" +
+                 urlEncode(planCode));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * See {@link RecurlyClient#createPlanAddOn(String, AddOn)}
+     */
+    public CompletableFuture<AddOn> createPlanAddOn(final String planCode, final AddOn addOn) {
+        return doPOST(Plan.PLANS_RESOURCE +
+                      "/" +
+                      urlEncode(planCode) +
+                      AddOn.ADDONS_RESOURCE,
+                      addOn, AddOn.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getAddOn(String, String)}
+     */
+    public CompletableFuture<AddOn> getAddOn(final String planCode, final String addOnCode) {
+        if (addOnCode == null || addOnCode.isEmpty())
+            throw new RuntimeException("addOnCode cannot be empty!");
+
+        return doGET(Plan.PLANS_RESOURCE +
+                     "/" +
+                     urlEncode(planCode) +
+                     AddOn.ADDONS_RESOURCE +
+                     "/" +
+                     addOnCode, AddOn.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getAddOns(String)}
+     */
+    public CompletableFuture<AddOns> getAddOns(final String planCode) {
+        return doGET(Plan.PLANS_RESOURCE +
+                "/" +
+                urlEncode(planCode) +
+                AddOn.ADDONS_RESOURCE,
+                AddOns.class,
+                new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getAddOns(String, QueryParams)}
+     */
+    public CompletableFuture<AddOns> getAddOns(final String planCode, final QueryParams params) {
+        return doGET(Plan.PLANS_RESOURCE +
+                "/" +
+                urlEncode(planCode) +
+                AddOn.ADDONS_RESOURCE,
+                AddOns.class,
+                params);
+    }
+
+    /**
+     * See {@link RecurlyClient#deleteAddOn(String, String)}
+     */
+    public CompletableFuture<Void> deleteAddOn(final String planCode, final String addOnCode) {
+        return doDELETE(Plan.PLANS_RESOURCE +
+                 "/" +
+                 urlEncode(planCode) +
+                 AddOn.ADDONS_RESOURCE +
+                 "/" +
+                 urlEncode(addOnCode));
+    }
+
+    /**
+     * See {@link RecurlyClient#updateAddOn(String, String, AddOn)}
+     */
+    public CompletableFuture<AddOn> updateAddOn(final String planCode, final String addOnCode, final AddOn addOn) {
+        return doPUT(Plan.PLANS_RESOURCE +
+                "/" +
+                urlEncode(planCode) +
+                AddOn.ADDONS_RESOURCE +
+                "/" +
+                urlEncode(addOnCode),
+                addOn,
+                AddOn.class);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * See {@link RecurlyClient#createCoupon(Coupon)}
+     */
+    public CompletableFuture<Coupon> createCoupon(final Coupon coupon) {
+        return doPOST(Coupon.COUPON_RESOURCE, coupon, Coupon.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getCoupon(String)}
+     */
+    public CompletableFuture<Coupon> getCoupon(final String couponCode) {
+        if (couponCode == null || couponCode.isEmpty())
+            throw new RuntimeException("couponCode cannot be empty!");
+
+        return doGET(Coupon.COUPON_RESOURCE + "/" + urlEncode(couponCode), Coupon.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#deleteCoupon(String)}
+     */
+    public CompletableFuture<Void> deleteCoupon(final String couponCode) {
+        return doDELETE(Coupon.COUPON_RESOURCE + "/" + urlEncode(couponCode));
+    }
+
+    /**
+     * See {@link RecurlyClient#restoreCoupon(String)}
+     */
+    public CompletableFuture<Coupon> restoreCoupon(final String couponCode) {
+        final Coupon coupon = new Coupon(); // This is required
+        return doPUT(Coupon.COUPON_RESOURCE + "/" + urlEncode(couponCode) + Coupon.RESTORE_RESOURCE,
+                coupon, Coupon.class);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * See {@link RecurlyClient#redeemCoupon(String, Redemption)}
+     */
+    public CompletableFuture<Redemption> redeemCoupon(final String couponCode, final Redemption redemption) {
+        return doPOST(Coupon.COUPON_RESOURCE + "/" + urlEncode(couponCode) + Redemption.REDEEM_RESOURCE,
+                      redemption, Redemption.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getCouponRedemptionByAccount(String)}
+     */
+    public CompletableFuture<Redemption> getCouponRedemptionByAccount(final String accountCode) {
+        return doGET(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + Redemption.REDEMPTION_RESOURCE,
+                     Redemption.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getCouponRedemptionsByAccount(String)}
+     */
+    public CompletableFuture<Redemptions> getCouponRedemptionsByAccount(final String accountCode) {
+        return doGET(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + Redemption.REDEMPTIONS_RESOURCE,
+                Redemptions.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getCouponRedemptionsByAccount(String, QueryParams)}
+     */
+    public CompletableFuture<Redemptions> getCouponRedemptionsByAccount(final String accountCode, final QueryParams params) {
+        return doGET(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + Redemption.REDEMPTIONS_RESOURCE,
+                Redemptions.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getCouponRedemptionByInvoice(Integer)}
+     *
+     * @deprecated see {@link RecurlyClient#getCouponRedemptionByInvoice(Integer)}
+     */
+    @Deprecated
+    public CompletableFuture<Redemption> getCouponRedemptionByInvoice(final Integer invoiceNumber) {
+        return getCouponRedemptionByInvoice(invoiceNumber.toString());
+    }
+
+    /**
+     * See {@link RecurlyClient#getCouponRedemptionByInvoice(String)}
+     */
+    public CompletableFuture<Redemption> getCouponRedemptionByInvoice(final String invoiceId) {
+        return doGET(Invoices.INVOICES_RESOURCE + "/" + urlEncode(invoiceId) + Redemption.REDEMPTION_RESOURCE,
+                Redemption.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getCouponRedemptionsByInvoice(Integer)}
+     *
+     * @deprecated see {@link RecurlyClient#getCouponRedemptionsByInvoice(Integer)}
+     */
+    @Deprecated
+    public CompletableFuture<Redemptions> getCouponRedemptionsByInvoice(final Integer invoiceNumber) {
+        return getCouponRedemptionsByInvoice(invoiceNumber.toString(), new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getCouponRedemptionsByInvoice(String)}
+     */
+    public CompletableFuture<Redemptions> getCouponRedemptionsByInvoice(final String invoiceId) {
+        return getCouponRedemptionsByInvoice(invoiceId, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getCouponRedemptionsByInvoice(Integer, QueryParams)}
+     *
+     * @deprecated see {@link RecurlyClient#getCouponRedemptionsByInvoice(Integer, QueryParams)}
+     */
+    @Deprecated
+    public CompletableFuture<Redemptions> getCouponRedemptionsByInvoice(final Integer invoiceNumber, final QueryParams params) {
+        return getCouponRedemptionsByInvoice(invoiceNumber.toString(), params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getCouponRedemptionsByInvoice(String, QueryParams)}
+     */
+    public CompletableFuture<Redemptions> getCouponRedemptionsByInvoice(final String invoiceId, final QueryParams params) {
+        return doGET(Invoices.INVOICES_RESOURCE + "/" + urlEncode(invoiceId) + Redemption.REDEMPTIONS_RESOURCE,
+                Redemptions.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getCouponRedemptionsBySubscription(String, QueryParams)}
+     */
+    public CompletableFuture<Redemptions> getCouponRedemptionsBySubscription(final String subscriptionUuid, final QueryParams params) {
+        return doGET(Subscription.SUBSCRIPTION_RESOURCE + "/" + urlEncode(subscriptionUuid) + Redemptions.REDEMPTIONS_RESOURCE,
+                Redemptions.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#deleteCouponRedemption(String)}
+     */
+    public CompletableFuture<Void> deleteCouponRedemption(final String accountCode) {
+        return doDELETE(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + Redemption.REDEMPTION_RESOURCE);
+    }
+
+    /**
+     * See {@link RecurlyClient#deleteCouponRedemption(String, String)}
+     */
+    public CompletableFuture<Void> deleteCouponRedemption(final String accountCode, final String redemptionUuid) {
+        return doDELETE(Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + Redemption.REDEMPTIONS_RESOURCE + "/" + redemptionUuid);
+    }
+
+    /**
+     * See {@link RecurlyClient#generateUniqueCodes(String, Coupon)}
+     */
+    public CompletableFuture<Coupons> generateUniqueCodes(final String couponCode, final Coupon coupon) {
+        return doPOST(Coupon.COUPON_RESOURCE + "/" + urlEncode(couponCode) + Coupon.GENERATE_RESOURCE, coupon, Coupons.class)
+                .thenCompose(coupons -> {
+                    if (coupons == null || coupons.getStartUrl() == null) {
+                        return CompletableFuture.<Coupons>completedFuture(null);
+                    }
+                    return doGETWithFullURL(Coupons.class, coupons.getStartUrl());
+                });
+    }
+
+    /**
+     * See {@link RecurlyClient#getUniqueCouponCodes(String, QueryParams)}
+     */
+    public CompletableFuture<Coupons> getUniqueCouponCodes(final String couponCode, final QueryParams params) {
+        return doGET(Coupon.COUPON_RESOURCE + "/" + urlEncode(couponCode) + Coupon.UNIQUE_CODES_RESOURCE,
+                Coupons.class, params);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    //
+    // Recurly.js API
+    //
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * See {@link RecurlyClient#fetchSubscription(String)}
+     */
+    public CompletableFuture<Subscription> fetchSubscription(final String recurlyToken) {
+        return fetch(recurlyToken, Subscription.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#fetchBillingInfo(String)}
+     */
+    public CompletableFuture<BillingInfo> fetchBillingInfo(final String recurlyToken) {
+        return fetch(recurlyToken, BillingInfo.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#fetchInvoice(String)}
+     */
+    public CompletableFuture<Invoice> fetchInvoice(final String recurlyToken) {
+        return fetch(recurlyToken, Invoice.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getGiftCards(QueryParams)}
+     */
+    public CompletableFuture<GiftCards> getGiftCards(final QueryParams params) {
+        return doGET(GiftCards.GIFT_CARDS_RESOURCE, GiftCards.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getGiftCards()}
+     */
+    public CompletableFuture<GiftCards> getGiftCards() {
+        return doGET(GiftCards.GIFT_CARDS_RESOURCE, GiftCards.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getGiftCardsCount(QueryParams)}
+     */
+    public CompletableFuture<Integer> getGiftCardsCount(final QueryParams params) {
+        return doHEAD(GiftCards.GIFT_CARDS_RESOURCE, params).thenApply(RecurlyClient::getRecordsCount);
+    }
+
+    /**
+     * See {@link RecurlyClient#getGiftCard(Long)}
+     */
+    public CompletableFuture<GiftCard> getGiftCard(final Long giftCardId) {
+        return doGET(GiftCards.GIFT_CARDS_RESOURCE + "/" + Long.toString(giftCardId), GiftCard.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#redeemGiftCard(String, String)}
+     */
+    public CompletableFuture<GiftCard> redeemGiftCard(final String redemptionCode, final String accountCode) {
+        final GiftCard.Redemption redemptionData = GiftCard.createRedemption(accountCode);
+        final String url = GiftCards.GIFT_CARDS_RESOURCE + "/" + urlEncode(redemptionCode) + "/redeem";
+
+        return doPOST(url, redemptionData, GiftCard.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#purchaseGiftCard(GiftCard)}
+     */
+    public CompletableFuture<GiftCard> purchaseGiftCard(final GiftCard giftCard) {
+        return doPOST(GiftCards.GIFT_CARDS_RESOURCE, giftCard, GiftCard.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#previewGiftCard(GiftCard)}
+     */
+    public CompletableFuture<GiftCard> previewGiftCard(final GiftCard giftCard) {
+        return doPOST(GiftCards.GIFT_CARDS_RESOURCE + "/preview", giftCard, GiftCard.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getMeasuredUnits()}
+     */
+    public CompletableFuture<MeasuredUnits> getMeasuredUnits() {
+        return doGET(MeasuredUnits.MEASURED_UNITS_RESOURCE, MeasuredUnits.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#createMeasuredUnit(MeasuredUnit)}
+     */
+    public CompletableFuture<MeasuredUnit> createMeasuredUnit(final MeasuredUnit measuredUnit) {
+        return doPOST(MeasuredUnit.MEASURED_UNITS_RESOURCE, measuredUnit, MeasuredUnit.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#purchase(Purchase)}
+     */
+    public CompletableFuture<InvoiceCollection> purchase(final Purchase purchase) {
+        return doPOST(Purchase.PURCHASES_ENDPOINT, purchase, InvoiceCollection.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#previewPurchase(Purchase)}
+     */
+    public CompletableFuture<InvoiceCollection> previewPurchase(final Purchase purchase) {
+        return doPOST(Purchase.PURCHASES_ENDPOINT + "/preview", purchase, InvoiceCollection.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#authorizePurchase(Purchase)}
+     */
+    public CompletableFuture<InvoiceCollection> authorizePurchase(final Purchase purchase) {
+        return doPOST(Purchase.PURCHASES_ENDPOINT + "/authorize", purchase, InvoiceCollection.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#pendingPurchase(Purchase)}
+     */
+    public CompletableFuture<InvoiceCollection> pendingPurchase(final Purchase purchase) {
+        return doPOST(Purchase.PURCHASES_ENDPOINT + "/pending", purchase, InvoiceCollection.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#createAccountAcquisition(String, AccountAcquisition)}
+     */
+    public CompletableFuture<AccountAcquisition> createAccountAcquisition(final String accountCode, final AccountAcquisition acquisition) {
+        final String path = Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + AccountAcquisition.ACCOUNT_ACQUISITION_RESOURCE;
+        return doPOST(path, acquisition, AccountAcquisition.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#getAccountAcquisition(String)}
+     */
+    public CompletableFuture<AccountAcquisition> getAccountAcquisition(final String accountCode) {
+        final String path = Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + AccountAcquisition.ACCOUNT_ACQUISITION_RESOURCE;
+        return doGET(path, AccountAcquisition.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#updateAccountAcquisition(String, AccountAcquisition)}
+     */
+    public CompletableFuture<AccountAcquisition> updateAccountAcquisition(final String accountCode, final AccountAcquisition acquisition) {
+        final String path = Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + AccountAcquisition.ACCOUNT_ACQUISITION_RESOURCE;
+        return doPUT(path, acquisition, AccountAcquisition.class);
+    }
+
+    /**
+     * See {@link RecurlyClient#deleteAccountAcquisition(String)}
+     */
+    public CompletableFuture<Void> deleteAccountAcquisition(final String accountCode) {
+        return doDELETE(Account.ACCOUNT_RESOURCE + "/" + urlEncode(accountCode) + AccountAcquisition.ACCOUNT_ACQUISITION_RESOURCE);
+    }
+
+    /**
+     * See {@link RecurlyClient#getCreditPayments()}
+     */
+    public CompletableFuture<CreditPayments> getCreditPayments() {
+        return doGET(CreditPayments.CREDIT_PAYMENTS_RESOURCE, CreditPayments.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getCreditPayments(QueryParams)}
+     */
+    public CompletableFuture<CreditPayments> getCreditPayments(final QueryParams params) {
+        return doGET(CreditPayments.CREDIT_PAYMENTS_RESOURCE, CreditPayments.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getCreditPayments(String, QueryParams)}
+     */
+    public CompletableFuture<CreditPayments> getCreditPayments(final String accountCode, final QueryParams params) {
+        final String path = Accounts.ACCOUNTS_RESOURCE + "/" + urlEncode(accountCode) + CreditPayments.CREDIT_PAYMENTS_RESOURCE;
+        return doGET(path, CreditPayments.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getShippingMethods()}
+     */
+    public CompletableFuture<ShippingMethods> getShippingMethods() {
+        return doGET(ShippingMethods.SHIPPING_METHODS_RESOURCE, ShippingMethods.class, new QueryParams());
+    }
+
+    /**
+     * See {@link RecurlyClient#getShippingMethods(QueryParams)}
+     */
+    public CompletableFuture<ShippingMethods> getShippingMethods(final QueryParams params) {
+        return doGET(ShippingMethods.SHIPPING_METHODS_RESOURCE, ShippingMethods.class, params);
+    }
+
+    /**
+     * See {@link RecurlyClient#getShippingMethod(String)}
+     */
+    public CompletableFuture<ShippingMethod> getShippingMethod(final String shippingMethodCode) {
+        if (shippingMethodCode == null || shippingMethodCode.isEmpty())
+            throw new RuntimeException("shippingMethodCode cannot be empty!");
+
+        return doGET(ShippingMethod.SHIPPING_METHOD_RESOURCE + "/" + urlEncode(shippingMethodCode), ShippingMethod.class);
+    }
+
+    private <T> CompletableFuture<T> fetch(final String recurlyToken, final Class<T> clazz) {
+        return doGET(RecurlyClient.FETCH_RESOURCE + "/" + urlEncode(recurlyToken), clazz);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private CompletableFuture<InputStream> doGETPdf(final String resource) {
+        final String url = recurlyClient.constructUrl(resource);
+        if (debug()) {
+            log.info(" [GET] :: URL : {}", url);
+        }
+
+        final HttpGet builder = new HttpGet(url);
+        final CompletableFuture<InputStream> future = new CompletableFuture<InputStream>();
+        try {
+            recurlyClient.preparePdfRequest(builder);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        return execute(builder, future, response -> recurlyClient.handlePdfResponse(builder, response));
+    }
+
+    private <T> CompletableFuture<T> doGET(final String resource, final Class<T> clazz) {
+        return doGETWithFullURL(clazz, recurlyClient.constructUrl(resource));
+    }
+
+    private <T> CompletableFuture<T> doGET(final String resource, final Class<T> clazz, final QueryParams params) {
+        return doGETWithFullURL(clazz, recurlyClient.constructUrl(resource, params));
+    }
+
+    public <T> CompletableFuture<T> doGETWithFullURL(final Class<T> clazz, final String fullUrl) {
+        final String url = recurlyClient.withPageSize(clazz, fullUrl);
+        if (debug()) {
+            log.info("Msg to Recurly API [GET] :: URL : {}", url);
+        }
+        if (!recurlyClient.getConfig().isRequestCoalescingEnabled()) {
+            return callRecurlyXmlContent(new HttpGet(url), clazz);
+        }
+        // Shares the in-flight calls of the blocking client
+        return recurlyClient.getRequestCoalescer().execute(recurlyClient.coalescingKey(clazz, url),
+                                                           () -> callRecurlyXmlContent(new HttpGet(url), clazz));
+    }
+
+    private <T> CompletableFuture<T> doPOST(final String resource, final RecurlyObject payload, final Class<T> clazz) {
+        final HttpPost builder = new HttpPost(recurlyClient.constructUrl(resource));
+        try {
+            builder.setEntity(recurlyClient.xmlEntity("POST", builder.getURI(), payload));
+        } catch (IOException e) {
+            log.warn("Unable to serialize {} object as XML: {}", clazz.getName(), payload.toString());
+            return CompletableFuture.completedFuture(null);
+        }
+        return callRecurlyXmlContent(builder, clazz);
+    }
+
+    private <T> CompletableFuture<T> doPUT(final String resource, final RecurlyObject payload, final Class<T> clazz) {
+        return doPUT(resource, payload, clazz, new QueryParams());
+    }
+
+    private <T> CompletableFuture<T> doPUT(final String resource, final RecurlyObject payload, final Class<T> clazz, final QueryParams params) {
+        final HttpPut builder = new HttpPut(recurlyClient.constructUrl(resource, params));
+        try {
+            builder.setEntity(recurlyClient.xmlEntity("PUT", builder.getURI(), payload));
+        } catch (IOException e) {
+            log.warn("Unable to serialize {} object as XML: {}", clazz.getName(), payload.toString());
+            return CompletableFuture.completedFuture(null);
+        }
+        return callRecurlyXmlContent(builder, clazz);
+    }
+
+    private CompletableFuture<HeaderGroup> doHEAD(final String resource, QueryParams params) {
+        if (params == null) {
+            params = new QueryParams();
+        }
+
+        final String url = recurlyClient.constructUrl(resource, params);
+        if (debug()) {
+            log.info("Msg to Recurly API [HEAD]:: URL : {}", url);
+        }
+
+        final HttpHead builder = new HttpHead(url);
+        final CompletableFuture<HeaderGroup> future = new CompletableFuture<HeaderGroup>();
+        try {
+            recurlyClient.prepareXmlRequest(builder);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        return execute(builder, future, recurlyClient::handleNoContentResponse);
+    }
+
+    private CompletableFuture<Void> doDELETE(final String resource) {
+        return callRecurlyXmlContent(new HttpDelete(recurlyClient.constructUrl(resource)), null);
+    }
+
+    private <T> CompletableFuture<T> callRecurlyXmlContent(final HttpRequestBase builder, @Nullable final Class<T> clazz) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            recurlyClient.prepareXmlRequest(builder);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        final ResponseCache.Entry cached = recurlyClient.prepareConditionalRequest(builder, clazz);
+        final AtomicLong sentNanos = recurlyClient.isPaged(clazz) && HttpGet.METHOD_NAME.equals(builder.getMethod()) ? new AtomicLong() : null;
+        final AtomicLong decodedBytes = new AtomicLong();
+        return execute(builder, future, response -> {
+            try {
+                final T result = recurlyClient.handleXmlResponse(builder, response, clazz, cached, decodedBytes);
+                if (sentNanos != null && result != null) {
+                    recurlyClient.getPageSizer().record(builder.getURI().toString(),
+                                                        ((RecurlyObjects<?>) result).size(),
+                                                        System.nanoTime() - sentNanos.get(),
+                                                        decodedBytes.get());
+                }
+                return result;
+            } finally {
+                // Before the future completes, so that its callbacks do not see stale objects
+                recurlyClient.invalidateIdentityMap(builder);
+            }
+        }, sentNanos);
+    }
+
+    private <T> CompletableFuture<T> execute(final HttpRequestBase builder, final CompletableFuture<T> future, final ResponseMapper<T> mapper) {
+        return execute(builder, future, mapper, null);
+    }
+
+    /**
+     * @param sentNanos set to the time the last attempt was sent at, if not null
+     */
+    private <T> CompletableFuture<T> execute(final HttpRequestBase builder, final CompletableFuture<T> future, final ResponseMapper<T> mapper,
+                                             @Nullable final AtomicLong sentNanos) {
+        return execute(builder, future, mapper, sentNanos, 1);
+    }
+
+    private <T> CompletableFuture<T> execute(final HttpRequestBase builder, final CompletableFuture<T> future, final ResponseMapper<T> mapper,
+                                             @Nullable final AtomicLong sentNanos, final int attempt) {
+        final long waitNanos = recurlyClient.reserveCall();
+        if (waitNanos <= 0) {
+            return send(builder, future, mapper, sentNanos, attempt);
+        }
+
+        // Wait for the rate governor without blocking the caller
+        log.debug("Rate limit budget low, delaying call by {}ms", TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        SCHEDULER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!future.isDone()) {
+                    send(builder, future, mapper, sentNanos, attempt);
+                }
+            }
+        }, waitNanos, TimeUnit.NANOSECONDS);
+        return future;
+    }
+
+    private <T> void retry(final HttpRequestBase builder, final CompletableFuture<T> future, final ResponseMapper<T> mapper,
+                           @Nullable final AtomicLong sentNanos, final int attempt, final long retryDelayMillis) {
+        SCHEDULER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!future.isDone()) {
+                    builder.reset();
+                    execute(builder, future, mapper, sentNanos, attempt + 1);
+                }
+            }
+        }, retryDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private <T> CompletableFuture<T> send(final HttpRequestBase builder, final CompletableFuture<T> future, final ResponseMapper<T> mapper,
+                                          @Nullable final AtomicLong sentNanos, final int attempt) {
+        final RetryPolicy retryPolicy = recurlyClient.getConfig().getRetryPolicy();
+        final Future<HttpResponse> response;
+        try {
+            if (sentNanos != null) {
+                sentNanos.set(System.nanoTime());
+            }
+            response = root.client.execute(builder, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(final HttpResponse result) {
+                    final long retryDelayMillis = retryPolicy.getRetryDelayMillis(builder, attempt, result, null);
+                    if (retryDelayMillis >= 0) {
+                        log.info("Retrying {} {} in {}ms after attempt {} returned {}", builder.getMethod(), builder.getURI(), retryDelayMillis, attempt, result.getStatusLine().getStatusCode());
+                        recurlyClient.updateRateLimit(result);
+                        retry(builder, future, mapper, sentNanos, attempt, retryDelayMillis);
+                        return;
+                    }
+
+                    handOff(future, () -> {
+                        try {
+                            future.complete(mapper.map(result));
+                        } catch (IOException e) {
+                            // The response was received: don't retry
+                            giveUp(e);
+                        } catch (RuntimeException e) {
+                            future.completeExceptionally(e);
+                        }
+                    });
+                }
+
+                @Override
+                public void failed(final Exception e) {
+                    if (e instanceof IOException) {
+                        final long retryDelayMillis = retryPolicy.getRetryDelayMillis(builder, attempt, null, (IOException) e);
+                        if (retryDelayMillis >= 0) {
+                            log.info("Retrying {} {} in {}ms after attempt {} failed: {}", builder.getMethod(), builder.getURI(), retryDelayMillis, attempt, e.toString());
+                            retry(builder, future, mapper, sentNanos, attempt, retryDelayMillis);
+                            return;
+                        }
+                    }
+                    handOff(future, () -> giveUp(e));
+                }
+
+                private void giveUp(final Exception e) {
+                    final ConnectionErrorException connectionError = RecurlyClient.toConnectionError(e);
+                    if (connectionError != null) {
+                        future.completeExceptionally(connectionError);
+                    } else {
+                        future.complete(null);
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    future.cancel(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // E.g. the client was never opened
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        // Propagate cancellations to the in-flight request
+        future.whenComplete((result, throwable) -> {
+            if (future.isCancelled()) {
+                response.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Complete a future on the callback executor, see {@link RecurlyClientConfig.Builder#setCallbackExecutor(Executor)}:
+     * the stages chained by callers would otherwise run on the I/O reactor
+     */
+    private void handOff(final CompletableFuture<?> future, final Runnable completion) {
+        try {
+            recurlyClient.getConfig().getCallbackExecutor().execute(completion);
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void checkRoot() {
+        if (root != this) {
+            throw new IllegalStateException("Clients returned by withOptions share the http client of their parent client: open or close the latter instead");
+        }
+    }
+
+    protected CloseableHttpAsyncClient createHttpAsyncClient() throws KeyManagementException, NoSuchAlgorithmException {
+        final RecurlyClientConfig config = recurlyClient.getConfig();
+        return HttpAsyncClients.custom()
+                .disableCookieManagement() // We don't need cookies
+                .setMaxConnPerRoute(config.getMaxConnectionsPerRoute())
+                .setMaxConnTotal(config.getMaxConnectionsTotal())
+                .setDefaultRequestConfig(config.getRequestConfig())
+                .setKeepAliveStrategy(config.getKeepAliveStrategy())
+                .setSSLContext(SslUtils.getInstance().getSSLContext())
+                .build();
+    }
+
+    private interface ResponseMapper<T> {
+
+        T map(HttpResponse response) throws IOException;
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ning.billing.recurly.model.RecurlyObject;
+import com.ning.billing.recurly.model.RecurlyObjects;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Export of a list endpoint which survives process restarts
+ * <p>
+ * After each page is handled, the position of the export (the next URL, the current time window and the counts so
+ * far) is written to a local checkpoint file. Running an export whose checkpoint file exists resumes it from
+ * there, instead of starting over from the first page:
+ * <pre>
+ * final CheckpointedExport&lt;Invoice&gt; export = CheckpointedExport.builder(recurlyClient, params -&gt; recurlyClient.getInvoices(params),
+ *                                                                     Invoices.class, new File("invoices.checkpoint"))
+ *                                                            .setRange(begin, end)
+ *                                                            .build();
+ * export.run(invoices -&gt; ...);
+ * </pre>
+ * Pages are handled at least once: a page handled right before the process stopped, but not checkpointed yet, is
+ * handled again on resume. The checkpoint file is deleted once the export completes.
+ * <p>
+ * When a range is set, it is walked in consecutive windows of {@link Builder#setWindow(long, TimeUnit)}, sorted
+ * in ascending order, so that a resumed export never relies on a cursor older than a window.
+ */
+public class CheckpointedExport<T extends RecurlyObject> {
+
+    private static final Logger log = LoggerFactory.getLogger(CheckpointedExport.class);
+
+    private static final String BEGIN = "begin";
+    private static final String END = "end";
+    private static final String WINDOW_BEGIN = "window.begin";
+    private static final String WINDOW_END = "window.end";
+    private static final String NEXT_URL = "next.url";
+    private static final String PAGES = "pages";
+    private static final String RECORDS = "records";
+
+    private final RecurlyClient recurlyClient;
+    private final Function<QueryParams, ? extends RecurlyObjects<T>> fetcher;
+    private final Class<? extends RecurlyObjects<T>> pageClass;
+    private final File checkpointFile;
+    private final QueryParams.Sort sort;
+    private final DateTime begin;
+    private final DateTime end;
+    private final long windowMillis;
+
+    private volatile Checkpoint checkpoint;
+
+    private CheckpointedExport(final Builder<T> builder) {
+        this.recurlyClient = builder.recurlyClient;
+        this.fetcher = builder.fetcher;
+        this.pageClass = builder.pageClass;
+        this.checkpointFile = builder.checkpointFile;
+        this.sort = builder.sort;
+        this.begin = builder.begin;
+        this.end = builder.end;
+        this.windowMillis = builder.windowMillis;
+    }
+
+    /**
+     * @param recurlyClient  client to resume the export with
+     * @param fetcher        fetches the first page of the list, or of a window, e.g. {@code params -> recurlyClient.getInvoices(params)}
+     * @param pageClass      class of the pages, e.g. {@code Invoices.class}
+     * @param checkpointFile file the position of the export is kept in
+     */
+    public static <T extends RecurlyObject> Builder<T> builder(final RecurlyClient recurlyClient,
+                                                               final Function<QueryParams, ? extends RecurlyObjects<T>> fetcher,
+                                                               final Class<? extends RecurlyObjects<T>> pageClass,
+                                                               final File checkpointFile) {
+        return new Builder<T>(recurlyClient, fetcher, pageClass, checkpointFile);
+    }
+
+    /**
+     * Run the export, from its checkpoint if any, to the end
+     * <p>
+     * If the handler or a call throws, or a page cannot be fetched, the checkpoint is left at the last page
+     * handled: run the export again to resume it.
+     *
+     * @param handler called with each page, in order
+     * @return the number of records exported, including the ones exported before resuming
+     * @throws IOException           if the checkpoint cannot be read or written
+     * @throws IllegalStateException if a page cannot be fetched
+     */
+    public long run(final Consumer<? super RecurlyObjects<T>> handler) throws IOException {
+        Checkpoint current = readCheckpoint();
+        if (current == null) {
+            current = new Checkpoint(begin, windowEnd(begin), null, 0, 0);
+        } else {
+            log.info("Resuming export from {}", current);
+        }
+        checkpoint = current;
+
+        while (true) {
+            final RecurlyObjects<T> page;
+            if (current.nextUrl != null) {
+                page = recurlyClient.doGETWithFullURL(pageClass, current.nextUrl);
+            } else {
+                page = fetcher.apply(windowParams(current));
+            }
+            if (page == null) {
+                // The client yields null when a call fails without a connection error: not the end of the list
+                final String what = current.nextUrl != null ? current.nextUrl
+                                                            : current.windowBegin != null ? "the first page of the window from " + current.windowBegin
+                                                                                          : "the first page";
+                throw new IllegalStateException("Unable to fetch " + what + ", run the export again to resume it");
+            }
+            if (!page.isEmpty()) {
+                handler.accept(page);
+            }
+
+            final int records = page.size();
+            final String nextUrl = page.getNextUrl();
+            if (nextUrl != null) {
+                current = new Checkpoint(current.windowBegin, current.windowEnd, nextUrl, current.pages + 1, current.records + records);
+            } else if (current.windowEnd != null && current.windowEnd.isBefore(end)) {
+                current = new Checkpoint(current.windowEnd, windowEnd(current.windowEnd), null, current.pages + 1, current.records + records);
+            } else {
+                // Done: the next run starts over
+                checkpoint = new Checkpoint(current.windowBegin, current.windowEnd, null, current.pages + 1, current.records + records);
+                Files.deleteIfExists(checkpointFile.toPath());
+                return checkpoint.records;
+            }
+            writeCheckpoint(current);
+            checkpoint = current;
+        }
+    }
+
+    /**
+     * @return the position of the export, null until it is run
+     */
+    @Nullable
+    public Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    @Nullable
+    private DateTime windowEnd(@Nullable final DateTime windowBegin) {
+        if (windowBegin == null) {
+            return null;
+        }
+        return windowMillis > 0 && windowBegin.getMillis() + windowMillis < end.getMillis() ? windowBegin.plus(windowMillis) : end;
+    }
+
+    private QueryParams windowParams(final Checkpoint checkpoint) {
+        final QueryParams params = new QueryParams();
+        if (checkpoint.windowBegin != null) {
+            params.setSort(sort);
+            params.setOrder(QueryParams.Order.ASC);
+            params.setBeginTime(checkpoint.windowBegin);
+            // Both bounds are inclusive
+            params.setEndTime(checkpoint.windowEnd.minusMillis(1));
+        }
+        return params;
+    }
+
+    @Nullable
+    private Checkpoint readCheckpoint() throws IOException {
+        if (!checkpointFile.exists()) {
+            return null;
+        }
+        final Properties properties = new Properties();
+        final InputStream in = new FileInputStream(checkpointFile);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        final DateTime checkpointBegin = parseDateTime(properties.getProperty(BEGIN));
+        final DateTime checkpointEnd = parseDateTime(properties.getProperty(END));
+        if (!sameInstant(checkpointBegin, begin) || !sameInstant(checkpointEnd, end)) {
+            throw new IllegalStateException("Checkpoint " + checkpointFile + " is for the range [" + checkpointBegin + ", " + checkpointEnd +
+                                            "), not [" + begin + ", " + end + ")");
+        }
+        return new Checkpoint(parseDateTime(properties.getProperty(WINDOW_BEGIN)),
+                              parseDateTime(properties.getProperty(WINDOW_END)),
+                              properties.getProperty(NEXT_URL),
+                              Long.parseLong(properties.getProperty(PAGES, "0")),
+                              Long.parseLong(properties.getProperty(RECORDS, "0")));
+    }
+
+    // Write a new file and rename it, so that a crash never leaves a truncated checkpoint behind
+    private void writeCheckpoint(final Checkpoint checkpoint) throws IOException {
+        final Properties properties = new Properties();
+        setDateTime(properties, BEGIN, begin);
+        setDateTime(properties, END, end);
+        setDateTime(properties, WINDOW_BEGIN, checkpoint.windowBegin);
+        setDateTime(properties, WINDOW_END, checkpoint.windowEnd);
+        if (checkpoint.nextUrl != null) {
+            properties.setProperty(NEXT_URL, checkpoint.nextUrl);
+        }
+        properties.setProperty(PAGES, String.valueOf(checkpoint.pages));
+        properties.setProperty(RECORDS, String.valueOf(checkpoint.records));
+
+        final File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            properties.store(out, "Recurly export checkpoint");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void setDateTime(final Properties properties, final String key, @Nullable final DateTime value) {
+        if (value != null) {
+            properties.setProperty(key, value.toDateTimeISO().toString());
+        }
+    }
+
+    @Nullable
+    private static DateTime parseDateTime(@Nullable final String value) {
+        return value == null ? null : DateTime.parse(value);
+    }
+
+    private static boolean sameInstant(@Nullable final DateTime a, @Nullable final DateTime b) {
+        return a == null ? b == null : b != null && a.getMillis() == b.getMillis();
+    }
+
+    /**
+     * Position of an export
+     */
+    public static final class Checkpoint {
+
+        private final DateTime windowBegin;
+        private final DateTime windowEnd;
+        private final String nextUrl;
+        private final long pages;
+        private final long records;
+
+        private Checkpoint(@Nullable final DateTime windowBegin, @Nullable final DateTime windowEnd, @Nullable final String nextUrl,
+                           final long pages, final long records) {
+            this.windowBegin = windowBegin;
+            this.windowEnd = windowEnd;
+            this.nextUrl = nextUrl;
+            this.pages = pages;
+            this.records = records;
+        }
+
+        /**
+         * @return start of the current window, inclusive, null if the export has no range
+         */
+        @Nullable
+        public DateTime getWindowBegin() {
+            return windowBegin;
+        }
+
+        /**
+         * @return end of the current window, exclusive, null if the export has no range
+         */
+        @Nullable
+        public DateTime getWindowEnd() {
+            return windowEnd;
+        }
+
+        /**
+         * @return URL of the next page of the current window, null if the window is not started yet
+         */
+        @Nullable
+        public String getNextUrl() {
+            return nextUrl;
+        }
+
+        /**
+         * @return number of pages handled
+         */
+        public long getPages() {
+            return pages;
+        }
+
+        /**
+         * @return number of records handled
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                              .add("windowBegin", windowBegin)
+                              .add("windowEnd", windowEnd)
+                              .add("nextUrl", nextUrl)
+                              .add("pages", pages)
+                              .add("records", records)
+                              .toString();
+        }
+    }
+
+    public static class Builder<T extends RecurlyObject> {
+
+        private final RecurlyClient recurlyClient;
+        private final Function<QueryParams, ? extends RecurlyObjects<T>> fetcher;
+        private final Class<? extends RecurlyObjects<T>> pageClass;
+        private final File checkpointFile;
+        private QueryParams.Sort sort = QueryParams.Sort.CREATED_AT;
+        private DateTime begin;
+        private DateTime end;
+        private long windowMillis = TimeUnit.DAYS.toMillis(1);
+
+        private Builder(final RecurlyClient recurlyClient, final Function<QueryParams, ? extends RecurlyObjects<T>> fetcher,
+                        final Class<? extends RecurlyObjects<T>> pageClass, final File checkpointFile) {
+            this.recurlyClient = recurlyClient;
+            this.fetcher = fetcher;
+            this.pageClass = pageClass;
+            this.checkpointFile = checkpointFile;
+        }
+
+        /**
+         * @param sort attribute the range filters on ({@link QueryParams.Sort#CREATED_AT} by default)
+         */
+        public Builder<T> setSort(final QueryParams.Sort sort) {
+            this.sort = sort;
+            return this;
+        }
+
+        /**
+         * Export the records of a range only, window after window. Without a range, the whole list is exported
+         * with the parameters of the fetcher.
+         *
+         * @param begin start of the range, inclusive
+         * @param end   end of the range, exclusive
+         */
+        public Builder<T> setRange(final DateTime begin, final DateTime end) {
+            if (!begin.isBefore(end)) {
+                throw new IllegalArgumentException("begin (" + begin + ") must be before end (" + end + ")");
+            }
+            this.begin = begin;
+            this.end = end;
+            return this;
+        }
+
+        /**
+         * @param window duration of the windows the range is walked in (1 day by default)
+         */
+        public Builder<T> setWindow(final long window, final TimeUnit unit) {
+            if (window <= 0) {
+                throw new IllegalArgumentException("window must be positive: " + window);
+            }
+            this.windowMillis = unit.toMillis(window);
+            return this;
+        }
+
+        public CheckpointedExport<T> build() {
+            return new CheckpointedExport<T>(this);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Pre-establishes pooled connections, see {@link RecurlyClientConfig.Builder#setWarmUpConnections(int)}
+ * <p>
+ * Connections are opened, including their TLS handshake, and released to the pool without sending any
+ * request, so warming up consumes no rate limit budget. The first connection negotiates a full handshake: the
+ * other ones are then opened concurrently and resume its TLS session.
+ */
+class ConnectionWarmUp {
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionWarmUp.class);
+
+    private final HttpClientConnectionManager connectionManager;
+    private final RequestConfig requestConfig;
+    private final long keepAliveMillis;
+
+    ConnectionWarmUp(final HttpClientConnectionManager connectionManager, final RecurlyClientConfig config) {
+        this.connectionManager = connectionManager;
+        this.requestConfig = config.getRequestConfig();
+        // Pooled connections never expire unless the server or the configuration says otherwise
+        this.keepAliveMillis = config.getKeepAliveMillis();
+    }
+
+    /**
+     * Open connections to the host of a URL
+     *
+     * @param url         URL of the calls to warm up for
+     * @param connections number of connections to open
+     * @return the number of connections opened
+     */
+    int warmUp(final String url, final int connections) {
+        final URI uri = URI.create(url);
+        final HttpRoute route = new HttpRoute(URIUtils.extractHost(uri), null, "https".equalsIgnoreCase(uri.getScheme()));
+        if (connections <= 0) {
+            return 0;
+        }
+
+        final long startNanos = System.nanoTime();
+        // Hold the connections until all are open, otherwise the pool would keep handing out the same one
+        final List<HttpClientConnection> opened = new ArrayList<HttpClientConnection>();
+        final HttpClientConnection first = open(route);
+        if (first == null) {
+            return 0;
+        }
+        opened.add(first);
+
+        if (connections > 1) {
+            final ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections - 1, 16));
+            try {
+                final List<Future<HttpClientConnection>> results = new ArrayList<Future<HttpClientConnection>>();
+                for (int i = 1; i < connections; i++) {
+                    results.add(executor.submit(new Callable<HttpClientConnection>() {
+                        @Override
+                        public HttpClientConnection call() {
+                            return open(route);
+                        }
+                    }));
+                }
+                for (final Future<HttpClientConnection> result : results) {
+                    final HttpClientConnection connection = Uninterruptibles.getUninterruptibly(result);
+                    if (connection != null) {
+                        opened.add(connection);
+                    }
+                }
+            } catch (ExecutionException e) {
+                // open() does not throw
+                throw new IllegalStateException(e);
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        for (final HttpClientConnection connection : opened) {
+            connectionManager.releaseConnection(connection, null, keepAliveMillis, TimeUnit.MILLISECONDS);
+        }
+        log.info("Opened {} connection(s) to {} in {}ms", opened.size(), route.getTargetHost(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        return opened.size();
+    }
+
+    /**
+     * @return a new connection, leased from the pool, null if the pool is full or the connection failed
+     */
+    @Nullable
+    private HttpClientConnection open(final HttpRoute route) {
+        final HttpClientContext context = HttpClientContext.create();
+        context.setRequestConfig(requestConfig);
+        final ConnectionRequest connectionRequest = connectionManager.requestConnection(route, null);
+        HttpClientConnection connection = null;
+        try {
+            connection = connectionRequest.get(Math.max(requestConfig.getConnectionRequestTimeout(), 0), TimeUnit.MILLISECONDS);
+            if (connection.isOpen()) {
+                // Already warm
+                connectionManager.releaseConnection(connection, null, keepAliveMillis, TimeUnit.MILLISECONDS);
+                return null;
+            }
+            connectionManager.connect(connection, route, Math.max(requestConfig.getConnectTimeout(), 0), context);
+            connectionManager.routeComplete(connection, route, context);
+            return connection;
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("Unable to warm up connection to {}: {}", route.getTargetHost(), e.toString());
+            if (connection != null) {
+                try {
+                    // E.g. the TLS handshake failed after the socket was connected
+                    connection.shutdown();
+                } catch (IOException ignored) {
+                }
+                // Closed: the pool discards it
+                connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Retry transient failures with a capped exponential backoff and full jitter
+ * <p>
+ * Only idempotent calls are retried: GET and HEAD requests always, POST and PUT requests only when they
+ * carry an {@code Idempotency-Key} header. A call is retried when it fails with an I/O error, or when
+ * Recurly answers with one of the retryable status codes (429, 502, 503 and 504 by default).
+ * <p>
+ * The n-th retry waits a random delay between 0 and {@code min(maxDelay, baseDelay * 2^(n-1))}. When
+ * the response carries a {@code Retry-After} header (or, for 429, a {@code X-RateLimit-Reset} header),
+ * the call waits at least that long, and is not retried if that exceeds {@code maxRetryAfter}.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+    public static final String IDEMPOTENCY_KEY_HEADER_NAME = "Idempotency-Key";
+
+    private static final String X_RATELIMIT_RESET_HEADER_NAME = "X-RateLimit-Reset";
+    private static final Set<String> SAFE_METHODS = ImmutableSet.of("GET", "HEAD");
+    private static final Set<String> IDEMPOTENT_WITH_KEY_METHODS = ImmutableSet.of("POST", "PUT");
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long maxRetryAfterMillis;
+    private final Set<Integer> retryableStatusCodes;
+
+    private ExponentialBackoffRetryPolicy(final Builder builder) {
+        this.maxAttempts = builder.maxAttempts;
+        this.baseDelayMillis = builder.baseDelayMillis;
+        this.maxDelayMillis = builder.maxDelayMillis;
+        this.maxRetryAfterMillis = builder.maxRetryAfterMillis;
+        this.retryableStatusCodes = builder.retryableStatusCodes;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public long getRetryDelayMillis(final HttpRequest request, final int attempt, @Nullable final HttpResponse response, @Nullable final IOException exception) {
+        if (attempt >= maxAttempts || !isIdempotent(request)) {
+            return -1;
+        }
+
+        if (response == null) {
+            return isRetryable(exception) ? backoffMillis(attempt) : -1;
+        }
+
+        if (!retryableStatusCodes.contains(response.getStatusLine().getStatusCode())) {
+            return -1;
+        }
+        final long retryAfterMillis = getRetryAfterMillis(response);
+        if (retryAfterMillis > maxRetryAfterMillis) {
+            // Don't hold the caller for that long
+            return -1;
+        }
+        return Math.max(retryAfterMillis, backoffMillis(attempt));
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public long getMaxRetryAfterMillis() {
+        return maxRetryAfterMillis;
+    }
+
+    public Set<Integer> getRetryableStatusCodes() {
+        return retryableStatusCodes;
+    }
+
+    static boolean isIdempotent(final HttpRequest request) {
+        final String method = request.getRequestLine().getMethod();
+        return SAFE_METHODS.contains(method) ||
+               (IDEMPOTENT_WITH_KEY_METHODS.contains(method) && request.containsHeader(IDEMPOTENCY_KEY_HEADER_NAME));
+    }
+
+    private static boolean isRetryable(@Nullable final IOException exception) {
+        if (exception == null || exception instanceof UnknownHostException || exception instanceof SSLException) {
+            return false;
+        }
+        // Timeouts are worth retrying, interruptions are not
+        return !(exception instanceof InterruptedIOException) ||
+               exception instanceof SocketTimeoutException ||
+               exception instanceof ConnectTimeoutException;
+    }
+
+    private long backoffMillis(final int attempt) {
+        // Cap the exponent to avoid overflows
+        final long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * @return the delay requested by the server, 0 if none
+     */
+    static long getRetryAfterMillis(final HttpResponse response) {
+        final Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (retryAfter != null) {
+            final String value = retryAfter.getValue().trim();
+            try {
+                return TimeUnit.SECONDS.toMillis(Math.max(Long.parseLong(value), 0));
+            } catch (NumberFormatException e) {
+                final Date date = DateUtils.parseDate(value);
+                return date == null ? 0 : Math.max(date.getTime() - System.currentTimeMillis(), 0);
+            }
+        }
+
+        final Header rateLimitReset = response.getFirstHeader(X_RATELIMIT_RESET_HEADER_NAME);
+        if (rateLimitReset != null && response.getStatusLine().getStatusCode() == 429) {
+            try {
+                return Math.max(TimeUnit.SECONDS.toMillis(Long.parseLong(rateLimitReset.getValue().trim())) - System.currentTimeMillis(), 0);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                          .add("maxAttempts", maxAttempts)
+                          .add("baseDelayMillis", baseDelayMillis)
+                          .add("maxDelayMillis", maxDelayMillis)
+                          .add("maxRetryAfterMillis", maxRetryAfterMillis)
+                          .add("retryableStatusCodes", retryableStatusCodes)
+                          .toString();
+    }
+
+    public static class Builder {
+
+        private int maxAttempts = 3;
+        private long baseDelayMillis = 100;
+        private long maxDelayMillis = TimeUnit.SECONDS.toMillis(5);
+        private long maxRetryAfterMillis = TimeUnit.SECONDS.toMillis(30);
+        private Set<Integer> retryableStatusCodes = ImmutableSet.of(429, 502, 503, 504);
+
+        private Builder() {
+        }
+
+        /**
+         * @param maxAttempts total number of attempts, including the first one (3 by default)
+         */
+        public Builder setMaxAttempts(final int maxAttempts) {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+            }
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * @param baseDelay maximum delay before the first retry, doubled for every subsequent one (100ms by default)
+         */
+        public Builder setBaseDelay(final long baseDelay, final TimeUnit unit) {
+            this.baseDelayMillis = checkPositive("baseDelay", unit.toMillis(baseDelay));
+            return this;
+        }
+
+        /**
+         * @param maxDelay cap of the backoff delay (5s by default)
+         */
+        public Builder setMaxDelay(final long maxDelay, final TimeUnit unit) {
+            this.maxDelayMillis = checkPositive("maxDelay", unit.toMillis(maxDelay));
+            return this;
+        }
+
+        /**
+         * @param maxRetryAfter longest {@code Retry-After} the call is willing to wait for (30s by default)
+         */
+        public Builder setMaxRetryAfter(final long maxRetryAfter, final TimeUnit unit) {
+            this.maxRetryAfterMillis = checkPositive("maxRetryAfter", unit.toMillis(maxRetryAfter));
+            return this;
+        }
+
+        public Builder setRetryableStatusCodes(final Set<Integer> retryableStatusCodes) {
+            this.retryableStatusCodes = ImmutableSet.copyOf(retryableStatusCodes);
+            return this;
+        }
+
+        public ExponentialBackoffRetryPolicy build() {
+            return new ExponentialBackoffRetryPolicy(this);
+        }
+
+        private static long checkPositive(final String name, final long value) {
+            if (value <= 0) {
+                throw new IllegalArgumentException(name + " must be positive: " + value);
+            }
+            return value;
+        }
+    }
+}
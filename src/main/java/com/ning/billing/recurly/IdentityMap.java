@@ -0,0 +1,183 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Objects loaded by lazy getters, keyed by href, see {@link RecurlyClientConfig.Builder#setIdentityMapMaxEntries(long)}
+ * <p>
+ * Lazy getters, e.g. {@link com.ning.billing.recurly.model.Invoice#getAccount()}, and
+ * {@link RecurlyClient#hydrate(Iterable, com.ning.billing.recurly.model.Relation)} look the href up first, and only
+ * call Recurly on a miss: the same account is then downloaded once while walking the invoices, adjustments and
+ * transactions of a customer. Unlike {@link ResponseCache}, hits are not revalidated: an object is served as
+ * fetched until its time to live expires, or it is invalidated. Writes through the client invalidate the resource
+ * written and the ones it belongs to; writes made elsewhere are only seen once expired. Cached objects are shared
+ * between callers, who must not modify them.
+ * <p>
+ * Objects are grouped by href, so that writes drop them without scanning the map. The objects of an href, e.g.
+ * loaded with other API keys or languages, expire together with the first one fetched.
+ * <p>
+ * A map can be shared by the whole client, or scoped to a job with
+ * {@link RequestOptions.Builder#setIdentityMap(IdentityMap)}, and dropped with it.
+ */
+public class IdentityMap {
+
+    private final long ttlMillis;
+    private final long maxEntries;
+    // Objects by key, see RecurlyClient#coalescingKey, by href
+    private final Cache<String, ConcurrentMap<String, Object>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param ttl        time an object is served after being fetched
+     * @param unit       unit of the time to live
+     * @param maxEntries maximum number of hrefs whose objects are kept, the least recently used ones are evicted first
+     */
+    public IdentityMap(final long ttl, final TimeUnit unit, final long maxEntries) {
+        this(ttl, unit, maxEntries, Ticker.systemTicker());
+    }
+
+    IdentityMap(final long ttl, final TimeUnit unit, final long maxEntries, final Ticker ticker) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be positive: " + ttl);
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.ttlMillis = unit.toMillis(ttl);
+        this.maxEntries = maxEntries;
+        this.entries = CacheBuilder.newBuilder()
+                                   .expireAfterWrite(ttl, unit)
+                                   .maximumSize(maxEntries)
+                                   .ticker(ticker)
+                                   .recordStats()
+                                   .<String, ConcurrentMap<String, Object>>build();
+    }
+
+    /**
+     * @param href href of the object
+     * @param key  see {@link RecurlyClient#coalescingKey(Class, String)}
+     * @return the cached object, null on a miss
+     */
+    @Nullable
+    <T> T get(final String href, final String key, final Class<T> clazz) {
+        final ConcurrentMap<String, Object> objects = entries.getIfPresent(href);
+        final Object value = objects == null ? null : objects.get(key);
+        if (clazz.isInstance(value)) {
+            hits.incrementAndGet();
+            return clazz.cast(value);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void put(final String href, final String key, final Object value) {
+        ConcurrentMap<String, Object> objects = entries.getIfPresent(href);
+        if (objects == null) {
+            final ConcurrentMap<String, Object> newObjects = new ConcurrentHashMap<String, Object>();
+            objects = MoreObjects.firstNonNull(entries.asMap().putIfAbsent(href, newObjects), newObjects);
+        }
+        objects.put(key, value);
+    }
+
+    /**
+     * Drop the object of an href, e.g. after updating it, whichever client or type loaded it
+     *
+     * @param href href of the object
+     */
+    public void invalidate(final String href) {
+        invalidate(Collections.singleton(href));
+    }
+
+    // Drops the objects of many hrefs, see RecurlyClient#invalidateIdentityMap
+    void invalidate(final Collection<String> hrefs) {
+        entries.invalidateAll(hrefs);
+    }
+
+    /**
+     * Drop all cached objects
+     */
+    public void invalidateAll() {
+        entries.invalidateAll();
+    }
+
+    /**
+     * @return number of lazy loads served from the map
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lazy loads which called Recurly
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of cached objects
+     */
+    public long getEntries() {
+        long count = 0;
+        for (final ConcurrentMap<String, Object> objects : entries.asMap().values()) {
+            count += objects.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of hrefs evicted to stay under the maximum number of entries, or expired
+     */
+    public long getEvictions() {
+        return entries.stats().evictionCount();
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                          .add("entries", getEntries())
+                          .add("hits", hits)
+                          .add("misses", misses)
+                          .add("evictions", getEvictions())
+                          .toString();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Picks the page size of list calls, per endpoint, see {@link RecurlyClientConfig.Builder#setAdaptivePagingEnabled(boolean)}
+ * <p>
+ * Every endpoint starts with pages of {@link #INITIAL_PAGE_SIZE} records. As long as full pages come back faster
+ * than the latency target, the page size doubles, up to {@link #MAX_PAGE_SIZE}, the maximum allowed by the API.
+ * Slower responses shrink it, by half at most, in proportion to the latency overshoot. The page size is also
+ * capped so that pages stay under a maximum size, estimated from the average size of a record of the endpoint.
+ * <p>
+ * Endpoints are named as in {@link TransferMetrics}, e.g. {@code GET /accounts/{id}/invoices}.
+ */
+public class PageSizer {
+
+    public static final int INITIAL_PAGE_SIZE = 20;
+    public static final int MAX_PAGE_SIZE = 200;
+
+    private static final Pattern PER_PAGE = Pattern.compile("([?&])per_page=[^&]*");
+
+    private final long latencyTargetNanos;
+    private final long maxPageBytes;
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+    /**
+     * @param latencyTarget response time pages should stay under, download and parsing included
+     * @param maxPageBytes  decoded size pages should stay under
+     */
+    public PageSizer(final long latencyTarget, final TimeUnit unit, final long maxPageBytes) {
+        if (latencyTarget <= 0) {
+            throw new IllegalArgumentException("latencyTarget must be positive: " + latencyTarget);
+        }
+        if (maxPageBytes <= 0) {
+            throw new IllegalArgumentException("maxPageBytes must be positive: " + maxPageBytes);
+        }
+        this.latencyTargetNanos = unit.toNanos(latencyTarget);
+        this.maxPageBytes = maxPageBytes;
+    }
+
+    /**
+     * @return the URL, requesting the current page size of its endpoint
+     */
+    String withPageSize(final String url) {
+        return withPerPage(url, endpoint(name(url)).getPageSize());
+    }
+
+    /**
+     * Record the response to a list call, and adjust the page size of its endpoint
+     *
+     * @param url          URL of the call
+     * @param records      number of records returned
+     * @param latencyNanos response time, download and parsing included
+     * @param decodedBytes decoded size of the body of this response, 0 if it was not downloaded (e.g. 304 Not Modified)
+     */
+    void record(final String url, final int records, final long latencyNanos, final long decodedBytes) {
+        endpoint(name(url)).record(perPage(url), records, latencyNanos, decodedBytes);
+    }
+
+    /**
+     * @return the current page size of each endpoint called so far, sorted by endpoint
+     */
+    public Map<String, Integer> getPageSizes() {
+        final Map<String, Integer> pageSizes = new TreeMap<String, Integer>();
+        for (final Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+            pageSizes.put(entry.getKey(), entry.getValue().getPageSize());
+        }
+        return pageSizes;
+    }
+
+    /**
+     * @param endpoint endpoint, e.g. {@code GET /accounts}
+     * @return the page sizing state of that endpoint, null if it was never called
+     */
+    public Endpoint getEndpoint(final String endpoint) {
+        return endpoints.get(endpoint);
+    }
+
+    public long getLatencyTarget(final TimeUnit unit) {
+        return unit.convert(latencyTargetNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxPageBytes() {
+        return maxPageBytes;
+    }
+
+    private Endpoint endpoint(final String name) {
+        Endpoint endpoint = endpoints.get(name);
+        if (endpoint == null) {
+            final Endpoint newEndpoint = new Endpoint();
+            endpoint = MoreObjects.firstNonNull(endpoints.putIfAbsent(name, newEndpoint), newEndpoint);
+        }
+        return endpoint;
+    }
+
+    private static String name(final String url) {
+        return "GET " + TransferMetrics.resourcePath(URI.create(url).getPath());
+    }
+
+    static String withPerPage(final String url, final int perPage) {
+        final Matcher matcher = PER_PAGE.matcher(url);
+        if (matcher.find()) {
+            return url.substring(0, matcher.start()) + matcher.group(1) + "per_page=" + perPage + url.substring(matcher.end());
+        }
+        return url + (url.indexOf('?') < 0 ? '?' : '&') + "per_page=" + perPage;
+    }
+
+    private static int perPage(final String url) {
+        final Matcher matcher = PER_PAGE.matcher(url);
+        if (matcher.find()) {
+            try {
+                return Integer.parseInt(matcher.group().substring(matcher.group(1).length() + "per_page=".length()));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return INITIAL_PAGE_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                          .add("latencyTargetMillis", getLatencyTarget(TimeUnit.MILLISECONDS))
+                          .add("maxPageBytes", maxPageBytes)
+                          .add("pageSizes", getPageSizes())
+                          .toString();
+    }
+
+    public class Endpoint {
+
+        private int pageSize = INITIAL_PAGE_SIZE;
+        private long pages;
+        private long records;
+        private long latencyNanos;
+        // Of the pages whose body was downloaded
+        private long decodedBytes;
+        private long decodedRecords;
+        private long bytesPerRecord;
+
+        /**
+         * @return page size requested by the next calls
+         */
+        public synchronized int getPageSize() {
+            return pageSize;
+        }
+
+        public synchronized long getPages() {
+            return pages;
+        }
+
+        public synchronized long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return average response time of a page, download and parsing included
+         */
+        public synchronized long getAverageLatency(final TimeUnit unit) {
+            return pages == 0 ? 0 : unit.convert(latencyNanos / pages, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return average decoded size of a record, 0 until a record is received
+         */
+        public synchronized long getBytesPerRecord() {
+            return bytesPerRecord;
+        }
+
+        private synchronized void record(final int requestedPageSize, final int pageRecords, final long pageLatencyNanos, final long pageDecodedBytes) {
+            pages++;
+            records += pageRecords;
+            latencyNanos += pageLatencyNanos;
+            if (pageDecodedBytes > 0) {
+                decodedBytes += pageDecodedBytes;
+                decodedRecords += pageRecords;
+                if (decodedRecords > 0) {
+                    bytesPerRecord = decodedBytes / decodedRecords;
+                }
+            }
+
+            int newPageSize = pageSize;
+            if (pageLatencyNanos > latencyTargetNanos) {
+                newPageSize = (int) Math.max(requestedPageSize / 2, requestedPageSize * latencyTargetNanos / pageLatencyNanos);
+            } else if (pageRecords >= requestedPageSize) {
+                // Only full pages tell how long a bigger page would take
+                newPageSize = (int) Math.min(requestedPageSize * 2L, requestedPageSize * latencyTargetNanos / Math.max(pageLatencyNanos, 1));
+            }
+            if (bytesPerRecord > 0) {
+                newPageSize = (int) Math.min(newPageSize, maxPageBytes / bytesPerRecord);
+            }
+            pageSize = Math.max(1, Math.min(newPageSize, MAX_PAGE_SIZE));
+        }
+
+        @Override
+        public synchronized String toString() {
+            return MoreObjects.toStringHelper(this)
+                              .add("pageSize", pageSize)
+                              .add("pages", pages)
+                              .add("records", records)
+                              .add("averageLatencyMillis", getAverageLatency(TimeUnit.MILLISECONDS))
+                              .add("bytesPerRecord", bytesPerRecord)
+                              .toString();
+        }
+    }
+}
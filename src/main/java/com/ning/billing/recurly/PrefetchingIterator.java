@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.ning.billing.recurly.model.RecurlyObject;
+import com.ning.billing.recurly.model.RecurlyObjects;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Iterates over the elements of all the pages of a list, following their next URL
+ * <p>
+ * The first page is fetched on the first call to {@link #hasNext()}. Up to {@code prefetchPages} following pages
+ * are then fetched in the background, one after the other, while the elements of the current page are consumed:
+ * consuming a page schedules the fetch of one more. Memory is therefore bounded by the current page plus the
+ * pages fetched ahead. Background fetches share a bounded pool across all clients: once it is busy, the pages
+ * of further streams are fetched by their consumers.
+ * <p>
+ * Not thread safe.
+ */
+class PrefetchingIterator<T extends RecurlyObject> implements Iterator<T>, AutoCloseable {
+
+    // Streams prefetching at once across all clients, beyond which pages are fetched by the consumer
+    static final int MAX_PREFETCH_THREADS = 64;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    // Fetches take one thread per stream at most, since pages of a list can only be fetched in sequence. Idle
+    // threads exit after a minute; when all are busy, the thread requesting the fetch makes it itself.
+    private static final ExecutorService PREFETCHER = new ThreadPoolExecutor(0, MAX_PREFETCH_THREADS, 1, TimeUnit.MINUTES,
+                                                                             new SynchronousQueue<Runnable>(),
+                                                                             new ThreadFactory() {
+                                                                                 @Override
+                                                                                 public Thread newThread(final Runnable runnable) {
+                                                                                     final Thread thread = new Thread(runnable, "recurly-prefetch-" + THREAD_COUNT.incrementAndGet());
+                                                                                     thread.setDaemon(true);
+                                                                                     return thread;
+                                                                                 }
+                                                                             },
+                                                                             new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private final Supplier<? extends RecurlyObjects<T>> firstPage;
+    private final int prefetchPages;
+    // Pages fetched ahead, in order. The last one completes with null once the list is exhausted.
+    private final Deque<CompletableFuture<RecurlyObjects<T>>> pages = new ArrayDeque<CompletableFuture<RecurlyObjects<T>>>();
+
+    private Iterator<T> current = Collections.emptyIterator();
+    private RecurlyObjects<T> lastPage;
+    private boolean started;
+    private boolean exhausted;
+
+    PrefetchingIterator(final Supplier<? extends RecurlyObjects<T>> firstPage, final int prefetchPages) {
+        this.firstPage = firstPage;
+        this.prefetchPages = prefetchPages;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (exhausted) {
+                return false;
+            }
+            // Pages can be empty but still have a next page
+            final RecurlyObjects<T> page = nextPage();
+            if (page == null) {
+                exhausted = true;
+                return false;
+            }
+            current = page.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    /**
+     * Stop fetching pages ahead
+     */
+    @Override
+    public void close() {
+        exhausted = true;
+        current = Collections.emptyIterator();
+        for (final CompletableFuture<RecurlyObjects<T>> page : pages) {
+            // Fetches in progress complete, but no further page is requested
+            page.cancel(false);
+        }
+        pages.clear();
+    }
+
+    private RecurlyObjects<T> nextPage() {
+        final RecurlyObjects<T> page;
+        if (!started) {
+            started = true;
+            page = firstPage.get();
+        } else if (pages.isEmpty()) {
+            // No prefetching
+            page = lastPage == null ? null : lastPage.getNext();
+        } else {
+            page = join(pages.removeFirst());
+        }
+        lastPage = page;
+
+        if (page != null && prefetchPages > 0) {
+            CompletableFuture<RecurlyObjects<T>> tail = pages.isEmpty() ? CompletableFuture.<RecurlyObjects<T>>completedFuture(page) : pages.getLast();
+            while (pages.size() < prefetchPages) {
+                tail = tail.thenApplyAsync(previous -> previous == null ? null : previous.getNext(), PREFETCHER);
+                pages.addLast(tail);
+            }
+        }
+        return page;
+    }
+
+    private static <U> U join(final CompletableFuture<U> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            // Rethrow RecurlyAPIException and others as if the page had been fetched by the caller
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Client-side pacing of the calls made against the Recurly rate limit
+ * <p>
+ * The governor is a token bucket seeded from the {@code X-RateLimit-Remaining}, {@code X-RateLimit-Limit} and
+ * {@code X-RateLimit-Reset} headers of every response: each call consumes a token, and the server resets the
+ * bucket at the end of the rate limit window. Calls are never throttled until a first response is seen.
+ * <p>
+ * Calls are issued in one of two lanes:
+ * <ul>
+ * <li>{@link Priority#INTERACTIVE} calls go out immediately as long as there is budget left, and only wait
+ * for the end of the window once it is exhausted</li>
+ * <li>{@link Priority#BACKGROUND} calls are spread evenly over the rest of the window, and cannot use the
+ * share of the budget reserved to interactive calls. Interactive calls consume the same budget, which
+ * slows the background lane down when they compete.</li>
+ * </ul>
+ * The governor is thread-safe and shared by all the threads using a client.
+ */
+public class RateGovernor {
+
+    public enum Priority {
+        INTERACTIVE,
+        BACKGROUND
+    }
+
+    private final double interactiveReserve;
+    private final Ticker ticker;
+
+    // -1 until the server reports it
+    private long limit = -1;
+    private long remaining = -1;
+    // Local estimate of the remaining calls: the server value, minus the calls issued since
+    private long budget = -1;
+    private long resetAtNanos;
+    private long nextBackgroundNanos;
+
+    private long throttledCalls;
+    private long throttledNanos;
+
+    /**
+     * @param interactiveReserve share of the rate limit background calls cannot use, between 0 and 1
+     */
+    public RateGovernor(final double interactiveReserve) {
+        this(interactiveReserve, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    RateGovernor(final double interactiveReserve, final Ticker ticker) {
+        if (interactiveReserve < 0 || interactiveReserve > 1) {
+            throw new IllegalArgumentException("interactiveReserve must be between 0 and 1: " + interactiveReserve);
+        }
+        this.interactiveReserve = interactiveReserve;
+        this.ticker = ticker;
+    }
+
+    /**
+     * Reserve a call
+     *
+     * @param priority lane of the call
+     * @return the time to wait before issuing the call, in nanoseconds
+     */
+    public synchronized long reserve(final Priority priority) {
+        final long now = ticker.read();
+        if (budget < 0) {
+            return 0;
+        }
+        if (now - resetAtNanos >= 0) {
+            // The window is over: let calls through until the next response reports the new budget
+            budget = -1;
+            return 0;
+        }
+
+        final long reserved = priority == Priority.BACKGROUND ? (long) Math.ceil(Math.max(limit, 0) * interactiveReserve) : 0;
+        if (budget <= reserved) {
+            // Nothing left for this lane until the end of the window
+            return throttled(resetAtNanos - now);
+        }
+
+        budget--;
+        if (priority == Priority.INTERACTIVE) {
+            return 0;
+        }
+
+        // Spread the budget left to the background lane over the rest of the window
+        final long slot = Math.max(now, nextBackgroundNanos);
+        nextBackgroundNanos = slot + Math.max(resetAtNanos - slot, 0) / (budget - reserved + 1);
+        return slot > now ? throttled(slot - now) : 0;
+    }
+
+    /**
+     * Reserve a call, blocking until it can be issued
+     *
+     * @param priority lane of the call
+     */
+    public void acquire(final Priority priority) {
+        final long waitNanos = reserve(priority);
+        if (waitNanos > 0) {
+            Uninterruptibles.sleepUninterruptibly(waitNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Seed the bucket from the rate limit headers of a response
+     *
+     * @param limit             value of {@code X-RateLimit-Limit}, -1 if absent
+     * @param remaining         value of {@code X-RateLimit-Remaining}
+     * @param resetEpochSeconds value of {@code X-RateLimit-Reset}, -1 if absent
+     */
+    public void update(final long limit, final long remaining, final long resetEpochSeconds) {
+        // Without a reset time, assume the window ends in a minute
+        final long resetInMillis = resetEpochSeconds < 0 ? TimeUnit.MINUTES.toMillis(1) : resetEpochSeconds * 1000 - System.currentTimeMillis();
+        updateWithResetIn(limit, remaining, Math.max(resetInMillis, 0), TimeUnit.MILLISECONDS);
+    }
+
+    @VisibleForTesting
+    synchronized void updateWithResetIn(final long limit, final long remaining, final long resetIn, final TimeUnit unit) {
+        final long now = ticker.read();
+        if (budget < 0 || now - resetAtNanos >= 0) {
+            // New window: forget the background schedule of the previous one
+            nextBackgroundNanos = now;
+        }
+        if (limit >= 0) {
+            this.limit = limit;
+        }
+        this.remaining = remaining;
+        this.budget = Math.max(remaining, 0);
+        this.resetAtNanos = now + unit.toNanos(resetIn);
+    }
+
+    /**
+     * @return the value of the last {@code X-RateLimit-Remaining} header, -1 before the first response
+     */
+    public synchronized long getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * @return the value of the last {@code X-RateLimit-Limit} header, -1 if never reported
+     */
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return calls left in the current window, taking into account the calls issued since the last response,
+     * -1 if unknown
+     */
+    public synchronized long getBudget() {
+        if (budget >= 0 && ticker.read() - resetAtNanos >= 0) {
+            return -1;
+        }
+        return budget;
+    }
+
+    /**
+     * @return number of calls which had to wait
+     */
+    public synchronized long getThrottledCalls() {
+        return throttledCalls;
+    }
+
+    /**
+     * @return total time calls had to wait
+     */
+    public synchronized long getThrottledTime(final TimeUnit unit) {
+        return unit.convert(throttledNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private long throttled(final long waitNanos) {
+        throttledCalls++;
+        throttledNanos += waitNanos;
+        return waitNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return MoreObjects.toStringHelper(this)
+                          .add("limit", limit)
+                          .add("remaining", remaining)
+                          .add("budget", budget)
+                          .add("throttledCalls", throttledCalls)
+                          .toString();
+    }
+}
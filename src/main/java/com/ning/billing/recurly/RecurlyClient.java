@@ -46,6 +46,7 @@ import com.ning.billing.recurly.model.Purchase;
 import com.ning.billing.recurly.model.RecurlyAPIError;
 import com.ning.billing.recurly.model.RecurlyObject;
 import com.ning.billing.recurly.model.RecurlyObjects;
+import com.ning.billing.recurly.model.Relation;
 import com.ning.billing.recurly.model.Redemption;
 import com.ning.billing.recurly.model.Redemptions;
 import com.ning.billing.recurly.model.RefundMethod;
@@ -73,17 +74,25 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.StandardSystemProperty;
+import com.google.common.base.Throwables;
 import com.google.common.io.BaseEncoding;
 import com.google.common.io.CharSource;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import com.ning.billing.recurly.transport.ApacheHttpTransport;
+import com.ning.billing.recurly.transport.HttpTransport;
+import com.ning.billing.recurly.util.http.CountingEntity;
 import com.ning.billing.recurly.util.http.SslUtils;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
@@ -91,12 +100,19 @@ import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.HeaderGroup;
 import org.apache.http.util.EntityUtils;
 import org.joda.time.DateTime;
@@ -117,9 +133,35 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.List;
 import java.util.Arrays;
 
@@ -130,8 +172,10 @@ public class RecurlyClient {
     public static final String RECURLY_DEBUG_KEY = "recurly.debug";
     public static final String RECURLY_API_VERSION = "2.25";
 
+    private static final String X_RATELIMIT_LIMIT_HEADER_NAME = "X-RateLimit-Limit";
     private static final String X_RATELIMIT_REMAINING_HEADER_NAME = "X-RateLimit-Remaining";
-    private static final String X_RECORDS_HEADER_NAME = "X-Records";
+    private static final String X_RATELIMIT_RESET_HEADER_NAME = "X-RateLimit-Reset";
+    static final String X_RECORDS_HEADER_NAME = "X-Records";
     private static final String LINK_HEADER_NAME = "Link";
 
     private static final String GIT_PROPERTIES_FILE = "com/ning/billing/recurly/git.properties";
@@ -148,7 +192,7 @@ public class RecurlyClient {
      * required. Used internally by the client to decide whether to
      * generate debug output
      */
-    private static boolean debug() {
+    static boolean debug() {
         return Boolean.getBoolean(RECURLY_DEBUG_KEY);
     }
 
@@ -165,17 +209,55 @@ public class RecurlyClient {
 
     // TODO: should we make it static?
     private static final XmlMapper xmlMapper = RecurlyObject.newXmlMapper();
+
+    private static final AtomicInteger HYDRATOR_THREAD_COUNT = new AtomicInteger();
+
+    // Helper threads of hydrate() across all clients, on top of the cap of each client, see hydrateHelpers
+    static final int MAX_HYDRATOR_THREADS = 64;
+
+    // Helps the threads calling hydrate(), which fetch too. Idle threads exit after a minute; when all are busy, the
+    // caller makes the fetches of the helper itself.
+    private static final ExecutorService HYDRATOR = new ThreadPoolExecutor(0, MAX_HYDRATOR_THREADS, 1, TimeUnit.MINUTES,
+                                                                           new SynchronousQueue<Runnable>(),
+                                                                           new ThreadFactory() {
+                                                                               @Override
+                                                                               public Thread newThread(final Runnable runnable) {
+                                                                                   final Thread thread = new Thread(runnable, "recurly-hydrate-" + HYDRATOR_THREAD_COUNT.incrementAndGet());
+                                                                                   thread.setDaemon(true);
+                                                                                   return thread;
+                                                                               }
+                                                                           },
+                                                                           new ThreadPoolExecutor.CallerRunsPolicy());
     private final String userAgent;
 
     private final String key;
     private final String baseUrl;
-    private CloseableHttpClient client;
+    private final RecurlyClientConfig config;
+    private final TransferMetrics transferMetrics;
+    private final RequestCoalescer requestCoalescer;
+    @Nullable
+    private final ResponseCache responseCache;
+    private final IdentityMap identityMap;
+    @Nullable
+    private final PageSizer pageSizer;
+    // Helper threads hydrate() may run at once, across all its callers, shared with the views of this client
+    private final Semaphore hydrateHelpers;
+    // Client owning the transport: this client, or the one withOptions was called on
+    private final RecurlyClient root;
+    private HttpTransport transport;
 
     // Allows error messages to be returned in a specified language
     private String acceptLanguage = "en-US";
 
-    // Stores the number of requests remaining before rate limiting takes effect
-    private int rateLimitRemaining;
+    private final RequestConfig requestConfig;
+    private final RateGovernor.Priority priority;
+    @Nullable
+    private final String idempotencyKey;
+
+    // Tracks the number of requests remaining before rate limiting takes effect
+    private final RateGovernor rateGovernor;
+    // One governor per site, shared with the views of this client
+    private final ConcurrentMap<String, RateGovernor> rateGovernors;
 
     public RecurlyClient(final String apiKey) {
         this(apiKey, "api");
@@ -193,19 +275,72 @@ public class RecurlyClient {
     }
 
     public RecurlyClient(final String apiKey, final String scheme, final String host, final int port, final String version) {
+        this(apiKey, scheme, host, port, version, RecurlyClientConfig.defaults());
+    }
+
+    public RecurlyClient(final String apiKey, final RecurlyClientConfig config) {
+        this(apiKey, "api", config);
+    }
+
+    public RecurlyClient(final String apiKey, final String subDomain, final RecurlyClientConfig config) {
+        this(apiKey, subDomain + ".recurly.com", 443, "v2", config);
+    }
+
+    public RecurlyClient(final String apiKey, final String host, final int port, final String version, final RecurlyClientConfig config) {
+        this(apiKey, "https", host, port, version, config);
+    }
+
+    /**
+     * @param config connection pool and timeout settings, applied when {@link #open()} is called
+     */
+    public RecurlyClient(final String apiKey, final String scheme, final String host, final int port, final String version, final RecurlyClientConfig config) {
         this.key = BaseEncoding.base64().encode(apiKey.getBytes(Charsets.UTF_8));
         this.baseUrl = String.format("%s://%s:%d/%s", scheme, host, port, version);
+        this.config = config;
         this.userAgent = buildUserAgent();
-        this.rateLimitRemaining = -1;
+        this.transferMetrics = new TransferMetrics();
+        this.requestCoalescer = new RequestCoalescer();
+        this.responseCache = config.getResponseCacheMaxBytes() > 0 ? new ResponseCache(config.getResponseCacheMaxBytes()) : null;
+        this.identityMap = config.getIdentityMapMaxEntries() > 0 ? new IdentityMap(config.getIdentityMapTtlMillis(), TimeUnit.MILLISECONDS, config.getIdentityMapMaxEntries()) : null;
+        this.pageSizer = config.isAdaptivePagingEnabled() ? new PageSizer(config.getPageLatencyTargetMillis(), TimeUnit.MILLISECONDS, config.getMaxPageBytes()) : null;
+        this.hydrateHelpers = new Semaphore(Math.max(config.getMaxConnectionsPerRoute() - 1, 0));
+        this.root = this;
+        this.requestConfig = config.getRequestConfig();
+        this.priority = config.getPriority();
+        this.idempotencyKey = null;
+        this.rateGovernor = new RateGovernor(config.getInteractiveReserve());
+        this.rateGovernors = new ConcurrentHashMap<String, RateGovernor>();
+        this.rateGovernors.put(baseUrl, rateGovernor);
         loggerWarning();
     }
 
+    private RecurlyClient(final RecurlyClient client, final RequestOptions options) {
+        this.key = options.getApiKey() == null ? client.key : BaseEncoding.base64().encode(options.getApiKey().getBytes(Charsets.UTF_8));
+        this.baseUrl = options.getSubDomain() == null ? client.baseUrl : withSubDomain(client.baseUrl, options.getSubDomain());
+        this.config = client.config;
+        this.userAgent = client.userAgent;
+        this.transferMetrics = client.transferMetrics;
+        this.requestCoalescer = client.requestCoalescer;
+        this.responseCache = client.responseCache;
+        this.identityMap = options.getIdentityMap() != null ? options.getIdentityMap() : client.identityMap;
+        this.pageSizer = client.pageSizer;
+        this.hydrateHelpers = client.hydrateHelpers;
+        this.root = client.root;
+        this.acceptLanguage = MoreObjects.firstNonNull(options.getAcceptLanguage(), client.acceptLanguage);
+        this.requestConfig = withTimeouts(client.requestConfig, options);
+        this.priority = MoreObjects.firstNonNull(options.getPriority(), client.priority);
+        this.idempotencyKey = options.getIdempotencyKey() == null ? client.idempotencyKey : options.getIdempotencyKey();
+        this.rateGovernors = client.rateGovernors;
+        this.rateGovernor = rateGovernorFor(rateGovernors, baseUrl, config);
+    }
+
     /**
      * Open the underlying http client
      * If you are supplying your own http client, do not call this method.
      */
     public synchronized void open() throws NoSuchAlgorithmException, KeyManagementException {
-        client = createHttpClient();
+        checkRoot();
+        transport = new ApacheHttpTransport(createHttpClient());
     }
 
     /**
@@ -213,7 +348,17 @@ public class RecurlyClient {
      * If {@link #open()} had already been called, do not call this method.
      */
     public synchronized void open(CloseableHttpClient client) {
-        this.client = client;
+        checkRoot();
+        this.transport = new ApacheHttpTransport(client);
+    }
+
+    /**
+     * Send requests with a custom transport, e.g. {@code JdkHttpTransport} on Java 11+.
+     * If {@link #open()} had already been called, do not call this method.
+     */
+    public synchronized void open(final HttpTransport transport) {
+        checkRoot();
+        this.transport = transport;
     }
 
     /**
@@ -221,20 +366,39 @@ public class RecurlyClient {
      * If you are supplying your own http client, do not call this method.
      */
     public synchronized void close() {
-        if (client != null) {
+        checkRoot();
+        if (transport != null) {
             try {
-                client.close();
+                transport.close();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
     }
 
+    /**
+     * Apply per-request settings
+     * <p>
+     * The returned client shares the connection pool, the metrics and the request coalescing of this client, and
+     * is cheap to create: build one per call, tenant or language instead of opening one client per API key or
+     * per locale. Calls to another site are paced by the rate governor of that site.
+     * <p>
+     * The returned client is opened and closed along with this one: don't call {@link #open()} or
+     * {@link #close()} on it.
+     *
+     * @param options settings overriding the ones of this client
+     * @return a view of this client applying the options to all its calls
+     */
+    public RecurlyClient withOptions(final RequestOptions options) {
+        return new RecurlyClient(this, options);
+    }
+
     /**
      * Set the Accept-Language header
      * <p>
      * Sets the Accept-Language header for all requests made by this client. Note: this is not thread-safe!
      * See https://github.com/killbilling/recurly-java-library/pull/298 for more details about thread safety.
+     * Use {@link #withOptions(RequestOptions)} to change the language of some calls only.
      *
      * @param language The language to set in the header. E.g., "en-US"
      */
@@ -247,7 +411,169 @@ public class RecurlyClient {
      * @return Number of requests remaining. Value is valid (> -1) after a successful API call.
      */
     public int getRateLimitRemaining() {
-        return rateLimitRemaining;
+        return (int) rateGovernor.getRemaining();
+    }
+
+    /**
+     * @return the governor tracking the rate limit budget of this client, see {@link RecurlyClientConfig.Builder#setRateLimitingEnabled(boolean)}
+     */
+    public RateGovernor getRateGovernor() {
+        return rateGovernor;
+    }
+
+    /**
+     * @return the connection settings of this client
+     */
+    public RecurlyClientConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return bytes transferred and decoded per endpoint, see {@link RecurlyClientConfig.Builder#setCompressionEnabled(boolean)}
+     */
+    public TransferMetrics getTransferMetrics() {
+        return transferMetrics;
+    }
+
+    /**
+     * @return the single-flight layer of GET calls, see {@link RecurlyClientConfig.Builder#setRequestCoalescingEnabled(boolean)}
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * @return the conditional GET cache, null unless {@link RecurlyClientConfig.Builder#setResponseCacheMaxBytes(long)} is set
+     */
+    @Nullable
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * @return the objects loaded by lazy getters, null unless {@link RecurlyClientConfig.Builder#setIdentityMapMaxEntries(long)}
+     * or {@link RequestOptions.Builder#setIdentityMap(IdentityMap)} is set
+     */
+    @Nullable
+    public IdentityMap getIdentityMap() {
+        return identityMap;
+    }
+
+    /**
+     * @return the page sizes picked per endpoint, null unless {@link RecurlyClientConfig.Builder#setAdaptivePagingEnabled(boolean)} is set
+     */
+    @Nullable
+    public PageSizer getPageSizer() {
+        return pageSizer;
+    }
+
+    /**
+     * Stream the elements of a list, across all its pages
+     * <p>
+     * The first page is fetched when the stream is consumed. The following pages are then fetched in the
+     * background, following the next URL of each page, while the previous ones are processed: up to
+     * {@link RecurlyClientConfig#getPrefetchPages()} pages are buffered ahead. Close the stream to stop
+     * prefetching before the end of the list:
+     * <pre>
+     * try (final Stream&lt;Invoice&gt; invoices = recurlyClient.stream(() -&gt; recurlyClient.getAccountInvoices(accountCode))) {
+     *     invoices.filter(...).findFirst();
+     * }
+     * </pre>
+     * Errors are thrown by the stream, when the page that failed is reached.
+     *
+     * @param firstPage fetches the first page, e.g. {@code () -> recurlyClient.getAccounts(params)}
+     * @return the elements of all the pages, in order
+     */
+    public <T extends RecurlyObject> Stream<T> stream(final Supplier<? extends RecurlyObjects<T>> firstPage) {
+        final PrefetchingIterator<T> iterator = new PrefetchingIterator<T>(firstPage, config.getPrefetchPages());
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                            .onClose(iterator::close);
+    }
+
+    /**
+     * Load a relation of many objects at once, e.g. the accounts of a page of invoices
+     * <p>
+     * Lazy getters such as {@link Invoice#getAccount()} fetch the referenced object of each element, one call after
+     * the other. This fetches each distinct referenced object once instead, with up to
+     * {@link RecurlyClientConfig#getMaxConnectionsPerRoute()} calls in parallel, and sets it on all the elements
+     * referencing it: their getters then return it without any call. Concurrent calls share these helper
+     * connections, the calling threads fetching alone when none is left.
+     * <pre>
+     * final Invoices invoices = recurlyClient.getInvoices();
+     * recurlyClient.hydrate(invoices, Relation.INVOICE_ACCOUNT);
+     * </pre>
+     * Elements whose referenced object is already loaded are skipped, and objects held by the {@link IdentityMap} are
+     * set without a call. When a call fails, no more calls are made, the
+     * objects already fetched are set, and the failure is thrown.
+     *
+     * @param objects  elements holding the references, e.g. a page of a list
+     * @param relation reference to load
+     * @return number of distinct objects loaded
+     */
+    public <S extends RecurlyObject, T extends RecurlyObject> int hydrate(final Iterable<? extends S> objects, final Relation<S, T> relation) {
+        final Map<String, List<S>> sourcesByHref = new LinkedHashMap<String, List<S>>();
+        for (final S object : objects) {
+            final String href = relation.getUnloadedHref(object);
+            if (href != null) {
+                List<S> sources = sourcesByHref.get(href);
+                if (sources == null) {
+                    sources = new ArrayList<S>();
+                    sourcesByHref.put(href, sources);
+                }
+                sources.add(object);
+            }
+        }
+        if (sourcesByHref.isEmpty()) {
+            return 0;
+        }
+
+        final Queue<String> hrefs = new ConcurrentLinkedQueue<String>(sourcesByHref.keySet());
+        final Map<String, T> fetched = new ConcurrentHashMap<String, T>();
+        final Queue<RuntimeException> failures = new ConcurrentLinkedQueue<RuntimeException>();
+        final Runnable fetcher = () -> {
+            String href;
+            while ((href = hrefs.poll()) != null) {
+                try {
+                    final T target = doGETWithIdentityMap(relation.getTargetClass(), href);
+                    if (target != null) {
+                        fetched.put(href, target);
+                    }
+                } catch (RuntimeException e) {
+                    failures.add(e);
+                    hrefs.clear();
+                }
+            }
+        };
+        final int parallelism = Math.min(sourcesByHref.size(), config.getMaxConnectionsPerRoute());
+        final List<Future<?>> helpers = new ArrayList<Future<?>>(parallelism - 1);
+        // Without a free helper, the calling thread fetches alone
+        for (int i = 1; i < parallelism && hydrateHelpers.tryAcquire(); i++) {
+            helpers.add(HYDRATOR.submit(() -> {
+                try {
+                    fetcher.run();
+                } finally {
+                    hydrateHelpers.release();
+                }
+            }));
+        }
+        fetcher.run();
+        for (final Future<?> helper : helpers) {
+            try {
+                Uninterruptibles.getUninterruptibly(helper);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        for (final Map.Entry<String, T> entry : fetched.entrySet()) {
+            for (final S source : sourcesByHref.get(entry.getKey())) {
+                relation.set(source, entry.getValue());
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw failures.peek();
+        }
+        return fetched.size();
     }
 
     /**
@@ -285,6 +611,18 @@ public class RecurlyClient {
         return doGET(Accounts.ACCOUNTS_RESOURCE, Accounts.class, params);
     }
 
+    /**
+     * Stream all accounts given query params
+     * <p>
+     * Pages are fetched lazily and ahead of consumption, see {@link #stream(Supplier)}.
+     *
+     * @param params {@link QueryParams}
+     * @return all accounts, across all pages
+     */
+    public Stream<Account> streamAccounts(final QueryParams params) {
+        return stream(() -> getAccounts(params));
+    }
+
     /**
      * Get number of Accounts matching the query params
      *
@@ -292,8 +630,7 @@ public class RecurlyClient {
      * @return Integer on success, null otherwise
      */
     public Integer getAccountsCount(final QueryParams params) {
-        HeaderGroup map = doHEAD(Accounts.ACCOUNTS_RESOURCE, params);
-        return Integer.parseInt(map.getFirstHeader(X_RECORDS_HEADER_NAME).getValue());
+        return getRecordsCount(doHEAD(Accounts.ACCOUNTS_RESOURCE, params));
     }
 
     /**
@@ -319,6 +656,18 @@ public class RecurlyClient {
         return doGET(Coupons.COUPONS_RESOURCE, Coupons.class, params);
     }
 
+    /**
+     * Stream all coupons given query params
+     * <p>
+     * Pages are fetched lazily and ahead of consumption, see {@link #stream(Supplier)}.
+     *
+     * @param params {@link QueryParams}
+     * @return all coupons, across all pages
+     */
+    public Stream<Coupon> streamCoupons(final QueryParams params) {
+        return stream(() -> getCoupons(params));
+    }
+
     /**
      * Get number of Coupons matching the query params
      *
@@ -326,8 +675,7 @@ public class RecurlyClient {
      * @return Integer on success, null otherwise
      */
     public Integer getCouponsCount(final QueryParams params) {
-        HeaderGroup map = doHEAD(Coupons.COUPONS_RESOURCE, params);
-        return Integer.parseInt(map.getFirstHeader(X_RECORDS_HEADER_NAME).getValue());
+        return getRecordsCount(doHEAD(Coupons.COUPONS_RESOURCE, params));
     }
 
     /**
@@ -770,6 +1118,19 @@ public class RecurlyClient {
                 Subscriptions.class, params);
     }
 
+    /**
+     * Stream all the subscriptions on the site given query params
+     * <p>
+     * Pages are fetched lazily and ahead of consumption, see {@link #stream(Supplier)}.
+     *
+     * @param state {@link SubscriptionState}
+     * @param params {@link QueryParams}
+     * @return all the subscriptions on the site, across all pages
+     */
+    public Stream<Subscription> streamSubscriptions(final SubscriptionState state, final QueryParams params) {
+        return stream(() -> getSubscriptions(state, params));
+    }
+
     /**
      * Get number of Subscriptions matching the query params
      *
@@ -777,8 +1138,7 @@ public class RecurlyClient {
      * @return Integer on success, null otherwise
      */
     public Integer getSubscriptionsCount(final QueryParams params) {
-        HeaderGroup map = doHEAD(Subscription.SUBSCRIPTION_RESOURCE,  params);
-        return Integer.parseInt(map.getFirstHeader(X_RECORDS_HEADER_NAME).getValue());
+        return getRecordsCount(doHEAD(Subscription.SUBSCRIPTION_RESOURCE,  params));
     }
 
     /**
@@ -1041,6 +1401,20 @@ public class RecurlyClient {
         return doGET(Transactions.TRANSACTIONS_RESOURCE, Transactions.class, params);
     }
 
+    /**
+     * Stream all transactions on the site given query params
+     * <p>
+     * Pages are fetched lazily and ahead of consumption, see {@link #stream(Supplier)}.
+     *
+     * @param state {@link TransactionState}
+     * @param type {@link TransactionType}
+     * @param params {@link QueryParams}
+     * @return all transactions on the site, across all pages
+     */
+    public Stream<Transaction> streamTransactions(final TransactionState state, final TransactionType type, final QueryParams params) {
+        return stream(() -> getTransactions(state, type, params));
+    }
+
     /**
      * Get number of Transactions matching the query params
      *
@@ -1048,8 +1422,7 @@ public class RecurlyClient {
      * @return Integer on success, null otherwise
      */
     public Integer getTransactionsCount(final QueryParams params) {
-        HeaderGroup map = doHEAD(Transactions.TRANSACTIONS_RESOURCE, params);
-        return Integer.parseInt(map.getFirstHeader(X_RECORDS_HEADER_NAME).getValue());
+        return getRecordsCount(doHEAD(Transactions.TRANSACTIONS_RESOURCE, params));
     }
 
     /**
@@ -1207,6 +1580,18 @@ public class RecurlyClient {
         return doGET(Invoices.INVOICES_RESOURCE, Invoices.class, params);
     }
 
+    /**
+     * Stream all invoices given query params
+     * <p>
+     * Pages are fetched lazily and ahead of consumption, see {@link #stream(Supplier)}.
+     *
+     * @param params {@link QueryParams}
+     * @return all invoices, across all pages
+     */
+    public Stream<Invoice> streamInvoices(final QueryParams params) {
+        return stream(() -> getInvoices(params));
+    }
+
     /**
      * Return all the invoices given query params
      * <p>
@@ -1215,8 +1600,7 @@ public class RecurlyClient {
      * @return the count of invoices matching the query
      */
     public int getInvoicesCount(final QueryParams params) {
-        HeaderGroup map = doHEAD(Invoices.INVOICES_RESOURCE, params);
-        return Integer.parseInt(map.getFirstHeader(X_RECORDS_HEADER_NAME).getValue());
+        return getRecordsCount(doHEAD(Invoices.INVOICES_RESOURCE, params));
     }
 
     /**
@@ -1632,6 +2016,18 @@ public class RecurlyClient {
         return doGET(Plans.PLANS_RESOURCE, Plans.class, params);
     }
 
+    /**
+     * Stream all plans given query params
+     * <p>
+     * Pages are fetched lazily and ahead of consumption, see {@link #stream(Supplier)}.
+     *
+     * @param params {@link QueryParams}
+     * @return all plans, across all pages
+     */
+    public Stream<Plan> streamPlans(final QueryParams params) {
+        return stream(() -> getPlans(params));
+    }
+
     /**
      * Get number of Plans matching the query params
      *
@@ -1639,8 +2035,7 @@ public class RecurlyClient {
      * @return Integer on success, null otherwise
      */
     public Integer getPlansCount(final QueryParams params) {
-        HeaderGroup map = doHEAD(Plans.PLANS_RESOURCE, params);
-        return Integer.parseInt(map.getFirstHeader(X_RECORDS_HEADER_NAME).getValue());
+        return getRecordsCount(doHEAD(Plans.PLANS_RESOURCE, params));
     }
 
     /**
@@ -2042,6 +2437,18 @@ public class RecurlyClient {
         return doGET(GiftCards.GIFT_CARDS_RESOURCE, GiftCards.class, params);
     }
 
+    /**
+     * Stream all gift cards given query params
+     * <p>
+     * Pages are fetched lazily and ahead of consumption, see {@link #stream(Supplier)}.
+     *
+     * @param params {@link QueryParams}
+     * @return all gift cards, across all pages
+     */
+    public Stream<GiftCard> streamGiftCards(final QueryParams params) {
+        return stream(() -> getGiftCards(params));
+    }
+
     /**
      * Get Gift Cards
      * <p>
@@ -2060,8 +2467,7 @@ public class RecurlyClient {
      * @return Integer on success, null otherwise
      */
     public Integer getGiftCardsCount(final QueryParams params) {
-        HeaderGroup map = doHEAD(GiftCards.GIFT_CARDS_RESOURCE, params);
-        return Integer.parseInt(map.getFirstHeader(X_RECORDS_HEADER_NAME).getValue());
+        return getRecordsCount(doHEAD(GiftCards.GIFT_CARDS_RESOURCE, params));
     }
 
     /**
@@ -2338,15 +2744,88 @@ public class RecurlyClient {
         return doGETWithFullURL(clazz, constructUrl(resource, params));
     }
 
-    private String constructUrl(final String resource, QueryParams params) {
+    String constructUrl(final String resource) {
+        return baseUrl + resource;
+    }
+
+    String constructUrl(final String resource, QueryParams params) {
         return baseUrl + resource + params.toString();
     }
 
-    public <T> T doGETWithFullURL(final Class<T> clazz, final String url) {
+    public <T> T doGETWithFullURL(final Class<T> clazz, final String fullUrl) {
+        final String url = withPageSize(clazz, fullUrl);
         if (debug()) {
             log.info("Msg to Recurly API [GET] :: URL : {}", url);
         }
-        return callRecurlySafeXmlContent(new HttpGet(url), clazz);
+        if (!config.isRequestCoalescingEnabled()) {
+            return callRecurlySafeXmlContent(new HttpGet(url), clazz);
+        }
+
+        final CompletableFuture<T> result = requestCoalescer.execute(coalescingKey(clazz, url), () -> {
+            try {
+                return CompletableFuture.completedFuture(callRecurlySafeXmlContent(new HttpGet(url), clazz));
+            } catch (RuntimeException e) {
+                final CompletableFuture<T> failure = new CompletableFuture<T>();
+                failure.completeExceptionally(e);
+                return failure;
+            }
+        });
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            // Surface the exception of the shared call, as if it had been issued by this thread
+            Throwables.propagateIfPossible(e.getCause());
+            throw e;
+        }
+    }
+
+    /**
+     * GET an object by href for a lazy getter: served from the identity map when there is one, see {@link IdentityMap}
+     */
+    public <T> T doGETWithIdentityMap(final Class<T> clazz, final String href) {
+        if (identityMap == null) {
+            return doGETWithFullURL(clazz, href);
+        }
+        final String key = coalescingKey(clazz, href);
+        final T cached = identityMap.get(href, key, clazz);
+        if (cached != null) {
+            return cached;
+        }
+        final T fetched = doGETWithFullURL(clazz, href);
+        if (fetched != null) {
+            identityMap.put(href, key, fetched);
+        }
+        return fetched;
+    }
+
+    /**
+     * Drop the objects a write may have changed from the identity map: the one of the resource written, and the ones
+     * it belongs to, e.g. the subscription of /subscriptions/{uuid}/cancel
+     */
+    void invalidateIdentityMap(final HttpRequestBase request) {
+        if (identityMap == null || HttpGet.METHOD_NAME.equals(request.getMethod()) || HttpHead.METHOD_NAME.equals(request.getMethod())) {
+            return;
+        }
+        final URI uri = request.getURI();
+        final Set<String> hrefs = new HashSet<String>();
+        String path = uri.getRawPath();
+        // Up to the version, e.g. /v2, with and without the port: hrefs returned by Recurly omit it
+        while (path.lastIndexOf('/') > 0) {
+            hrefs.add(uri.getScheme() + "://" + uri.getHost() + path);
+            if (uri.getPort() != -1) {
+                hrefs.add(uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort() + path);
+            }
+            path = path.substring(0, path.lastIndexOf('/'));
+        }
+        identityMap.invalidate(hrefs);
+    }
+
+    /**
+     * Identifies identical GET calls, for coalescing and caching: they share the URL, the API key, the language of
+     * the error messages, and the expected type
+     */
+    String coalescingKey(final Class<?> clazz, final String url) {
+        return url + " " + key + " " + acceptLanguage + " " + clazz.getName();
     }
 
     private InputStream doGETPdfWithFullURL(final String url) {
@@ -2359,52 +2838,49 @@ public class RecurlyClient {
 
     private InputStream callRecurlySafeGetPdf(String url) {
         CloseableHttpResponse response = null;
-        InputStream pdfInputStream = null;
         try {
             final HttpGet builder = new HttpGet(url);
-            clientRequestBuilderCommon(builder);
-            builder.setHeader(HttpHeaders.ACCEPT, "application/pdf");
-            builder.setHeader(HttpHeaders.CONTENT_TYPE, "application/pdf");
-            response = client.execute(builder);
-            if (response.getStatusLine().getStatusCode() != 200) {
-                final RecurlyAPIError recurlyAPIError = RecurlyAPIError.buildFromResponse(response);
-                throw new RecurlyAPIException(recurlyAPIError);
-            }
-
-            // Buffer the pdf in memory on purpose, because this was the behavior of AsyncHttpClient.
-            final HttpEntity entity = response.getEntity();
-            if (entity != null) {
-                final byte[] pdfBytes = EntityUtils.toByteArray(entity);
-                pdfInputStream = new ByteArrayInputStream(pdfBytes);
-            }
+            preparePdfRequest(builder);
+            response = execute(builder);
+            return handlePdfResponse(builder, response);
         } catch (IOException e) {
             log.error("Error retrieving response body", e);
             return null;
         } finally {
             closeResponse(response);
         }
+    }
+
+    void preparePdfRequest(final HttpRequestBase builder) {
+        clientRequestBuilderCommon(builder);
+        builder.setHeader(HttpHeaders.ACCEPT, "application/pdf");
+        builder.setHeader(HttpHeaders.CONTENT_TYPE, "application/pdf");
+    }
+
+    InputStream handlePdfResponse(final HttpRequestBase builder, final HttpResponse response) throws IOException {
+        updateRateLimit(response);
+        if (response.getStatusLine().getStatusCode() != 200) {
+            final RecurlyAPIError recurlyAPIError = RecurlyAPIError.buildFromResponse(response);
+            throw new RecurlyAPIException(recurlyAPIError);
+        }
 
-        return pdfInputStream;
+        // Buffer the pdf in memory on purpose, because this was the behavior of AsyncHttpClient.
+        final HttpEntity entity = decodeEntity(builder, response);
+        if (entity == null) {
+            return null;
+        }
+        final byte[] pdfBytes = EntityUtils.toByteArray(entity);
+        return new ByteArrayInputStream(pdfBytes);
     }
 
     private <T> T doPOST(final String resource, final RecurlyObject payload, final Class<T> clazz) {
-        final String xmlPayload;
+        final HttpPost builder = new HttpPost(baseUrl + resource);
         try {
-            xmlPayload = xmlMapper.writeValueAsString(payload);
-            if (debug()) {
-                log.info("Msg to Recurly API [POST]:: URL : {}", baseUrl + resource);
-                log.info("Payload for [POST]:: {}", xmlPayload);
-            }
+            builder.setEntity(xmlEntity("POST", builder.getURI(), payload));
         } catch (IOException e) {
             log.warn("Unable to serialize {} object as XML: {}", clazz.getName(), payload.toString());
             return null;
         }
-
-        final HttpPost builder = new HttpPost(baseUrl + resource);
-        if (xmlPayload != null) {
-            builder.setEntity(new StringEntity(xmlPayload,
-                    ContentType.APPLICATION_XML.withCharset(Charsets.UTF_8)));
-        }
         return callRecurlySafeXmlContent(builder, clazz);
     }
 
@@ -2413,29 +2889,32 @@ public class RecurlyClient {
     }
 
     private <T> T doPUT(final String resource, final RecurlyObject payload, final Class<T> clazz, final QueryParams params) {
-        final String xmlPayload;
+        final HttpPut builder = new HttpPut(constructUrl(resource, params));
         try {
-            if (payload != null) {
-                xmlPayload = xmlMapper.writeValueAsString(payload);
-            } else {
-                xmlPayload = null;
-            }
-
-            if (debug()) {
-                log.info("Msg to Recurly API [PUT]:: URL : {}", baseUrl + resource);
-                log.info("Payload for [PUT]:: {}", xmlPayload);
-            }
+            builder.setEntity(xmlEntity("PUT", builder.getURI(), payload));
         } catch (IOException e) {
             log.warn("Unable to serialize {} object as XML: {}", clazz.getName(), payload.toString());
             return null;
         }
+        return callRecurlySafeXmlContent(builder, clazz);
+    }
 
-        final HttpPut builder = new HttpPut(constructUrl(resource, params));
-        if (xmlPayload != null) {
-            builder.setEntity(new StringEntity(xmlPayload,
-                    ContentType.APPLICATION_XML.withCharset(Charsets.UTF_8)));
+    /**
+     * Serialize the payload of a POST or PUT request
+     *
+     * @return the XML entity, or null if there is no payload to send
+     */
+    @Nullable
+    StringEntity xmlEntity(final String method, final URI uri, @Nullable final RecurlyObject payload) throws IOException {
+        final String xmlPayload = payload == null ? null : xmlMapper.writeValueAsString(payload);
+        if (debug()) {
+            log.info("Msg to Recurly API [{}]:: URL : {}", method, uri);
+            log.info("Payload for [{}]:: {}", method, xmlPayload);
         }
-        return callRecurlySafeXmlContent(builder, clazz);
+        if (xmlPayload == null) {
+            return null;
+        }
+        return new StringEntity(xmlPayload, ContentType.APPLICATION_XML.withCharset(Charsets.UTF_8));
     }
 
     private HeaderGroup doHEAD(final String resource, QueryParams params) {
@@ -2456,18 +2935,11 @@ public class RecurlyClient {
     }
 
     private HeaderGroup callRecurlyNoContent(final HttpRequestBase builder) {
-        clientRequestBuilderCommon(builder);
-        builder.setHeader(HttpHeaders.ACCEPT, "application/xml");
-        builder.setHeader(HttpHeaders.CONTENT_TYPE, "application/xml; charset=utf-8");
+        prepareXmlRequest(builder);
         CloseableHttpResponse response = null;
         try {
-            response = client.execute(builder);
-            // Copy all the headers into a HeaderGroup, which will handle case insensitive headers for us
-            final HeaderGroup headerGroup = new HeaderGroup();
-            for (Header header : response.getAllHeaders()) {
-                headerGroup.addHeader(header);
-            }
-            return headerGroup;
+            response = execute(builder);
+            return handleNoContentResponse(response);
         } catch (IOException e) {
             log.error("Execution error", e);
             return null;
@@ -2476,157 +2948,490 @@ public class RecurlyClient {
         }
     }
 
+    HeaderGroup handleNoContentResponse(final HttpResponse response) {
+        updateRateLimit(response);
+        return copyHeaders(response);
+    }
+
+    static HeaderGroup copyHeaders(final HttpResponse response) {
+        // Copy all the headers into a HeaderGroup, which will handle case insensitive headers for us
+        final HeaderGroup headerGroup = new HeaderGroup();
+        for (Header header : response.getAllHeaders()) {
+            headerGroup.addHeader(header);
+        }
+        return headerGroup;
+    }
+
+    static int getRecordsCount(final HeaderGroup headers) {
+        return Integer.parseInt(headers.getFirstHeader(X_RECORDS_HEADER_NAME).getValue());
+    }
+
     private <T> T callRecurlySafeXmlContent(final HttpRequestBase builder, @Nullable final Class<T> clazz) {
         try {
             return callRecurlyXmlContent(builder, clazz);
         } catch (IOException e) {
-            if (e instanceof ConnectException || e instanceof NoHttpResponseException
-                    || e instanceof ConnectTimeoutException) {
-                // See https://github.com/killbilling/recurly-java-library/issues/185
-                throw new ConnectionErrorException(e);
+            final ConnectionErrorException connectionError = toConnectionError(e);
+            if (connectionError != null) {
+                throw connectionError;
             }
-            log.warn("Error while calling Recurly", e);
             return null;
         }
         // No need to extract TransactionErrorException since it's already a RuntimeException
     }
 
+    /**
+     * Map an I/O error to the exception surfaced to callers
+     *
+     * @return a {@link ConnectionErrorException} for connection errors, null otherwise (the call then yields null)
+     */
+    @Nullable
+    static ConnectionErrorException toConnectionError(final Exception e) {
+        if (e instanceof ConnectException || e instanceof NoHttpResponseException
+                || e instanceof ConnectTimeoutException) {
+            // See https://github.com/killbilling/recurly-java-library/issues/185
+            return new ConnectionErrorException(e);
+        }
+        log.warn("Error while calling Recurly", e);
+        return null;
+    }
+
     private <T> T callRecurlyXmlContent(final HttpRequestBase builder, @Nullable final Class<T> clazz)
             throws IOException {
-        clientRequestBuilderCommon(builder);
-        builder.setHeader(HttpHeaders.ACCEPT, "application/xml");
-        builder.setHeader(HttpHeaders.CONTENT_TYPE, "application/xml; charset=utf-8");
+        prepareXmlRequest(builder);
+        final ResponseCache.Entry cached = prepareConditionalRequest(builder, clazz);
+        final AtomicLong sentNanos = isPaged(clazz) && HttpGet.METHOD_NAME.equals(builder.getMethod()) ? new AtomicLong() : null;
+        final AtomicLong decodedBytes = new AtomicLong();
         CloseableHttpResponse response = null;
         try {
-            response = client.execute(builder);
-            final HttpEntity entity = response.getEntity();
-            final String payload;
-            if (entity == null) {
-                payload = "";
-            } else {
-                payload = MoreObjects.firstNonNull(EntityUtils.toString(entity, Charsets.UTF_8), "");
+            response = execute(builder, sentNanos);
+            final T result = handleXmlResponse(builder, response, clazz, cached, decodedBytes);
+            if (sentNanos != null && result != null) {
+                pageSizer.record(builder.getURI().toString(),
+                                 ((RecurlyObjects<?>) result).size(),
+                                 System.nanoTime() - sentNanos.get(),
+                                 decodedBytes.get());
             }
-            if (debug()) {
-                log.info("Msg from Recurly API :: {}", payload);
+            return result;
+        } finally {
+            closeResponse(response);
+            invalidateIdentityMap(builder);
+        }
+    }
+
+    boolean isPaged(@Nullable final Class<?> clazz) {
+        return pageSizer != null && clazz != null && RecurlyObjects.class.isAssignableFrom(clazz);
+    }
+
+    /**
+     * @return the URL, requesting the page size picked by the {@link PageSizer} if the call is a list call
+     */
+    String withPageSize(@Nullable final Class<?> clazz, final String url) {
+        return isPaged(clazz) ? pageSizer.withPageSize(url) : url;
+    }
+
+    private CloseableHttpResponse execute(final HttpRequestBase builder) throws IOException {
+        return execute(builder, null);
+    }
+
+    /**
+     * Execute a request, retrying it as long as the retry policy allows
+     *
+     * @param sentNanos set to the time the last attempt was sent at, if not null
+     */
+    private CloseableHttpResponse execute(final HttpRequestBase builder, @Nullable final AtomicLong sentNanos) throws IOException {
+        int attempt = 0;
+        while (true) {
+            attempt++;
+            throttle();
+            if (sentNanos != null) {
+                sentNanos.set(System.nanoTime());
             }
 
-            // Handle errors payload
-            if (response.getStatusLine().getStatusCode() >= 300) {
-                log.warn("Recurly error whilst calling: {}\n{}", builder.getURI(), payload);
-                log.warn("Error status code: {}\n", response.getStatusLine().getStatusCode());
-                RecurlyAPIError recurlyError = RecurlyAPIError.buildFromResponse(response);
-
-                if (response.getStatusLine().getStatusCode() == 422) {
-                    // 422 is returned for transaction errors (see https://dev.recurly.com/page/transaction-errors)
-                    // as well as bad input payloads
-                    final Errors errors;
-                    try {
-                        errors = xmlMapper.readValue(payload, Errors.class);
-                    } catch (Exception e) {
-                        log.warn("Unable to extract error", e);
-                        return null;
-                    }
+            final CloseableHttpResponse response;
+            try {
+                response = root.transport.execute(builder);
+            } catch (IOException e) {
+                final long retryDelayMillis = config.getRetryPolicy().getRetryDelayMillis(builder, attempt, null, e);
+                if (retryDelayMillis < 0) {
+                    throw e;
+                }
+                log.info("Retrying {} {} in {}ms after attempt {} failed: {}", builder.getMethod(), builder.getURI(), retryDelayMillis, attempt, e.toString());
+                retryAfter(builder, retryDelayMillis);
+                continue;
+            }
 
-                    // Sometimes a single `Error` response is returned rather than `Errors`.
-                    // In this case, all fields will be null.
-                    if (errors == null || (
-                        errors.getRecurlyErrors() == null &&
-                        errors.getTransaction() == null &&
-                        errors.getTransactionError() == null
-                    )) {
-                        recurlyError = RecurlyAPIError.buildFromXml(xmlMapper, payload, response);
-                        throw new RecurlyAPIException(recurlyError);
-                    }
-                    throw new TransactionErrorException(errors);
-                } else if (response.getStatusLine().getStatusCode() == 401) {
-                    recurlyError.setSymbol("unauthorized");
-                    recurlyError.setDescription("We could not authenticate your request. Either your subdomain and private key are not set or incorrect");
+            final long retryDelayMillis = config.getRetryPolicy().getRetryDelayMillis(builder, attempt, response, null);
+            if (retryDelayMillis < 0) {
+                return response;
+            }
+            log.info("Retrying {} {} in {}ms after attempt {} returned {}", builder.getMethod(), builder.getURI(), retryDelayMillis, attempt, response.getStatusLine().getStatusCode());
+            updateRateLimit(response);
+            // Release the connection
+            EntityUtils.consumeQuietly(response.getEntity());
+            closeResponse(response);
+            retryAfter(builder, retryDelayMillis);
+        }
+    }
 
-                    throw new RecurlyAPIException(recurlyError);
-                } else {
-                    try {
-                        recurlyError = RecurlyAPIError.buildFromXml(xmlMapper, payload, response);
-                    } catch (Exception e) {
-                        log.debug("Unable to extract error", e);
-                    }
+    private static void retryAfter(final HttpRequestBase builder, final long retryDelayMillis) {
+        Uninterruptibles.sleepUninterruptibly(retryDelayMillis, TimeUnit.MILLISECONDS);
+        builder.reset();
+    }
+
+    void prepareXmlRequest(final HttpRequestBase builder) {
+        clientRequestBuilderCommon(builder);
+        builder.setHeader(HttpHeaders.ACCEPT, "application/xml");
+        builder.setHeader(HttpHeaders.CONTENT_TYPE, "application/xml; charset=utf-8");
+    }
+
+    /**
+     * Send the validators of the cached response of a GET call, if any
+     *
+     * @return the cached response to return if the server answers 304
+     */
+    @Nullable
+    ResponseCache.Entry prepareConditionalRequest(final HttpRequestBase builder, @Nullable final Class<?> clazz) {
+        if (!isCacheable(builder, clazz)) {
+            return null;
+        }
+        return responseCache.prepare(coalescingKey(clazz, builder.getURI().toString()), builder);
+    }
+
+    private boolean isCacheable(final HttpRequestBase builder, @Nullable final Class<?> clazz) {
+        return responseCache != null && clazz != null && HttpGet.METHOD_NAME.equals(builder.getMethod());
+    }
+
+    <T> T handleXmlResponse(final HttpRequestBase builder, final HttpResponse response, @Nullable final Class<T> clazz)
+            throws IOException {
+        return handleXmlResponse(builder, response, clazz, null);
+    }
+
+    /**
+     * Map a Recurly XML response to the expected object, or to the matching exception
+     * <p>
+     * Shared by the blocking and the asynchronous clients, so both surface the same
+     * {@link TransactionErrorException} and {@link RecurlyAPIException} errors.
+     *
+     * @param cached response to return if the server answers 304, see {@link #prepareConditionalRequest(HttpRequestBase, Class)}
+     */
+    <T> T handleXmlResponse(final HttpRequestBase builder, final HttpResponse response, @Nullable final Class<T> clazz,
+                            @Nullable final ResponseCache.Entry cached) throws IOException {
+        return handleXmlResponse(builder, response, clazz, cached, new AtomicLong());
+    }
+
+    /**
+     * @param decodedBytes incremented by the decoded size of the body of this response
+     */
+    <T> T handleXmlResponse(final HttpRequestBase builder, final HttpResponse response, @Nullable final Class<T> clazz,
+                            @Nullable final ResponseCache.Entry cached, final AtomicLong decodedBytes) throws IOException {
+        updateRateLimit(response);
+        if (cached != null && clazz != null && response.getStatusLine().getStatusCode() == 304) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            return clazz.cast(responseCache.hit(cached));
+        }
+
+        final boolean cacheable = isCacheable(builder, clazz) && response.getStatusLine().getStatusCode() == 200;
+        final HttpEntity decodedEntity = decodeEntity(builder, response);
+        final HttpEntity entity = decodedEntity != null ? new CountingEntity(decodedEntity, decodedBytes) : null;
+
+        // Handle errors payload
+        if (response.getStatusLine().getStatusCode() >= 300) {
+            // Error payloads are small and may need to be parsed twice: buffer them
+            final String payload = readPayload(entity);
+            log.warn("Recurly error whilst calling: {}\n{}", builder.getURI(), payload);
+            log.warn("Error status code: {}\n", response.getStatusLine().getStatusCode());
+            RecurlyAPIError recurlyError = RecurlyAPIError.buildFromResponse(response);
+
+            if (response.getStatusLine().getStatusCode() == 422) {
+                // 422 is returned for transaction errors (see https://dev.recurly.com/page/transaction-errors)
+                // as well as bad input payloads
+                final Errors errors;
+                try {
+                    errors = xmlMapper.readValue(payload, Errors.class);
+                } catch (Exception e) {
+                    log.warn("Unable to extract error", e);
+                    return null;
+                }
 
+                // Sometimes a single `Error` response is returned rather than `Errors`.
+                // In this case, all fields will be null.
+                if (errors == null || (
+                    errors.getRecurlyErrors() == null &&
+                    errors.getTransaction() == null &&
+                    errors.getTransactionError() == null
+                )) {
+                    recurlyError = RecurlyAPIError.buildFromXml(xmlMapper, payload, response);
                     throw new RecurlyAPIException(recurlyError);
                 }
+                throw new TransactionErrorException(errors);
+            } else if (response.getStatusLine().getStatusCode() == 401) {
+                recurlyError.setSymbol("unauthorized");
+                recurlyError.setDescription("We could not authenticate your request. Either your subdomain and private key are not set or incorrect");
+
+                throw new RecurlyAPIException(recurlyError);
+            } else {
+                try {
+                    recurlyError = RecurlyAPIError.buildFromXml(xmlMapper, payload, response);
+                } catch (Exception e) {
+                    log.debug("Unable to extract error", e);
+                }
+
+                throw new RecurlyAPIException(recurlyError);
             }
+        }
 
+        final Header locationHeader = response.getFirstHeader("Location");
+        String location = locationHeader == null ? null : locationHeader.getValue();
+        if (clazz == null || (clazz == Coupons.class && location != null && !location.isEmpty())) {
+            if (debug()) {
+                log.info("Msg from Recurly API :: {}", readPayload(entity));
+            } else {
+                // Release the connection
+                EntityUtils.consume(entity);
+            }
             if (clazz == null) {
                 return null;
             }
 
-            final Header locationHeader = response.getFirstHeader("Location");
-            String location = locationHeader == null ? null : locationHeader.getValue();
-            if (clazz == Coupons.class && location != null && !location.isEmpty()) {
-                final RecurlyObjects recurlyObjects = new Coupons();
-                recurlyObjects.setRecurlyClient(this);
-                recurlyObjects.setStartUrl(location);
-                @SuppressWarnings("unchecked")
-                final T castResult = (T) recurlyObjects;
-                return castResult;
-            }
+            final RecurlyObjects recurlyObjects = new Coupons();
+            recurlyObjects.setRecurlyClient(this);
+            recurlyObjects.setStartUrl(location);
+            @SuppressWarnings("unchecked")
+            final T castResult = (T) recurlyObjects;
+            return castResult;
+        }
 
-            final T obj = xmlMapper.readValue(payload, clazz);
-            if (obj instanceof RecurlyObject) {
-                ((RecurlyObject) obj).setRecurlyClient(this);
-            } else if (obj instanceof RecurlyObjects) {
-                final RecurlyObjects recurlyObjects = (RecurlyObjects) obj;
-                recurlyObjects.setRecurlyClient(this);
+        final T obj = readXmlContent(entity, clazz);
+        if (obj instanceof RecurlyObject) {
+            ((RecurlyObject) obj).setRecurlyClient(this);
+        } else if (obj instanceof RecurlyObjects) {
+            final RecurlyObjects recurlyObjects = (RecurlyObjects) obj;
+            recurlyObjects.setRecurlyClient(this);
 
-                // Set the RecurlyClient on all objects for later use
-                for (final Object object : recurlyObjects) {
-                    ((RecurlyObject) object).setRecurlyClient(this);
-                }
+            // Set the RecurlyClient on all objects for later use
+            for (final Object object : recurlyObjects) {
+                ((RecurlyObject) object).setRecurlyClient(this);
+            }
 
-                // Set links for pagination
-                final Header linkHeader = response.getFirstHeader(LINK_HEADER_NAME);
-                if (linkHeader != null) {
-                    final String[] links = PaginationUtils.getLinks(linkHeader.getValue());
-                    recurlyObjects.setStartUrl(links[0]);
-                    recurlyObjects.setNextUrl(links[1]);
-                }
+            // Set links for pagination
+            final Header linkHeader = response.getFirstHeader(LINK_HEADER_NAME);
+            if (linkHeader != null) {
+                final String[] links = PaginationUtils.getLinks(linkHeader.getValue());
+                recurlyObjects.setStartUrl(links[0]);
+                recurlyObjects.setNextUrl(links[1]);
             }
+        }
 
-            // Save value of rate limit remaining header
-            Header rateLimitRemainingString = response.getFirstHeader(X_RATELIMIT_REMAINING_HEADER_NAME);
-            if (rateLimitRemainingString != null)
-                rateLimitRemaining = Integer.parseInt(rateLimitRemainingString.getValue());
+        if (cacheable && obj != null) {
+            responseCache.store(coalescingKey(clazz, builder.getURI().toString()), response, obj, decodedBytes.get());
+        }
+        return obj;
+    }
 
-            return obj;
+    /**
+     * Reserve the next call with the rate governor
+     *
+     * @return the time to wait before issuing the call, in nanoseconds
+     */
+    long reserveCall() {
+        if (!config.isRateLimitingEnabled()) {
+            return 0;
+        }
+        return rateGovernor.reserve(priority);
+    }
+
+    private void throttle() {
+        final long waitNanos = reserveCall();
+        if (waitNanos > 0) {
+            log.debug("Rate limit budget low, waiting {}ms", TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            Uninterruptibles.sleepUninterruptibly(waitNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Seed the rate governor from the response headers
+     */
+    void updateRateLimit(final HttpResponse response) {
+        final long remaining = parseHeader(response, X_RATELIMIT_REMAINING_HEADER_NAME);
+        if (remaining >= 0) {
+            rateGovernor.update(parseHeader(response, X_RATELIMIT_LIMIT_HEADER_NAME),
+                                remaining,
+                                parseHeader(response, X_RATELIMIT_RESET_HEADER_NAME));
+        }
+    }
+
+    private static long parseHeader(final HttpResponse response, final String name) {
+        final Header header = response.getFirstHeader(name);
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.getValue().trim());
+        } catch (NumberFormatException e) {
+            log.debug("Invalid {} header: {}", name, header.getValue());
+            return -1;
+        }
+    }
+
+    /**
+     * Wrap the response entity to count transferred and decoded bytes, decompressing it on the fly if needed
+     */
+    @Nullable
+    private HttpEntity decodeEntity(final HttpRequestBase builder, final HttpResponse response) {
+        final HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return null;
+        }
+
+        final TransferMetrics.Endpoint endpoint = transferMetrics.endpoint(builder.getMethod(), builder.getURI());
+        endpoint.responses().incrementAndGet();
+        final HttpEntity transferred = new CountingEntity(entity, endpoint.transferredBytes());
+        final Header contentEncoding = entity.getContentEncoding();
+        if (contentEncoding != null && isGzip(contentEncoding.getValue())) {
+            endpoint.compressedResponses().incrementAndGet();
+            return new CountingEntity(new GzipDecompressingEntity(transferred), endpoint.decodedBytes());
+        }
+        if (contentEncoding != null && "deflate".equalsIgnoreCase(contentEncoding.getValue())) {
+            endpoint.compressedResponses().incrementAndGet();
+            return new CountingEntity(new DeflateDecompressingEntity(transferred), endpoint.decodedBytes());
+        }
+        return new CountingEntity(transferred, endpoint.decodedBytes());
+    }
+
+    private static boolean isGzip(final String contentEncoding) {
+        return "gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding);
+    }
+
+    /**
+     * Deserialize a successful response
+     * <p>
+     * The entity is parsed straight from the socket, without first decoding the whole body into a String.
+     * The body is only buffered when debug logging needs it.
+     */
+    private <T> T readXmlContent(@Nullable final HttpEntity entity, final Class<T> clazz) throws IOException {
+        if (entity == null || debug()) {
+            final String payload = readPayload(entity);
+            if (debug()) {
+                log.info("Msg from Recurly API :: {}", payload);
+            }
+            return xmlMapper.readValue(payload, clazz);
+        }
+
+        final InputStream content = entity.getContent();
+        try {
+            return xmlMapper.readValue(content, clazz);
         } finally {
-            closeResponse(response);
+            // Consume what the parser did not read, to release the connection
+            content.close();
         }
     }
 
+    private static String readPayload(@Nullable final HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return "";
+        }
+        return MoreObjects.firstNonNull(EntityUtils.toString(entity, Charsets.UTF_8), "");
+    }
+
     private void clientRequestBuilderCommon(HttpRequestBase requestBuilder) {
         validateHost(requestBuilder.getURI());
         requestBuilder.setHeader(HttpHeaders.AUTHORIZATION, "Basic " + key);
         requestBuilder.setHeader("X-Api-Version", RECURLY_API_VERSION);
         requestBuilder.setHeader(HttpHeaders.USER_AGENT, userAgent);
         requestBuilder.setHeader(HttpHeaders.ACCEPT_LANGUAGE, acceptLanguage);
-        // Use the default timeouts from AHC
-        requestBuilder.setConfig(RequestConfig.custom()
-                .setConnectTimeout(5000).setSocketTimeout(60000).build());
+        if (config.isCompressionEnabled()) {
+            // What HttpClient sends on its own, compression being disabled there, see decodeEntity
+            requestBuilder.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip,deflate");
+        }
+        if (idempotencyKey != null && !HttpGet.METHOD_NAME.equals(requestBuilder.getMethod()) && !HttpHead.METHOD_NAME.equals(requestBuilder.getMethod())) {
+            requestBuilder.setHeader(ExponentialBackoffRetryPolicy.IDEMPOTENCY_KEY_HEADER_NAME, idempotencyKey);
+        }
+        requestBuilder.setConfig(requestConfig);
+    }
+
+    private void checkRoot() {
+        if (root != this) {
+            throw new IllegalStateException("Clients returned by withOptions share the transport of their parent client: open or close the latter instead");
+        }
+    }
+
+    private static String withSubDomain(final String baseUrl, final String subDomain) {
+        final URI uri = URI.create(baseUrl);
+        final int dot = uri.getHost() == null ? -1 : uri.getHost().indexOf('.');
+        if (dot < 0) {
+            throw new IllegalArgumentException("Cannot set the subdomain of " + baseUrl + ": its host has no domain");
+        }
+        // Swap the first label of the host, e.g. api.recurly.com -> mysite.recurly.com
+        final String host = subDomain + uri.getHost().substring(dot);
+        return String.format("%s://%s:%d%s", uri.getScheme(), host, uri.getPort(), uri.getPath());
+    }
+
+    private static RequestConfig withTimeouts(final RequestConfig requestConfig, final RequestOptions options) {
+        if (options.getConnectTimeoutMillis() < 0 && options.getSocketTimeoutMillis() < 0) {
+            return requestConfig;
+        }
+        final RequestConfig.Builder builder = RequestConfig.copy(requestConfig);
+        if (options.getConnectTimeoutMillis() >= 0) {
+            builder.setConnectTimeout((int) Math.min(options.getConnectTimeoutMillis(), Integer.MAX_VALUE));
+        }
+        if (options.getSocketTimeoutMillis() >= 0) {
+            builder.setSocketTimeout((int) Math.min(options.getSocketTimeoutMillis(), Integer.MAX_VALUE));
+        }
+        return builder.build();
+    }
+
+    private static RateGovernor rateGovernorFor(final ConcurrentMap<String, RateGovernor> rateGovernors, final String baseUrl, final RecurlyClientConfig config) {
+        final RateGovernor rateGovernor = rateGovernors.get(baseUrl);
+        if (rateGovernor != null) {
+            return rateGovernor;
+        }
+        final RateGovernor newRateGovernor = new RateGovernor(config.getInteractiveReserve());
+        return MoreObjects.firstNonNull(rateGovernors.putIfAbsent(baseUrl, newRateGovernor), newRateGovernor);
     }
 
     protected CloseableHttpClient createHttpClient() throws KeyManagementException, NoSuchAlgorithmException {
-        // Don't limit the number of connections per host
-        // See https://github.com/ning/async-http-client/issues/issue/28
+        final PoolingHttpClientConnectionManager connectionManager = createConnectionManager();
+        final CloseableHttpClient httpClient = createHttpClient(connectionManager);
+        if (config.getWarmUpConnections() > 0) {
+            new ConnectionWarmUp(connectionManager, config).warmUp(baseUrl, config.getWarmUpConnections());
+        }
+        return httpClient;
+    }
+
+    CloseableHttpClient createHttpClient(final HttpClientConnectionManager connectionManager) {
         final HttpClientBuilder httpClientBuilder = HttpClients.custom()
                 .disableCookieManagement() // We don't need cookies
-                /*
-                 * The following limits are what the Apache HC Fluent API uses, and in practice
-                 * they should be more than enough.
-                 */
-                .setMaxConnPerRoute(100) // default is 2
-                .setMaxConnTotal(200) // default is 20
-                .setSSLContext(SslUtils.getInstance().getSSLContext());
+                .disableContentCompression() // See prepareXmlRequest and decodeEntity
+                .disableAutomaticRetries() // Only the retry policy of the config retries, see execute
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config.getRequestConfig())
+                .setKeepAliveStrategy(config.getKeepAliveStrategy());
+        if (config.isEvictExpiredConnections()) {
+            httpClientBuilder.evictExpiredConnections();
+        }
+        if (config.getEvictIdleConnectionsAfterMillis() > 0) {
+            httpClientBuilder.evictIdleConnections(config.getEvictIdleConnectionsAfterMillis(), TimeUnit.MILLISECONDS);
+        }
         return httpClientBuilder.build();
     }
 
+    PoolingHttpClientConnectionManager createConnectionManager() throws KeyManagementException, NoSuchAlgorithmException {
+        final Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(SslUtils.getInstance().getSSLContext()))
+                .build();
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry,
+                                                                                                            null,
+                                                                                                            null,
+                                                                                                            null,
+                                                                                                            config.getConnectionTimeToLiveMillis(),
+                                                                                                            TimeUnit.MILLISECONDS);
+        // Defaults are 2 per route and 20 in total
+        connectionManager.setDefaultMaxPerRoute(config.getMaxConnectionsPerRoute());
+        connectionManager.setMaxTotal(config.getMaxConnectionsTotal());
+        return connectionManager;
+    }
+
     private void closeResponse(final CloseableHttpResponse response) {
         if (response != null) {
             try {
@@ -2694,7 +3499,7 @@ public class RecurlyClient {
     /**
      * RFC 3986 URL encoding
      */
-    private static String urlEncode(String s) {
+    static String urlEncode(String s) {
         try {
             return URLEncoder.encode(s, Charsets.UTF_8.name())
                     .replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
@@ -0,0 +1,631 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.billing.recurly;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.protocol.HttpContext;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Connection settings of a {@link RecurlyClient}
+ * <p>
+ * Controls the size of the connection pool, the timeouts applied to every request and how long idle
+ * connections are kept around. The defaults keep the behavior the client has always had: the features added since,
+ * e.g. retries, rate limiting or caches, are disabled until configured.
+ * <pre>
+ * final RecurlyClientConfig config = RecurlyClientConfig.builder()
+ *                                                       .setMaxConnectionsPerRoute(20)
+ *                                                       .setKeepAlive(30, TimeUnit.SECONDS)
+ *                                                       .setEvictIdleConnectionsAfter(20, TimeUnit.SECONDS)
+ *                                                       .build();
+ * final RecurlyClient recurlyClient = new RecurlyClient(apiKey, subDomain, config);
+ * </pre>
+ * Instances are immutable and can be shared between clients.
+ */
+public class RecurlyClientConfig {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 100;
+    public static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 200;
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+    public static final long DEFAULT_SOCKET_TIMEOUT_MILLIS = 60000;
+
+    private static final RecurlyClientConfig DEFAULT = builder().build();
+
+    private final int maxConnectionsPerRoute;
+    private final int maxConnectionsTotal;
+    private final long connectTimeoutMillis;
+    private final long socketTimeoutMillis;
+    private final long connectionRequestTimeoutMillis;
+    private final long keepAliveMillis;
+    private final long connectionTimeToLiveMillis;
+    private final long evictIdleConnectionsAfterMillis;
+    private final boolean evictExpiredConnections;
+    private final boolean compressionEnabled;
+    private final boolean rateLimitingEnabled;
+    private final RateGovernor.Priority priority;
+    private final double interactiveReserve;
+    private final RetryPolicy retryPolicy;
+    private final Executor callbackExecutor;
+    private final boolean requestCoalescingEnabled;
+    private final int warmUpConnections;
+    private final long responseCacheMaxBytes;
+    private final long identityMapMaxEntries;
+    private final long identityMapTtlMillis;
+    private final int prefetchPages;
+    private final boolean adaptivePagingEnabled;
+    private final long pageLatencyTargetMillis;
+    private final long maxPageBytes;
+    private final RequestConfig requestConfig;
+
+    private RecurlyClientConfig(final Builder builder) {
+        this.maxConnectionsPerRoute = builder.maxConnectionsPerRoute;
+        this.maxConnectionsTotal = builder.maxConnectionsTotal;
+        this.connectTimeoutMillis = builder.connectTimeoutMillis;
+        this.socketTimeoutMillis = builder.socketTimeoutMillis;
+        this.connectionRequestTimeoutMillis = builder.connectionRequestTimeoutMillis;
+        this.keepAliveMillis = builder.keepAliveMillis;
+        this.connectionTimeToLiveMillis = builder.connectionTimeToLiveMillis;
+        this.evictIdleConnectionsAfterMillis = builder.evictIdleConnectionsAfterMillis;
+        this.evictExpiredConnections = builder.evictExpiredConnections;
+        this.compressionEnabled = builder.compressionEnabled;
+        this.rateLimitingEnabled = builder.rateLimitingEnabled;
+        this.priority = builder.priority;
+        this.interactiveReserve = builder.interactiveReserve;
+        this.retryPolicy = builder.retryPolicy;
+        this.callbackExecutor = builder.callbackExecutor;
+        this.requestCoalescingEnabled = builder.requestCoalescingEnabled;
+        this.warmUpConnections = builder.warmUpConnections;
+        this.responseCacheMaxBytes = builder.responseCacheMaxBytes;
+        this.identityMapMaxEntries = builder.identityMapMaxEntries;
+        this.identityMapTtlMillis = builder.identityMapTtlMillis;
+        this.prefetchPages = builder.prefetchPages;
+        this.adaptivePagingEnabled = builder.adaptivePagingEnabled;
+        this.pageLatencyTargetMillis = builder.pageLatencyTargetMillis;
+        this.maxPageBytes = builder.maxPageBytes;
+        // Built once and shared by all requests
+        this.requestConfig = RequestConfig.custom()
+                                          .setConnectTimeout(toTimeout(connectTimeoutMillis))
+                                          .setSocketTimeout(toTimeout(socketTimeoutMillis))
+                                          .setConnectionRequestTimeout(toTimeout(connectionRequestTimeoutMillis))
+                                          .build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the configuration used by clients built without one
+     */
+    public static RecurlyClientConfig defaults() {
+        return DEFAULT;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public int getMaxConnectionsTotal() {
+        return maxConnectionsTotal;
+    }
+
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public long getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    /**
+     * @return how long to wait for a connection from the pool, 0 to wait indefinitely, -1 if unset (the default),
+     * which HttpClient treats as 0
+     */
+    public long getConnectionRequestTimeoutMillis() {
+        return connectionRequestTimeoutMillis;
+    }
+
+    /**
+     * @return maximum time an idle connection is kept alive, -1 to only honor the server Keep-Alive header
+     */
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    /**
+     * @return maximum lifetime of a pooled connection, -1 for no limit
+     */
+    public long getConnectionTimeToLiveMillis() {
+        return connectionTimeToLiveMillis;
+    }
+
+    /**
+     * @return idle time after which the background evictor closes a connection, -1 if idle connections are not evicted
+     */
+    public long getEvictIdleConnectionsAfterMillis() {
+        return evictIdleConnectionsAfterMillis;
+    }
+
+    public boolean isEvictExpiredConnections() {
+        return evictExpiredConnections;
+    }
+
+    /**
+     * @return true if responses are requested compressed (the default)
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * @return true if calls wait for the {@link RateGovernor} before being issued
+     */
+    public boolean isRateLimitingEnabled() {
+        return rateLimitingEnabled;
+    }
+
+    /**
+     * @return lane of the calls made by the client
+     */
+    public RateGovernor.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return share of the rate limit reserved to interactive calls
+     */
+    public double getInteractiveReserve() {
+        return interactiveReserve;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @return executor completing the futures of {@link AsyncRecurlyClient}
+     */
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    /**
+     * @return true if concurrent identical GET calls share a single request
+     */
+    public boolean isRequestCoalescingEnabled() {
+        return requestCoalescingEnabled;
+    }
+
+    /**
+     * @return number of connections opened by {@link RecurlyClient#open()}, 0 to open them on demand
+     */
+    public int getWarmUpConnections() {
+        return warmUpConnections;
+    }
+
+    /**
+     * @return maximum size of the conditional GET cache, 0 if disabled
+     */
+    public long getResponseCacheMaxBytes() {
+        return responseCacheMaxBytes;
+    }
+
+    /**
+     * @return maximum number of objects kept by the identity map of lazy fetches, 0 if disabled
+     */
+    public long getIdentityMapMaxEntries() {
+        return identityMapMaxEntries;
+    }
+
+    /**
+     * @return time an object stays in the identity map of lazy fetches
+     */
+    public long getIdentityMapTtlMillis() {
+        return identityMapTtlMillis;
+    }
+
+    /**
+     * @return number of pages fetched ahead by list streams, 0 to fetch them on demand
+     */
+    public int getPrefetchPages() {
+        return prefetchPages;
+    }
+
+    /**
+     * @return true if the page size of list calls is picked per endpoint, see {@link PageSizer}
+     */
+    public boolean isAdaptivePagingEnabled() {
+        return adaptivePagingEnabled;
+    }
+
+    /**
+     * @return response time adaptive paging keeps pages under
+     */
+    public long getPageLatencyTargetMillis() {
+        return pageLatencyTargetMillis;
+    }
+
+    /**
+     * @return decoded size adaptive paging keeps pages under
+     */
+    public long getMaxPageBytes() {
+        return maxPageBytes;
+    }
+
+    /**
+     * @return true if a background thread needs to evict connections from the pool
+     */
+    public boolean hasConnectionEvictor() {
+        return evictExpiredConnections || evictIdleConnectionsAfterMillis > 0;
+    }
+
+    RequestConfig getRequestConfig() {
+        return requestConfig;
+    }
+
+    /**
+     * Honors the server Keep-Alive header, capped by {@link #getKeepAliveMillis()}
+     */
+    ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+        if (keepAliveMillis < 0) {
+            return DefaultConnectionKeepAliveStrategy.INSTANCE;
+        }
+        return new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+                final long serverKeepAliveMillis = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return serverKeepAliveMillis > 0 ? Math.min(serverKeepAliveMillis, keepAliveMillis) : keepAliveMillis;
+            }
+        };
+    }
+
+    private static int toTimeout(final long millis) {
+        return (int) Math.min(millis, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                          .add("maxConnectionsPerRoute", maxConnectionsPerRoute)
+                          .add("maxConnectionsTotal", maxConnectionsTotal)
+                          .add("connectTimeoutMillis", connectTimeoutMillis)
+                          .add("socketTimeoutMillis", socketTimeoutMillis)
+                          .add("connectionRequestTimeoutMillis", connectionRequestTimeoutMillis)
+                          .add("keepAliveMillis", keepAliveMillis)
+                          .add("connectionTimeToLiveMillis", connectionTimeToLiveMillis)
+                          .add("evictIdleConnectionsAfterMillis", evictIdleConnectionsAfterMillis)
+                          .add("evictExpiredConnections", evictExpiredConnections)
+                          .add("compressionEnabled", compressionEnabled)
+                          .add("rateLimitingEnabled", rateLimitingEnabled)
+                          .add("priority", priority)
+                          .add("interactiveReserve", interactiveReserve)
+                          .add("retryPolicy", retryPolicy)
+                          .add("callbackExecutor", callbackExecutor)
+                          .add("requestCoalescingEnabled", requestCoalescingEnabled)
+                          .add("warmUpConnections", warmUpConnections)
+                          .add("responseCacheMaxBytes", responseCacheMaxBytes)
+                          .add("identityMapMaxEntries", identityMapMaxEntries)
+                          .add("identityMapTtlMillis", identityMapTtlMillis)
+                          .add("prefetchPages", prefetchPages)
+                          .add("adaptivePagingEnabled", adaptivePagingEnabled)
+                          .add("pageLatencyTargetMillis", pageLatencyTargetMillis)
+                          .add("maxPageBytes", maxPageBytes)
+                          .toString();
+    }
+
+    public static class Builder {
+
+        private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+        private int maxConnectionsTotal = DEFAULT_MAX_CONNECTIONS_TOTAL;
+        private long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        private long socketTimeoutMillis = DEFAULT_SOCKET_TIMEOUT_MILLIS;
+        private long connectionRequestTimeoutMillis = -1;
+        private long keepAliveMillis = -1;
+        private long connectionTimeToLiveMillis = -1;
+        private long evictIdleConnectionsAfterMillis = -1;
+        private boolean evictExpiredConnections = false;
+        private boolean compressionEnabled = true;
+        private boolean rateLimitingEnabled = false;
+        private RateGovernor.Priority priority = RateGovernor.Priority.INTERACTIVE;
+        private double interactiveReserve = 0.1;
+        private RetryPolicy retryPolicy = RetryPolicy.NONE;
+        private Executor callbackExecutor = ForkJoinPool.commonPool();
+        private boolean requestCoalescingEnabled = false;
+        private int warmUpConnections = 0;
+        private long responseCacheMaxBytes = 0;
+        private long identityMapMaxEntries = 0;
+        private long identityMapTtlMillis = TimeUnit.MINUTES.toMillis(1);
+        private int prefetchPages = 1;
+        private boolean adaptivePagingEnabled = false;
+        private long pageLatencyTargetMillis = TimeUnit.SECONDS.toMillis(1);
+        private long maxPageBytes = 1024 * 1024;
+
+        private Builder() {
+        }
+
+        public Builder setMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+            this.maxConnectionsPerRoute = checkPositive("maxConnectionsPerRoute", maxConnectionsPerRoute);
+            return this;
+        }
+
+        public Builder setMaxConnectionsTotal(final int maxConnectionsTotal) {
+            this.maxConnectionsTotal = checkPositive("maxConnectionsTotal", maxConnectionsTotal);
+            return this;
+        }
+
+        /**
+         * @param timeout maximum time to establish a connection, 0 to wait indefinitely
+         */
+        public Builder setConnectTimeout(final long timeout, final TimeUnit unit) {
+            this.connectTimeoutMillis = checkNotNegative("connectTimeout", unit.toMillis(timeout));
+            return this;
+        }
+
+        /**
+         * @param timeout maximum inactivity between two data packets, 0 to wait indefinitely
+         */
+        public Builder setSocketTimeout(final long timeout, final TimeUnit unit) {
+            this.socketTimeoutMillis = checkNotNegative("socketTimeout", unit.toMillis(timeout));
+            return this;
+        }
+
+        /**
+         * @param timeout maximum time to wait for a connection from the pool, 0 to wait indefinitely. Unset by
+         *                default (-1), which HttpClient treats as 0: callers wait indefinitely for a free connection
+         */
+        public Builder setConnectionRequestTimeout(final long timeout, final TimeUnit unit) {
+            this.connectionRequestTimeoutMillis = checkNotNegative("connectionRequestTimeout", unit.toMillis(timeout));
+            return this;
+        }
+
+        /**
+         * @param keepAlive maximum time an idle connection is reused, even if the server allows longer
+         */
+        public Builder setKeepAlive(final long keepAlive, final TimeUnit unit) {
+            this.keepAliveMillis = checkPositive("keepAlive", unit.toMillis(keepAlive));
+            return this;
+        }
+
+        /**
+         * @param timeToLive maximum lifetime of a connection, regardless of its activity
+         */
+        public Builder setConnectionTimeToLive(final long timeToLive, final TimeUnit unit) {
+            this.connectionTimeToLiveMillis = checkPositive("connectionTimeToLive", unit.toMillis(timeToLive));
+            return this;
+        }
+
+        /**
+         * Start a background thread closing connections idle for longer than the given time.
+         * This avoids reusing connections silently dropped by load balancers.
+         *
+         * @param maxIdleTime idle time after which connections are closed
+         */
+        public Builder setEvictIdleConnectionsAfter(final long maxIdleTime, final TimeUnit unit) {
+            this.evictIdleConnectionsAfterMillis = checkPositive("maxIdleTime", unit.toMillis(maxIdleTime));
+            return this;
+        }
+
+        /**
+         * Start a background thread closing connections past their keep-alive or time to live
+         */
+        public Builder setEvictExpiredConnections(final boolean evictExpiredConnections) {
+            this.evictExpiredConnections = evictExpiredConnections;
+            return this;
+        }
+
+        /**
+         * Request gzip or deflate compressed responses, as HttpClient always did (enabled by default). Responses are
+         * decompressed while they are parsed, and transferred versus decoded bytes are reported by
+         * {@link RecurlyClient#getTransferMetrics()}. Disable it to request uncompressed responses.
+         */
+        public Builder setCompressionEnabled(final boolean compressionEnabled) {
+            this.compressionEnabled = compressionEnabled;
+            return this;
+        }
+
+        /**
+         * Pace calls with the {@link RateGovernor} of the client, instead of letting Recurly reject them
+         * once the rate limit is reached. The budget is tracked in any case.
+         */
+        public Builder setRateLimitingEnabled(final boolean rateLimitingEnabled) {
+            this.rateLimitingEnabled = rateLimitingEnabled;
+            return this;
+        }
+
+        /**
+         * @param priority lane of the calls made by the client, {@link RateGovernor.Priority#INTERACTIVE} by default
+         */
+        public Builder setPriority(final RateGovernor.Priority priority) {
+            if (priority == null) {
+                throw new IllegalArgumentException("priority cannot be null");
+            }
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * @param interactiveReserve share of the rate limit background calls cannot use, between 0 and 1 (0.1 by default)
+         */
+        public Builder setInteractiveReserve(final double interactiveReserve) {
+            if (interactiveReserve < 0 || interactiveReserve > 1) {
+                throw new IllegalArgumentException("interactiveReserve must be between 0 and 1: " + interactiveReserve);
+            }
+            this.interactiveReserve = interactiveReserve;
+            return this;
+        }
+
+        /**
+         * @param retryPolicy policy deciding which failed calls are retried, {@link RetryPolicy#NONE} by default.
+         *                    Use an {@link ExponentialBackoffRetryPolicy} to retry throttled and unavailable calls.
+         */
+        public Builder setRetryPolicy(final RetryPolicy retryPolicy) {
+            if (retryPolicy == null) {
+                throw new IllegalArgumentException("retryPolicy cannot be null");
+            }
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Complete the futures of {@link AsyncRecurlyClient} on the given executor rather than on the I/O reactor
+         * of the http client: responses are parsed there, and so are the stages chained by callers, which may block,
+         * e.g. on lazy getters. Blocking the reactor would stall every call in flight.
+         *
+         * @param callbackExecutor executor parsing responses and completing futures, {@link ForkJoinPool#commonPool()} by default
+         */
+        public Builder setCallbackExecutor(final Executor callbackExecutor) {
+            if (callbackExecutor == null) {
+                throw new IllegalArgumentException("callbackExecutor cannot be null");
+            }
+            this.callbackExecutor = callbackExecutor;
+            return this;
+        }
+
+        /**
+         * Let concurrent identical GET calls (same URL and Accept-Language) share a single in-flight request and
+         * its result, see {@link RequestCoalescer}. Returned objects are then shared between callers.
+         */
+        public Builder setRequestCoalescingEnabled(final boolean requestCoalescingEnabled) {
+            this.requestCoalescingEnabled = requestCoalescingEnabled;
+            return this;
+        }
+
+        /**
+         * Open connections to Recurly, TLS handshake included, when the client is opened, so the first calls after
+         * a deployment don't pay for them. This makes {@link RecurlyClient#open()} block until they are
+         * established, within the connect timeout. No request is sent.
+         *
+         * @param warmUpConnections number of connections to open, at most {@link #setMaxConnectionsPerRoute(int)}
+         */
+        public Builder setWarmUpConnections(final int warmUpConnections) {
+            if (warmUpConnections < 0) {
+                throw new IllegalArgumentException("warmUpConnections must not be negative: " + warmUpConnections);
+            }
+            this.warmUpConnections = warmUpConnections;
+            return this;
+        }
+
+        /**
+         * Cache GET responses carrying an {@code ETag} or {@code Last-Modified} header, and revalidate them with
+         * conditional requests: on 304 Not Modified, the cached object is returned without downloading the body
+         * again. Suited to catalog reads (plans, add-ons, items...), see {@link ResponseCache}.
+         * Cached objects are shared between callers.
+         *
+         * @param maxBytes maximum total size of the cached bodies, 0 to disable the cache (default)
+         */
+        public Builder setResponseCacheMaxBytes(final long maxBytes) {
+            this.responseCacheMaxBytes = checkNotNegative("responseCacheMaxBytes", maxBytes);
+            return this;
+        }
+
+        /**
+         * Keep the objects loaded by lazy getters, e.g. {@link com.ning.billing.recurly.model.Invoice#getAccount()},
+         * keyed by href: walking the invoices, adjustments and transactions of a customer then downloads its
+         * account once. See {@link IdentityMap}, and {@link RequestOptions.Builder#setIdentityMap(IdentityMap)} to
+         * scope a map to a job instead. Cached objects are shared between callers.
+         *
+         * @param maxEntries maximum number of objects kept, 0 to disable the map (default)
+         */
+        public Builder setIdentityMapMaxEntries(final long maxEntries) {
+            this.identityMapMaxEntries = checkNotNegative("identityMapMaxEntries", maxEntries);
+            return this;
+        }
+
+        /**
+         * @param ttl  time an object is served from the identity map after being fetched (default: 1 minute)
+         * @param unit unit of the time to live
+         */
+        public Builder setIdentityMapTtl(final long ttl, final TimeUnit unit) {
+            this.identityMapTtlMillis = checkPositive("identityMapTtl", unit.toMillis(ttl));
+            return this;
+        }
+
+        /**
+         * Let list streams, e.g. {@link RecurlyClient#streamAccounts(QueryParams)}, fetch the next pages in the
+         * background while the current one is processed. Each page ahead is kept in memory until it is consumed.
+         *
+         * @param prefetchPages number of pages fetched ahead, 0 to fetch each page when the previous one is exhausted
+         */
+        public Builder setPrefetchPages(final int prefetchPages) {
+            if (prefetchPages < 0) {
+                throw new IllegalArgumentException("prefetchPages must not be negative: " + prefetchPages);
+            }
+            this.prefetchPages = prefetchPages;
+            return this;
+        }
+
+        /**
+         * Pick the page size of list calls per endpoint, from the response time and size of the previous pages,
+         * instead of the {@code recurly.page.size} system property: bigger pages save round trips on large lists.
+         * The page size requested by {@link QueryParams} and next page URLs is then overridden, see {@link PageSizer}.
+         */
+        public Builder setAdaptivePagingEnabled(final boolean adaptivePagingEnabled) {
+            this.adaptivePagingEnabled = adaptivePagingEnabled;
+            return this;
+        }
+
+        /**
+         * @param latencyTarget response time adaptive paging keeps pages under, download and parsing included (1s by default)
+         */
+        public Builder setPageLatencyTarget(final long latencyTarget, final TimeUnit unit) {
+            this.pageLatencyTargetMillis = checkPositive("pageLatencyTarget", unit.toMillis(latencyTarget));
+            return this;
+        }
+
+        /**
+         * @param maxPageBytes decoded size adaptive paging keeps pages under (1MB by default)
+         */
+        public Builder setMaxPageBytes(final long maxPageBytes) {
+            this.maxPageBytes = checkPositive("maxPageBytes", maxPageBytes);
+            return this;
+        }
+
+        public RecurlyClientConfig build() {
+            if (maxConnectionsPerRoute > maxConnectionsTotal) {
+                throw new IllegalArgumentException("maxConnectionsPerRoute (" + maxConnectionsPerRoute +
+                                                   ") cannot be greater than maxConnectionsTotal (" + maxConnectionsTotal + ")");
+            }
+            if (warmUpConnections > maxConnectionsPerRoute) {
+                throw new IllegalArgumentException("warmUpConnections (" + warmUpConnections +
+                                                   ") cannot be greater than maxConnectionsPerRoute (" + maxConnectionsPerRoute + ")");
+            }
+            return new RecurlyClientConfig(this);
+        }
+
+        private static <T extends Number> T checkPositive(final String name, final T value) {
+            if (value.longValue() <= 0) {
+                throw new IllegalArgumentException(name + " must be positive: " + value);
+            }
+            return value;
+        }
+
+        private static long checkNotNegative(final String name, final long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException(name + " must not be negative: " + value);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Clients for many Recurly sites, sharing a single connection pool
+ * <p>
+ * Opening one {@link RecurlyClient} per site multiplies idle sockets and TLS handshakes. Clients returned by
+ * {@link #getClient(String, String)} instead share one pool, the XML mapper and the metrics, while each site
+ * keeps its own {@link RateGovernor}:
+ * <pre>
+ * final RecurlyClientFactory factory = new RecurlyClientFactory(config);
+ * factory.open();
+ * final Account account = factory.getClient(apiKey, subDomain).getAccount(accountCode);
+ * ...
+ * factory.close();
+ * </pre>
+ * Each site is a separate route of the pool: a site cannot hold more than
+ * {@link RecurlyClientConfig#getMaxConnectionsPerRoute()} connections, so one noisy site cannot starve the
+ * others. Set it well below {@link RecurlyClientConfig#getMaxConnectionsTotal()}, and override it for specific
+ * sites with {@link #setMaxConnections(String, int)}.
+ * <p>
+ * The factory keeps a bounded number of clients, {@link #DEFAULT_MAX_CLIENTS} by default, the least recently used
+ * ones being dropped first:
+ * a dropped client keeps working, and {@link #getClient(String, String)} creates a new one on the next call.
+ */
+public class RecurlyClientFactory {
+
+    public static final int DEFAULT_MAX_CLIENTS = 1000;
+
+    private final RecurlyClientConfig config;
+    // Owns the shared pool, never used to issue calls itself
+    private final RecurlyClient recurlyClient;
+    private final ConcurrentMap<String, RecurlyClient> clients;
+    private final Map<String, Integer> maxConnections = new ConcurrentHashMap<String, Integer>();
+
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    public RecurlyClientFactory() {
+        this(RecurlyClientConfig.defaults());
+    }
+
+    /**
+     * @param config connection pool and timeout settings shared by all sites
+     */
+    public RecurlyClientFactory(final RecurlyClientConfig config) {
+        this(config, DEFAULT_MAX_CLIENTS);
+    }
+
+    /**
+     * @param config     connection pool and timeout settings shared by all sites
+     * @param maxClients maximum number of clients kept, see {@link #getClient(String, String)}
+     */
+    public RecurlyClientFactory(final RecurlyClientConfig config, final int maxClients) {
+        if (maxClients <= 0) {
+            throw new IllegalArgumentException("maxClients must be positive: " + maxClients);
+        }
+        this.config = config;
+        this.recurlyClient = new RecurlyClient("", "api", config);
+        this.clients = CacheBuilder.newBuilder()
+                                   .maximumSize(maxClients)
+                                   .<String, RecurlyClient>build()
+                                   .asMap();
+    }
+
+    /**
+     * Open the shared connection pool
+     */
+    public synchronized void open() throws NoSuchAlgorithmException, KeyManagementException {
+        connectionManager = recurlyClient.createConnectionManager();
+        for (final Map.Entry<String, Integer> entry : maxConnections.entrySet()) {
+            connectionManager.setMaxPerRoute(route(entry.getKey()), entry.getValue());
+        }
+        recurlyClient.open(recurlyClient.createHttpClient(connectionManager));
+    }
+
+    /**
+     * Close the shared connection pool, and with it all the clients of this factory
+     */
+    public synchronized void close() {
+        recurlyClient.close();
+    }
+
+    /**
+     * @param apiKey    private API key of the site
+     * @param subDomain site, e.g. "mysite" for mysite.recurly.com
+     * @return the client of the site, created on first use, or once dropped by the factory
+     */
+    public RecurlyClient getClient(final String apiKey, final String subDomain) {
+        final String clientKey = subDomain + ":" + apiKey;
+        final RecurlyClient client = clients.get(clientKey);
+        if (client != null) {
+            return client;
+        }
+        final RecurlyClient newClient = recurlyClient.withOptions(RequestOptions.builder()
+                                                                                .setApiKey(apiKey)
+                                                                                .setSubDomain(subDomain)
+                                                                                .build());
+        return MoreObjects.firstNonNull(clients.putIfAbsent(clientKey, newClient), newClient);
+    }
+
+    /**
+     * Open connections to a site ahead of its first calls, see {@link RecurlyClientConfig.Builder#setWarmUpConnections(int)}
+     *
+     * @param subDomain   site, e.g. "mysite" for mysite.recurly.com
+     * @param connections number of connections to open, at most the quota of the site
+     * @return the number of connections opened
+     */
+    public int warmUp(final String subDomain, final int connections) {
+        final PoolingHttpClientConnectionManager connectionManager = getConnectionManager();
+        if (connectionManager == null) {
+            throw new IllegalStateException("The factory is not open");
+        }
+        final String url = recurlyClient.withOptions(RequestOptions.builder().setSubDomain(subDomain).build()).constructUrl("");
+        return new ConnectionWarmUp(connectionManager, config).warmUp(url, Math.min(connections, getMaxConnections(subDomain)));
+    }
+
+    /**
+     * Override the connection quota of a site
+     *
+     * @param subDomain      site, e.g. "mysite" for mysite.recurly.com
+     * @param maxConnections maximum number of connections the site can hold
+     */
+    public synchronized void setMaxConnections(final String subDomain, final int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections must be positive: " + maxConnections);
+        }
+        this.maxConnections.put(subDomain, maxConnections);
+        if (connectionManager != null) {
+            connectionManager.setMaxPerRoute(route(subDomain), maxConnections);
+        }
+    }
+
+    /**
+     * @param subDomain site, e.g. "mysite" for mysite.recurly.com
+     * @return the maximum number of connections the site can hold
+     */
+    public int getMaxConnections(final String subDomain) {
+        return MoreObjects.firstNonNull(maxConnections.get(subDomain), config.getMaxConnectionsPerRoute());
+    }
+
+    /**
+     * @param subDomain site, e.g. "mysite" for mysite.recurly.com
+     * @return the governor tracking the rate limit budget of the site
+     */
+    public RateGovernor getRateGovernor(final String subDomain) {
+        return recurlyClient.withOptions(RequestOptions.builder().setSubDomain(subDomain).build()).getRateGovernor();
+    }
+
+    /**
+     * @return bytes transferred and decoded per endpoint, across all sites
+     */
+    public TransferMetrics getTransferMetrics() {
+        return recurlyClient.getTransferMetrics();
+    }
+
+    public RecurlyClientConfig getConfig() {
+        return config;
+    }
+
+    @VisibleForTesting
+    int getClientCount() {
+        return clients.size();
+    }
+
+    synchronized PoolingHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    // Route of the calls made by the clients of a site, see RecurlyClient#constructUrl
+    @VisibleForTesting
+    static HttpRoute route(final String subDomain) {
+        return new HttpRoute(new HttpHost(subDomain + ".recurly.com", 443, "https"), null, true);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight execution of identical calls
+ * <p>
+ * While a call is in flight, identical calls (same key) don't go out: they wait for the in-flight call
+ * and share its result, or its exception. The result object is shared too, so callers must not modify it.
+ * A call issued after the in-flight one completed goes out again: nothing is cached.
+ */
+public class RequestCoalescer {
+
+    private final ConcurrentMap<String, CompletableFuture<?>> inFlightCalls = new ConcurrentHashMap<String, CompletableFuture<?>>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalescedCalls = new AtomicLong();
+
+    /**
+     * @param key  identifies identical calls
+     * @param call issues the call, only invoked if no identical call is in flight
+     * @return the result of the call. Cancelling it does not affect the other callers.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> execute(final String key, final Supplier<CompletableFuture<T>> call) {
+        final CompletableFuture<T> promise = new CompletableFuture<T>();
+        final CompletableFuture<T> inFlightCall = (CompletableFuture<T>) inFlightCalls.putIfAbsent(key, promise);
+        if (inFlightCall != null) {
+            coalescedCalls.incrementAndGet();
+            return copyOf(inFlightCall);
+        }
+
+        calls.incrementAndGet();
+        try {
+            call.get().whenComplete((result, throwable) -> {
+                // Unregister first, so calls issued from now on go out
+                inFlightCalls.remove(key, promise);
+                if (throwable != null) {
+                    promise.completeExceptionally(unwrap(throwable));
+                } else {
+                    promise.complete(result);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlightCalls.remove(key, promise);
+            promise.completeExceptionally(e);
+        }
+        return copyOf(promise);
+    }
+
+    // Fails with the exception of the call itself, as the future of a call which was not coalesced would: a
+    // dependent stage (e.g. thenApply) would wrap it in a CompletionException
+    private static <T> CompletableFuture<T> copyOf(final CompletableFuture<T> promise) {
+        final CompletableFuture<T> copy = new CompletableFuture<T>();
+        promise.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                copy.completeExceptionally(unwrap(throwable));
+            } else {
+                copy.complete(result);
+            }
+        });
+        return copy;
+    }
+
+    private static Throwable unwrap(final Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    }
+
+    /**
+     * @return number of calls which went out
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return number of calls which shared the result of an identical in-flight call
+     */
+    public long getCoalescedCalls() {
+        return coalescedCalls.get();
+    }
+
+    /**
+     * @return number of calls currently in flight
+     */
+    public int getInFlightCalls() {
+        return inFlightCalls.size();
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Settings overriding those of a client for some of its calls
+ * <p>
+ * Options are applied with {@link RecurlyClient#withOptions(RequestOptions)}, which returns a lightweight view
+ * of the client sharing its connection pool. A single client can then serve several sites, API keys and
+ * languages concurrently:
+ * <pre>
+ * final RequestOptions options = RequestOptions.builder()
+ *                                              .setApiKey(tenant.getApiKey())
+ *                                              .setSubDomain(tenant.getSubDomain())
+ *                                              .setAcceptLanguage("fr-FR")
+ *                                              .build();
+ * final Account account = recurlyClient.withOptions(options).getAccount(accountCode);
+ * </pre>
+ * Settings left unset fall back to the ones of the client. Instances are immutable.
+ */
+public class RequestOptions {
+
+    private final String apiKey;
+    private final String subDomain;
+    private final String acceptLanguage;
+    private final long connectTimeoutMillis;
+    private final long socketTimeoutMillis;
+    private final String idempotencyKey;
+    private final RateGovernor.Priority priority;
+    private final IdentityMap identityMap;
+
+    private RequestOptions(final Builder builder) {
+        this.apiKey = builder.apiKey;
+        this.subDomain = builder.subDomain;
+        this.acceptLanguage = builder.acceptLanguage;
+        this.connectTimeoutMillis = builder.connectTimeoutMillis;
+        this.socketTimeoutMillis = builder.socketTimeoutMillis;
+        this.idempotencyKey = builder.idempotencyKey;
+        this.priority = builder.priority;
+        this.identityMap = builder.identityMap;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Nullable
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    @Nullable
+    public String getSubDomain() {
+        return subDomain;
+    }
+
+    @Nullable
+    public String getAcceptLanguage() {
+        return acceptLanguage;
+    }
+
+    /**
+     * @return maximum time to establish a connection, -1 to use the one of the client
+     */
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * @return maximum inactivity between two data packets, -1 to use the one of the client
+     */
+    public long getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    @Nullable
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    @Nullable
+    public RateGovernor.Priority getPriority() {
+        return priority;
+    }
+
+    @Nullable
+    public IdentityMap getIdentityMap() {
+        return identityMap;
+    }
+
+    @Override
+    public String toString() {
+        // Don't leak the API key in logs
+        return MoreObjects.toStringHelper(this)
+                          .add("apiKey", apiKey == null ? null : "***")
+                          .add("subDomain", subDomain)
+                          .add("acceptLanguage", acceptLanguage)
+                          .add("connectTimeoutMillis", connectTimeoutMillis)
+                          .add("socketTimeoutMillis", socketTimeoutMillis)
+                          .add("idempotencyKey", idempotencyKey)
+                          .add("priority", priority)
+                          .add("identityMap", identityMap)
+                          .toString();
+    }
+
+    public static class Builder {
+
+        private String apiKey;
+        private String subDomain;
+        private String acceptLanguage;
+        private long connectTimeoutMillis = -1;
+        private long socketTimeoutMillis = -1;
+        private String idempotencyKey;
+        private RateGovernor.Priority priority;
+        private IdentityMap identityMap;
+
+        private Builder() {
+        }
+
+        /**
+         * @param apiKey private API key to authenticate the calls with
+         */
+        public Builder setApiKey(final String apiKey) {
+            this.apiKey = checkNotEmpty("apiKey", apiKey);
+            return this;
+        }
+
+        /**
+         * @param subDomain site to send the calls to, e.g. "mysite" for mysite.recurly.com. Sites are rate limited
+         *                  separately: each one is paced by its own {@link RateGovernor}.
+         */
+        public Builder setSubDomain(final String subDomain) {
+            this.subDomain = checkNotEmpty("subDomain", subDomain);
+            return this;
+        }
+
+        /**
+         * @param acceptLanguage language of the error messages, e.g. "en-US"
+         */
+        public Builder setAcceptLanguage(final String acceptLanguage) {
+            this.acceptLanguage = checkNotEmpty("acceptLanguage", acceptLanguage);
+            return this;
+        }
+
+        /**
+         * @param timeout maximum time to establish a connection, 0 to wait indefinitely
+         */
+        public Builder setConnectTimeout(final long timeout, final TimeUnit unit) {
+            this.connectTimeoutMillis = checkNotNegative("connectTimeout", unit.toMillis(timeout));
+            return this;
+        }
+
+        /**
+         * @param timeout maximum inactivity between two data packets, 0 to wait indefinitely
+         */
+        public Builder setSocketTimeout(final long timeout, final TimeUnit unit) {
+            this.socketTimeoutMillis = checkNotNegative("socketTimeout", unit.toMillis(timeout));
+            return this;
+        }
+
+        /**
+         * Send an {@code Idempotency-Key} header with POST, PUT and DELETE calls, so Recurly does not apply the
+         * same call twice and the {@link ExponentialBackoffRetryPolicy} can safely retry it.
+         * The key identifies a single operation: don't reuse these options for other calls.
+         *
+         * @param idempotencyKey unique key of the operation
+         */
+        public Builder setIdempotencyKey(final String idempotencyKey) {
+            this.idempotencyKey = checkNotEmpty("idempotencyKey", idempotencyKey);
+            return this;
+        }
+
+        /**
+         * @param priority lane of the calls, see {@link RecurlyClientConfig.Builder#setPriority(RateGovernor.Priority)}
+         */
+        public Builder setPriority(final RateGovernor.Priority priority) {
+            if (priority == null) {
+                throw new IllegalArgumentException("priority cannot be null");
+            }
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * Serve the lazy getters of the objects loaded through the view from this map, instead of the one of the
+         * client: a job can then keep the objects it walks for its own duration, and drop them when done.
+         *
+         * @param identityMap map of the objects fetched by href, see {@link RecurlyClientConfig.Builder#setIdentityMapMaxEntries(long)}
+         */
+        public Builder setIdentityMap(final IdentityMap identityMap) {
+            if (identityMap == null) {
+                throw new IllegalArgumentException("identityMap cannot be null");
+            }
+            this.identityMap = identityMap;
+            return this;
+        }
+
+        public RequestOptions build() {
+            return new RequestOptions(this);
+        }
+
+        private static String checkNotEmpty(final String name, final String value) {
+            if (value == null || value.isEmpty()) {
+                throw new IllegalArgumentException(name + " cannot be empty");
+            }
+            return value;
+        }
+
+        private static long checkNotNegative(final String name, final long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException(name + " must not be negative: " + value);
+            }
+            return value;
+        }
+    }
+}
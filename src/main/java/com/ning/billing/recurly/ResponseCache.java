@@ -0,0 +1,196 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Conditional GET cache, see {@link RecurlyClientConfig.Builder#setResponseCacheMaxBytes(long)}
+ * <p>
+ * Successful GET responses carrying an {@code ETag} or a {@code Last-Modified} header are kept along with their
+ * deserialized object. The next identical call sends the validators back ({@code If-None-Match},
+ * {@code If-Modified-Since}): when Recurly answers 304 Not Modified, the cached object is returned without
+ * downloading or parsing the body again. Cached objects are shared between callers, who must not modify them.
+ * <p>
+ * Entries are weighted by the size of their decoded body, and the least recently used ones are evicted once the
+ * total exceeds the maximum size.
+ */
+public class ResponseCache {
+
+    private final long maxBytes;
+    private final Cache<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    public ResponseCache(final long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.entries = CacheBuilder.newBuilder()
+                                   .maximumWeight(maxBytes)
+                                   .weigher(new Weigher<String, Entry>() {
+                                       @Override
+                                       public int weigh(final String key, final Entry entry) {
+                                           return (int) Math.min(entry.size, Integer.MAX_VALUE);
+                                       }
+                                   })
+                                   .recordStats()
+                                   .build();
+    }
+
+    /**
+     * Look up the entry of a call, and send its validators with the request
+     *
+     * @return the entry to return if the server answers 304, null if there is none
+     */
+    @Nullable
+    Entry prepare(final String key, final HttpRequestBase request) {
+        final Entry entry = entries.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.etag != null) {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, entry.etag);
+        }
+        if (entry.lastModified != null) {
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, entry.lastModified);
+        }
+        return entry;
+    }
+
+    /**
+     * Record a 304 response
+     *
+     * @return the cached object
+     */
+    Object hit(final Entry entry) {
+        hits.incrementAndGet();
+        savedBytes.addAndGet(entry.size);
+        return entry.value;
+    }
+
+    /**
+     * Record a full response, and cache it if it carries validators
+     *
+     * @param size size of the decoded body
+     */
+    void store(final String key, final HttpResponse response, final Object value, final long size) {
+        misses.incrementAndGet();
+        final String etag = headerValue(response, HttpHeaders.ETAG);
+        final String lastModified = headerValue(response, HttpHeaders.LAST_MODIFIED);
+        if (etag == null && lastModified == null) {
+            // Nothing to revalidate with
+            entries.invalidate(key);
+            return;
+        }
+        entries.put(key, new Entry(etag, lastModified, value, size));
+    }
+
+    /**
+     * Drop all cached responses
+     */
+    public void invalidateAll() {
+        entries.invalidateAll();
+    }
+
+    /**
+     * @return number of calls answered by a 304 and served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of calls which downloaded a full response
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return decoded bytes which did not have to be downloaded and parsed thanks to 304 responses
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    /**
+     * @return number of cached responses
+     */
+    public long getEntries() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of cached responses evicted to stay under the maximum size
+     */
+    public long getEvictions() {
+        return entries.stats().evictionCount();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Nullable
+    private static String headerValue(final HttpResponse response, final String name) {
+        final Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                          .add("entries", getEntries())
+                          .add("hits", hits)
+                          .add("misses", misses)
+                          .add("savedBytes", savedBytes)
+                          .add("evictions", getEvictions())
+                          .toString();
+    }
+
+    static final class Entry {
+
+        private final String etag;
+        private final String lastModified;
+        private final Object value;
+        private final long size;
+
+        private Entry(@Nullable final String etag, @Nullable final String lastModified, final Object value, final long size) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
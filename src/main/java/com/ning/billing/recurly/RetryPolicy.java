@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.io.IOException;
+
+import javax.annotation.Nullable;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+/**
+ * Decides whether a failed call should be retried, and when
+ * <p>
+ * Implementations are shared by all the threads using a client and must be thread-safe.
+ *
+ * @see ExponentialBackoffRetryPolicy
+ */
+public interface RetryPolicy {
+
+    /**
+     * Never retry
+     */
+    RetryPolicy NONE = new RetryPolicy() {
+        @Override
+        public long getRetryDelayMillis(final HttpRequest request, final int attempt, @Nullable final HttpResponse response, @Nullable final IOException exception) {
+            return -1;
+        }
+    };
+
+    /**
+     * Called after every attempt which did not yield a successful response
+     *
+     * @param request   the request
+     * @param attempt   number of attempts made so far, starting at 1
+     * @param response  the response, null if the call failed with an exception
+     * @param exception the error, null if a response was received
+     * @return how long to wait before the next attempt in milliseconds, a negative value to give up
+     */
+    long getRetryDelayMillis(HttpRequest request, int attempt, @Nullable HttpResponse response, @Nullable IOException exception);
+}
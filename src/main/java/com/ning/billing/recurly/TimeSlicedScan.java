@@ -0,0 +1,480 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.joda.time.DateTime;
+
+import com.ning.billing.recurly.model.RecurlyObject;
+import com.ning.billing.recurly.model.RecurlyObjects;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Full scan of a list endpoint, walked in parallel over time windows
+ * <p>
+ * Cursor pagination is serial: each page has to be fetched before the URL of the next one is known. A scan instead
+ * splits a date range into windows, filtered with {@link QueryParams#setBeginTime(DateTime)} and
+ * {@link QueryParams#setEndTime(DateTime)} and sorted in ascending order, and walks several windows concurrently:
+ * <pre>
+ * final TimeSlicedScan&lt;Transaction&gt; scan = TimeSlicedScan.builder(params -&gt; recurlyClient.getTransactions(null, null, params),
+ *                                                              Transaction::getCreatedAt)
+ *                                                     .setRange(begin, end)
+ *                                                     .setParallelism(4)
+ *                                                     .build();
+ * try (final Stream&lt;Transaction&gt; transactions = scan.stream()) {
+ *     transactions.forEach(...);
+ * }
+ * </pre>
+ * Records are returned in order, window after window. Windows turn out dense when the first page covers a small
+ * share of their duration: they are then split into smaller windows, walked concurrently as well, down to
+ * {@link Builder#setMinWindow(long, TimeUnit)}.
+ * <p>
+ * At most {@code parallelism} windows are walked at a time, ahead of the window being consumed, and each of them
+ * buffers at most {@link Builder#setMaxBufferedPages(int)} pages. Calls go through the client, and its
+ * {@link RateGovernor}: use a client with the {@link RateGovernor.Priority#BACKGROUND} priority, see
+ * {@link RequestOptions.Builder#setPriority(RateGovernor.Priority)}, to leave budget to interactive calls.
+ * <p>
+ * A page which cannot be fetched, i.e. a null page, fails the stream with an {@link IllegalStateException} once the
+ * records before it are consumed: the scan never completes with records missing.
+ */
+public class TimeSlicedScan<T extends RecurlyObject> {
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final Function<QueryParams, ? extends RecurlyObjects<T>> fetcher;
+    private final Function<T, DateTime> timestamp;
+    private final QueryParams.Sort sort;
+    private final DateTime begin;
+    private final DateTime end;
+    private final int initialWindows;
+    private final int parallelism;
+    private final int maxBufferedPages;
+    private final int maxPagesPerWindow;
+    private final long minWindowMillis;
+
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong splits = new AtomicLong();
+
+    private TimeSlicedScan(final Builder<T> builder) {
+        this.fetcher = builder.fetcher;
+        this.timestamp = builder.timestamp;
+        this.sort = builder.sort;
+        this.begin = builder.begin;
+        this.end = builder.end;
+        this.initialWindows = builder.windows;
+        this.parallelism = builder.parallelism;
+        this.maxBufferedPages = builder.maxBufferedPages;
+        this.maxPagesPerWindow = builder.maxPagesPerWindow;
+        this.minWindowMillis = builder.minWindowMillis;
+    }
+
+    /**
+     * @param fetcher   fetches the first page of a window, e.g. {@code params -> recurlyClient.getInvoices(params)}.
+     *                  The time bounds, sort and order are already set on the parameters it is given.
+     * @param timestamp value of the sort attribute of a record, e.g. {@code Invoice::getCreatedAt}
+     */
+    public static <T extends RecurlyObject> Builder<T> builder(final Function<QueryParams, ? extends RecurlyObjects<T>> fetcher,
+                                                               final Function<T, DateTime> timestamp) {
+        return new Builder<T>(fetcher, timestamp);
+    }
+
+    /**
+     * Start the scan
+     * <p>
+     * Windows are walked in the background as soon as the stream is consumed. Close the stream to stop the scan
+     * before its end.
+     *
+     * @return all the records of the range, in ascending order
+     */
+    public Stream<T> stream() {
+        final ScanIterator iterator = new ScanIterator();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                            .onClose(iterator::close);
+    }
+
+    /**
+     * @return number of pages fetched
+     */
+    public long getPages() {
+        return pages.get();
+    }
+
+    /**
+     * @return number of records returned
+     */
+    public long getRecords() {
+        return records.get();
+    }
+
+    /**
+     * @return number of dense windows split into smaller ones
+     */
+    public long getSplits() {
+        return splits.get();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                          .add("begin", begin)
+                          .add("end", end)
+                          .add("sort", sort)
+                          .add("pages", pages)
+                          .add("records", records)
+                          .add("splits", splits)
+                          .toString();
+    }
+
+    // Split [beginMillis, endMillis) into consecutive windows
+    private List<Window> split(final long beginMillis, final long endMillis, final int parts) {
+        final List<Window> result = new ArrayList<Window>(parts);
+        final long duration = endMillis - beginMillis;
+        long windowBegin = beginMillis;
+        for (int i = 1; i <= parts; i++) {
+            final long windowEnd = i == parts ? endMillis : beginMillis + duration * i / parts;
+            if (windowEnd > windowBegin) {
+                result.add(new Window(windowBegin, windowEnd));
+            }
+            windowBegin = windowEnd;
+        }
+        return result;
+    }
+
+    // Item of the queue of a window: a page, the windows replacing it, the end of the window, or an error
+    private final class Chunk {
+
+        private final RecurlyObjects<T> page;
+        private final List<Window> windows;
+        private final Throwable error;
+
+        private Chunk(final RecurlyObjects<T> page, final List<Window> windows, final Throwable error) {
+            this.page = page;
+            this.windows = windows;
+            this.error = error;
+        }
+    }
+
+    private final class Window implements Runnable {
+
+        private final long beginMillis;
+        // Exclusive
+        private final long endMillis;
+        private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<Chunk>(maxBufferedPages + 1);
+
+        private volatile boolean cancelled;
+        // Only accessed by the consumer
+        private boolean started;
+
+        private Window(final long beginMillis, final long endMillis) {
+            this.beginMillis = beginMillis;
+            this.endMillis = endMillis;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                final QueryParams params = new QueryParams();
+                params.setSort(sort);
+                params.setOrder(QueryParams.Order.ASC);
+                params.setBeginTime(new DateTime(beginMillis, begin.getZone()));
+                // Both bounds are inclusive
+                params.setEndTime(new DateTime(endMillis - 1, begin.getZone()));
+                RecurlyObjects<T> page = fetcher.apply(params);
+                if (page == null) {
+                    // The client yields null when a call fails without a connection error
+                    throw new IllegalStateException("Unable to fetch the first page of " + this);
+                }
+
+                if (page.getNextUrl() != null && !page.isEmpty()) {
+                    final List<Window> windows = splitIfDense(page);
+                    if (windows != null) {
+                        splits.incrementAndGet();
+                        put(new Chunk(null, windows, null));
+                        return;
+                    }
+                }
+
+                while (!cancelled) {
+                    pages.incrementAndGet();
+                    put(new Chunk(page, null, null));
+                    final String nextUrl = page.getNextUrl();
+                    if (nextUrl == null) {
+                        break;
+                    }
+                    page = page.getNext();
+                    if (page == null) {
+                        throw new IllegalStateException("Unable to fetch " + nextUrl + " of " + this);
+                    }
+                }
+                put(new Chunk(null, null, null));
+            } catch (Throwable e) {
+                put(new Chunk(null, null, e));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "window [" + new DateTime(beginMillis, begin.getZone()) + ", " + new DateTime(endMillis, begin.getZone()) + ")";
+        }
+
+        // The first page covers [beginMillis, last timestamp]: extrapolate the number of pages of the window
+        private List<Window> splitIfDense(final RecurlyObjects<T> page) {
+            final long duration = endMillis - beginMillis;
+            if (duration < 2 * minWindowMillis) {
+                return null;
+            }
+            final DateTime last = timestamp.apply(page.get(page.size() - 1));
+            if (last == null) {
+                return null;
+            }
+            final long covered = Math.max(last.getMillis() - beginMillis, 1);
+            final double estimatedPages = (double) duration / covered;
+            if (estimatedPages <= maxPagesPerWindow) {
+                return null;
+            }
+            final int parts = (int) Math.min(Math.min(Math.ceil(estimatedPages / maxPagesPerWindow), 16), duration / minWindowMillis);
+            return split(beginMillis, endMillis, Math.max(parts, 2));
+        }
+
+        private void put(final Chunk chunk) {
+            while (!cancelled) {
+                try {
+                    if (chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private final class ScanIterator implements Iterator<T>, AutoCloseable {
+
+        private final ExecutorService executor;
+        // Windows left, in order
+        private final LinkedList<Window> windows = new LinkedList<Window>();
+
+        private Iterator<T> current = Collections.emptyIterator();
+        private boolean closed;
+
+        private ScanIterator() {
+            this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "recurly-scan-" + THREAD_COUNT.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            windows.addAll(split(begin.getMillis(), end.getMillis(), initialWindows));
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (closed) {
+                    return false;
+                }
+                if (windows.isEmpty()) {
+                    close();
+                    return false;
+                }
+                // Started windows are never interrupted, and run until the consumer has taken all their pages
+                startWindows();
+
+                final Chunk chunk = Uninterruptibles.takeUninterruptibly(windows.getFirst().chunks);
+                if (chunk.error != null) {
+                    close();
+                    throw Throwables.propagate(chunk.error);
+                } else if (chunk.windows != null) {
+                    // Its windows take its place
+                    windows.removeFirst();
+                    windows.addAll(0, chunk.windows);
+                } else if (chunk.page != null) {
+                    records.addAndGet(chunk.page.size());
+                    current = chunk.page.iterator();
+                } else {
+                    windows.removeFirst();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            current = Collections.emptyIterator();
+            for (final Window window : windows) {
+                window.cancelled = true;
+            }
+            windows.clear();
+            executor.shutdown();
+        }
+
+        // Walk the first windows not started yet, as long as fewer than parallelism windows are started. The first
+        // window is then always started: the thread walking it is never held by windows waiting for the consumer.
+        private void startWindows() {
+            int running = 0;
+            for (final Window window : windows) {
+                if (window.started) {
+                    running++;
+                }
+            }
+            for (final Window window : windows) {
+                if (running >= parallelism) {
+                    return;
+                }
+                if (!window.started) {
+                    window.started = true;
+                    executor.execute(window);
+                    running++;
+                }
+            }
+        }
+    }
+
+    public static class Builder<T extends RecurlyObject> {
+
+        private final Function<QueryParams, ? extends RecurlyObjects<T>> fetcher;
+        private final Function<T, DateTime> timestamp;
+        private QueryParams.Sort sort = QueryParams.Sort.CREATED_AT;
+        private DateTime begin;
+        private DateTime end;
+        private int windows = 16;
+        private int parallelism = 4;
+        private int maxBufferedPages = 10;
+        private int maxPagesPerWindow = 50;
+        private long minWindowMillis = TimeUnit.MINUTES.toMillis(1);
+
+        private Builder(final Function<QueryParams, ? extends RecurlyObjects<T>> fetcher, final Function<T, DateTime> timestamp) {
+            this.fetcher = fetcher;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * @param sort attribute the windows filter on, matching the timestamp function ({@link QueryParams.Sort#CREATED_AT} by default)
+         */
+        public Builder<T> setSort(final QueryParams.Sort sort) {
+            this.sort = sort;
+            return this;
+        }
+
+        /**
+         * @param begin start of the range, inclusive
+         * @param end   end of the range, exclusive
+         */
+        public Builder<T> setRange(final DateTime begin, final DateTime end) {
+            if (!begin.isBefore(end)) {
+                throw new IllegalArgumentException("begin (" + begin + ") must be before end (" + end + ")");
+            }
+            this.begin = begin;
+            this.end = end;
+            return this;
+        }
+
+        /**
+         * @param windows number of windows the range is initially split into (16 by default)
+         */
+        public Builder<T> setWindows(final int windows) {
+            this.windows = checkPositive("windows", windows);
+            return this;
+        }
+
+        /**
+         * @param parallelism number of windows walked concurrently (4 by default)
+         */
+        public Builder<T> setParallelism(final int parallelism) {
+            this.parallelism = checkPositive("parallelism", parallelism);
+            return this;
+        }
+
+        /**
+         * @param maxBufferedPages number of pages a window fetches ahead of consumption (10 by default)
+         */
+        public Builder<T> setMaxBufferedPages(final int maxBufferedPages) {
+            this.maxBufferedPages = checkPositive("maxBufferedPages", maxBufferedPages);
+            return this;
+        }
+
+        /**
+         * @param maxPagesPerWindow estimated number of pages above which a window is split (50 by default)
+         */
+        public Builder<T> setMaxPagesPerWindow(final int maxPagesPerWindow) {
+            this.maxPagesPerWindow = checkPositive("maxPagesPerWindow", maxPagesPerWindow);
+            return this;
+        }
+
+        /**
+         * @param minWindow duration below which windows are not split (1 minute by default)
+         */
+        public Builder<T> setMinWindow(final long minWindow, final TimeUnit unit) {
+            this.minWindowMillis = checkPositive("minWindow", unit.toMillis(minWindow));
+            return this;
+        }
+
+        public TimeSlicedScan<T> build() {
+            if (begin == null) {
+                throw new IllegalArgumentException("The range of the scan must be set");
+            }
+            return new TimeSlicedScan<T>(this);
+        }
+
+        private static <N extends Number> N checkPositive(final String name, final N value) {
+            if (value.longValue() <= 0) {
+                throw new IllegalArgumentException(name + " must be positive: " + value);
+            }
+            return value;
+        }
+    }
+}
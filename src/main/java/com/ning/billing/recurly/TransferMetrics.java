@@ -0,0 +1,144 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Bytes transferred by a client, per endpoint
+ * <p>
+ * Endpoints are identified by the HTTP method and the resource path, where identifiers are replaced
+ * by {@code {id}}, e.g. {@code GET /accounts/{id}/invoices}.
+ * Transferred bytes are counted as received on the wire (compressed, if the response was),
+ * decoded bytes after decompression. Only response bodies read by the client are counted.
+ */
+public class TransferMetrics {
+
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+    /**
+     * @return a snapshot of the metrics of all the endpoints called so far, sorted by endpoint
+     */
+    public Map<String, Endpoint> getEndpoints() {
+        return new TreeMap<String, Endpoint>(endpoints);
+    }
+
+    /**
+     * @param endpoint endpoint, e.g. {@code GET /accounts}
+     * @return the metrics of that endpoint, null if it was never called
+     */
+    public Endpoint getEndpoint(final String endpoint) {
+        return endpoints.get(endpoint);
+    }
+
+    public long getTransferredBytes() {
+        long total = 0;
+        for (final Endpoint endpoint : endpoints.values()) {
+            total += endpoint.getTransferredBytes();
+        }
+        return total;
+    }
+
+    public long getDecodedBytes() {
+        long total = 0;
+        for (final Endpoint endpoint : endpoints.values()) {
+            total += endpoint.getDecodedBytes();
+        }
+        return total;
+    }
+
+    Endpoint endpoint(final String method, final URI uri) {
+        final String name = method + " " + resourcePath(uri.getPath());
+        Endpoint endpoint = endpoints.get(name);
+        if (endpoint == null) {
+            final Endpoint newEndpoint = new Endpoint();
+            endpoint = MoreObjects.firstNonNull(endpoints.putIfAbsent(name, newEndpoint), newEndpoint);
+        }
+        return endpoint;
+    }
+
+    /**
+     * Strip the API version and replace identifiers (every other segment) by {id}
+     */
+    static String resourcePath(final String path) {
+        final String[] segments = path.split("/");
+        final StringBuilder resourcePath = new StringBuilder();
+        // segments[0] is empty (leading slash), segments[1] is the API version
+        for (int i = 2; i < segments.length; i++) {
+            resourcePath.append('/').append(i % 2 == 0 ? segments[i] : "{id}");
+        }
+        return resourcePath.length() == 0 ? "/" : resourcePath.toString();
+    }
+
+    public static class Endpoint {
+
+        private final AtomicLong responses = new AtomicLong();
+        private final AtomicLong compressedResponses = new AtomicLong();
+        private final AtomicLong transferredBytes = new AtomicLong();
+        private final AtomicLong decodedBytes = new AtomicLong();
+
+        public long getResponses() {
+            return responses.get();
+        }
+
+        public long getCompressedResponses() {
+            return compressedResponses.get();
+        }
+
+        public long getTransferredBytes() {
+            return transferredBytes.get();
+        }
+
+        public long getDecodedBytes() {
+            return decodedBytes.get();
+        }
+
+        AtomicLong responses() {
+            return responses;
+        }
+
+        AtomicLong compressedResponses() {
+            return compressedResponses;
+        }
+
+        AtomicLong transferredBytes() {
+            return transferredBytes;
+        }
+
+        AtomicLong decodedBytes() {
+            return decodedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                              .add("responses", getResponses())
+                              .add("compressedResponses", getCompressedResponses())
+                              .add("transferredBytes", getTransferredBytes())
+                              .add("decodedBytes", getDecodedBytes())
+                              .toString();
+        }
+    }
+}
@@ -112,12 +112,17 @@ public class AddOn extends AbstractAddOn {
     }
 
     public MeasuredUnit getMeasuredUnit() {
-        if (measuredUnit != null && measuredUnit.getHref() != null && !measuredUnit.getHref().isEmpty()) {
+        if (measuredUnit != null && !measuredUnit.isFetched() && measuredUnit.getHref() != null && !measuredUnit.getHref().isEmpty()) {
             measuredUnit = fetch(measuredUnit, MeasuredUnit.class);
         }
         return measuredUnit;
     }
 
+    // As deserialized, without fetching it, see Relation
+    MeasuredUnit peekMeasuredUnit() {
+        return measuredUnit;
+    }
+
     public void setMeasuredUnit(final MeasuredUnit measuredUnit) {
         this.measuredUnit = measuredUnit;
     }
@@ -146,6 +146,11 @@ public class Adjustment extends RecurlyObject {
         return account;
     }
 
+    // As deserialized, without fetching it, see Relation
+    Account peekAccount() {
+        return account;
+    }
+
     public void setAccount(final Account account) {
         this.account = account;
     }
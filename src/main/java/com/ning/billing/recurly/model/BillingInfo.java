@@ -164,6 +164,16 @@ public class BillingInfo extends RecurlyObject {
         return account;
     }
 
+    // As deserialized, without fetching it, see Relation
+    Account peekAccount() {
+        return account;
+    }
+
+    // Fetched account, set by Relation: setAccount is only deprecated for callers building a BillingInfo
+    void setFetchedAccount(final Account account) {
+        this.account = account;
+    }
+
     /**
      * @deprecated Please do not attach an account to a BillingInfo object. Pass the account code into {@link com.ning.billing.recurly.RecurlyClient#createOrUpdateBillingInfo(String, BillingInfo)}
      * @param account
@@ -161,6 +161,11 @@ public class Invoice extends RecurlyObject {
         return account;
     }
 
+    // As deserialized, without fetching it, see Relation
+    Account peekAccount() {
+        return account;
+    }
+
     /**
      * Set this original invoice to the passed in original invoice.
      *
@@ -172,17 +177,22 @@ public class Invoice extends RecurlyObject {
     }
 
     /**
-     * Fetches the original invoice if the href is populated, otherwise return the current original invoice.
+     * Fetches the original invoice if the href is populated and it was not fetched yet, otherwise return the current original invoice.
      *
      * @return fully loaded original invoice
      */
     public Invoice getOriginalInvoice() {
-        if (originalInvoice != null && originalInvoice.getHref() != null && !originalInvoice.getHref().isEmpty()) {
+        if (originalInvoice != null && !originalInvoice.isFetched() && originalInvoice.getHref() != null && !originalInvoice.getHref().isEmpty()) {
             originalInvoice = fetch(originalInvoice, Invoice.class);
         }
         return originalInvoice;
     }
 
+    // As deserialized, without fetching it, see Relation
+    Invoice peekOriginalInvoice() {
+        return originalInvoice;
+    }
+
     /**
      * For use with RecurlyClient.getOriginalInvoices(). Check if an invoice had an <original_invoices> link
      * in the XML from the API.
@@ -54,6 +54,10 @@ public abstract class RecurlyObject {
     @XmlTransient
     protected String href;
 
+    // Set once loaded by fetch(), so that lazy getters do not fetch it again
+    @XmlTransient
+    private boolean fetched;
+
     public static final String NIL_STR = "nil";
     public static final List<String> NIL_VAL = Arrays.asList("nil", "true");
 
@@ -241,7 +245,19 @@ public abstract class RecurlyObject {
         if (object.getHref() == null || recurlyClient == null) {
             return object;
         }
-        return recurlyClient.doGETWithFullURL(clazz, object.getHref());
+        final T fetchedObject = recurlyClient.doGETWithIdentityMap(clazz, object.getHref());
+        if (fetchedObject != null) {
+            fetchedObject.markFetched();
+        }
+        return fetchedObject;
+    }
+
+    boolean isFetched() {
+        return fetched;
+    }
+
+    void markFetched() {
+        fetched = true;
     }
 
     public void setRecurlyClient(final RecurlyClient recurlyClient) {
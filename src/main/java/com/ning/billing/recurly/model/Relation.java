@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.billing.recurly.model;
+
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+
+/**
+ * Link from an object to another one, which the API only returns as a reference (an href) and which the getter
+ * fetches lazily, e.g. {@link Invoice#getAccount()}
+ * <p>
+ * Relations load the referenced objects of many objects at once, see
+ * {@link com.ning.billing.recurly.RecurlyClient#hydrate(Iterable, Relation)}.
+ *
+ * @param <S> type of the objects holding the reference
+ * @param <T> type of the referenced objects
+ */
+public final class Relation<S extends RecurlyObject, T extends RecurlyObject> {
+
+    public static final Relation<Invoice, Account> INVOICE_ACCOUNT = new Relation<Invoice, Account>("invoice.account", Account.class, Invoice::peekAccount, Invoice::setAccount, Relation::hasCreatedAt);
+    public static final Relation<Invoice, Invoice> INVOICE_ORIGINAL_INVOICE = new Relation<Invoice, Invoice>("invoice.original_invoice", Invoice.class, Invoice::peekOriginalInvoice, Invoice::setOriginalInvoice, null);
+    public static final Relation<Adjustment, Account> ADJUSTMENT_ACCOUNT = new Relation<Adjustment, Account>("adjustment.account", Account.class, Adjustment::peekAccount, Adjustment::setAccount, Relation::hasCreatedAt);
+    public static final Relation<BillingInfo, Account> BILLING_INFO_ACCOUNT = new Relation<BillingInfo, Account>("billing_info.account", Account.class, BillingInfo::peekAccount, BillingInfo::setFetchedAccount, Relation::hasCreatedAt);
+    public static final Relation<AddOn, MeasuredUnit> ADD_ON_MEASURED_UNIT = new Relation<AddOn, MeasuredUnit>("add_on.measured_unit", MeasuredUnit.class, AddOn::peekMeasuredUnit, AddOn::setMeasuredUnit, null);
+
+    private final String name;
+    private final Class<T> targetClass;
+    private final Function<S, T> reference;
+    private final BiConsumer<S, T> setter;
+    // Whether the getter considers the referenced object as loaded, besides having been fetched
+    private final Predicate<T> loaded;
+
+    private Relation(final String name, final Class<T> targetClass, final Function<S, T> reference,
+                     final BiConsumer<S, T> setter, @Nullable final Predicate<T> loaded) {
+        this.name = name;
+        this.targetClass = targetClass;
+        this.reference = reference;
+        this.setter = setter;
+        this.loaded = loaded;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<T> getTargetClass() {
+        return targetClass;
+    }
+
+    /**
+     * @param source object holding the reference
+     * @return the href the getter of the relation would fetch, null if there is nothing to fetch
+     */
+    @Nullable
+    public String getUnloadedHref(final S source) {
+        final T target = reference.apply(source);
+        if (target == null || target.isFetched() || (loaded != null && loaded.test(target))) {
+            return null;
+        }
+        final String href = target.getHref();
+        return href == null || href.isEmpty() ? null : href;
+    }
+
+    /**
+     * Set the referenced object, as if fetched by the getter of the relation
+     *
+     * @param source object holding the reference
+     * @param target referenced object, loaded
+     */
+    public void set(final S source, final T target) {
+        target.markFetched();
+        setter.accept(source, target);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static boolean hasCreatedAt(final Account account) {
+        return account.getCreatedAt() != null;
+    }
+}
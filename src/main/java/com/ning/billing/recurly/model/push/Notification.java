@@ -18,7 +18,9 @@
 package com.ning.billing.recurly.model.push;
 
 import com.google.common.base.CaseFormat;
+import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -111,10 +113,27 @@ public abstract class Notification extends RecurlyObject {
         }
     }
 
+    // Root element name of each type, e.g. new_account_notification
+    private static final Map<String, Type> ROOT_NAMES;
+
+    static {
+        final ImmutableMap.Builder<String, Type> rootNames = ImmutableMap.builder();
+        for (final Type type : Type.values()) {
+            rootNames.put(CaseFormat.UPPER_CAMEL.to(CaseFormat.LOWER_UNDERSCORE, type.name()), type);
+        }
+        ROOT_NAMES = rootNames.build();
+    }
+
+    /**
+     * Decode a notification, with the shared {@link NotificationDecoder}
+     *
+     * @param payload notification XML
+     * @param clazz   notification class, see {@link #detect(String)}
+     * @return the notification, or null if the payload cannot be decoded
+     */
     public static <T> T read(final String payload, final Class<T> clazz) {
         try {
-            // TODO Should we cache the mapper?
-            return RecurlyObject.newXmlMapper().readValue(payload, clazz);
+            return NotificationDecoder.getDefault().read(payload, clazz);
         } catch (IOException e) {
             log.warn("Enable to read notification, de-serialization failed : {}", e.getMessage());
             return null;
@@ -131,15 +150,21 @@ public abstract class Notification extends RecurlyObject {
     public static Type detect(final String payload) {
         final Matcher m = ROOT_NAME.matcher(payload);
         if (m.find() && m.groupCount() >= 1) {
-            final String root = m.group(1);
-            try {
-                return Type.valueOf(CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, root));
-            } catch (IllegalArgumentException e) {
-                log.warn("Enable to detect notification type, no type for {}", root);
-                return null;
-            }
+            return typeOf(m.group(1));
         }
         log.warn("Enable to detect notification type");
         return null;
     }
+
+    /**
+     * @param root xml root name, e.g. new_account_notification
+     * @return notification type or null if there is no type corresponding to the root name
+     */
+    static Type typeOf(final String root) {
+        final Type type = ROOT_NAMES.get(root);
+        if (type == null) {
+            log.warn("Enable to detect notification type, no type for {}", root);
+        }
+        return type;
+    }
 }
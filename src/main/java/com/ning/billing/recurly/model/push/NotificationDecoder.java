@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.model.push;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.xml.XmlFactory;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.ning.billing.recurly.model.RecurlyObject;
+
+/**
+ * Decodes push notification payloads.
+ * <p>
+ * The mapper is built once, and an {@link ObjectReader} is resolved upfront for each {@link Notification.Type},
+ * so that decoding a payload does not pay for the mapper configuration nor the deserializers lookup.
+ * Instances are thread-safe and meant to be shared, see {@link #getDefault()}.
+ */
+public class NotificationDecoder {
+
+    private static final NotificationDecoder DEFAULT = new NotificationDecoder();
+
+    private final XmlMapper xmlMapper;
+    private final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<Class<?>, ObjectReader>();
+
+    public NotificationDecoder() {
+        this(RecurlyObject.newXmlMapper());
+    }
+
+    /**
+     * @param xmlMapper mapper to decode with, configured as {@link RecurlyObject#newXmlMapper()}; it must not be
+     *                  reconfigured afterwards
+     */
+    public NotificationDecoder(final XmlMapper xmlMapper) {
+        this.xmlMapper = xmlMapper;
+        for (final Notification.Type type : Notification.Type.values()) {
+            reader(type.getJavaType());
+        }
+    }
+
+    /**
+     * @return the decoder shared by {@link Notification#read(String, Class)}
+     */
+    public static NotificationDecoder getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Detect the notification type and decode the payload
+     *
+     * @param payload notification XML
+     * @return the notification, or null if the type is unknown, see {@link Notification#detect(String)}
+     * @throws IOException if the payload cannot be decoded
+     */
+    public Notification decode(final String payload) throws IOException {
+        final Notification.Type type = Notification.detect(payload);
+        return type == null ? null : read(payload, type);
+    }
+
+    /**
+     * Detect the notification type and decode the payload, in a single pass over the stream
+     * <p>
+     * The type is looked up as soon as the root start tag is read, and parsing goes on from there into the
+     * notification class: the payload is never buffered as a String.
+     *
+     * @param payload notification XML, left open
+     * @return the notification, or null if the type is unknown
+     * @throws IOException if the payload cannot be read or decoded
+     */
+    public Notification decode(final InputStream payload) throws IOException {
+        final XmlFactory xmlFactory = xmlMapper.getFactory();
+        XMLStreamReader xmlStreamReader = null;
+        try {
+            xmlStreamReader = xmlFactory.getXMLInputFactory().createXMLStreamReader(payload);
+            // Skips the prolog, whitespace and comments
+            xmlStreamReader.nextTag();
+            final Notification.Type type = Notification.typeOf(xmlStreamReader.getLocalName());
+            if (type == null) {
+                return null;
+            }
+            // The parser starts from the root start tag the reader is positioned on
+            return (Notification) reader(type.getJavaType()).readValue(xmlFactory.createParser(xmlStreamReader));
+        } catch (final XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            if (xmlStreamReader != null) {
+                // Does not close the underlying stream
+                try {
+                    xmlStreamReader.close();
+                } catch (final XMLStreamException ignored) {
+                }
+            }
+        }
+    }
+
+    public Notification read(final String payload, final Notification.Type type) throws IOException {
+        return read(payload, type.getJavaType());
+    }
+
+    public <T> T read(final String payload, final Class<T> clazz) throws IOException {
+        return reader(clazz).readValue(payload);
+    }
+
+    /**
+     * Decode a payload of a known type, e.g. read back from a {@code NotificationJournal}
+     *
+     * @param payload notification XML, encoded as declared in its prolog (UTF-8 by default)
+     */
+    public Notification read(final byte[] payload, final Notification.Type type) throws IOException {
+        // The JDK StAX implementation only reads byte arrays through streams
+        return (Notification) reader(type.getJavaType()).readValue(new ByteArrayInputStream(payload));
+    }
+
+    private ObjectReader reader(final Class<?> clazz) {
+        ObjectReader reader = readers.get(clazz);
+        if (reader == null) {
+            // Readers are immutable: racing threads build equivalent ones
+            reader = xmlMapper.reader(clazz);
+            readers.put(clazz, reader);
+        }
+        return reader;
+    }
+}
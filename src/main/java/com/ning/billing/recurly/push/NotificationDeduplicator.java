@@ -0,0 +1,242 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.push;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.CreditPayment;
+import com.ning.billing.recurly.model.GiftCard;
+import com.ning.billing.recurly.model.Item;
+import com.ning.billing.recurly.model.Usage;
+import com.ning.billing.recurly.model.push.Notification;
+import com.ning.billing.recurly.model.push.account.AccountNotification;
+import com.ning.billing.recurly.model.push.creditpayment.CreditPaymentNotification;
+import com.ning.billing.recurly.model.push.giftcard.GiftCardNotification;
+import com.ning.billing.recurly.model.push.invoice.InvoiceNotification;
+import com.ning.billing.recurly.model.push.invoice.PushInvoice;
+import com.ning.billing.recurly.model.push.item.ItemNotification;
+import com.ning.billing.recurly.model.push.payment.PaymentNotification;
+import com.ning.billing.recurly.model.push.payment.PushTransaction;
+import com.ning.billing.recurly.model.push.subscription.PushSubscription;
+import com.ning.billing.recurly.model.push.subscription.SubscriptionNotification;
+import com.ning.billing.recurly.model.push.usage.UsageNotification;
+
+/**
+ * Drops notifications delivered again by Recurly, e.g. after a timeout, see
+ * {@link NotificationDispatcher.Builder#setDeduplicator(NotificationDeduplicator)}
+ * <p>
+ * Each notification is fingerprinted from its type, the id of the object it is about (transaction id, subscription
+ * or invoice uuid...) and the timestamps and state of that object, so that a later event about the same object is
+ * not mistaken for a duplicate. Fingerprints are remembered for a time window, and at most a maximum number of them
+ * is kept, the oldest ones being evicted first. Lookups are O(1), on a lock-striped table.
+ * <p>
+ * Notifications which carry no object id, e.g. {@code BillingInfoUpdatedNotification}, are never considered duplicates.
+ */
+public class NotificationDeduplicator {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final long windowNanos;
+    private final long maxEntries;
+    private final ConcurrentMap<Long, Boolean> fingerprints;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * @param window     how long a notification is remembered
+     * @param maxEntries maximum number of notifications remembered
+     */
+    public NotificationDeduplicator(final long window, final TimeUnit unit, final long maxEntries) {
+        this(window, unit, maxEntries, Ticker.systemTicker());
+    }
+
+    NotificationDeduplicator(final long window, final TimeUnit unit, final long maxEntries, final Ticker ticker) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.windowNanos = unit.toNanos(window);
+        this.maxEntries = maxEntries;
+        this.fingerprints = CacheBuilder.newBuilder()
+                                        .expireAfterWrite(window, unit)
+                                        .maximumSize(maxEntries)
+                                        .concurrencyLevel(16)
+                                        .ticker(ticker)
+                                        .<Long, Boolean>build()
+                                        .asMap();
+    }
+
+    /**
+     * Record a notification
+     *
+     * @return false if the same notification was already recorded within the window
+     */
+    public boolean accept(final Notification notification) {
+        final Long fingerprint = fingerprint(notification);
+        if (fingerprint != null && fingerprints.putIfAbsent(fingerprint, Boolean.TRUE) != null) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Forget a notification, for instance when it could not be processed, so that it is accepted when delivered again
+     */
+    public void forget(final Notification notification) {
+        final Long fingerprint = fingerprint(notification);
+        if (fingerprint != null) {
+            fingerprints.remove(fingerprint);
+        }
+    }
+
+    /**
+     * @return number of notifications accepted
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * @return number of notifications dropped as duplicates
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return number of notifications currently remembered (approximate)
+     */
+    public long getSize() {
+        return fingerprints.size();
+    }
+
+    public long getWindow(final TimeUnit unit) {
+        return unit.convert(windowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                          .add("windowMillis", getWindow(TimeUnit.MILLISECONDS))
+                          .add("maxEntries", maxEntries)
+                          .add("accepted", accepted)
+                          .add("duplicates", duplicates)
+                          .toString();
+    }
+
+    /**
+     * @return the fingerprint of a notification, null if it carries no object id
+     */
+    @Nullable
+    static Long fingerprint(final Notification notification) {
+        final Hasher hasher = HASH_FUNCTION.newHasher();
+        put(hasher, notification.getClass().getName());
+        if (notification instanceof AccountNotification) {
+            final Account account = ((AccountNotification) notification).getAccount();
+            put(hasher, account == null ? null : account.getAccountCode());
+        }
+
+        final String id;
+        if (notification instanceof PaymentNotification) {
+            final PushTransaction transaction = ((PaymentNotification) notification).getTransaction();
+            id = transaction == null ? null : transaction.getId();
+            if (id != null) {
+                put(hasher, id, transaction.getDate(), transaction.getStatus(), transaction.getAction(), transaction.getAmountInCents());
+            }
+        } else if (notification instanceof SubscriptionNotification) {
+            final PushSubscription subscription = ((SubscriptionNotification) notification).getSubscription();
+            id = subscription == null ? null : subscription.getUuid();
+            if (id != null) {
+                put(hasher, id, subscription.getState(), subscription.getUpdatedAt(), subscription.getActivatedAt(),
+                    subscription.getCanceledAt(), subscription.getExpiresAt(), subscription.getCurrentPeriodStartedAt(),
+                    subscription.getCurrentPeriodEndsAt(), subscription.getPausedAt(), subscription.getResumeAt());
+            }
+        } else if (notification instanceof InvoiceNotification) {
+            final PushInvoice invoice = ((InvoiceNotification) notification).getInvoice();
+            id = invoice == null ? null : invoice.getUuid();
+            if (id != null) {
+                put(hasher, id, invoice.getState(), invoice.getDate(), invoice.getUpdatedAt(), invoice.getClosedAt(),
+                    invoice.getDunningEventsCount());
+            }
+        } else if (notification instanceof GiftCardNotification) {
+            final GiftCard giftCard = ((GiftCardNotification) notification).getGiftCard();
+            id = giftCard == null || giftCard.getId() == null ? null : giftCard.getId().toString();
+            if (id != null) {
+                put(hasher, id, giftCard.getUpdatedAt(), giftCard.getBalanceInCents(), giftCard.getRedeemedAt(),
+                    giftCard.getDeliveredAt(), giftCard.getCanceledAt());
+            }
+        } else if (notification instanceof CreditPaymentNotification) {
+            final CreditPayment creditPayment = ((CreditPaymentNotification) notification).getCreditPayment();
+            id = creditPayment == null ? null : creditPayment.getUuid();
+            if (id != null) {
+                put(hasher, id, creditPayment.getUpdatedAt(), creditPayment.getVoidedAt());
+            }
+        } else if (notification instanceof UsageNotification) {
+            // Usage records have no id in push notifications
+            final Usage usage = ((UsageNotification) notification).getUsage();
+            id = usage == null || usage.getCreatedAt() == null ? null : usage.getCreatedAt().toString();
+            if (id != null) {
+                put(hasher, id, usage.getHref(), usage.getUsageAt(), usage.getRecordingAt(), usage.getUpdatedAt(), usage.getAmount());
+            }
+        } else if (notification instanceof ItemNotification) {
+            final Item item = ((ItemNotification) notification).getItem();
+            id = item == null ? null : item.getItemCode();
+            if (id != null) {
+                put(hasher, id, item.getState(), item.getUpdatedAt(), item.getCreatedAt());
+            }
+        } else {
+            id = null;
+        }
+        return id == null ? null : hasher.hash().asLong();
+    }
+
+    private static void put(final Hasher hasher, final Object... values) {
+        for (final Object value : values) {
+            if (value == null) {
+                hasher.putBoolean(false);
+            } else {
+                hasher.putBoolean(true);
+                // Same instant, whatever the time zone it was written in
+                hasher.putUnencodedChars(value instanceof DateTime ? String.valueOf(((DateTime) value).getMillis()) : value.toString());
+                hasher.putChar('\0');
+            }
+        }
+    }
+}
@@ -0,0 +1,498 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.push;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.MoreObjects;
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.push.Notification;
+import com.ning.billing.recurly.model.push.account.AccountNotification;
+
+/**
+ * Runs the handlers of push notifications, in the background
+ * <p>
+ * Handlers register for a notification class, e.g. {@code SuccessfulPaymentNotification.class} or
+ * {@code InvoiceNotification.class}, or for a whole {@link NotificationFamily}:
+ * <pre>
+ * final NotificationDispatcher dispatcher = NotificationDispatcher.builder()
+ *                                                                 .on(SuccessfulPaymentNotification.class, notification -&gt; ...)
+ *                                                                 .on(NotificationFamily.INVOICE, notification -&gt; ...)
+ *                                                                 .setWorkers(NotificationFamily.INVOICE, 4)
+ *                                                                 .build();
+ * </pre>
+ * Each family has its own bounded queue and workers, so that slow handlers of a family cannot starve the others.
+ * When the queue of its family is full, {@link #dispatch(Notification)} refuses the notification instead of blocking:
+ * the receiver should then answer with an error status, for Recurly to deliver it again later.
+ * <p>
+ * By default, notifications of a family are handled concurrently, in any order. With
+ * {@link Builder#setOrderedByAccount(boolean)}, the notifications about an account, whatever their family, go to a
+ * shared set of serial lanes instead, the account code picking the lane: e.g. the new account, new subscription
+ * and successful payment notifications of an account are handled one at a time, in the order they were dispatched,
+ * while different accounts are still handled in parallel. Notifications without an account keep the workers of
+ * their family.
+ * <p>
+ * Notifications delivered again by Recurly can be dropped before they are queued, see
+ * {@link Builder#setDeduplicator(NotificationDeduplicator)}.
+ */
+public class NotificationDispatcher implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(NotificationDispatcher.class);
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final List<Registration> registrations;
+    private final NotificationDeduplicator deduplicator;
+    private final Map<NotificationFamily, Lane> lanes = new EnumMap<NotificationFamily, Lane>(NotificationFamily.class);
+    // Serial lanes shared by the notifications about an account, null unless ordered by account
+    private final Lane orderedLane;
+    // Handlers of each notification class, resolved on first use
+    private final ConcurrentMap<Class<?>, List<Consumer<Notification>>> handlers = new ConcurrentHashMap<Class<?>, List<Consumer<Notification>>>();
+
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong unhandled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private NotificationDispatcher(final Builder builder) {
+        this.registrations = new ArrayList<Registration>(builder.registrations);
+        this.deduplicator = builder.deduplicator;
+        int maxWorkers = 0;
+        int maxQueueCapacity = 0;
+        for (final NotificationFamily family : NotificationFamily.values()) {
+            final int workers = MoreObjects.firstNonNull(builder.workers.get(family), builder.defaultWorkers);
+            final int queueCapacity = MoreObjects.firstNonNull(builder.queueCapacities.get(family), builder.defaultQueueCapacity);
+            lanes.put(family, new Lane(family.name(), workers, queueCapacity, false));
+            maxWorkers = Math.max(maxWorkers, workers);
+            maxQueueCapacity = Math.max(maxQueueCapacity, queueCapacity);
+        }
+        // Sized as the largest family, since any of them may go through it
+        this.orderedLane = builder.orderedByAccount ? new Lane("ordered", maxWorkers, maxQueueCapacity, true) : null;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Queue a notification for its handlers
+     *
+     * @param notification decoded notification
+     * @return false if the queue of the notification family is full, or if the dispatcher is closed: the
+     *         notification was not accepted, and should be delivered again later. Duplicates are dropped, and
+     *         acknowledged.
+     */
+    public boolean dispatch(final Notification notification) {
+        final List<Consumer<Notification>> notificationHandlers = handlers(notification.getClass());
+        if (notificationHandlers.isEmpty()) {
+            log.debug("No handler for {}", notification.getClass().getSimpleName());
+            unhandled.incrementAndGet();
+            return true;
+        }
+
+        if (deduplicator != null && !deduplicator.accept(notification)) {
+            log.debug("Dropping duplicate {}", notification.getClass().getSimpleName());
+            return true;
+        }
+
+        final String accountCode = accountCode(notification);
+        final Lane lane = orderedLane != null && accountCode != null ? orderedLane : lanes.get(NotificationFamily.of(notification));
+        if (!lane.offer(accountCode, new Runnable() {
+            @Override
+            public void run() {
+                handle(notification, notificationHandlers);
+            }
+        })) {
+            if (deduplicator != null) {
+                // Not processed: accept it when delivered again
+                deduplicator.forget(notification);
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+        dispatched.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return number of notifications waiting for a worker of the family. When ordered by account, the notifications
+     *         about an account wait in the lanes shared by all families instead, see {@link #getOrderedQueueSize()}.
+     */
+    public int getQueueSize(final NotificationFamily family) {
+        return lanes.get(family).getQueueSize();
+    }
+
+    /**
+     * @return number of notifications the queue of the family can still accept
+     */
+    public int getRemainingCapacity(final NotificationFamily family) {
+        return lanes.get(family).getRemainingCapacity();
+    }
+
+    /**
+     * @return number of notifications about an account waiting for their lane, 0 unless ordered by account
+     */
+    public int getOrderedQueueSize() {
+        return orderedLane == null ? 0 : orderedLane.getQueueSize();
+    }
+
+    /**
+     * @return number of notifications about an account the lanes can still accept, 0 unless ordered by account
+     */
+    public int getOrderedRemainingCapacity() {
+        return orderedLane == null ? 0 : orderedLane.getRemainingCapacity();
+    }
+
+    /**
+     * @return the deduplication stage, null if none
+     */
+    @Nullable
+    public NotificationDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    /**
+     * @return number of notifications queued
+     */
+    public long getDispatched() {
+        return dispatched.get();
+    }
+
+    /**
+     * @return number of notifications refused, because the queue of their family was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return number of notifications no handler was registered for
+     */
+    public long getUnhandled() {
+        return unhandled.get();
+    }
+
+    /**
+     * @return number of handler calls which threw an exception
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return true once {@link #shutdown(long, TimeUnit)} or {@link #close()} was called
+     */
+    public boolean isShutdown() {
+        for (final Lane lane : allLanes()) {
+            for (final ThreadPoolExecutor executor : lane.executors) {
+                if (executor.isShutdown()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stop accepting notifications, and wait for the queued ones to be handled
+     *
+     * @return true if all the queued notifications were handled in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(final long timeout, final TimeUnit unit) throws InterruptedException {
+        for (final Lane lane : allLanes()) {
+            for (final ThreadPoolExecutor executor : lane.executors) {
+                executor.shutdown();
+            }
+        }
+        final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        for (final Lane lane : allLanes()) {
+            for (final ThreadPoolExecutor executor : lane.executors) {
+                if (!executor.awaitTermination(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting notifications, drop the queued ones and interrupt the running handlers
+     */
+    @Override
+    public void close() {
+        for (final Lane lane : allLanes()) {
+            for (final ThreadPoolExecutor executor : lane.executors) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                          .add("registrations", registrations.size())
+                          .add("dispatched", dispatched)
+                          .add("rejected", rejected)
+                          .add("unhandled", unhandled)
+                          .add("failed", failed)
+                          .toString();
+    }
+
+    private List<Lane> allLanes() {
+        final List<Lane> allLanes = new ArrayList<Lane>(lanes.values());
+        if (orderedLane != null) {
+            allLanes.add(orderedLane);
+        }
+        return allLanes;
+    }
+
+    private List<Consumer<Notification>> handlers(final Class<? extends Notification> notificationClass) {
+        List<Consumer<Notification>> notificationHandlers = handlers.get(notificationClass);
+        if (notificationHandlers == null) {
+            final NotificationFamily family = NotificationFamily.of(notificationClass);
+            notificationHandlers = new ArrayList<Consumer<Notification>>();
+            for (final Registration registration : registrations) {
+                if (registration.matches(notificationClass, family)) {
+                    notificationHandlers.add(registration.handler);
+                }
+            }
+            handlers.put(notificationClass, notificationHandlers);
+        }
+        return notificationHandlers;
+    }
+
+    /**
+     * @return the code of the account the notification is about, null if none
+     */
+    static String accountCode(final Notification notification) {
+        if (notification instanceof AccountNotification) {
+            final Account account = ((AccountNotification) notification).getAccount();
+            return account == null ? null : account.getAccountCode();
+        }
+        return null;
+    }
+
+    private void handle(final Notification notification, final List<Consumer<Notification>> notificationHandlers) {
+        for (final Consumer<Notification> handler : notificationHandlers) {
+            try {
+                handler.accept(notification);
+            } catch (final RuntimeException e) {
+                failed.incrementAndGet();
+                log.warn("Handler failed for {}", notification.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    private static final class Registration {
+
+        private final Class<? extends Notification> notificationClass;
+        private final NotificationFamily family;
+        private final Consumer<Notification> handler;
+
+        private Registration(final Class<? extends Notification> notificationClass, final NotificationFamily family,
+                             final Consumer<Notification> handler) {
+            this.notificationClass = notificationClass;
+            this.family = family;
+            this.handler = handler;
+        }
+
+        private boolean matches(final Class<? extends Notification> clazz, final NotificationFamily clazzFamily) {
+            return family != null ? family == clazzFamily : notificationClass.isAssignableFrom(clazz);
+        }
+    }
+
+    // Bounded queue and workers: a pool sharing a queue, or serial stripes each with their own queue
+    private static final class Lane {
+
+        private final ThreadPoolExecutor[] executors;
+        private final AtomicInteger next = new AtomicInteger();
+
+        private Lane(final String name, final int workers, final int queueCapacity, final boolean striped) {
+            final ThreadFactory threadFactory = new ThreadFactory() {
+                private final String threadPrefix = "recurly-push-" + name.toLowerCase().replace('_', '-') + "-";
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, threadPrefix + THREAD_COUNT.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            if (striped) {
+                // The capacity is shared out between the stripes
+                this.executors = new ThreadPoolExecutor[workers];
+                for (int i = 0; i < workers; i++) {
+                    executors[i] = newExecutor(1, Math.max(1, queueCapacity / workers), threadFactory);
+                }
+            } else {
+                this.executors = new ThreadPoolExecutor[]{newExecutor(workers, queueCapacity, threadFactory)};
+            }
+        }
+
+        /**
+         * @param key tasks with the same key run in order, when striped; null to run on any stripe
+         */
+        private boolean offer(final String key, final Runnable task) {
+            final int stripe;
+            if (executors.length == 1) {
+                stripe = 0;
+            } else if (key == null) {
+                stripe = (next.getAndIncrement() & Integer.MAX_VALUE) % executors.length;
+            } else {
+                stripe = (key.hashCode() & Integer.MAX_VALUE) % executors.length;
+            }
+            try {
+                executors[stripe].execute(task);
+                return true;
+            } catch (final RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        private int getQueueSize() {
+            int queueSize = 0;
+            for (final ThreadPoolExecutor executor : executors) {
+                queueSize += executor.getQueue().size();
+            }
+            return queueSize;
+        }
+
+        private int getRemainingCapacity() {
+            int remainingCapacity = 0;
+            for (final ThreadPoolExecutor executor : executors) {
+                remainingCapacity += executor.getQueue().remainingCapacity();
+            }
+            return remainingCapacity;
+        }
+
+        private static ThreadPoolExecutor newExecutor(final int threads, final int queueCapacity, final ThreadFactory threadFactory) {
+            return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory);
+        }
+    }
+
+    public static class Builder {
+
+        private final List<Registration> registrations = new ArrayList<Registration>();
+        private final Map<NotificationFamily, Integer> workers = new EnumMap<NotificationFamily, Integer>(NotificationFamily.class);
+        private final Map<NotificationFamily, Integer> queueCapacities = new EnumMap<NotificationFamily, Integer>(NotificationFamily.class);
+        private int defaultWorkers = 1;
+        private int defaultQueueCapacity = 1000;
+        private boolean orderedByAccount = false;
+        private NotificationDeduplicator deduplicator = null;
+
+        private Builder() {
+        }
+
+        /**
+         * Register a handler for a notification class, and its subclasses
+         * <p>
+         * Handlers of a notification are called in registration order. Handlers of the same family run on the
+         * same workers: they should not block for long.
+         */
+        @SuppressWarnings("unchecked")
+        public <T extends Notification> Builder on(final Class<T> notificationClass, final Consumer<? super T> handler) {
+            registrations.add(new Registration(notificationClass, null, (Consumer<Notification>) handler));
+            return this;
+        }
+
+        /**
+         * Register a handler for all the notifications of a family
+         */
+        public Builder on(final NotificationFamily family, final Consumer<? super Notification> handler) {
+            registrations.add(new Registration(family.getNotificationClass(), family, handler::accept));
+            return this;
+        }
+
+        /**
+         * @param workers number of threads running the handlers of each family, unless set per family (1 by default)
+         */
+        public Builder setWorkers(final int workers) {
+            this.defaultWorkers = checkPositive("workers", workers);
+            return this;
+        }
+
+        public Builder setWorkers(final NotificationFamily family, final int workers) {
+            this.workers.put(family, checkPositive("workers", workers));
+            return this;
+        }
+
+        /**
+         * @param queueCapacity number of notifications of each family waiting for a worker, above which new
+         *                      ones are refused, unless set per family (1000 by default)
+         */
+        public Builder setQueueCapacity(final int queueCapacity) {
+            this.defaultQueueCapacity = checkPositive("queueCapacity", queueCapacity);
+            return this;
+        }
+
+        public Builder setQueueCapacity(final NotificationFamily family, final int queueCapacity) {
+            this.queueCapacities.put(family, checkPositive("queueCapacity", queueCapacity));
+            return this;
+        }
+
+        /**
+         * @param orderedByAccount true to handle the notifications about an account one at a time, in dispatch order,
+         *                         across families (false by default). They then go to a shared set of serial lanes,
+         *                         the account code picking the lane: as many lanes as the largest number of workers
+         *                         of a family, each with an equal share of the largest queue capacity of a family.
+         */
+        public Builder setOrderedByAccount(final boolean orderedByAccount) {
+            this.orderedByAccount = orderedByAccount;
+            return this;
+        }
+
+        /**
+         * @param deduplicator drops the notifications delivered again within its window (none by default)
+         */
+        public Builder setDeduplicator(@Nullable final NotificationDeduplicator deduplicator) {
+            this.deduplicator = deduplicator;
+            return this;
+        }
+
+        public NotificationDispatcher build() {
+            return new NotificationDispatcher(this);
+        }
+
+        private static int checkPositive(final String name, final int value) {
+            if (value <= 0) {
+                throw new IllegalArgumentException(name + " must be positive: " + value);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.push;
+
+import com.ning.billing.recurly.model.push.Notification;
+import com.ning.billing.recurly.model.push.account.AccountNotification;
+import com.ning.billing.recurly.model.push.creditpayment.CreditPaymentNotification;
+import com.ning.billing.recurly.model.push.giftcard.GiftCardNotification;
+import com.ning.billing.recurly.model.push.invoice.InvoiceNotification;
+import com.ning.billing.recurly.model.push.item.ItemNotification;
+import com.ning.billing.recurly.model.push.payment.PaymentNotification;
+import com.ning.billing.recurly.model.push.subscription.SubscriptionNotification;
+import com.ning.billing.recurly.model.push.usage.UsageNotification;
+
+/**
+ * Groups of notifications sharing a base class, e.g. all the {@link InvoiceNotification}s
+ */
+public enum NotificationFamily {
+
+    // Most specific first: most families are account notifications as well
+    PAYMENT(PaymentNotification.class),
+    CREDIT_PAYMENT(CreditPaymentNotification.class),
+    INVOICE(InvoiceNotification.class),
+    SUBSCRIPTION(SubscriptionNotification.class),
+    GIFT_CARD(GiftCardNotification.class),
+    USAGE(UsageNotification.class),
+    ITEM(ItemNotification.class),
+    ACCOUNT(AccountNotification.class);
+
+    private final Class<? extends Notification> notificationClass;
+
+    private NotificationFamily(final Class<? extends Notification> notificationClass) {
+        this.notificationClass = notificationClass;
+    }
+
+    /**
+     * @return the base class of the notifications of the family
+     */
+    public Class<? extends Notification> getNotificationClass() {
+        return notificationClass;
+    }
+
+    public static NotificationFamily of(final Notification notification) {
+        return of(notification.getClass());
+    }
+
+    public static NotificationFamily of(final Class<? extends Notification> notificationClass) {
+        for (final NotificationFamily family : values()) {
+            if (family.notificationClass.isAssignableFrom(notificationClass)) {
+                return family;
+            }
+        }
+        throw new IllegalArgumentException("No family for " + notificationClass.getName());
+    }
+}
@@ -0,0 +1,599 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.push;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.MoreObjects;
+import com.ning.billing.recurly.model.push.Notification;
+import com.ning.billing.recurly.model.push.NotificationDecoder;
+
+/**
+ * Durable, append-only record of the raw push notification payloads, to handle them again after an outage
+ * <pre>
+ * final NotificationJournal journal = NotificationJournal.builder(new File("/var/lib/recurly/journal")).build();
+ * journal.append(Notification.Type.SuccessfulPaymentNotification, payload);
+ * ...
+ * // After an outage, from the last position known to be handled
+ * checkpoint = journal.replay(checkpoint, dispatcher);
+ * </pre>
+ * Payloads are appended, with their type and receive time, to memory-mapped segment files of a fixed size, named after
+ * the position of their first record. Appends are serialized, but only copy the payload into the mapping: the call
+ * then waits for the data to be flushed to disk. Appenders waiting at the same time share a single flush (group commit),
+ * so that the number of fsync calls stays low under load. Each record is checksummed: a record torn by a crash ends
+ * the journal, and appends resume from there when it is opened again.
+ * <p>
+ * Positions are offsets in the journal, across segments: {@link #append(Notification.Type, byte[])} returns the
+ * position after the record, and replays can resume from any position returned by a previous append or replay.
+ */
+public class NotificationJournal implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(NotificationJournal.class);
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+    // Record length, checksum, receive time, type name length
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 2;
+    private static final byte[] NO_TYPE = new byte[0];
+
+    private final File directory;
+    private final int segmentSize;
+    private final boolean sync;
+    private final NotificationDecoder decoder;
+
+    // Guarded by this
+    private Segment current;
+    private volatile long position;
+    private volatile boolean closed;
+
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition syncDone = syncLock.newCondition();
+    // Guarded by syncLock
+    private long syncedPosition;
+    private boolean syncing;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+
+    private NotificationJournal(final Builder builder) throws IOException {
+        this.directory = builder.directory;
+        this.segmentSize = builder.segmentSize;
+        this.sync = builder.sync;
+        this.decoder = builder.decoder;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        final List<Long> segments = segments();
+        if (segments.isEmpty()) {
+            current = Segment.open(segmentFile(0), 0, segmentSize);
+        } else {
+            // Resume after the last valid record
+            final long base = segments.get(segments.size() - 1);
+            current = Segment.open(segmentFile(base), base, segmentSize);
+            final ByteBuffer buffer = current.buffer;
+            int length;
+            while ((length = recordLength(buffer)) > 0) {
+                buffer.position(buffer.position() + length);
+            }
+        }
+        position = current.base + current.buffer.position();
+        syncedPosition = position;
+    }
+
+    public static Builder builder(final File directory) {
+        return new Builder(directory);
+    }
+
+    /**
+     * Append a payload, and wait for it to be flushed to disk (unless disabled, see {@link Builder#setSync(boolean)})
+     *
+     * @param type    notification type, null if unknown: it is then detected on replay
+     * @param payload raw notification XML
+     * @return the position after the record
+     * @throws IOException if the payload cannot be written or flushed
+     */
+    public long append(@Nullable final Notification.Type type, final byte[] payload) throws IOException {
+        final byte[] typeName = type == null ? NO_TYPE : type.name().getBytes(Charsets.UTF_8);
+        final int length = HEADER_SIZE + typeName.length + payload.length;
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("Payload of " + payload.length + " bytes larger than the segment size " + segmentSize);
+        }
+        final long receivedAt = System.currentTimeMillis();
+        final CRC32 checksum = new CRC32();
+        checksum.update(ByteBuffer.allocate(10).putLong(receivedAt).putShort((short) typeName.length).array());
+        checksum.update(typeName);
+        checksum.update(payload);
+
+        final long end;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("The journal is closed");
+            }
+            if (current.buffer.remaining() < length) {
+                roll();
+            }
+            current.buffer.putInt(length)
+                          .putInt((int) checksum.getValue())
+                          .putLong(receivedAt)
+                          .putShort((short) typeName.length)
+                          .put(typeName)
+                          .put(payload);
+            end = current.base + current.buffer.position();
+            position = end;
+        }
+        appended.incrementAndGet();
+        if (sync) {
+            sync(end);
+        }
+        return end;
+    }
+
+    /**
+     * Flush all the appended payloads to disk
+     */
+    public void sync() throws IOException {
+        sync(position);
+    }
+
+    /**
+     * Read the records appended so far, from a position
+     *
+     * @param from     position to start from, 0 for the beginning of the journal
+     * @param consumer called with each record, in the order they were appended
+     * @return the position after the last record read, to resume from
+     */
+    public long replay(final long from, final Consumer<? super Entry> consumer) throws IOException {
+        return replayRecords(from, new Visitor() {
+            @Override
+            public void visit(final Entry entry) {
+                consumer.accept(entry);
+            }
+        });
+    }
+
+    /**
+     * Decode the records appended so far, from a position, and dispatch them
+     * <p>
+     * When the queue of a family is full, the replay waits for it to drain instead of dropping notifications.
+     * Records which cannot be decoded are logged and skipped.
+     *
+     * @param from       position to start from, 0 for the beginning of the journal
+     * @param dispatcher dispatcher to hand the notifications to
+     * @return the position after the last record dispatched, to resume from
+     * @throws InterruptedIOException if interrupted, or the dispatcher shut down, while waiting for a queue
+     */
+    public long replay(final long from, final NotificationDispatcher dispatcher) throws IOException {
+        return replayRecords(from, new Visitor() {
+            @Override
+            public void visit(final Entry entry) throws IOException {
+                final Notification notification;
+                try {
+                    notification = entry.getType() == null ? decoder.decode(new ByteArrayInputStream(entry.getPayload()))
+                                                           : decoder.read(entry.getPayload(), entry.getType());
+                } catch (final IOException e) {
+                    log.warn("Unable to decode the journal record at {}: {}", entry.getPosition(), e.getMessage());
+                    return;
+                }
+                if (notification == null) {
+                    return;
+                }
+                long backoffMillis = 1;
+                while (!dispatcher.dispatch(notification)) {
+                    if (dispatcher.isShutdown()) {
+                        throw new InterruptedIOException("The dispatcher is shut down, replay stopped at " + entry.getPosition());
+                    }
+                    try {
+                        Thread.sleep(backoffMillis);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Replay interrupted at " + entry.getPosition());
+                    }
+                    backoffMillis = Math.min(backoffMillis * 2, 100);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete the segments whose records all precede a position, e.g. once the notifications were handled
+     *
+     * @return number of segments deleted
+     */
+    public synchronized int deleteSegmentsBefore(final long before) throws IOException {
+        final List<Long> segments = segments();
+        int deleted = 0;
+        for (int i = 0; i < segments.size() - 1; i++) {
+            // A segment ends where the next one starts
+            if (segments.get(i + 1) > before) {
+                break;
+            }
+            final File file = segmentFile(segments.get(i));
+            if (!file.delete()) {
+                throw new IOException("Unable to delete " + file);
+            }
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the position after the last record appended
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return number of payloads appended since the journal was opened
+     */
+    public long getAppended() {
+        return appended.get();
+    }
+
+    /**
+     * @return number of flushes to disk since the journal was opened
+     */
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Flush the appended payloads and stop accepting new ones
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        sync();
+        synchronized (this) {
+            current.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                          .add("directory", directory)
+                          .add("segmentSize", segmentSize)
+                          .add("position", position)
+                          .add("appended", appended)
+                          .add("syncs", syncs)
+                          .toString();
+    }
+
+    // Called with the lock on this held
+    private void roll() throws IOException {
+        final Segment previous = current;
+        final long base = previous.base + previous.buffer.position();
+        // Flushed now, so that syncs only need to flush the current segment
+        previous.buffer.force();
+        syncs.incrementAndGet();
+        current = Segment.open(segmentFile(base), base, segmentSize);
+        previous.close();
+    }
+
+    private void sync(final long target) throws IOException {
+        syncLock.lock();
+        try {
+            while (syncedPosition < target) {
+                if (syncing) {
+                    // Another appender flushes: its flush may cover this record too
+                    syncDone.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                boolean flushed = false;
+                long flushedPosition = 0;
+                syncLock.unlock();
+                try {
+                    final Segment segment;
+                    synchronized (this) {
+                        segment = current;
+                        flushedPosition = position;
+                    }
+                    // Covers the records of all the appenders which wrote meanwhile
+                    segment.buffer.force();
+                    syncs.incrementAndGet();
+                    flushed = true;
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    if (flushed) {
+                        syncedPosition = Math.max(syncedPosition, flushedPosition);
+                    }
+                    syncDone.signalAll();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private long replayRecords(final long from, final Visitor visitor) throws IOException {
+        // Records appended during the replay are left for the next one
+        final long end = position;
+        final List<Long> segments = segments();
+        long replayed = from;
+        for (int i = 0; i < segments.size(); i++) {
+            final long base = segments.get(i);
+            if (base >= end) {
+                break;
+            }
+            if (i + 1 < segments.size() && segments.get(i + 1) <= from) {
+                continue;
+            }
+            final RandomAccessFile file = new RandomAccessFile(segmentFile(base), "r");
+            try {
+                final ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                int length;
+                while (base + buffer.position() < end && (length = recordLength(buffer)) > 0) {
+                    final long recordPosition = base + buffer.position();
+                    if (recordPosition >= from) {
+                        visitor.visit(readEntry(buffer, recordPosition, length));
+                        replayed = recordPosition + length;
+                    }
+                    buffer.position(buffer.position() + length);
+                }
+            } finally {
+                file.close();
+            }
+        }
+        return Math.max(replayed, from);
+    }
+
+    /**
+     * @return the length of the record at the position of the buffer, 0 after the last record or if it is torn
+     */
+    private static int recordLength(final ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return 0;
+        }
+        final int start = buffer.position();
+        final int length = buffer.getInt(start);
+        if (length < HEADER_SIZE || length > buffer.remaining() || HEADER_SIZE + buffer.getShort(start + 16) > length) {
+            return 0;
+        }
+        final ByteBuffer data = buffer.duplicate();
+        data.position(start + 8).limit(start + length);
+        final CRC32 checksum = new CRC32();
+        checksum.update(data);
+        return (int) checksum.getValue() == buffer.getInt(start + 4) ? length : 0;
+    }
+
+    private static Entry readEntry(final ByteBuffer buffer, final long position, final int length) {
+        final int start = buffer.position();
+        final long receivedAt = buffer.getLong(start + 8);
+        final byte[] typeName = new byte[buffer.getShort(start + 16)];
+        final byte[] payload = new byte[length - HEADER_SIZE - typeName.length];
+        final ByteBuffer data = buffer.duplicate();
+        data.position(start + HEADER_SIZE);
+        data.get(typeName).get(payload);
+        return new Entry(position, type(new String(typeName, Charsets.UTF_8)), new DateTime(receivedAt, DateTimeZone.UTC), payload);
+    }
+
+    @Nullable
+    private static Notification.Type type(final String name) {
+        if (name.isEmpty()) {
+            return null;
+        }
+        try {
+            return Notification.Type.valueOf(name);
+        } catch (final IllegalArgumentException e) {
+            // Type since removed: detected from the payload instead
+            return null;
+        }
+    }
+
+    private List<Long> segments() {
+        final String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        final List<Long> bases = new ArrayList<Long>();
+        if (names != null) {
+            for (final String name : names) {
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (final NumberFormatException e) {
+                    log.warn("Ignoring unexpected file {} in {}", name, directory);
+                }
+            }
+        }
+        Collections.sort(bases);
+        return bases;
+    }
+
+    private File segmentFile(final long base) {
+        return new File(directory, String.format("%020d%s", base, SEGMENT_SUFFIX));
+    }
+
+    private interface Visitor {
+
+        void visit(Entry entry) throws IOException;
+    }
+
+    private static final class Segment {
+
+        private final long base;
+        private final RandomAccessFile file;
+        private final MappedByteBuffer buffer;
+
+        private Segment(final long base, final RandomAccessFile file, final MappedByteBuffer buffer) {
+            this.base = base;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        private static Segment open(final File file, final long base, final int segmentSize) throws IOException {
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                // Existing segments keep the size they were created with
+                final long size = randomAccessFile.length() > 0 ? randomAccessFile.length() : segmentSize;
+                final MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                return new Segment(base, randomAccessFile, buffer);
+            } catch (final IOException e) {
+                randomAccessFile.close();
+                throw e;
+            }
+        }
+
+        // The mapping stays valid until garbage collected
+        private void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Payload read back from the journal
+     */
+    public static class Entry {
+
+        private final long position;
+        private final Notification.Type type;
+        private final DateTime receivedAt;
+        private final byte[] payload;
+
+        private Entry(final long position, @Nullable final Notification.Type type, final DateTime receivedAt, final byte[] payload) {
+            this.position = position;
+            this.type = type;
+            this.receivedAt = receivedAt;
+            this.payload = payload;
+        }
+
+        /**
+         * @return position of the record in the journal
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * @return notification type, null if it was unknown when appended
+         */
+        @Nullable
+        public Notification.Type getType() {
+            return type;
+        }
+
+        public DateTime getReceivedAt() {
+            return receivedAt;
+        }
+
+        /**
+         * @return raw notification XML
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                              .add("position", position)
+                              .add("type", type)
+                              .add("receivedAt", receivedAt)
+                              .add("size", payload.length)
+                              .toString();
+        }
+    }
+
+    public static class Builder {
+
+        private final File directory;
+        private int segmentSize = 64 * 1024 * 1024;
+        private boolean sync = true;
+        private NotificationDecoder decoder = NotificationDecoder.getDefault();
+
+        private Builder(final File directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * @param segmentSize size of the segment files, and maximum size of a record (64MB by default)
+         */
+        public Builder setSegmentSize(final int segmentSize) {
+            if (segmentSize <= HEADER_SIZE) {
+                throw new IllegalArgumentException("segmentSize must be larger than " + HEADER_SIZE + ": " + segmentSize);
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * @param sync whether appends wait for the payload to be flushed to disk (true by default); when false,
+         *             payloads are flushed by {@link NotificationJournal#sync()}, when rolling to a new segment, or
+         *             by the operating system, and survive a crash of the JVM but not of the host
+         */
+        public Builder setSync(final boolean sync) {
+            this.sync = sync;
+            return this;
+        }
+
+        /**
+         * @param decoder decoder used by {@link NotificationJournal#replay(long, NotificationDispatcher)}
+         */
+        public Builder setDecoder(final NotificationDecoder decoder) {
+            this.decoder = decoder;
+            return this;
+        }
+
+        /**
+         * Open the journal, creating the directory if needed
+         *
+         * @throws IOException if the segments cannot be read or created
+         */
+        public NotificationJournal build() throws IOException {
+            return new NotificationJournal(this);
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.push;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Longs;
+import com.ning.billing.recurly.model.push.Notification;
+import com.ning.billing.recurly.model.push.NotificationDecoder;
+import com.sun.net.httpserver.BasicAuthenticator;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP endpoint receiving push notifications, and handing them to a {@link NotificationDispatcher}
+ * <pre>
+ * final NotificationReceiver receiver = NotificationReceiver.builder(dispatcher)
+ *                                                           .setPort(8080)
+ *                                                           .setCredentials("recurly", password)
+ *                                                           .build();
+ * receiver.start();
+ * </pre>
+ * Request bodies are decoded as they are read, see {@link NotificationDecoder#decode(InputStream)}, and answered as
+ * soon as the notification is queued, before the handlers run:
+ * <ul>
+ * <li>200 when the notification was queued, or needs no processing (duplicate, no handler or unknown type)</li>
+ * <li>400 when the body cannot be decoded</li>
+ * <li>401 when the HTTP basic authentication credentials do not match</li>
+ * <li>413 when the body is larger than the maximum, see {@link Builder#setMaxBodyBytes(int)}</li>
+ * <li>503 when the queue of the notification family is full, or the payload cannot be journaled: Recurly will deliver
+ * it again later</li>
+ * </ul>
+ * With a {@link NotificationJournal}, see {@link Builder#setJournal(NotificationJournal)}, bodies are buffered and
+ * appended to it once the notification is dispatched, to be replayed after an outage of the handlers. Notifications
+ * refused by the dispatcher are not journaled: they are appended when delivered again.
+ * <p>
+ * Requests are read by a pool of workers with a bounded queue. When the queue is full, the thread accepting the
+ * connections reads the requests itself, which slows down the acceptance of new ones.
+ */
+public class NotificationReceiver implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(NotificationReceiver.class);
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static final Map<Class<? extends Notification>, Notification.Type> TYPES;
+
+    static {
+        final ImmutableMap.Builder<Class<? extends Notification>, Notification.Type> types = ImmutableMap.builder();
+        for (final Notification.Type type : Notification.Type.values()) {
+            types.put(type.getJavaType(), type);
+        }
+        TYPES = types.build();
+    }
+
+    private final NotificationDispatcher dispatcher;
+    private final NotificationDecoder decoder;
+    private final NotificationJournal journal;
+    private final InetSocketAddress address;
+    private final String path;
+    private final String username;
+    private final String password;
+    private final int workers;
+    private final int queueCapacity;
+    private final int maxBodyBytes;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private HttpServer server;
+    private ThreadPoolExecutor executor;
+
+    private NotificationReceiver(final Builder builder) {
+        this.dispatcher = builder.dispatcher;
+        this.decoder = builder.decoder;
+        this.journal = builder.journal;
+        this.address = builder.address;
+        this.path = builder.path;
+        this.username = builder.username;
+        this.password = builder.password;
+        this.workers = builder.workers;
+        this.queueCapacity = builder.queueCapacity;
+        this.maxBodyBytes = builder.maxBodyBytes;
+    }
+
+    public static Builder builder(final NotificationDispatcher dispatcher) {
+        return new Builder(dispatcher);
+    }
+
+    /**
+     * Bind the address and start accepting notifications
+     *
+     * @throws IOException if the address cannot be bound
+     */
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("The receiver is already started");
+        }
+        executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<Runnable>(queueCapacity),
+                                          new ThreadFactory() {
+                                              @Override
+                                              public Thread newThread(final Runnable runnable) {
+                                                  final Thread thread = new Thread(runnable, "recurly-push-receiver-" + THREAD_COUNT.incrementAndGet());
+                                                  thread.setDaemon(true);
+                                                  return thread;
+                                              }
+                                          },
+                                          new ThreadPoolExecutor.CallerRunsPolicy());
+        server = HttpServer.create(address, 0);
+        final HttpContext context = server.createContext(path, new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    NotificationReceiver.this.handle(exchange);
+                } catch (final RuntimeException e) {
+                    log.warn("Unable to process push notification", e);
+                    exchange.sendResponseHeaders(500, -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        if (username != null) {
+            context.setAuthenticator(new BasicAuthenticator("recurly") {
+                @Override
+                public boolean checkCredentials(final String user, final String pwd) {
+                    // Constant time comparisons
+                    return MessageDigest.isEqual(username.getBytes(Charsets.UTF_8), String.valueOf(user).getBytes(Charsets.UTF_8)) &
+                           MessageDigest.isEqual(password.getBytes(Charsets.UTF_8), String.valueOf(pwd).getBytes(Charsets.UTF_8));
+                }
+            });
+        }
+        server.setExecutor(executor);
+        server.start();
+        log.info("Receiving push notifications on {}{}", server.getAddress(), path);
+    }
+
+    /**
+     * @return the port the receiver listens on, useful when started on an ephemeral port
+     */
+    public synchronized int getPort() {
+        if (server == null) {
+            throw new IllegalStateException("The receiver is not started");
+        }
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return number of requests received
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * @return number of notifications acknowledged
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * @return number of requests which could not be decoded, or were too large
+     */
+    public long getInvalid() {
+        return invalid.get();
+    }
+
+    /**
+     * @return number of notifications refused because the dispatcher queue was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Stop accepting requests; queued notifications are left to the dispatcher
+     */
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdown();
+            server = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                          .add("address", address)
+                          .add("path", path)
+                          .add("received", received)
+                          .add("accepted", accepted)
+                          .add("invalid", invalid)
+                          .add("rejected", rejected)
+                          .toString();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        received.incrementAndGet();
+
+        final Long contentLength = Longs.tryParse(MoreObjects.firstNonNull(exchange.getRequestHeaders().getFirst("Content-Length"), ""));
+        if (contentLength != null && contentLength > maxBodyBytes) {
+            tooLarge(exchange);
+            return;
+        }
+
+        final Notification notification;
+        // Also bounds chunked bodies, which have no length
+        final BoundedInputStream body = new BoundedInputStream(exchange.getRequestBody(), maxBodyBytes);
+        byte[] payload = null;
+        try {
+            if (journal == null) {
+                notification = decoder.decode(body);
+                // Decoding stops at the end of the root element: read the rest for the connection to be reused
+                ByteStreams.copy(body, ByteStreams.nullOutputStream());
+            } else {
+                payload = ByteStreams.toByteArray(body);
+                notification = decoder.decode(new ByteArrayInputStream(payload));
+            }
+        } catch (final IOException e) {
+            // The decoder may wrap the error of the stream
+            if (body.exceeded) {
+                tooLarge(exchange);
+                return;
+            }
+            log.warn("Unable to decode push notification: {}", e.getMessage());
+            invalid.incrementAndGet();
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+
+        // Unknown types are acknowledged: delivering them again would not help
+        if (notification != null && !dispatcher.dispatch(notification)) {
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "60");
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+
+        if (journal != null) {
+            try {
+                journal.append(notification == null ? null : TYPES.get(notification.getClass()), payload);
+            } catch (final IOException e) {
+                // Delivered again, and dispatched again unless the dispatcher has a deduplicator
+                log.warn("Unable to journal push notification", e);
+                rejected.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+        }
+        accepted.incrementAndGet();
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void tooLarge(final HttpExchange exchange) throws IOException {
+        log.warn("Refusing push notification larger than {} bytes", maxBodyBytes);
+        invalid.incrementAndGet();
+        // The server closes connections whose request body was not read to the end: clients must not reuse it
+        exchange.getResponseHeaders().set("Connection", "close");
+        exchange.sendResponseHeaders(413, -1);
+    }
+
+    // Fails reads past the maximum, rather than truncating the body like ByteStreams.limit
+    private static final class BoundedInputStream extends FilterInputStream {
+
+        private long remaining;
+        private boolean exceeded;
+
+        private BoundedInputStream(final InputStream in, final long maxBytes) {
+            super(in);
+            this.remaining = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int read = super.read();
+            if (read >= 0) {
+                count(1);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(final long bytes) throws IOException {
+            remaining -= bytes;
+            if (remaining < 0) {
+                exceeded = true;
+                throw new IOException("Body too large");
+            }
+        }
+    }
+
+    public static class Builder {
+
+        private final NotificationDispatcher dispatcher;
+        private NotificationDecoder decoder = NotificationDecoder.getDefault();
+        private NotificationJournal journal = null;
+        private InetSocketAddress address = new InetSocketAddress(8080);
+        private String path = "/";
+        private String username = null;
+        private String password = null;
+        private int workers = 4;
+        private int queueCapacity = 100;
+        private int maxBodyBytes = 1024 * 1024;
+
+        private Builder(final NotificationDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        /**
+         * @param port port to listen on, on all interfaces (8080 by default, 0 for an ephemeral port)
+         */
+        public Builder setPort(final int port) {
+            return setAddress(new InetSocketAddress(port));
+        }
+
+        public Builder setAddress(final InetSocketAddress address) {
+            this.address = address;
+            return this;
+        }
+
+        /**
+         * @param path path of the endpoint, and of the paths under it ({@code /} by default)
+         */
+        public Builder setPath(final String path) {
+            if (!path.startsWith("/")) {
+                throw new IllegalArgumentException("path must start with /: " + path);
+            }
+            this.path = path;
+            return this;
+        }
+
+        /**
+         * @param username HTTP basic authentication user name, as configured for the Recurly endpoint
+         * @param password HTTP basic authentication password (none by default: requests are not authenticated)
+         */
+        public Builder setCredentials(final String username, final String password) {
+            if (username == null || password == null) {
+                throw new IllegalArgumentException("username and password must be set");
+            }
+            this.username = username;
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * @param workers number of threads reading and decoding requests (4 by default)
+         */
+        public Builder setWorkers(final int workers) {
+            this.workers = checkPositive("workers", workers);
+            return this;
+        }
+
+        /**
+         * @param queueCapacity number of requests waiting for a worker (100 by default)
+         */
+        public Builder setQueueCapacity(final int queueCapacity) {
+            this.queueCapacity = checkPositive("queueCapacity", queueCapacity);
+            return this;
+        }
+
+        /**
+         * @param maxBodyBytes size of the largest body read, larger ones are answered with 413 (1MB by default)
+         */
+        public Builder setMaxBodyBytes(final int maxBodyBytes) {
+            this.maxBodyBytes = checkPositive("maxBodyBytes", maxBodyBytes);
+            return this;
+        }
+
+        public Builder setDecoder(final NotificationDecoder decoder) {
+            this.decoder = decoder;
+            return this;
+        }
+
+        /**
+         * @param journal journal to append the raw payloads to, once they are dispatched (none by default); a
+         *                notification which cannot be appended is answered with 503, and dispatched again when
+         *                delivered again unless the dispatcher has a {@link NotificationDeduplicator}
+         */
+        public Builder setJournal(@Nullable final NotificationJournal journal) {
+            this.journal = journal;
+            return this;
+        }
+
+        public NotificationReceiver build() {
+            return new NotificationReceiver(this);
+        }
+
+        private static int checkPositive(final String name, final int value) {
+            if (value <= 0) {
+                throw new IllegalArgumentException(name + " must be positive: " + value);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.transport;
+
+import java.io.IOException;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Transport over an Apache HttpClient connection pool (HTTP/1.1), the default
+ */
+public class ApacheHttpTransport implements HttpTransport {
+
+    private final CloseableHttpClient client;
+
+    public ApacheHttpTransport(final CloseableHttpClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public CloseableHttpResponse execute(final HttpRequestBase request) throws IOException {
+        return client.execute(request);
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    public CloseableHttpClient getClient() {
+        return client;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Sends the requests of a {@link com.ning.billing.recurly.RecurlyClient}
+ * <p>
+ * Requests and responses are exchanged as Apache HttpCore objects, whatever the underlying HTTP client:
+ * request building, retries, rate limiting and response mapping are handled by the client, a transport only
+ * moves bytes. The request carries its timeouts in {@link HttpRequestBase#getConfig()}.
+ * <p>
+ * Implementations must be thread-safe. Response entities should be streamed rather than buffered, and the
+ * connection released when the response is closed.
+ *
+ * @see ApacheHttpTransport
+ */
+public interface HttpTransport extends Closeable {
+
+    /**
+     * @param request the request, ready to be sent
+     * @return the response, to be closed by the caller
+     * @throws IOException on I/O errors. Connection failures should surface as {@link java.net.ConnectException},
+     *                     {@link org.apache.http.conn.ConnectTimeoutException} or {@link org.apache.http.NoHttpResponseException}
+     */
+    CloseableHttpResponse execute(HttpRequestBase request) throws IOException;
+}
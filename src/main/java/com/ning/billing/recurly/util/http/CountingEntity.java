@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.util.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Entity adding the number of bytes read from its content to a counter, when the content is closed
+ */
+public class CountingEntity extends HttpEntityWrapper {
+
+    private final AtomicLong counter;
+
+    public CountingEntity(final HttpEntity wrappedEntity, final AtomicLong counter) {
+        super(wrappedEntity);
+        this.counter = counter;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new CountingInputStream(super.getContent());
+    }
+
+    @Override
+    public void writeTo(final OutputStream outStream) throws IOException {
+        final InputStream content = getContent();
+        try {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                outStream.write(buffer, 0, read);
+            }
+        } finally {
+            content.close();
+        }
+    }
+
+    private final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+        private boolean closed;
+
+        private CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int result = in.read();
+            if (result != -1) {
+                count++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int result = in.read(b, off, len);
+            if (result != -1) {
+                count += result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long result = in.skip(n);
+            count += result;
+            return result;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                counter.addAndGet(count);
+            }
+            super.close();
+        }
+    }
+}
@@ -21,12 +21,25 @@ package com.ning.billing.recurly.util.http;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
+/**
+ * Holds the {@link SSLContext} shared by all clients
+ * <p>
+ * Sharing the context shares its client session cache: connections opened after the first handshake with
+ * Recurly resume the TLS session instead of negotiating a new one. The cache is tuned with the
+ * {@code killbill.payment.recurly.tlsSessionCacheSize} (number of sessions) and
+ * {@code killbill.payment.recurly.tlsSessionTimeout} (in seconds) system properties, and keeps the JDK
+ * defaults otherwise.
+ */
 public class SslUtils {
 
     private static final String TLS_PROTOCOL_KEY = "killbill.payment.recurly.tlsProtocol";
     private static final String TLS_PROTOCOL_DEFAULT = "TLSv1.2";
-    private SSLContext context;
+    private static final String TLS_SESSION_CACHE_SIZE_KEY = "killbill.payment.recurly.tlsSessionCacheSize";
+    private static final String TLS_SESSION_TIMEOUT_KEY = "killbill.payment.recurly.tlsSessionTimeout";
+
+    private volatile SSLContext context;
 
     private static class SingletonHolder {
         public static final SslUtils instance = new SslUtils();
@@ -37,12 +50,37 @@ public class SslUtils {
     }
 
     public SSLContext getSSLContext() throws NoSuchAlgorithmException, KeyManagementException {
-        if (context != null) return this.context;
+        SSLContext result = context;
+        if (result != null) return result;
 
+        synchronized (this) {
+            result = context;
+            if (result == null) {
+                result = createSSLContext();
+                context = result;
+            }
+        }
+        return result;
+    }
+
+    private static SSLContext createSSLContext() throws NoSuchAlgorithmException, KeyManagementException {
         final String protocol = System.getProperty(TLS_PROTOCOL_KEY, TLS_PROTOCOL_DEFAULT);
-        context = SSLContext.getInstance(protocol);
-        context.init(null, null, null);
+        final SSLContext sslContext = SSLContext.getInstance(protocol);
+        sslContext.init(null, null, null);
+
+        final SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if (sessionContext != null) {
+            final Integer sessionCacheSize = Integer.getInteger(TLS_SESSION_CACHE_SIZE_KEY);
+            if (sessionCacheSize != null) {
+                // 0 means no limit
+                sessionContext.setSessionCacheSize(sessionCacheSize);
+            }
+            final Integer sessionTimeout = Integer.getInteger(TLS_SESSION_TIMEOUT_KEY);
+            if (sessionTimeout != null) {
+                sessionContext.setSessionTimeout(sessionTimeout);
+            }
+        }
 
-        return context;
+        return sslContext;
     }
-}
\ No newline at end of file
+}
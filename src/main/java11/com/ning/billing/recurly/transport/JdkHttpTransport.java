@@ -0,0 +1,193 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import com.ning.billing.recurly.RecurlyClientConfig;
+import com.ning.billing.recurly.util.http.SslUtils;
+
+/**
+ * Transport over the JDK {@link HttpClient} (Java 11+)
+ * <p>
+ * The JDK client negotiates HTTP/2 with Recurly, and multiplexes concurrent requests over a few connections
+ * instead of holding one pooled connection per in-flight request. Response bodies are streamed.
+ * <pre>
+ * recurlyClient.open(new JdkHttpTransport(recurlyClient.getConfig()));
+ * </pre>
+ * Pool sizes, keep-alive, time to live and eviction settings of the {@link RecurlyClientConfig} do not apply:
+ * connections are managed by the JDK client.
+ */
+public class JdkHttpTransport implements HttpTransport {
+
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    // Set by the JDK client itself
+    private static final Set<String> RESTRICTED_HEADERS = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        RESTRICTED_HEADERS.add(HttpHeaders.CONNECTION);
+        RESTRICTED_HEADERS.add(HttpHeaders.CONTENT_LENGTH);
+        RESTRICTED_HEADERS.add(HttpHeaders.EXPECT);
+        RESTRICTED_HEADERS.add(HttpHeaders.HOST);
+        RESTRICTED_HEADERS.add(HttpHeaders.UPGRADE);
+    }
+
+    private final HttpClient client;
+
+    public JdkHttpTransport(final RecurlyClientConfig config) throws NoSuchAlgorithmException, KeyManagementException {
+        this(createHttpClient(config));
+    }
+
+    public JdkHttpTransport(final HttpClient client) {
+        this.client = client;
+    }
+
+    public static HttpClient createHttpClient(final RecurlyClientConfig config) throws KeyManagementException, NoSuchAlgorithmException {
+        final HttpClient.Builder builder = HttpClient.newBuilder()
+                                                     .version(HttpClient.Version.HTTP_2)
+                                                     .followRedirects(HttpClient.Redirect.NEVER)
+                                                     .sslContext(SslUtils.getInstance().getSSLContext());
+        if (config.getConnectTimeoutMillis() > 0) {
+            builder.connectTimeout(Duration.ofMillis(config.getConnectTimeoutMillis()));
+        }
+        return builder.build();
+    }
+
+    @Override
+    public CloseableHttpResponse execute(final HttpRequestBase request) throws IOException {
+        final HttpResponse<InputStream> response;
+        try {
+            response = client.send(toJdkRequest(request), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (HttpConnectTimeoutException e) {
+            final ConnectTimeoutException connectTimeoutException = new ConnectTimeoutException(e.getMessage());
+            connectTimeoutException.initCause(e);
+            throw connectTimeoutException;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException interruptedIOException = new InterruptedIOException(e.getMessage());
+            interruptedIOException.initCause(e);
+            throw interruptedIOException;
+        }
+        return toApacheResponse(response);
+    }
+
+    @Override
+    public void close() {
+        // The JDK client has no lifecycle: its connections are released once it is garbage collected
+    }
+
+    public HttpClient getClient() {
+        return client;
+    }
+
+    private static HttpRequest toJdkRequest(final HttpRequestBase request) throws IOException {
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(request.getURI().toString()));
+
+        final HttpRequest.BodyPublisher body;
+        if (request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null) {
+            final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            body = HttpRequest.BodyPublishers.ofByteArray(EntityUtils.toByteArray(entity));
+            if (!request.containsHeader(HttpHeaders.CONTENT_TYPE) && entity.getContentType() != null) {
+                builder.header(HttpHeaders.CONTENT_TYPE, entity.getContentType().getValue());
+            }
+        } else {
+            body = HttpRequest.BodyPublishers.noBody();
+        }
+        builder.method(request.getMethod(), body);
+
+        for (final Header header : request.getAllHeaders()) {
+            if (!RESTRICTED_HEADERS.contains(header.getName())) {
+                builder.header(header.getName(), header.getValue());
+            }
+        }
+
+        final RequestConfig requestConfig = request.getConfig();
+        if (requestConfig != null && requestConfig.getSocketTimeout() > 0) {
+            // The JDK client has no inactivity timeout: bound the time to receive the response headers instead
+            builder.timeout(Duration.ofMillis(requestConfig.getSocketTimeout()));
+        }
+        return builder.build();
+    }
+
+    private static CloseableHttpResponse toApacheResponse(final HttpResponse<InputStream> response) {
+        final ProtocolVersion version = response.version() == HttpClient.Version.HTTP_2 ? HTTP_2 : HttpVersion.HTTP_1_1;
+        final JdkHttpResponse apacheResponse = new JdkHttpResponse(version, response.statusCode(), response.body());
+        for (final Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+            // Skip HTTP/2 pseudo-headers
+            if (header.getKey().startsWith(":")) {
+                continue;
+            }
+            for (final String value : header.getValue()) {
+                apacheResponse.addHeader(header.getKey(), value);
+            }
+        }
+
+        final InputStreamEntity entity = new InputStreamEntity(response.body(),
+                                                               response.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH).orElse(-1));
+        response.headers().firstValue(HttpHeaders.CONTENT_TYPE).ifPresent(entity::setContentType);
+        response.headers().firstValue(HttpHeaders.CONTENT_ENCODING).ifPresent(entity::setContentEncoding);
+        apacheResponse.setEntity(entity);
+        return apacheResponse;
+    }
+
+    private static final class JdkHttpResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+        private final InputStream body;
+
+        private JdkHttpResponse(final ProtocolVersion version, final int statusCode, final InputStream body) {
+            super(version, statusCode, EnglishReasonPhraseCatalog.INSTANCE.getReason(statusCode, null));
+            this.body = body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Closing the body releases the stream (or connection) back to the JDK client
+            body.close();
+        }
+    }
+}
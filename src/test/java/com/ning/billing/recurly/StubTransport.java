@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import com.google.common.base.Charsets;
+import com.ning.billing.recurly.transport.HttpTransport;
+
+/**
+ * Transport answering the requests of a client from a handler, or from queued responses, and recording them
+ */
+final class StubTransport implements HttpTransport {
+
+    interface Handler {
+
+        CloseableHttpResponse handle(HttpRequestBase request) throws IOException;
+    }
+
+    final List<HttpRequestBase> requests = new CopyOnWriteArrayList<HttpRequestBase>();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private final Queue<StubHttpResponse> responses = new ConcurrentLinkedQueue<StubHttpResponse>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Handler handler;
+
+    /**
+     * Answers with the responses queued by {@link #respond(int, String)}, in order
+     */
+    StubTransport() {
+        this.handler = request -> responses.poll();
+    }
+
+    StubTransport(final Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Queue a response
+     *
+     * @return the response, to add headers to
+     */
+    StubHttpResponse respond(final int status, final String body) {
+        final StubHttpResponse response = response(status, body);
+        responses.add(response);
+        return response;
+    }
+
+    /**
+     * @return the distinct URLs requested
+     */
+    Set<String> getUrls() {
+        final Set<String> urls = new LinkedHashSet<String>();
+        for (final HttpRequestBase request : requests) {
+            urls.add(request.getURI().toString());
+        }
+        return urls;
+    }
+
+    @Override
+    public CloseableHttpResponse execute(final HttpRequestBase request) throws IOException {
+        requests.add(request);
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            return handler.handle(request);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @param body XML body, encoded as UTF-8
+     */
+    static StubHttpResponse response(final int status, final String body) {
+        final StubHttpResponse response = new StubHttpResponse(status);
+        response.setEntity(new StringEntity(body, ContentType.APPLICATION_XML.withCharset(Charsets.UTF_8)));
+        return response;
+    }
+
+    static final class StubHttpResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+        StubHttpResponse(final int status) {
+            super(HttpVersion.HTTP_1_1, status, null);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
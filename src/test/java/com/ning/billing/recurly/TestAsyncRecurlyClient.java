@@ -0,0 +1,293 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.Accounts;
+
+public class TestAsyncRecurlyClient {
+
+    private StubHttpAsyncClient httpClient;
+    private AsyncRecurlyClient recurlyClient;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        httpClient = new StubHttpAsyncClient();
+        recurlyClient = new AsyncRecurlyClient(UUID.randomUUID().toString(), "api");
+        recurlyClient.open(httpClient);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        recurlyClient.close();
+    }
+
+    @Test(groups = "fast")
+    public void testGetAccount() throws Exception {
+        httpClient.respond(200, "<account href=\"https://api.recurly.com/v2/accounts/1\"><account_code>1</account_code><email>verena@example.com</email></account>");
+
+        final Account account = recurlyClient.getAccount("1").get();
+        Assert.assertEquals(account.getAccountCode(), "1");
+        Assert.assertEquals(account.getEmail(), "verena@example.com");
+        Assert.assertEquals(httpClient.lastRequest.getRequestLine().getUri(), "https://api.recurly.com:443/v2/accounts/1");
+        Assert.assertEquals(httpClient.lastRequest.getFirstHeader("X-Api-Version").getValue(), RecurlyClient.RECURLY_API_VERSION);
+    }
+
+    @Test(groups = "fast")
+    public void testGetAccountsWithPagination() throws Exception {
+        final BasicHttpResponse response = httpClient.respond(200, "<accounts type=\"array\"><account><account_code>1</account_code></account><account><account_code>2</account_code></account></accounts>");
+        response.setHeader("Link", "<https://api.recurly.com/v2/accounts?cursor=1304958672>; rel=\"next\"");
+        response.setHeader("X-RateLimit-Remaining", "1999");
+
+        final Accounts accounts = recurlyClient.getAccounts().get();
+        Assert.assertEquals(accounts.size(), 2);
+        Assert.assertEquals(accounts.get(1).getAccountCode(), "2");
+        Assert.assertEquals(accounts.getNextUrl(), "https://api.recurly.com/v2/accounts?cursor=1304958672");
+        Assert.assertEquals(recurlyClient.getRateLimitRemaining(), 1999);
+    }
+
+    @Test(groups = "fast")
+    public void testGetAccountsCount() throws Exception {
+        httpClient.respond(200, "").setHeader("X-Records", "42");
+
+        Assert.assertEquals(recurlyClient.getAccountsCount(new QueryParams()).get(), (Integer) 42);
+        Assert.assertEquals(httpClient.lastRequest.getRequestLine().getMethod(), "HEAD");
+    }
+
+    @Test(groups = "fast")
+    public void testAdaptivePaging() throws Exception {
+        final StringBuilder page = new StringBuilder("<accounts type=\"array\">");
+        for (int i = 0; i < PageSizer.INITIAL_PAGE_SIZE; i++) {
+            page.append("<account><account_code>").append(i).append("</account_code></account>");
+        }
+        httpClient.respond(200, page.append("</accounts>").toString());
+        final RecurlyClient blockingClient = new RecurlyClient(UUID.randomUUID().toString(), RecurlyClientConfig.builder()
+                                                                                                               .setAdaptivePagingEnabled(true)
+                                                                                                               // The first call pays for class loading
+                                                                                                               .setPageLatencyTarget(1, TimeUnit.MINUTES)
+                                                                                                               .build());
+        final AsyncRecurlyClient pagingClient = new AsyncRecurlyClient(blockingClient);
+        pagingClient.open(httpClient);
+
+        Assert.assertEquals(pagingClient.getAccounts().get().size(), PageSizer.INITIAL_PAGE_SIZE);
+        Assert.assertTrue(httpClient.lastRequest.getRequestLine().getUri().endsWith("?per_page=20"), httpClient.lastRequest.getRequestLine().getUri());
+        // Fast full page: shared with the blocking client
+        Assert.assertEquals(blockingClient.getPageSizer().getPageSizes().get("GET /accounts"), (Integer) 40);
+        pagingClient.getAccounts().get();
+        Assert.assertTrue(httpClient.lastRequest.getRequestLine().getUri().endsWith("?per_page=40"), httpClient.lastRequest.getRequestLine().getUri());
+
+        // Not a list
+        pagingClient.getAccount("1").get();
+        Assert.assertFalse(httpClient.lastRequest.getRequestLine().getUri().contains("per_page"));
+    }
+
+    @Test(groups = "fast")
+    public void testTransactionError() throws Exception {
+        httpClient.respond(422, "<errors><transaction_error><error_code>declined</error_code><customer_message>Declined</customer_message></transaction_error></errors>");
+
+        final CompletableFuture<Account> future = recurlyClient.createAccount(new Account());
+        try {
+            future.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TransactionErrorException);
+            Assert.assertEquals(((TransactionErrorException) e.getCause()).getErrors().getTransactionError().getErrorCode(), "declined");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testAPIError() throws Exception {
+        httpClient.respond(404, "<error><symbol>not_found</symbol><description>Couldn't find Account with account_code = 1</description></error>");
+
+        try {
+            recurlyClient.getAccount("1").get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RecurlyAPIException);
+            Assert.assertEquals(((RecurlyAPIException) e.getCause()).getRecurlyError().getSymbol(), "not_found");
+            Assert.assertEquals(((RecurlyAPIException) e.getCause()).getRecurlyError().getHttpStatusCode(), 404);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testConnectionError() throws Exception {
+        httpClient.failure = new ConnectException("Connection refused");
+
+        try {
+            recurlyClient.getAccount("1").get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ConnectionErrorException);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRetryOnServiceUnavailable() throws Exception {
+        httpClient.enqueue(503, "<error><symbol>unavailable</symbol></error>");
+        httpClient.respond(200, "<account href=\"https://api.recurly.com/v2/accounts/1\"><account_code>1</account_code></account>");
+        // Not retried by default
+        try {
+            recurlyClient.getAccount("1").get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RecurlyAPIException);
+        }
+
+        httpClient.enqueue(503, "<error><symbol>unavailable</symbol></error>");
+        final RecurlyClientConfig config = RecurlyClientConfig.builder()
+                                                              .setRetryPolicy(ExponentialBackoffRetryPolicy.builder().build())
+                                                              .build();
+        final AsyncRecurlyClient retryingClient = new AsyncRecurlyClient(new RecurlyClient(UUID.randomUUID().toString(), config));
+        retryingClient.open(httpClient);
+        Assert.assertEquals(retryingClient.getAccount("1").get().getAccountCode(), "1");
+        Assert.assertEquals(httpClient.requests, 3);
+    }
+
+    @Test(groups = "fast")
+    public void testCallbackExecutor() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService callbacks = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "callbacks"));
+        // Holds the completions back until the stages below are chained
+        final Executor callbackExecutor = command -> callbacks.execute(() -> {
+            Uninterruptibles.awaitUninterruptibly(release);
+            command.run();
+        });
+        final AsyncRecurlyClient callbackClient = new AsyncRecurlyClient(new RecurlyClient(UUID.randomUUID().toString(),
+                                                                                           RecurlyClientConfig.builder()
+                                                                                                              .setCallbackExecutor(callbackExecutor)
+                                                                                                              .build()));
+        callbackClient.open(httpClient);
+        try {
+            httpClient.respond(200, "<account href=\"https://api.recurly.com/v2/accounts/1\"><account_code>1</account_code></account>");
+            final CompletableFuture<String> thread = callbackClient.getAccount("1").thenApply(account -> Thread.currentThread().getName());
+            httpClient.failure = new ConnectException("Connection refused");
+            final CompletableFuture<String> failedThread = callbackClient.getAccount("1").handle((account, e) -> Thread.currentThread().getName());
+            release.countDown();
+
+            // Not on the thread of the http client, which called back from execute() here
+            Assert.assertEquals(thread.get(), "callbacks");
+            Assert.assertEquals(failedThread.get(), "callbacks");
+        } finally {
+            callbacks.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testWithOptions() throws Exception {
+        httpClient.respond(200, "<account href=\"https://tenant.recurly.com/v2/accounts/1\"><account_code>1</account_code></account>");
+
+        final AsyncRecurlyClient tenantClient = recurlyClient.withOptions(RequestOptions.builder()
+                                                                                        .setSubDomain("tenant")
+                                                                                        .setAcceptLanguage("de-DE")
+                                                                                        .build());
+        Assert.assertEquals(tenantClient.getAccount("1").get().getAccountCode(), "1");
+        Assert.assertEquals(httpClient.lastRequest.getRequestLine().getUri(), "https://tenant.recurly.com:443/v2/accounts/1");
+        Assert.assertEquals(httpClient.lastRequest.getFirstHeader("Accept-Language").getValue(), "de-DE");
+    }
+
+    private static final class StubHttpAsyncClient extends CloseableHttpAsyncClient {
+
+        // Returned first, in order
+        private final Deque<BasicHttpResponse> queuedResponses = new ArrayDeque<BasicHttpResponse>();
+        private BasicHttpResponse response;
+        private int requests;
+        private Exception failure;
+        private HttpRequest lastRequest;
+        private boolean running;
+
+        BasicHttpResponse respond(final int status, final String body) {
+            response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+            response.setEntity(new StringEntity(body, ContentType.APPLICATION_XML));
+            return response;
+        }
+
+        void enqueue(final int status, final String body) {
+            final BasicHttpResponse queuedResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+            queuedResponse.setEntity(new StringEntity(body, ContentType.APPLICATION_XML));
+            queuedResponses.add(queuedResponse);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> Future<T> execute(final HttpAsyncRequestProducer requestProducer,
+                                     final HttpAsyncResponseConsumer<T> responseConsumer,
+                                     final HttpContext context,
+                                     final FutureCallback<T> callback) {
+            final BasicFuture<T> future = new BasicFuture<T>(callback);
+            requests++;
+            try {
+                lastRequest = requestProducer.generateRequest();
+            } catch (Exception e) {
+                future.failed(e);
+                return future;
+            }
+            if (failure != null) {
+                future.failed(failure);
+            } else {
+                future.completed((T) (queuedResponses.isEmpty() ? response : queuedResponses.poll()));
+            }
+            return future;
+        }
+
+        @Override
+        public void start() {
+            running = true;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return running;
+        }
+
+        @Override
+        public void close() throws IOException {
+            running = false;
+        }
+    }
+}
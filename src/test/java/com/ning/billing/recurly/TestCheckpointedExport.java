@@ -0,0 +1,221 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.io.Files;
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.Accounts;
+
+public class TestCheckpointedExport {
+
+    private static final DateTime BEGIN = new DateTime(2020, 1, 1, 0, 0, DateTimeZone.UTC);
+
+    private File checkpointFile;
+    // Pages of the list served
+    private int pages;
+    // Page failing with an I/O error, -1 for none
+    private int failingPage;
+    private StubTransport transport;
+    private RecurlyClient recurlyClient;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        checkpointFile = new File(Files.createTempDir(), "accounts.checkpoint");
+        pages = 4;
+        failingPage = -1;
+        transport = new StubTransport(this::accountPages);
+        recurlyClient = new RecurlyClient("key", RecurlyClientConfig.builder().setRetryPolicy(RetryPolicy.NONE).build());
+        recurlyClient.open(transport);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        checkpointFile.delete();
+        checkpointFile.getParentFile().delete();
+    }
+
+    @Test(groups = "fast")
+    public void testResume() throws Exception {
+        final List<String> exported = new ArrayList<String>();
+        try {
+            newExport().build().run(accounts -> {
+                if (accounts.get(0).getAccountCode().startsWith("account-3")) {
+                    throw new IllegalStateException("Deployment");
+                }
+                collect(accounts, exported);
+            });
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "Deployment");
+        }
+        Assert.assertTrue(checkpointFile.exists());
+        Assert.assertEquals(exported.size(), 4);
+
+        // After a restart
+        transport.requests.clear();
+        final CheckpointedExport<Account> export = newExport().build();
+        Assert.assertEquals(export.run(accounts -> collect(accounts, exported)), 8);
+        Assert.assertTrue(transport.requests.get(0).getURI().toString().endsWith("cursor=3"));
+        Assert.assertEquals(exported, Arrays.asList("account-1-1", "account-1-2", "account-2-1", "account-2-2",
+                                                    "account-3-1", "account-3-2", "account-4-1", "account-4-2"));
+        Assert.assertEquals(export.getCheckpoint().getPages(), 4);
+        Assert.assertFalse(checkpointFile.exists());
+    }
+
+    @Test(groups = "fast")
+    public void testFailedPage() throws Exception {
+        failingPage = 3;
+        final List<String> exported = new ArrayList<String>();
+        try {
+            newExport().build().run(accounts -> collect(accounts, exported));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("cursor=3"), e.getMessage());
+        }
+        // Not mistaken for the end of the list
+        Assert.assertTrue(checkpointFile.exists());
+        Assert.assertEquals(exported.size(), 4);
+
+        failingPage = -1;
+        transport.requests.clear();
+        Assert.assertEquals(newExport().build().run(accounts -> collect(accounts, exported)), 8);
+        Assert.assertTrue(transport.requests.get(0).getURI().toString().endsWith("cursor=3"));
+        Assert.assertEquals(exported, Arrays.asList("account-1-1", "account-1-2", "account-2-1", "account-2-2",
+                                                    "account-3-1", "account-3-2", "account-4-1", "account-4-2"));
+        Assert.assertFalse(checkpointFile.exists());
+
+        // Windows are not skipped either
+        failingPage = 1;
+        try {
+            newExport().setRange(BEGIN, BEGIN.plusDays(3)).setWindow(1, TimeUnit.DAYS).build().run(accounts -> { });
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("first page"), e.getMessage());
+        }
+        Assert.assertFalse(checkpointFile.exists());
+    }
+
+    @Test(groups = "fast")
+    public void testWindows() throws Exception {
+        pages = 1;
+        final CheckpointedExport<Account> export = newExport().setRange(BEGIN, BEGIN.plusDays(3))
+                                                              .setWindow(1, TimeUnit.DAYS)
+                                                              .build();
+        final List<String> beginTimes = new ArrayList<String>();
+        try {
+            export.run(accounts -> {
+                beginTimes.add(params(transport.requests.get(transport.requests.size() - 1)).get("begin_time"));
+                if (beginTimes.size() == 2) {
+                    throw new IllegalStateException("Deployment");
+                }
+            });
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(export.getCheckpoint().getWindowBegin(), BEGIN.plusDays(1));
+            Assert.assertNull(export.getCheckpoint().getNextUrl());
+        }
+        final Map<String, String> params = params(transport.requests.get(0));
+        Assert.assertEquals(DateTime.parse(params.get("begin_time")).getMillis(), BEGIN.getMillis());
+        Assert.assertEquals(DateTime.parse(params.get("end_time")).getMillis(), BEGIN.plusDays(1).getMillis() - 1);
+        Assert.assertEquals(params.get("order"), "asc");
+
+        final CheckpointedExport<Account> resumed = newExport().setRange(BEGIN, BEGIN.plusDays(3))
+                                                               .setWindow(1, TimeUnit.DAYS)
+                                                               .build();
+        Assert.assertEquals(resumed.run(accounts -> beginTimes.add(params(transport.requests.get(transport.requests.size() - 1)).get("begin_time"))), 6);
+        Assert.assertEquals(beginTimes.size(), 4);
+        Assert.assertEquals(DateTime.parse(beginTimes.get(2)).getMillis(), BEGIN.plusDays(1).getMillis());
+        Assert.assertEquals(DateTime.parse(beginTimes.get(3)).getMillis(), BEGIN.plusDays(2).getMillis());
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalStateException.class)
+    public void testOtherRange() throws Exception {
+        final List<String> exported = new ArrayList<String>();
+        try {
+            newExport().setRange(BEGIN, BEGIN.plusDays(3)).build().run(accounts -> {
+                if (!exported.isEmpty()) {
+                    throw new IllegalStateException("Deployment");
+                }
+                collect(accounts, exported);
+            });
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(checkpointFile.exists());
+        }
+        // The range changed in between
+        newExport().setRange(BEGIN, BEGIN.plusDays(4)).build().run(accounts -> { });
+    }
+
+    private CheckpointedExport.Builder<Account> newExport() {
+        return CheckpointedExport.builder(recurlyClient, params -> recurlyClient.getAccounts(params), Accounts.class, checkpointFile);
+    }
+
+    private static void collect(final List<Account> accounts, final List<String> accountCodes) {
+        for (final Account account : accounts) {
+            accountCodes.add(account.getAccountCode());
+        }
+    }
+
+    private static Map<String, String> params(final HttpRequestBase request) {
+        final Map<String, String> params = new HashMap<String, String>();
+        for (final NameValuePair pair : URLEncodedUtils.parse(request.getURI(), "UTF-8")) {
+            params.put(pair.getName(), pair.getValue());
+        }
+        return params;
+    }
+
+    // Serves pages of two accounts, linked by a cursor parameter
+    private CloseableHttpResponse accountPages(final HttpRequestBase request) throws IOException {
+        final String uri = request.getURI().toString();
+        final int page = uri.contains("cursor=") ? Integer.parseInt(uri.substring(uri.indexOf("cursor=") + 7)) : 1;
+        if (page == failingPage) {
+            // Not a connection error: the client yields a null page
+            throw new SocketException("Connection reset");
+        }
+        final String body = "<accounts type=\"array\">" +
+                            "<account><account_code>account-" + page + "-1</account_code></account>" +
+                            "<account><account_code>account-" + page + "-2</account_code></account>" +
+                            "</accounts>";
+        final StubTransport.StubHttpResponse response = StubTransport.response(200, body);
+        if (page < pages) {
+            response.setHeader("Link", "<https://api.recurly.com/v2/accounts?cursor=" + (page + 1) + ">; rel=\"next\"");
+        }
+        return response;
+    }
+}
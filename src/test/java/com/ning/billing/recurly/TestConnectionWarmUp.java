@@ -0,0 +1,104 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestConnectionWarmUp {
+
+    private final RecurlyClientConfig config = RecurlyClientConfig.builder()
+                                                                  .setMaxConnectionsPerRoute(8)
+                                                                  .setConnectTimeout(1, TimeUnit.SECONDS)
+                                                                  .build();
+
+    private HttpServer server;
+    private String baseUrl;
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v2", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/v2";
+        connectionManager = new RecurlyClient("key", config).createConnectionManager();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        connectionManager.shutdown();
+        server.stop(0);
+    }
+
+    @Test(groups = "fast")
+    public void testWarmUp() throws Exception {
+        final ConnectionWarmUp warmUp = new ConnectionWarmUp(connectionManager, config);
+        Assert.assertEquals(warmUp.warmUp(baseUrl, 4), 4);
+        Assert.assertEquals(connectionManager.getTotalStats().getAvailable(), 4);
+        Assert.assertEquals(connectionManager.getTotalStats().getLeased(), 0);
+
+        // Calls reuse the warm connections
+        final CloseableHttpClient httpClient = new RecurlyClient("key", config).createHttpClient(connectionManager);
+        final CloseableHttpResponse response = httpClient.execute(new HttpGet(baseUrl + "/accounts"));
+        Assert.assertEquals(response.getStatusLine().getStatusCode(), 204);
+        EntityUtils.consume(response.getEntity());
+        response.close();
+        Assert.assertEquals(connectionManager.getTotalStats().getAvailable(), 4);
+
+        // Already warm
+        Assert.assertEquals(warmUp.warmUp(baseUrl, 1), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testConnectionRefused() throws Exception {
+        final int port;
+        final ServerSocket serverSocket = new ServerSocket(0);
+        try {
+            port = serverSocket.getLocalPort();
+        } finally {
+            serverSocket.close();
+        }
+
+        Assert.assertEquals(new ConnectionWarmUp(connectionManager, config).warmUp("http://127.0.0.1:" + port + "/v2", 4), 0);
+        Assert.assertEquals(connectionManager.getTotalStats().getAvailable(), 0);
+        Assert.assertEquals(connectionManager.getTotalStats().getLeased(), 0);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.ning.billing.recurly.model.Account;
+
+public class TestExponentialBackoffRetryPolicy {
+
+    private final ExponentialBackoffRetryPolicy retryPolicy = ExponentialBackoffRetryPolicy.builder()
+                                                                                           .setMaxAttempts(3)
+                                                                                           .setBaseDelay(100, TimeUnit.MILLISECONDS)
+                                                                                           .setMaxDelay(150, TimeUnit.MILLISECONDS)
+                                                                                           .build();
+
+    @Test(groups = "fast")
+    public void testIdempotency() {
+        Assert.assertTrue(ExponentialBackoffRetryPolicy.isIdempotent(new HttpGet("https://api.recurly.com/v2/accounts")));
+        final HttpPost post = new HttpPost("https://api.recurly.com/v2/accounts");
+        Assert.assertFalse(ExponentialBackoffRetryPolicy.isIdempotent(post));
+        post.setHeader(ExponentialBackoffRetryPolicy.IDEMPOTENCY_KEY_HEADER_NAME, UUID.randomUUID().toString());
+        Assert.assertTrue(ExponentialBackoffRetryPolicy.isIdempotent(post));
+
+        final HttpPost postWithoutKey = new HttpPost("https://api.recurly.com/v2/accounts");
+        Assert.assertEquals(retryPolicy.getRetryDelayMillis(postWithoutKey, 1, response(503), null), -1);
+        Assert.assertTrue(retryPolicy.getRetryDelayMillis(post, 1, response(503), null) >= 0);
+    }
+
+    @Test(groups = "fast")
+    public void testBackoff() {
+        final HttpGet get = new HttpGet("https://api.recurly.com/v2/accounts");
+        for (int i = 0; i < 100; i++) {
+            final long first = retryPolicy.getRetryDelayMillis(get, 1, null, new SocketTimeoutException());
+            Assert.assertTrue(first >= 0 && first <= 100, String.valueOf(first));
+            // Capped
+            final long second = retryPolicy.getRetryDelayMillis(get, 2, response(503), null);
+            Assert.assertTrue(second >= 0 && second <= 150, String.valueOf(second));
+        }
+        // Give up after 3 attempts
+        Assert.assertEquals(retryPolicy.getRetryDelayMillis(get, 3, response(503), null), -1);
+    }
+
+    @Test(groups = "fast")
+    public void testNotRetryable() {
+        final HttpGet get = new HttpGet("https://api.recurly.com/v2/accounts");
+        Assert.assertEquals(retryPolicy.getRetryDelayMillis(get, 1, response(404), null), -1);
+        Assert.assertEquals(retryPolicy.getRetryDelayMillis(get, 1, response(500), null), -1);
+        Assert.assertEquals(retryPolicy.getRetryDelayMillis(get, 1, null, new UnknownHostException()), -1);
+        Assert.assertEquals(RetryPolicy.NONE.getRetryDelayMillis(get, 1, response(503), null), -1);
+    }
+
+    @Test(groups = "fast")
+    public void testRetryAfter() {
+        final HttpGet get = new HttpGet("https://api.recurly.com/v2/accounts");
+
+        final BasicHttpResponse seconds = response(429);
+        seconds.setHeader("Retry-After", "2");
+        Assert.assertEquals(retryPolicy.getRetryDelayMillis(get, 1, seconds, null), 2000);
+
+        final BasicHttpResponse date = response(503);
+        date.setHeader("Retry-After", DateUtils.formatDate(new Date(System.currentTimeMillis() + 10000)));
+        final long dateDelay = retryPolicy.getRetryDelayMillis(get, 1, date, null);
+        Assert.assertTrue(dateDelay > 5000 && dateDelay <= 10000, String.valueOf(dateDelay));
+
+        final BasicHttpResponse rateLimited = response(429);
+        rateLimited.setHeader("X-RateLimit-Reset", String.valueOf(System.currentTimeMillis() / 1000 + 5));
+        Assert.assertTrue(retryPolicy.getRetryDelayMillis(get, 1, rateLimited, null) > 3000);
+
+        // Too long to wait
+        final BasicHttpResponse tooLong = response(503);
+        tooLong.setHeader("Retry-After", "3600");
+        Assert.assertEquals(retryPolicy.getRetryDelayMillis(get, 1, tooLong, null), -1);
+    }
+
+    @Test(groups = "fast")
+    public void testClientRetries() throws Exception {
+        final StubHttpClient httpClient = new StubHttpClient();
+        final RecurlyClientConfig config = RecurlyClientConfig.builder().setRetryPolicy(retryPolicy).build();
+        final RecurlyClient recurlyClient = new RecurlyClient(UUID.randomUUID().toString(), config);
+        recurlyClient.open(httpClient);
+
+        httpClient.outcomes.add(response(503));
+        httpClient.outcomes.add(new SocketTimeoutException());
+        httpClient.outcomes.add(response(200, "<account><account_code>1</account_code></account>"));
+        Assert.assertEquals(recurlyClient.getAccount("1").getAccountCode(), "1");
+        Assert.assertEquals(httpClient.requests.size(), 3);
+
+        // POST without idempotency key: not retried
+        httpClient.requests.clear();
+        httpClient.outcomes.add(response(503));
+        try {
+            recurlyClient.createAccount(new Account());
+            Assert.fail();
+        } catch (RecurlyAPIException e) {
+            Assert.assertEquals(e.getRecurlyError().getHttpStatusCode(), 503);
+        }
+        Assert.assertEquals(httpClient.requests.size(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testHttpClientDoesNotRetry() throws Exception {
+        // Closes connections without answering: HttpClient would retry the GET on its own
+        final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final AtomicInteger connections = new AtomicInteger();
+        final Thread server = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try (final Socket socket = serverSocket.accept()) {
+                    connections.incrementAndGet();
+                    final BufferedReader request = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charsets.US_ASCII));
+                    String line;
+                    while ((line = request.readLine()) != null && !line.isEmpty()) {
+                        // Skip the request head
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+
+        final RecurlyClient recurlyClient = new RecurlyClient(UUID.randomUUID().toString());
+        final PoolingHttpClientConnectionManager connectionManager = recurlyClient.createConnectionManager();
+        try (final CloseableHttpClient httpClient = recurlyClient.createHttpClient(connectionManager)) {
+            httpClient.execute(new HttpGet("http://127.0.0.1:" + serverSocket.getLocalPort() + "/v2/accounts")).close();
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals(connections.get(), 1);
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    private static BasicHttpResponse response(final int status) {
+        return response(status, "<error><symbol>unavailable</symbol></error>");
+    }
+
+    private static BasicHttpResponse response(final int status, final String body) {
+        return StubTransport.response(status, body);
+    }
+
+    // Returns the queued responses, or throws the queued exceptions, in order
+    private static final class StubHttpClient extends CloseableHttpClient {
+
+        private final Deque<Object> outcomes = new ArrayDeque<Object>();
+        private final List<HttpRequest> requests = new ArrayList<HttpRequest>();
+
+        @Override
+        protected CloseableHttpResponse doExecute(final HttpHost target, final HttpRequest request, final HttpContext context) throws IOException {
+            requests.add(request);
+            final Object outcome = outcomes.poll();
+            if (outcome instanceof IOException) {
+                throw (IOException) outcome;
+            }
+            return (CloseableHttpResponse) outcome;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        @Deprecated
+        public HttpParams getParams() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        @Deprecated
+        public ClientConnectionManager getConnectionManager() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
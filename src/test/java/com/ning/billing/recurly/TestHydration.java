@@ -0,0 +1,251 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.AddOn;
+import com.ning.billing.recurly.model.Adjustment;
+import com.ning.billing.recurly.model.BillingInfo;
+import com.ning.billing.recurly.model.Invoice;
+import com.ning.billing.recurly.model.RecurlyObject;
+import com.ning.billing.recurly.model.Relation;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+public class TestHydration {
+
+    private static final String ACCOUNTS_URL = "https://api.recurly.com/v2/accounts/";
+    private static final String INVOICES_URL = "https://api.recurly.com/v2/invoices/";
+
+    private final XmlMapper xmlMapper = RecurlyObject.newXmlMapper();
+
+    private StubTransport transport;
+    private RecurlyClient recurlyClient;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        transport = new StubTransport(TestHydration::resources);
+        recurlyClient = new RecurlyClient("key", RecurlyClientConfig.builder()
+                                                                    .setMaxConnectionsPerRoute(8)
+                                                                    .setRetryPolicy(RetryPolicy.NONE)
+                                                                    .build());
+        recurlyClient.open(transport);
+    }
+
+    @Test(groups = "fast")
+    public void testInvoiceAccounts() throws Exception {
+        final List<Invoice> invoices = new ArrayList<Invoice>();
+        for (int i = 0; i < 200; i++) {
+            invoices.add(read("<invoice><invoice_number>" + i + "</invoice_number>" +
+                              "<account href=\"" + ACCOUNTS_URL + (i % 20) + "\"/></invoice>", Invoice.class));
+        }
+
+        Assert.assertEquals(recurlyClient.hydrate(invoices, Relation.INVOICE_ACCOUNT), 20);
+        // One call per distinct account, in parallel
+        Assert.assertEquals(transport.requests.size(), 20);
+        Assert.assertEquals(transport.getUrls().size(), 20);
+        Assert.assertTrue(transport.maxInFlight.get() > 1, "max in flight: " + transport.maxInFlight);
+        Assert.assertTrue(transport.maxInFlight.get() <= 8, "max in flight: " + transport.maxInFlight);
+
+        for (int i = 0; i < 200; i++) {
+            final Account account = invoices.get(i).getAccount();
+            Assert.assertEquals(account.getAccountCode(), String.valueOf(i % 20));
+            Assert.assertSame(account, invoices.get(i % 20).getAccount());
+        }
+        // Loaded: no more calls
+        Assert.assertEquals(recurlyClient.hydrate(invoices, Relation.INVOICE_ACCOUNT), 0);
+        Assert.assertEquals(transport.requests.size(), 20);
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentCalls() throws Exception {
+        final int callers = 4;
+        final List<List<Invoice>> pages = new ArrayList<List<Invoice>>();
+        for (int caller = 0; caller < callers; caller++) {
+            final List<Invoice> invoices = new ArrayList<Invoice>();
+            for (int i = 0; i < 40; i++) {
+                invoices.add(read("<invoice><account href=\"" + ACCOUNTS_URL + caller + "-" + i + "\"/></invoice>", Invoice.class));
+            }
+            pages.add(invoices);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            final List<Future<Integer>> hydrated = new ArrayList<Future<Integer>>();
+            for (final List<Invoice> invoices : pages) {
+                hydrated.add(executor.submit(() -> recurlyClient.hydrate(invoices, Relation.INVOICE_ACCOUNT)));
+            }
+            for (final Future<Integer> future : hydrated) {
+                Assert.assertEquals(future.get(), (Integer) 40);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // The callers share 7 helpers, rather than each running 7 of its own
+        Assert.assertEquals(transport.requests.size(), callers * 40);
+        Assert.assertTrue(transport.maxInFlight.get() <= callers + 7, "max in flight: " + transport.maxInFlight);
+        for (final List<Invoice> invoices : pages) {
+            for (final Invoice invoice : invoices) {
+                Assert.assertNotNull(invoice.getAccount().getAccountCode());
+            }
+        }
+        Assert.assertEquals(transport.requests.size(), callers * 40);
+    }
+
+    @Test(groups = "fast")
+    public void testMoreHelpersThanHydratorThreads() throws Exception {
+        // Each client runs up to 7 helpers: together, more than the shared threads
+        final int clients = RecurlyClient.MAX_HYDRATOR_THREADS / 7 + 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<List<Invoice>> pages = new ArrayList<List<Invoice>>();
+            final List<Future<Integer>> hydrated = new ArrayList<Future<Integer>>();
+            for (int client = 0; client < clients; client++) {
+                final RecurlyClient otherClient = new RecurlyClient("key", RecurlyClientConfig.builder()
+                                                                                             .setMaxConnectionsPerRoute(8)
+                                                                                             .build());
+                otherClient.open(transport);
+                final List<Invoice> invoices = new ArrayList<Invoice>();
+                for (int i = 0; i < 40; i++) {
+                    invoices.add(read("<invoice><account href=\"" + ACCOUNTS_URL + client + "-" + i + "\"/></invoice>", Invoice.class));
+                }
+                pages.add(invoices);
+                hydrated.add(executor.submit(() -> {
+                    Uninterruptibles.awaitUninterruptibly(start);
+                    return otherClient.hydrate(invoices, Relation.INVOICE_ACCOUNT);
+                }));
+            }
+            start.countDown();
+            // Once the shared threads are all busy, the callers make the fetches of their helpers themselves
+            for (final Future<Integer> future : hydrated) {
+                Assert.assertEquals(future.get(), (Integer) 40);
+            }
+            for (final List<Invoice> invoices : pages) {
+                for (final Invoice invoice : invoices) {
+                    Assert.assertNotNull(invoice.getAccount().getAccountCode());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(transport.requests.size(), clients * 40);
+    }
+
+    @Test(groups = "fast")
+    public void testRelations() throws Exception {
+        final Invoice invoice = read("<invoice><original_invoice href=\"" + INVOICES_URL + "1000\"/></invoice>", Invoice.class);
+        final Adjustment adjustment = read("<adjustment><account href=\"" + ACCOUNTS_URL + "1\"/></adjustment>", Adjustment.class);
+        final BillingInfo billingInfo = read("<billing_info><account href=\"" + ACCOUNTS_URL + "1\"/></billing_info>", BillingInfo.class);
+        final AddOn addOn = read("<add_on><measured_unit href=\"https://api.recurly.com/v2/measured_units/7\"/></add_on>", AddOn.class);
+        // Already loaded
+        final Adjustment loaded = read("<adjustment><account href=\"" + ACCOUNTS_URL + "2\">" +
+                                       "<created_at type=\"datetime\">2020-01-01T00:00:00Z</created_at></account></adjustment>", Adjustment.class);
+
+        final List<Invoice> invoices = new ArrayList<Invoice>();
+        invoices.add(invoice);
+        Assert.assertEquals(recurlyClient.hydrate(invoices, Relation.INVOICE_ORIGINAL_INVOICE), 1);
+        final List<Adjustment> adjustments = new ArrayList<Adjustment>();
+        adjustments.add(adjustment);
+        adjustments.add(loaded);
+        Assert.assertEquals(recurlyClient.hydrate(adjustments, Relation.ADJUSTMENT_ACCOUNT), 1);
+        final List<BillingInfo> billingInfos = new ArrayList<BillingInfo>();
+        billingInfos.add(billingInfo);
+        Assert.assertEquals(recurlyClient.hydrate(billingInfos, Relation.BILLING_INFO_ACCOUNT), 1);
+        final List<AddOn> addOns = new ArrayList<AddOn>();
+        addOns.add(addOn);
+        Assert.assertEquals(recurlyClient.hydrate(addOns, Relation.ADD_ON_MEASURED_UNIT), 1);
+        Assert.assertEquals(transport.requests.size(), 4);
+
+        Assert.assertEquals(invoice.getOriginalInvoice().getInvoiceNumber(), (Integer) 1000);
+        Assert.assertEquals(adjustment.getAccount().getAccountCode(), "1");
+        Assert.assertEquals(billingInfo.getAccount().getAccountCode(), "1");
+        Assert.assertEquals(addOn.getMeasuredUnit().getName(), "unit-7");
+        // The getters, even of relations loaded by href, do not fetch again
+        invoice.getOriginalInvoice();
+        addOn.getMeasuredUnit();
+        Assert.assertEquals(transport.requests.size(), 4);
+    }
+
+    @Test(groups = "fast")
+    public void testLazyGettersFetchOnce() throws Exception {
+        final Invoice invoice = read("<invoice><original_invoice href=\"" + INVOICES_URL + "1000\"/></invoice>", Invoice.class);
+        invoice.setRecurlyClient(recurlyClient);
+        Assert.assertEquals(invoice.getOriginalInvoice().getInvoiceNumber(), (Integer) 1000);
+        Assert.assertEquals(invoice.getOriginalInvoice().getInvoiceNumber(), (Integer) 1000);
+        Assert.assertEquals(transport.requests.size(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testFailure() throws Exception {
+        final List<Invoice> invoices = new ArrayList<Invoice>();
+        for (int i = 0; i < 10; i++) {
+            invoices.add(read("<invoice><account href=\"" + ACCOUNTS_URL + (i == 5 ? "fail" : i) + "\"/></invoice>", Invoice.class));
+        }
+        try {
+            recurlyClient.hydrate(invoices, Relation.INVOICE_ACCOUNT);
+            Assert.fail();
+        } catch (final RuntimeException e) {
+            Assert.assertEquals(e.getMessage(), "Connection refused");
+        }
+        // The accounts fetched are set, the others are left to their getters
+        for (int i = 0; i < 10; i++) {
+            if (transport.getUrls().contains(ACCOUNTS_URL + i)) {
+                Assert.assertEquals(invoices.get(i).getAccount().getAccountCode(), String.valueOf(i));
+            }
+        }
+    }
+
+    private <T> T read(final String xml, final Class<T> clazz) throws Exception {
+        return xmlMapper.readValue(xml, clazz);
+    }
+
+    // Answers each URL with the resource it names, after a short delay
+    private static CloseableHttpResponse resources(final HttpRequestBase request) {
+        Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        final String url = request.getURI().toString();
+        final String id = url.substring(url.lastIndexOf('/') + 1);
+        final String body;
+        if ("fail".equals(id)) {
+            throw new IllegalStateException("Connection refused");
+        } else if (url.startsWith(ACCOUNTS_URL)) {
+            body = "<account href=\"" + url + "\"><account_code>" + id + "</account_code>" +
+                   "<created_at type=\"datetime\">2020-01-01T00:00:00Z</created_at></account>";
+        } else if (url.startsWith(INVOICES_URL)) {
+            body = "<invoice href=\"" + url + "\"><invoice_number type=\"integer\">" + id + "</invoice_number></invoice>";
+        } else {
+            body = "<measured_unit href=\"" + url + "\"><id type=\"integer\">" + id + "</id><name>unit-" + id + "</name></measured_unit>";
+        }
+        return StubTransport.response(200, body);
+    }
+}
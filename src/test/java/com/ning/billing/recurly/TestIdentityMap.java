@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.Invoice;
+import com.ning.billing.recurly.model.RecurlyObject;
+import com.ning.billing.recurly.model.Relation;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+public class TestIdentityMap {
+
+    private static final String ACCOUNTS_URL = "https://api.recurly.com/v2/accounts/";
+
+    private final XmlMapper xmlMapper = RecurlyObject.newXmlMapper();
+
+    private StubTransport transport;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        transport = new StubTransport(TestIdentityMap::accounts);
+    }
+
+    @Test(groups = "fast")
+    public void testLazyGetters() throws Exception {
+        final RecurlyClient recurlyClient = newClient(RecurlyClientConfig.builder()
+                                                                         .setIdentityMapMaxEntries(100)
+                                                                         .setIdentityMapTtl(10, TimeUnit.MINUTES));
+        final IdentityMap identityMap = recurlyClient.getIdentityMap();
+        Assert.assertNotNull(identityMap);
+        Assert.assertEquals(identityMap.getTtlMillis(), TimeUnit.MINUTES.toMillis(10));
+        Assert.assertEquals(identityMap.getMaxEntries(), 100);
+
+        final List<Invoice> invoices = invoices(recurlyClient, 10, 2);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(invoices.get(i).getAccount().getAccountCode(), String.valueOf(i % 2));
+            // The same instance, shared by all the invoices
+            Assert.assertSame(invoices.get(i).getAccount(), invoices.get(i % 2).getAccount());
+        }
+        Assert.assertEquals(transport.requests.size(), 2);
+        Assert.assertEquals(identityMap.getMisses(), 2);
+        Assert.assertEquals(identityMap.getHits(), 8);
+        Assert.assertEquals(identityMap.getEntries(), 2);
+
+        // Hydration is served from the map too
+        final List<Invoice> others = invoices(recurlyClient, 10, 4);
+        Assert.assertEquals(recurlyClient.hydrate(others, Relation.INVOICE_ACCOUNT), 4);
+        Assert.assertEquals(transport.requests.size(), 4);
+        Assert.assertEquals(identityMap.getEntries(), 4);
+
+        // Invalidated objects are fetched again
+        identityMap.invalidate(ACCOUNTS_URL + "0");
+        Assert.assertEquals(identityMap.getEntries(), 3);
+        Assert.assertEquals(invoices(recurlyClient, 1, 1).get(0).getAccount().getAccountCode(), "0");
+        Assert.assertEquals(transport.requests.size(), 5);
+        identityMap.invalidateAll();
+        Assert.assertEquals(identityMap.getEntries(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testWritesInvalidate() throws Exception {
+        final RecurlyClient recurlyClient = newClient(RecurlyClientConfig.builder().setIdentityMapMaxEntries(100));
+        final IdentityMap identityMap = recurlyClient.getIdentityMap();
+        final List<Invoice> invoices = invoices(recurlyClient, 2, 2);
+        invoices.forEach(Invoice::getAccount);
+        Assert.assertEquals(transport.requests.size(), 2);
+        Assert.assertEquals(identityMap.getEntries(), 2);
+
+        // The written account is fetched again, the other one is still served from the map
+        final Account update = new Account();
+        update.setCompany("Acme");
+        recurlyClient.updateAccount("0", update);
+        Assert.assertEquals(transport.requests.size(), 3);
+        Assert.assertEquals(identityMap.getEntries(), 1);
+        invoices(recurlyClient, 2, 2).forEach(Invoice::getAccount);
+        Assert.assertEquals(transport.requests.size(), 4);
+        Assert.assertEquals(transport.requests.get(3).getURI().toString(), ACCOUNTS_URL + "0");
+
+        // Writes to a resource of the account drop the account too
+        recurlyClient.clearBillingInfo("1");
+        Assert.assertEquals(transport.requests.size(), 5);
+        Assert.assertEquals(identityMap.getEntries(), 1);
+        invoices(recurlyClient, 2, 2).forEach(Invoice::getAccount);
+        Assert.assertEquals(transport.requests.size(), 6);
+        Assert.assertEquals(transport.requests.get(5).getURI().toString(), ACCOUNTS_URL + "1");
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidateByHref() throws Exception {
+        final IdentityMap identityMap = new IdentityMap(1, TimeUnit.MINUTES, 100);
+        final Account account = new Account();
+        // Loaded with two API keys
+        identityMap.put(ACCOUNTS_URL + "0", ACCOUNTS_URL + "0 key en-US " + Account.class.getName(), account);
+        identityMap.put(ACCOUNTS_URL + "0", ACCOUNTS_URL + "0 other en-US " + Account.class.getName(), account);
+        identityMap.put(ACCOUNTS_URL + "1", ACCOUNTS_URL + "1 key en-US " + Account.class.getName(), account);
+        Assert.assertEquals(identityMap.getEntries(), 3);
+        Assert.assertSame(identityMap.get(ACCOUNTS_URL + "0", ACCOUNTS_URL + "0 other en-US " + Account.class.getName(), Account.class), account);
+        Assert.assertNull(identityMap.get(ACCOUNTS_URL + "0", ACCOUNTS_URL + "0 key en-US " + Invoice.class.getName(), Invoice.class));
+
+        identityMap.invalidate(Arrays.asList(ACCOUNTS_URL + "0", ACCOUNTS_URL + "2"));
+        Assert.assertEquals(identityMap.getEntries(), 1);
+        Assert.assertNull(identityMap.get(ACCOUNTS_URL + "0", ACCOUNTS_URL + "0 key en-US " + Account.class.getName(), Account.class));
+        Assert.assertSame(identityMap.get(ACCOUNTS_URL + "1", ACCOUNTS_URL + "1 key en-US " + Account.class.getName(), Account.class), account);
+    }
+
+    @Test(groups = "fast")
+    public void testTtlAndSize() throws Exception {
+        final FakeTicker ticker = new FakeTicker();
+        final IdentityMap identityMap = new IdentityMap(1, TimeUnit.MINUTES, 2, ticker);
+        final RecurlyClient recurlyClient = newClient(RecurlyClientConfig.builder())
+                .withOptions(RequestOptions.builder().setIdentityMap(identityMap).build());
+
+        invoices(recurlyClient, 1, 1).get(0).getAccount();
+        ticker.nanos.addAndGet(TimeUnit.SECONDS.toNanos(59));
+        invoices(recurlyClient, 1, 1).get(0).getAccount();
+        Assert.assertEquals(transport.requests.size(), 1);
+        // Expired
+        ticker.nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        invoices(recurlyClient, 1, 1).get(0).getAccount();
+        Assert.assertEquals(transport.requests.size(), 2);
+
+        // Bounded
+        for (final Invoice invoice : invoices(recurlyClient, 5, 5)) {
+            invoice.getAccount();
+        }
+        Assert.assertTrue(identityMap.getEntries() <= 2, identityMap.toString());
+        Assert.assertTrue(identityMap.getEvictions() >= 3, identityMap.toString());
+
+        try {
+            new IdentityMap(1, TimeUnit.MINUTES, 0);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testScopes() throws Exception {
+        final RecurlyClient recurlyClient = newClient(RecurlyClientConfig.builder());
+        // Disabled by default
+        Assert.assertNull(recurlyClient.getIdentityMap());
+        invoices(recurlyClient, 2, 1).forEach(Invoice::getAccount);
+        Assert.assertEquals(transport.requests.size(), 2);
+
+        // Each job keeps its own objects
+        final IdentityMap first = new IdentityMap(1, TimeUnit.HOURS, 100);
+        final IdentityMap second = new IdentityMap(1, TimeUnit.HOURS, 100);
+        final RecurlyClient firstJob = recurlyClient.withOptions(RequestOptions.builder().setIdentityMap(first).build());
+        final RecurlyClient secondJob = recurlyClient.withOptions(RequestOptions.builder().setIdentityMap(second).build());
+        Assert.assertSame(firstJob.getIdentityMap(), first);
+        Assert.assertNull(recurlyClient.getIdentityMap());
+
+        invoices(firstJob, 3, 1).forEach(Invoice::getAccount);
+        Assert.assertEquals(transport.requests.size(), 3);
+        invoices(secondJob, 3, 1).forEach(Invoice::getAccount);
+        Assert.assertEquals(transport.requests.size(), 4);
+        Assert.assertEquals(first.getHits(), 2);
+        Assert.assertEquals(second.getHits(), 2);
+
+        // Keys include the API key
+        final RecurlyClient otherSite = firstJob.withOptions(RequestOptions.builder().setApiKey("other").setIdentityMap(first).build());
+        invoices(otherSite, 1, 1).get(0).getAccount();
+        Assert.assertEquals(transport.requests.size(), 5);
+    }
+
+    private RecurlyClient newClient(final RecurlyClientConfig.Builder config) {
+        final RecurlyClient recurlyClient = new RecurlyClient("key", config.setRetryPolicy(RetryPolicy.NONE).build());
+        recurlyClient.open(transport);
+        return recurlyClient;
+    }
+
+    // Invoices referencing distinct accounts, loaded through a client
+    private List<Invoice> invoices(final RecurlyClient recurlyClient, final int count, final int accounts) throws Exception {
+        final List<Invoice> invoices = new ArrayList<Invoice>();
+        for (int i = 0; i < count; i++) {
+            final Invoice invoice = xmlMapper.readValue("<invoice><invoice_number>" + i + "</invoice_number>" +
+                                                        "<account href=\"" + ACCOUNTS_URL + (i % accounts) + "\"/></invoice>", Invoice.class);
+            invoice.setRecurlyClient(recurlyClient);
+            invoices.add(invoice);
+        }
+        return invoices;
+    }
+
+    private static CloseableHttpResponse accounts(final HttpRequestBase request) {
+        final String url = request.getURI().toString();
+        final String id = url.substring(url.lastIndexOf('/') + 1);
+        return StubTransport.response(200, "<account href=\"" + url + "\"><account_code>" + id + "</account_code>" +
+                                           "<created_at type=\"datetime\">2020-01-01T00:00:00Z</created_at></account>");
+    }
+
+    private static final class FakeTicker extends Ticker {
+
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    }
+}
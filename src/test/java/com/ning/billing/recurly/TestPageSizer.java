@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestPageSizer {
+
+    private static final String ACCOUNTS = "https://api.recurly.com/v2/accounts";
+
+    @Test(groups = "fast")
+    public void testWithPerPage() throws Exception {
+        Assert.assertEquals(PageSizer.withPerPage(ACCOUNTS, 50), ACCOUNTS + "?per_page=50");
+        Assert.assertEquals(PageSizer.withPerPage(ACCOUNTS + "?state=active", 50), ACCOUNTS + "?state=active&per_page=50");
+        Assert.assertEquals(PageSizer.withPerPage(ACCOUNTS + "?per_page=20&state=active", 50), ACCOUNTS + "?per_page=50&state=active");
+        Assert.assertEquals(PageSizer.withPerPage(ACCOUNTS + "?cursor=abc&per_page=20", 200), ACCOUNTS + "?cursor=abc&per_page=200");
+    }
+
+    @Test(groups = "fast")
+    public void testGrowAndShrink() throws Exception {
+        final PageSizer pageSizer = new PageSizer(1, TimeUnit.SECONDS, 1024 * 1024);
+        Assert.assertEquals(pageSizer.withPageSize(ACCOUNTS), ACCOUNTS + "?per_page=20");
+
+        // Fast full pages: doubles, up to the API maximum
+        pageSizer.record(ACCOUNTS + "?per_page=20", 20, TimeUnit.MILLISECONDS.toNanos(100), 20 * 1000);
+        Assert.assertEquals(pageSizer.getEndpoint("GET /accounts").getPageSize(), 40);
+        pageSizer.record(ACCOUNTS + "?per_page=40", 40, TimeUnit.MILLISECONDS.toNanos(200), 40 * 1000);
+        pageSizer.record(ACCOUNTS + "?per_page=80", 80, TimeUnit.MILLISECONDS.toNanos(300), 80 * 1000);
+        pageSizer.record(ACCOUNTS + "?per_page=160", 160, TimeUnit.MILLISECONDS.toNanos(400), 160 * 1000);
+        Assert.assertEquals(pageSizer.getEndpoint("GET /accounts").getPageSize(), PageSizer.MAX_PAGE_SIZE);
+        Assert.assertEquals(pageSizer.withPageSize(ACCOUNTS + "?per_page=20&cursor=x"), ACCOUNTS + "?per_page=200&cursor=x");
+
+        // The last page of a list is not full: no change
+        pageSizer.record(ACCOUNTS + "?per_page=200", 3, TimeUnit.MILLISECONDS.toNanos(10), 3 * 1000);
+        Assert.assertEquals(pageSizer.getEndpoint("GET /accounts").getPageSize(), PageSizer.MAX_PAGE_SIZE);
+
+        // Twice slower than the target
+        pageSizer.record(ACCOUNTS + "?per_page=200", 200, TimeUnit.SECONDS.toNanos(2), 200 * 1000);
+        Assert.assertEquals(pageSizer.getEndpoint("GET /accounts").getPageSize(), 100);
+
+        Assert.assertEquals(pageSizer.getEndpoint("GET /accounts").getPages(), 6);
+        Assert.assertEquals(pageSizer.getEndpoint("GET /accounts").getBytesPerRecord(), 1000);
+        Assert.assertEquals(pageSizer.getPageSizes().get("GET /accounts"), (Integer) 100);
+        // Endpoints are independent
+        Assert.assertEquals(pageSizer.withPageSize("https://api.recurly.com/v2/accounts/abc/invoices"), "https://api.recurly.com/v2/accounts/abc/invoices?per_page=20");
+    }
+
+    @Test(groups = "fast")
+    public void testMaxPageBytes() throws Exception {
+        final PageSizer pageSizer = new PageSizer(1, TimeUnit.SECONDS, 50 * 1000);
+        // 1KB per record: 50 records at most
+        pageSizer.record(ACCOUNTS + "?per_page=20", 20, TimeUnit.MILLISECONDS.toNanos(10), 20 * 1000);
+        pageSizer.record(ACCOUNTS + "?per_page=40", 40, TimeUnit.MILLISECONDS.toNanos(10), 40 * 1000);
+        Assert.assertEquals(pageSizer.getEndpoint("GET /accounts").getPageSize(), 50);
+    }
+
+    @Test(groups = "fast")
+    public void testClient() throws Exception {
+        final StubTransport transport = new StubTransport(TestPageSizer::fullPages);
+        final RecurlyClient recurlyClient = new RecurlyClient("key", RecurlyClientConfig.builder()
+                                                                                        .setAdaptivePagingEnabled(true)
+                                                                                        // The first call pays for class loading
+                                                                                        .setPageLatencyTarget(1, TimeUnit.MINUTES)
+                                                                                        .build());
+        recurlyClient.open(transport);
+
+        recurlyClient.getAccounts();
+        Assert.assertTrue(transport.requests.get(0).getURI().toString().contains("per_page=20"));
+        // Fast full page
+        recurlyClient.getAccounts();
+        Assert.assertTrue(transport.requests.get(1).getURI().toString().contains("per_page=40"));
+        Assert.assertEquals(recurlyClient.getPageSizer().getPageSizes().get("GET /accounts"), (Integer) 80);
+        // Measured on the bodies of the pages themselves: about 45 bytes per account
+        final long bytesPerRecord = recurlyClient.getPageSizer().getEndpoint("GET /accounts").getBytesPerRecord();
+        Assert.assertTrue(bytesPerRecord >= 40 && bytesPerRecord <= 50, "bytes per record: " + bytesPerRecord);
+
+        // Not a list
+        recurlyClient.getAccount("abc");
+        Assert.assertFalse(transport.requests.get(2).getURI().toString().contains("per_page"));
+        Assert.assertNull(new RecurlyClient("key").getPageSizer());
+    }
+
+    // Returns full pages of accounts
+    private static CloseableHttpResponse fullPages(final HttpRequestBase request) {
+        final String uri = request.getURI().toString();
+        final StringBuilder body = new StringBuilder();
+        if (uri.contains("per_page=")) {
+            final int perPage = Integer.parseInt(uri.replaceAll(".*per_page=(\\d+).*", "$1"));
+            body.append("<accounts type=\"array\">");
+            for (int i = 0; i < perPage; i++) {
+                body.append("<account><account_code>").append(i).append("</account_code></account>");
+            }
+            body.append("</accounts>");
+        } else {
+            body.append("<account><account_code>abc</account_code></account>");
+        }
+        return StubTransport.response(200, body.toString());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.transport.HttpTransport;
+
+public class TestPrefetchingIterator {
+
+    @Test(groups = "fast")
+    public void testAllPages() throws Exception {
+        final StubTransport transport = new StubTransport(pages(3, 2, -1));
+        final RecurlyClient recurlyClient = newClient(transport, 1);
+
+        final Stream<Account> accounts = recurlyClient.streamAccounts(new QueryParams());
+        // Lazy
+        Assert.assertEquals(transport.requests.size(), 0);
+
+        final List<String> accountCodes = accounts.map(Account::getAccountCode).collect(Collectors.toList());
+        Assert.assertEquals(accountCodes, Arrays.asList("account-1-1", "account-1-2",
+                                                        "account-2-1", "account-2-2",
+                                                        "account-3-1", "account-3-2"));
+        Assert.assertEquals(transport.requests.size(), 3);
+        Assert.assertTrue(transport.requests.get(1).getURI().toString().endsWith("cursor=2"));
+    }
+
+    @Test(groups = "fast")
+    public void testBoundedPrefetch() throws Exception {
+        final StubTransport transport = new StubTransport(pages(10, 2, -1));
+        final RecurlyClient recurlyClient = newClient(transport, 2);
+
+        try (final Stream<Account> accounts = recurlyClient.streamAccounts(new QueryParams())) {
+            final Iterator<Account> iterator = accounts.iterator();
+            Assert.assertEquals(iterator.next().getAccountCode(), "account-1-1");
+            // The first page and the two next ones
+            awaitRequests(transport, 3);
+            Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(transport.requests.size(), 3);
+
+            // Consuming the first page fetches one more
+            iterator.next();
+            Assert.assertEquals(iterator.next().getAccountCode(), "account-2-1");
+            awaitRequests(transport, 4);
+        }
+        Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(transport.requests.size(), 4);
+    }
+
+    @Test(groups = "fast")
+    public void testMoreStreamsThanPrefetchThreads() throws Exception {
+        final StubTransport transport = new StubTransport(request -> {
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+            return pages(5, 2, -1).handle(request);
+        });
+        final RecurlyClient recurlyClient = newClient(transport, 2);
+
+        // Once the prefetch threads are all busy, the other streams fetch their pages themselves
+        final int streams = PrefetchingIterator.MAX_PREFETCH_THREADS + 16;
+        final ExecutorService consumers = Executors.newFixedThreadPool(streams);
+        try {
+            final List<Future<Long>> counts = new ArrayList<Future<Long>>();
+            for (int i = 0; i < streams; i++) {
+                counts.add(consumers.submit(() -> recurlyClient.streamAccounts(new QueryParams()).count()));
+            }
+            for (final Future<Long> count : counts) {
+                Assert.assertEquals(count.get(), (Long) 10L);
+            }
+        } finally {
+            consumers.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testNoPrefetch() throws Exception {
+        final StubTransport transport = new StubTransport(pages(3, 2, -1));
+        final RecurlyClient recurlyClient = newClient(transport, 0);
+
+        final Iterator<Account> iterator = recurlyClient.streamAccounts(new QueryParams()).iterator();
+        iterator.next();
+        iterator.next();
+        Uninterruptibles.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(transport.requests.size(), 1);
+        Assert.assertEquals(iterator.next().getAccountCode(), "account-2-1");
+        Assert.assertEquals(transport.requests.size(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testErrorOnNextPage() throws Exception {
+        final StubTransport transport = new StubTransport(pages(3, 2, 2));
+        final RecurlyClient recurlyClient = newClient(transport, 1);
+
+        final Iterator<Account> iterator = recurlyClient.streamAccounts(new QueryParams()).iterator();
+        iterator.next();
+        iterator.next();
+        try {
+            iterator.hasNext();
+            Assert.fail();
+        } catch (RecurlyAPIException e) {
+            Assert.assertEquals(e.getRecurlyError().getHttpStatusCode(), 500);
+        }
+    }
+
+    private static RecurlyClient newClient(final HttpTransport transport, final int prefetchPages) {
+        final RecurlyClient recurlyClient = new RecurlyClient("key", RecurlyClientConfig.builder()
+                                                                                        .setPrefetchPages(prefetchPages)
+                                                                                        .setRetryPolicy(RetryPolicy.NONE)
+                                                                                        .build());
+        recurlyClient.open(transport);
+        return recurlyClient;
+    }
+
+    private static void awaitRequests(final StubTransport transport, final int requests) {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (transport.requests.size() < requests && System.nanoTime() < deadline) {
+            Uninterruptibles.sleepUninterruptibly(5, TimeUnit.MILLISECONDS);
+        }
+        Assert.assertEquals(transport.requests.size(), requests);
+    }
+
+    // Serves pages of accounts, linked by a cursor parameter
+    private static StubTransport.Handler pages(final int pages, final int pageSize, final int failingPage) {
+        return request -> {
+            final String uri = request.getURI().toString();
+            final int page = uri.contains("cursor=") ? Integer.parseInt(uri.substring(uri.indexOf("cursor=") + 7)) : 1;
+            if (page == failingPage) {
+                return StubTransport.response(500, "<error><symbol>internal_server_error</symbol></error>");
+            }
+
+            final StringBuilder body = new StringBuilder("<accounts type=\"array\">");
+            for (int i = 1; i <= pageSize; i++) {
+                body.append("<account><account_code>account-").append(page).append("-").append(i).append("</account_code></account>");
+            }
+            body.append("</accounts>");
+            final StubTransport.StubHttpResponse response = StubTransport.response(200, body.toString());
+            if (page < pages) {
+                response.setHeader("Link", "<https://api.recurly.com/v2/accounts>; rel=\"start\", " +
+                                           "<https://api.recurly.com/v2/accounts?cursor=" + (page + 1) + ">; rel=\"next\"");
+            }
+            return response;
+        };
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+import com.ning.billing.recurly.RateGovernor.Priority;
+import com.ning.billing.recurly.model.Account;
+
+public class TestRateGovernor {
+
+    @Test(groups = "fast")
+    public void testUnknownBudget() {
+        final RateGovernor rateGovernor = new RateGovernor(0.1, new FakeTicker());
+        Assert.assertEquals(rateGovernor.getBudget(), -1);
+        Assert.assertEquals(rateGovernor.reserve(Priority.INTERACTIVE), 0);
+        Assert.assertEquals(rateGovernor.reserve(Priority.BACKGROUND), 0);
+        Assert.assertEquals(rateGovernor.getThrottledCalls(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testInteractiveLane() {
+        final FakeTicker ticker = new FakeTicker();
+        final RateGovernor rateGovernor = new RateGovernor(0.1, ticker);
+        rateGovernor.updateWithResetIn(100, 2, 60, TimeUnit.SECONDS);
+
+        Assert.assertEquals(rateGovernor.reserve(Priority.INTERACTIVE), 0);
+        Assert.assertEquals(rateGovernor.reserve(Priority.INTERACTIVE), 0);
+        Assert.assertEquals(rateGovernor.getBudget(), 0);
+        Assert.assertEquals(rateGovernor.getRemaining(), 2);
+
+        // Exhausted: wait for the end of the window
+        ticker.advance(15, TimeUnit.SECONDS);
+        Assert.assertEquals(rateGovernor.reserve(Priority.INTERACTIVE), TimeUnit.SECONDS.toNanos(45));
+        Assert.assertEquals(rateGovernor.getThrottledCalls(), 1);
+        Assert.assertEquals(rateGovernor.getThrottledTime(TimeUnit.SECONDS), 45);
+
+        // Window is over: calls go through until the next response
+        ticker.advance(45, TimeUnit.SECONDS);
+        Assert.assertEquals(rateGovernor.getBudget(), -1);
+        Assert.assertEquals(rateGovernor.reserve(Priority.INTERACTIVE), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testBackgroundLaneIsPacedAndLeavesReserve() {
+        final FakeTicker ticker = new FakeTicker();
+        final RateGovernor rateGovernor = new RateGovernor(0.1, ticker);
+        // 10 calls are reserved to the interactive lane, 10 are left for the background lane over 100s
+        rateGovernor.updateWithResetIn(100, 20, 100, TimeUnit.SECONDS);
+
+        Assert.assertEquals(rateGovernor.reserve(Priority.BACKGROUND), 0);
+        Assert.assertEquals(rateGovernor.reserve(Priority.BACKGROUND), TimeUnit.SECONDS.toNanos(10));
+        Assert.assertEquals(rateGovernor.reserve(Priority.BACKGROUND), TimeUnit.SECONDS.toNanos(20));
+
+        // Interactive calls are not paced
+        Assert.assertEquals(rateGovernor.reserve(Priority.INTERACTIVE), 0);
+
+        for (int i = 0; i < 6; i++) {
+            rateGovernor.reserve(Priority.BACKGROUND);
+        }
+        Assert.assertEquals(rateGovernor.getBudget(), 10);
+        // The rest of the budget is reserved to interactive calls
+        Assert.assertEquals(rateGovernor.reserve(Priority.BACKGROUND), TimeUnit.SECONDS.toNanos(100));
+        Assert.assertEquals(rateGovernor.reserve(Priority.INTERACTIVE), 0);
+        Assert.assertEquals(rateGovernor.getBudget(), 9);
+    }
+
+    @Test(groups = "fast")
+    public void testSeededFromResponses() throws Exception {
+        final RecurlyClient recurlyClient = new RecurlyClient(UUID.randomUUID().toString());
+        Assert.assertEquals(recurlyClient.getRateLimitRemaining(), -1);
+
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, null);
+        response.setEntity(new StringEntity("<account><account_code>1</account_code></account>", ContentType.APPLICATION_XML));
+        response.setHeader("X-RateLimit-Limit", "2000");
+        response.setHeader("X-RateLimit-Remaining", "1999");
+        response.setHeader("X-RateLimit-Reset", String.valueOf(System.currentTimeMillis() / 1000 + 300));
+        recurlyClient.handleXmlResponse(new HttpGet("https://api.recurly.com/v2/accounts/1"), response, Account.class);
+
+        Assert.assertEquals(recurlyClient.getRateLimitRemaining(), 1999);
+        Assert.assertEquals(recurlyClient.getRateGovernor().getLimit(), 2000);
+        Assert.assertEquals(recurlyClient.getRateGovernor().getBudget(), 1999);
+
+        // Rate limited responses update the budget too
+        final BasicHttpResponse tooManyRequests = new BasicHttpResponse(HttpVersion.HTTP_1_1, 429, null);
+        tooManyRequests.setEntity(new StringEntity("<error><symbol>rate_limited</symbol></error>", ContentType.APPLICATION_XML));
+        tooManyRequests.setHeader("X-RateLimit-Remaining", "0");
+        try {
+            recurlyClient.handleXmlResponse(new HttpGet("https://api.recurly.com/v2/accounts/1"), tooManyRequests, Account.class);
+            Assert.fail();
+        } catch (RecurlyAPIException e) {
+            Assert.assertEquals(e.getRecurlyError().getHttpStatusCode(), 429);
+        }
+        Assert.assertEquals(recurlyClient.getRateLimitRemaining(), 0);
+        Assert.assertEquals(recurlyClient.getRateGovernor().getBudget(), 0);
+    }
+
+    private static final class FakeTicker extends Ticker {
+
+        private long nanos = 1000;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(final long duration, final TimeUnit unit) {
+            nanos += unit.toNanos(duration);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestRecurlyClientConfig {
+
+    @Test(groups = "fast")
+    public void testDefaults() throws Exception {
+        final RecurlyClient recurlyClient = new RecurlyClient(UUID.randomUUID().toString(), "api");
+        Assert.assertSame(recurlyClient.getConfig(), RecurlyClientConfig.defaults());
+
+        final RequestConfig requestConfig = prepareRequest(recurlyClient).getConfig();
+        Assert.assertEquals(requestConfig.getConnectTimeout(), 5000);
+        Assert.assertEquals(requestConfig.getSocketTimeout(), 60000);
+        Assert.assertEquals(requestConfig.getConnectionRequestTimeout(), -1);
+
+        final PoolingHttpClientConnectionManager connectionManager = recurlyClient.createConnectionManager();
+        Assert.assertEquals(connectionManager.getDefaultMaxPerRoute(), 100);
+        Assert.assertEquals(connectionManager.getMaxTotal(), 200);
+        connectionManager.close();
+
+        Assert.assertFalse(RecurlyClientConfig.defaults().hasConnectionEvictor());
+        // Retries are opted into
+        Assert.assertSame(RecurlyClientConfig.defaults().getRetryPolicy(), RetryPolicy.NONE);
+    }
+
+    @Test(groups = "fast")
+    public void testCustomConfig() throws Exception {
+        final RecurlyClientConfig config = RecurlyClientConfig.builder()
+                                                              .setMaxConnectionsPerRoute(10)
+                                                              .setMaxConnectionsTotal(20)
+                                                              .setConnectTimeout(1, TimeUnit.SECONDS)
+                                                              .setSocketTimeout(30, TimeUnit.SECONDS)
+                                                              .setConnectionRequestTimeout(500, TimeUnit.MILLISECONDS)
+                                                              .setKeepAlive(30, TimeUnit.SECONDS)
+                                                              .setConnectionTimeToLive(5, TimeUnit.MINUTES)
+                                                              .setEvictIdleConnectionsAfter(20, TimeUnit.SECONDS)
+                                                              .build();
+        Assert.assertEquals(config.getConnectionTimeToLiveMillis(), 300000);
+        Assert.assertEquals(config.getEvictIdleConnectionsAfterMillis(), 20000);
+        Assert.assertTrue(config.hasConnectionEvictor());
+
+        final RecurlyClient recurlyClient = new RecurlyClient(UUID.randomUUID().toString(), "api", config);
+        final RequestConfig requestConfig = prepareRequest(recurlyClient).getConfig();
+        Assert.assertEquals(requestConfig.getConnectTimeout(), 1000);
+        Assert.assertEquals(requestConfig.getSocketTimeout(), 30000);
+        Assert.assertEquals(requestConfig.getConnectionRequestTimeout(), 500);
+
+        final PoolingHttpClientConnectionManager connectionManager = recurlyClient.createConnectionManager();
+        Assert.assertEquals(connectionManager.getDefaultMaxPerRoute(), 10);
+        Assert.assertEquals(connectionManager.getMaxTotal(), 20);
+        connectionManager.close();
+
+        // The client can be opened and closed with the evictor thread
+        recurlyClient.open();
+        recurlyClient.close();
+    }
+
+    @Test(groups = "fast")
+    public void testKeepAliveStrategy() throws Exception {
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, null);
+        Assert.assertEquals(RecurlyClientConfig.defaults().getKeepAliveStrategy().getKeepAliveDuration(response, new BasicHttpContext()), -1);
+
+        final RecurlyClientConfig config = RecurlyClientConfig.builder().setKeepAlive(30, TimeUnit.SECONDS).build();
+        Assert.assertEquals(config.getKeepAliveStrategy().getKeepAliveDuration(response, new BasicHttpContext()), 30000);
+
+        response.setHeader("Keep-Alive", "timeout=10");
+        Assert.assertEquals(config.getKeepAliveStrategy().getKeepAliveDuration(response, new BasicHttpContext()), 10000);
+        response.setHeader("Keep-Alive", "timeout=60");
+        Assert.assertEquals(config.getKeepAliveStrategy().getKeepAliveDuration(response, new BasicHttpContext()), 30000);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidPoolSizes() {
+        RecurlyClientConfig.builder().setMaxConnectionsPerRoute(50).setMaxConnectionsTotal(10).build();
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testTooManyWarmUpConnections() {
+        RecurlyClientConfig.builder().setMaxConnectionsPerRoute(10).setWarmUpConnections(20).build();
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testNegativeTimeout() {
+        RecurlyClientConfig.builder().setSocketTimeout(-1, TimeUnit.SECONDS);
+    }
+
+    private static HttpGet prepareRequest(final RecurlyClient recurlyClient) {
+        final HttpGet request = new HttpGet("https://api.recurly.com/v2/accounts");
+        recurlyClient.prepareXmlRequest(request);
+        return request;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.net.URI;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.ning.billing.recurly.model.Account;
+
+public class TestRecurlyClientFactory {
+
+    private RecurlyClientFactory factory;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        factory = new RecurlyClientFactory(RecurlyClientConfig.builder()
+                                                              .setMaxConnectionsPerRoute(10)
+                                                              .setMaxConnectionsTotal(50)
+                                                              .build());
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        factory.close();
+    }
+
+    @Test(groups = "fast")
+    public void testClientsPerSite() throws Exception {
+        final RecurlyClient site1 = factory.getClient("key1", "site1");
+        final RecurlyClient site2 = factory.getClient("key2", "site2");
+
+        Assert.assertSame(factory.getClient("key1", "site1"), site1);
+        Assert.assertNotSame(site2, site1);
+        Assert.assertEquals(site1.constructUrl(Account.ACCOUNT_RESOURCE), "https://site1.recurly.com:443/v2/accounts");
+
+        // Shared pool and metrics, separate rate limits
+        Assert.assertSame(site2.getTransferMetrics(), site1.getTransferMetrics());
+        Assert.assertSame(factory.getRateGovernor("site1"), site1.getRateGovernor());
+        Assert.assertNotSame(site2.getRateGovernor(), site1.getRateGovernor());
+    }
+
+    @Test(groups = "fast")
+    public void testMaxClients() throws Exception {
+        final RecurlyClientFactory bounded = new RecurlyClientFactory(RecurlyClientConfig.defaults(), 10);
+        for (int i = 0; i < 100; i++) {
+            bounded.getClient("key" + i, "site" + i);
+        }
+        Assert.assertTrue(bounded.getClientCount() <= 10, "clients: " + bounded.getClientCount());
+
+        // Dropped clients are created again
+        final RecurlyClient client = bounded.getClient("key0", "site0");
+        Assert.assertSame(bounded.getClient("key0", "site0"), client);
+        Assert.assertEquals(client.constructUrl(Account.ACCOUNT_RESOURCE), "https://site0.recurly.com:443/v2/accounts");
+
+        try {
+            new RecurlyClientFactory(RecurlyClientConfig.defaults(), 0);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testMaxConnectionsPerSite() throws Exception {
+        factory.setMaxConnections("noisy", 2);
+        factory.open();
+        factory.setMaxConnections("busy", 20);
+
+        Assert.assertEquals(factory.getConnectionManager().getMaxTotal(), 50);
+        Assert.assertEquals(factory.getConnectionManager().getMaxPerRoute(RecurlyClientFactory.route("noisy")), 2);
+        Assert.assertEquals(factory.getConnectionManager().getMaxPerRoute(RecurlyClientFactory.route("busy")), 20);
+        Assert.assertEquals(factory.getConnectionManager().getMaxPerRoute(RecurlyClientFactory.route("quiet")), 10);
+        Assert.assertEquals(factory.getMaxConnections("quiet"), 10);
+    }
+
+    @Test(groups = "fast")
+    public void testRouteOfSite() throws Exception {
+        // The quotas only apply if they are set on the route the http client computes for the calls of the site
+        final URI uri = URI.create(factory.getClient("key", "site1").constructUrl(Account.ACCOUNT_RESOURCE));
+        Assert.assertEquals(new DefaultRoutePlanner(null).determineRoute(URIUtils.extractHost(uri), new HttpGet(uri), HttpClientContext.create()),
+                            RecurlyClientFactory.route("site1"));
+    }
+}
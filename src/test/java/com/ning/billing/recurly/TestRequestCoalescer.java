@@ -0,0 +1,179 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.ning.billing.recurly.model.Account;
+
+public class TestRequestCoalescer {
+
+    @Test(groups = "fast")
+    public void testIdenticalCallsShareTheInFlightCall() throws Exception {
+        final RequestCoalescer requestCoalescer = new RequestCoalescer();
+        final CompletableFuture<String> inFlightCall = new CompletableFuture<String>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        final CompletableFuture<String> first = requestCoalescer.execute("a", () -> {
+            calls.incrementAndGet();
+            return inFlightCall;
+        });
+        final CompletableFuture<String> second = requestCoalescer.execute("a", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        final CompletableFuture<String> other = requestCoalescer.execute("b", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("b");
+        });
+        Assert.assertEquals(other.get(), "b");
+        Assert.assertEquals(requestCoalescer.getInFlightCalls(), 1);
+
+        // Cancelling one caller does not affect the others
+        final CompletableFuture<String> cancelled = requestCoalescer.execute("a", () -> inFlightCall);
+        cancelled.cancel(false);
+
+        inFlightCall.complete("a");
+        Assert.assertEquals(first.get(), "a");
+        Assert.assertEquals(second.get(), "a");
+        Assert.assertEquals(calls.get(), 2);
+        Assert.assertEquals(requestCoalescer.getCalls(), 2);
+        Assert.assertEquals(requestCoalescer.getCoalescedCalls(), 2);
+        Assert.assertEquals(requestCoalescer.getInFlightCalls(), 0);
+
+        // Nothing is cached
+        Assert.assertEquals(requestCoalescer.execute("a", () -> CompletableFuture.completedFuture("again")).get(), "again");
+    }
+
+    @Test(groups = "fast")
+    public void testExceptionsAreShared() throws Exception {
+        final RequestCoalescer requestCoalescer = new RequestCoalescer();
+        final CompletableFuture<String> inFlightCall = new CompletableFuture<String>();
+        final CompletableFuture<String> first = requestCoalescer.execute("a", () -> inFlightCall);
+        final CompletableFuture<String> second = requestCoalescer.execute("a", () -> inFlightCall);
+
+        final RecurlyAPIException exception = new RecurlyAPIException(null);
+        inFlightCall.completeExceptionally(exception);
+        for (final CompletableFuture<String> future : new CompletableFuture[]{first, second}) {
+            try {
+                future.get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertSame(e.getCause(), exception);
+            }
+            // Not wrapped in a CompletionException, as for calls which were not coalesced
+            Assert.assertSame(future.handle((result, throwable) -> throwable).get(), exception);
+        }
+
+        // Failures of calls completed by a dependent stage are unwrapped too
+        final CompletableFuture<String> source = new CompletableFuture<String>();
+        final CompletableFuture<String> third = requestCoalescer.execute("b", () -> source.thenApply(result -> result));
+        final CompletableFuture<String> fourth = requestCoalescer.execute("b", () -> source);
+        source.completeExceptionally(exception);
+        Assert.assertSame(third.handle((result, throwable) -> throwable).get(), exception);
+        Assert.assertSame(fourth.handle((result, throwable) -> throwable).get(), exception);
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentGets() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final BlockingHttpClient httpClient = new BlockingHttpClient(latch);
+        final RecurlyClientConfig config = RecurlyClientConfig.builder().setRequestCoalescingEnabled(true).build();
+        final RecurlyClient recurlyClient = new RecurlyClient(UUID.randomUUID().toString(), config);
+        recurlyClient.open(httpClient);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            final List<Future<Account>> accounts = new ArrayList<Future<Account>>();
+            for (int i = 0; i < 5; i++) {
+                accounts.add(executor.submit(() -> recurlyClient.getAccount("1")));
+            }
+            // Wait for all the calls to be issued
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (recurlyClient.getRequestCoalescer().getCoalescedCalls() < 4 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            latch.countDown();
+
+            for (final Future<Account> account : accounts) {
+                Assert.assertEquals(account.get().getAccountCode(), "1");
+            }
+            Assert.assertEquals(httpClient.requests.get(), 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static final class BlockingHttpClient extends CloseableHttpClient {
+
+        private final CountDownLatch latch;
+        private final AtomicInteger requests = new AtomicInteger();
+
+        private BlockingHttpClient(final CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        protected CloseableHttpResponse doExecute(final HttpHost target, final HttpRequest request, final HttpContext context) throws IOException {
+            requests.incrementAndGet();
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return StubTransport.response(200, "<account><account_code>1</account_code></account>");
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        @Deprecated
+        public HttpParams getParams() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        @Deprecated
+        public ClientConnectionManager getConnectionManager() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
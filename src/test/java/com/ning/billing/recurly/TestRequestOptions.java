@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.ning.billing.recurly.model.Account;
+
+public class TestRequestOptions {
+
+    private final RecurlyClient recurlyClient = new RecurlyClient("defaultKey", "api");
+
+    @Test(groups = "fast")
+    public void testDefaults() throws Exception {
+        final HttpRequestBase request = prepare(recurlyClient.withOptions(RequestOptions.builder().build()), new HttpGet(recurlyClient.constructUrl("/accounts")));
+
+        Assert.assertEquals(request.getURI().getHost(), "api.recurly.com");
+        Assert.assertEquals(request.getFirstHeader(HttpHeaders.AUTHORIZATION).getValue(), authorization("defaultKey"));
+        Assert.assertEquals(request.getFirstHeader(HttpHeaders.ACCEPT_LANGUAGE).getValue(), "en-US");
+        Assert.assertEquals(request.getConfig().getSocketTimeout(), RecurlyClientConfig.DEFAULT_SOCKET_TIMEOUT_MILLIS);
+        Assert.assertNull(request.getFirstHeader(ExponentialBackoffRetryPolicy.IDEMPOTENCY_KEY_HEADER_NAME));
+    }
+
+    @Test(groups = "fast")
+    public void testOverrides() throws Exception {
+        final RecurlyClient tenantClient = recurlyClient.withOptions(RequestOptions.builder()
+                                                                                   .setApiKey("tenantKey")
+                                                                                   .setSubDomain("tenant")
+                                                                                   .setAcceptLanguage("fr-FR")
+                                                                                   .setSocketTimeout(2, TimeUnit.SECONDS)
+                                                                                   .setIdempotencyKey("create-account-1")
+                                                                                   .build());
+
+        final HttpRequestBase post = prepare(tenantClient, new HttpPost(tenantClient.constructUrl(Account.ACCOUNT_RESOURCE)));
+        Assert.assertEquals(post.getURI().toString(), "https://tenant.recurly.com:443/v2/accounts");
+        Assert.assertEquals(post.getFirstHeader(HttpHeaders.AUTHORIZATION).getValue(), authorization("tenantKey"));
+        Assert.assertEquals(post.getFirstHeader(HttpHeaders.ACCEPT_LANGUAGE).getValue(), "fr-FR");
+        Assert.assertEquals(post.getFirstHeader(ExponentialBackoffRetryPolicy.IDEMPOTENCY_KEY_HEADER_NAME).getValue(), "create-account-1");
+        Assert.assertEquals(post.getConfig().getSocketTimeout(), 2000);
+        Assert.assertEquals(post.getConfig().getConnectTimeout(), RecurlyClientConfig.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+
+        // Lazy-loading GET calls are not tied to the operation
+        Assert.assertNull(prepare(tenantClient, new HttpGet(tenantClient.constructUrl(Account.ACCOUNT_RESOURCE))).getFirstHeader(ExponentialBackoffRetryPolicy.IDEMPOTENCY_KEY_HEADER_NAME));
+
+        // The client itself is left untouched
+        final HttpRequestBase request = prepare(recurlyClient, new HttpGet(recurlyClient.constructUrl(Account.ACCOUNT_RESOURCE)));
+        Assert.assertEquals(request.getFirstHeader(HttpHeaders.AUTHORIZATION).getValue(), authorization("defaultKey"));
+        Assert.assertEquals(request.getFirstHeader(HttpHeaders.ACCEPT_LANGUAGE).getValue(), "en-US");
+    }
+
+    @Test(groups = "fast")
+    public void testRateGovernorPerSite() throws Exception {
+        final RecurlyClient sameSite = recurlyClient.withOptions(RequestOptions.builder().setApiKey("otherKey").build());
+        final RecurlyClient otherSite = recurlyClient.withOptions(RequestOptions.builder().setSubDomain("tenant").build());
+
+        Assert.assertSame(sameSite.getRateGovernor(), recurlyClient.getRateGovernor());
+        Assert.assertNotSame(otherSite.getRateGovernor(), recurlyClient.getRateGovernor());
+        Assert.assertSame(recurlyClient.withOptions(RequestOptions.builder().setSubDomain("tenant").build()).getRateGovernor(), otherSite.getRateGovernor());
+
+        // Calls with another key must not share in-flight calls
+        Assert.assertNotEquals(sameSite.coalescingKey(Account.class, "https://api.recurly.com/v2/accounts/1"),
+                               recurlyClient.coalescingKey(Account.class, "https://api.recurly.com/v2/accounts/1"));
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalStateException.class)
+    public void testViewsCannotBeClosed() throws Exception {
+        recurlyClient.withOptions(RequestOptions.builder().build()).close();
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testSubDomainWithoutDomain() throws Exception {
+        new RecurlyClient("key", "http", "localhost", 8080, "v2").withOptions(RequestOptions.builder().setSubDomain("tenant").build());
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidTimeout() throws Exception {
+        RequestOptions.builder().setSocketTimeout(-1, TimeUnit.SECONDS);
+    }
+
+    private static HttpRequestBase prepare(final RecurlyClient client, final HttpRequestBase request) {
+        client.prepareXmlRequest(request);
+        return request;
+    }
+
+    private static String authorization(final String apiKey) {
+        return "Basic " + BaseEncoding.base64().encode(apiKey.getBytes(Charsets.UTF_8));
+    }
+}
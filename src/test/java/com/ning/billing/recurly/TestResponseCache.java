@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import org.apache.http.HttpHeaders;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.ning.billing.recurly.model.Plan;
+
+public class TestResponseCache {
+
+    private static final String PLAN = "<plan href=\"https://api.recurly.com/v2/plans/gold\"><plan_code>gold</plan_code><name>Gold plan</name></plan>";
+
+    private StubTransport transport;
+    private RecurlyClient recurlyClient;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        transport = new StubTransport();
+        recurlyClient = new RecurlyClient("key", RecurlyClientConfig.builder()
+                                                                    .setResponseCacheMaxBytes(1024)
+                                                                    .setRetryPolicy(RetryPolicy.NONE)
+                                                                    .build());
+        recurlyClient.open(transport);
+    }
+
+    @Test(groups = "fast")
+    public void testRevalidation() throws Exception {
+        transport.respond(200, PLAN).setHeader(HttpHeaders.ETAG, "\"v1\"");
+        final Plan plan = recurlyClient.getPlan("gold");
+        Assert.assertEquals(plan.getName(), "Gold plan");
+        Assert.assertNull(transport.requests.get(0).getFirstHeader(HttpHeaders.IF_NONE_MATCH));
+
+        transport.respond(304, "");
+        Assert.assertSame(recurlyClient.getPlan("gold"), plan);
+        Assert.assertEquals(transport.requests.get(1).getFirstHeader(HttpHeaders.IF_NONE_MATCH).getValue(), "\"v1\"");
+
+        // The plan changed
+        transport.respond(200, PLAN.replace("Gold plan", "Golden plan")).setHeader(HttpHeaders.ETAG, "\"v2\"");
+        Assert.assertEquals(recurlyClient.getPlan("gold").getName(), "Golden plan");
+        transport.respond(304, "");
+        Assert.assertEquals(recurlyClient.getPlan("gold").getName(), "Golden plan");
+        Assert.assertEquals(transport.requests.get(3).getFirstHeader(HttpHeaders.IF_NONE_MATCH).getValue(), "\"v2\"");
+
+        final ResponseCache responseCache = recurlyClient.getResponseCache();
+        Assert.assertEquals(responseCache.getHits(), 2);
+        Assert.assertEquals(responseCache.getMisses(), 2);
+        Assert.assertEquals(responseCache.getSavedBytes(), PLAN.getBytes(Charsets.UTF_8).length + PLAN.getBytes(Charsets.UTF_8).length + 2);
+        Assert.assertEquals(responseCache.getEntries(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testLastModified() throws Exception {
+        transport.respond(200, PLAN).setHeader(HttpHeaders.LAST_MODIFIED, "Wed, 21 Oct 2015 07:28:00 GMT");
+        recurlyClient.getPlan("gold");
+
+        transport.respond(304, "");
+        recurlyClient.getPlan("gold");
+        Assert.assertEquals(transport.requests.get(1).getFirstHeader(HttpHeaders.IF_MODIFIED_SINCE).getValue(), "Wed, 21 Oct 2015 07:28:00 GMT");
+        Assert.assertEquals(recurlyClient.getResponseCache().getHits(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testNoValidators() throws Exception {
+        transport.respond(200, PLAN);
+        transport.respond(200, PLAN);
+        recurlyClient.getPlan("gold");
+        recurlyClient.getPlan("gold");
+
+        Assert.assertNull(transport.requests.get(1).getFirstHeader(HttpHeaders.IF_NONE_MATCH));
+        Assert.assertEquals(recurlyClient.getResponseCache().getEntries(), 0);
+        Assert.assertEquals(recurlyClient.getResponseCache().getMisses(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testBoundedSize() throws Exception {
+        // Each plan takes about 110 bytes out of 1024
+        for (int i = 0; i < 20; i++) {
+            transport.respond(200, PLAN.replace("gold", "gold" + i)).setHeader(HttpHeaders.ETAG, "\"" + i + "\"");
+            recurlyClient.getPlan("gold" + i);
+        }
+
+        final ResponseCache responseCache = recurlyClient.getResponseCache();
+        Assert.assertTrue(responseCache.getEntries() < 10, responseCache.toString());
+        Assert.assertTrue(responseCache.getEvictions() > 10, responseCache.toString());
+    }
+
+    @Test(groups = "fast")
+    public void testDisabledByDefault() throws Exception {
+        Assert.assertNull(new RecurlyClient("key").getResponseCache());
+    }
+}
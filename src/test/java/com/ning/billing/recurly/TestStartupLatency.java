@@ -0,0 +1,226 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * Compares the latency of the first burst of calls after startup, with a cold pool and with a pool warmed
+ * up by {@link ConnectionWarmUp}, against a local HTTPS server.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+public class TestStartupLatency {
+
+    private static final Logger log = LoggerFactory.getLogger(TestStartupLatency.class);
+
+    private static final int CONCURRENT_CALLS = 32;
+    private static final int ROUNDS = 5;
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private final RecurlyClientConfig config = RecurlyClientConfig.builder()
+                                                                  .setMaxConnectionsPerRoute(CONCURRENT_CALLS)
+                                                                  .build();
+
+    private File keyStoreFile;
+    private SSLContext sslContext;
+    private HttpsServer server;
+    private ExecutorService serverExecutor;
+    private ExecutorService callers;
+    private String baseUrl;
+
+    @BeforeClass(groups = "benchmark")
+    public void setUp() throws Exception {
+        keyStoreFile = new File(Files.createTempDir(), "localhost.jks");
+        generateKeyStore(keyStoreFile);
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        final InputStream in = new FileInputStream(keyStoreFile);
+        try {
+            keyStore.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, PASSWORD);
+        final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+        sslContext = SSLContext.getInstance("TLSv1.2");
+        sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+
+        server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+        server.createContext("/v2", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final byte[] body = "<accounts type=\"array\"/>".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(CONCURRENT_CALLS);
+        server.setExecutor(serverExecutor);
+        server.start();
+        baseUrl = "https://127.0.0.1:" + server.getAddress().getPort() + "/v2";
+        callers = Executors.newFixedThreadPool(CONCURRENT_CALLS);
+    }
+
+    @AfterClass(groups = "benchmark")
+    public void tearDown() throws Exception {
+        callers.shutdown();
+        server.stop(0);
+        serverExecutor.shutdown();
+        keyStoreFile.delete();
+    }
+
+    @Test(groups = "benchmark")
+    public void testFirstCallsLatency() throws Exception {
+        // Warm up the JIT and the server
+        firstCalls(false);
+        firstCalls(true);
+
+        final List<Long> cold = new ArrayList<Long>();
+        final List<Long> warm = new ArrayList<Long>();
+        for (int i = 0; i < ROUNDS; i++) {
+            cold.addAll(firstCalls(false));
+            warm.addAll(firstCalls(true));
+        }
+        Collections.sort(cold);
+        Collections.sort(warm);
+        log.info("First {} concurrent calls: cold pool p50={}us p99={}us, warm pool p50={}us p99={}us",
+                 CONCURRENT_CALLS, percentile(cold, 50), percentile(cold, 99), percentile(warm, 50), percentile(warm, 99));
+        Assert.assertTrue(percentile(warm, 50) < percentile(cold, 50));
+    }
+
+    /**
+     * @return the latencies of a burst of concurrent calls on a new pool, in microseconds
+     */
+    private List<Long> firstCalls(final boolean warmUp) throws Exception {
+        // Every round starts from scratch: new pool, new TLS session cache
+        final SSLContext clientSslContext = SSLContext.getInstance("TLSv1.2");
+        final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        final InputStream in = new FileInputStream(keyStoreFile);
+        try {
+            keyStore.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+        trustManagerFactory.init(keyStore);
+        clientSslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                               .register("https", new SSLConnectionSocketFactory(clientSslContext, NoopHostnameVerifier.INSTANCE))
+                               .build());
+        connectionManager.setDefaultMaxPerRoute(CONCURRENT_CALLS);
+        connectionManager.setMaxTotal(CONCURRENT_CALLS);
+        final CloseableHttpClient httpClient = new RecurlyClient("key", config).createHttpClient(connectionManager);
+        try {
+            if (warmUp) {
+                // Happens in RecurlyClient#open(), before the application takes traffic
+                Assert.assertEquals(new ConnectionWarmUp(connectionManager, config).warmUp(baseUrl, CONCURRENT_CALLS), CONCURRENT_CALLS);
+            }
+
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (int i = 0; i < CONCURRENT_CALLS; i++) {
+                results.add(callers.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        start.await();
+                        final long startNanos = System.nanoTime();
+                        final CloseableHttpResponse response = httpClient.execute(new HttpGet(baseUrl + "/accounts"));
+                        try {
+                            EntityUtils.consume(response.getEntity());
+                        } finally {
+                            response.close();
+                        }
+                        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+                    }
+                }));
+            }
+            start.countDown();
+
+            final List<Long> latencies = new ArrayList<Long>();
+            for (final Future<Long> result : results) {
+                latencies.add(result.get());
+            }
+            return latencies;
+        } finally {
+            httpClient.close();
+        }
+    }
+
+    private static long percentile(final List<Long> sortedValues, final int percentile) {
+        return sortedValues.get(Math.min(sortedValues.size() - 1, sortedValues.size() * percentile / 100));
+    }
+
+    private static void generateKeyStore(final File keyStoreFile) throws Exception {
+        final Process keytool = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+                                                   "-genkeypair", "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+                                                   "-alias", "localhost", "-dname", "CN=localhost",
+                                                   "-ext", "SAN=ip:127.0.0.1",
+                                                   "-keystore", keyStoreFile.getPath(), "-storetype", "JKS",
+                                                   "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                .redirectErrorStream(true)
+                .start();
+        Assert.assertEquals(keytool.waitFor(), 0, "keytool failed");
+    }
+}
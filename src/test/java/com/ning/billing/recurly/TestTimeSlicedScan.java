@@ -0,0 +1,204 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ning.billing.recurly.model.Transaction;
+
+public class TestTimeSlicedScan {
+
+    private static final DateTime BEGIN = new DateTime(2020, 1, 1, 0, 0, DateTimeZone.UTC);
+    private static final DateTime END = BEGIN.plusDays(10);
+
+    @Test(groups = "fast")
+    public void testScanInOrder() throws Exception {
+        // One transaction per hour, and a burst of one per second at the start of the third window
+        final List<DateTime> createdAts = new ArrayList<DateTime>();
+        for (DateTime createdAt = BEGIN; createdAt.isBefore(END); createdAt = createdAt.plusHours(1)) {
+            createdAts.add(createdAt);
+            if (createdAt.getDayOfMonth() == 5 && createdAt.getHourOfDay() == 0) {
+                for (int i = 1; i < 600; i++) {
+                    createdAts.add(createdAt.plusSeconds(i));
+                }
+            }
+        }
+        final StubTransport transport = new StubTransport(transactions(createdAts, 20));
+        final RecurlyClient recurlyClient = new RecurlyClient("key", RecurlyClientConfig.builder()
+                                                                                        .setRetryPolicy(RetryPolicy.NONE)
+                                                                                        .build());
+        recurlyClient.open(transport);
+
+        final TimeSlicedScan<Transaction> scan = TimeSlicedScan.builder(params -> recurlyClient.getTransactions(null, null, params),
+                                                                        Transaction::getCreatedAt)
+                                                               .setRange(BEGIN, END)
+                                                               .setWindows(5)
+                                                               .setParallelism(4)
+                                                               .setMaxPagesPerWindow(5)
+                                                               .build();
+        final List<DateTime> scanned;
+        try (final Stream<Transaction> transactions = scan.stream()) {
+            scanned = transactions.map(transaction -> transaction.getCreatedAt().withZone(DateTimeZone.UTC)).collect(Collectors.toList());
+        }
+
+        Assert.assertEquals(scanned, createdAts);
+        Assert.assertEquals(scan.getRecords(), createdAts.size());
+        // The burst was split off its window
+        Assert.assertTrue(scan.getSplits() > 0, scan.toString());
+        Assert.assertTrue(transport.maxInFlight.get() > 1);
+        for (final HttpRequestBase request : transport.requests) {
+            final Map<String, String> params = params(request);
+            Assert.assertEquals(params.get("sort"), "created_at");
+            Assert.assertEquals(params.get("order"), "asc");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testEarlyClose() throws Exception {
+        final List<DateTime> createdAts = new ArrayList<DateTime>();
+        for (DateTime createdAt = BEGIN; createdAt.isBefore(END); createdAt = createdAt.plusMinutes(1)) {
+            createdAts.add(createdAt);
+        }
+        final StubTransport transport = new StubTransport(transactions(createdAts, 20));
+        final RecurlyClient recurlyClient = new RecurlyClient("key");
+        recurlyClient.open(transport);
+
+        final TimeSlicedScan<Transaction> scan = TimeSlicedScan.builder(params -> recurlyClient.getTransactions(null, null, params),
+                                                                        Transaction::getCreatedAt)
+                                                               .setRange(BEGIN, END)
+                                                               .setWindows(10)
+                                                               .setParallelism(2)
+                                                               .setMaxBufferedPages(2)
+                                                               .setMaxPagesPerWindow(Integer.MAX_VALUE)
+                                                               .build();
+        try (final Stream<Transaction> transactions = scan.stream()) {
+            Assert.assertEquals(transactions.limit(50).count(), 50);
+        }
+        Uninterruptibles.sleepUninterruptibly(300, TimeUnit.MILLISECONDS);
+        final int requests = transport.requests.size();
+        // 3 pages consumed, and for each of the two windows started, at most 3 pages queued and 1 waiting for room
+        Assert.assertTrue(requests <= 3 + 2 * 4, "requests: " + requests);
+        Uninterruptibles.sleepUninterruptibly(300, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(transport.requests.size(), requests);
+    }
+
+    @Test(groups = "fast")
+    public void testFailedPage() throws Exception {
+        final List<DateTime> createdAts = new ArrayList<DateTime>();
+        for (DateTime createdAt = BEGIN; createdAt.isBefore(END); createdAt = createdAt.plusMinutes(1)) {
+            createdAts.add(createdAt);
+        }
+        final StubTransport.Handler transactions = transactions(createdAts, 20);
+        final StubTransport transport = new StubTransport(request -> {
+            if (request.getURI().toString().contains("cursor=40")) {
+                // Not a connection error: the client yields a null page
+                throw new SocketException("Connection reset");
+            }
+            return transactions.handle(request);
+        });
+        final RecurlyClient recurlyClient = new RecurlyClient("key", RecurlyClientConfig.builder()
+                                                                                        .setRetryPolicy(RetryPolicy.NONE)
+                                                                                        .build());
+        recurlyClient.open(transport);
+
+        final TimeSlicedScan<Transaction> scan = TimeSlicedScan.builder(params -> recurlyClient.getTransactions(null, null, params),
+                                                                        Transaction::getCreatedAt)
+                                                               .setRange(BEGIN, END)
+                                                               .setWindows(10)
+                                                               .setMaxPagesPerWindow(Integer.MAX_VALUE)
+                                                               .build();
+        final List<Transaction> scanned = new ArrayList<Transaction>();
+        try (final Stream<Transaction> stream = scan.stream()) {
+            stream.forEach(scanned::add);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("cursor=40"), e.getMessage());
+        }
+        // The pages before the failed one
+        Assert.assertEquals(scanned.size(), 40);
+
+        // A failed first page too
+        try (final Stream<Transaction> stream = TimeSlicedScan.builder(params -> null, Transaction::getCreatedAt).setRange(BEGIN, END).build().stream()) {
+            stream.count();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("first page"), e.getMessage());
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidRange() throws Exception {
+        TimeSlicedScan.builder(params -> null, Transaction::getCreatedAt).setRange(END, BEGIN);
+    }
+
+    private static Map<String, String> params(final HttpRequestBase request) {
+        final Map<String, String> params = new HashMap<String, String>();
+        for (final NameValuePair pair : URLEncodedUtils.parse(request.getURI(), "UTF-8")) {
+            params.put(pair.getName(), pair.getValue());
+        }
+        return params;
+    }
+
+    // Serves transactions filtered by begin_time and end_time (both inclusive), paginated by an offset cursor
+    private static StubTransport.Handler transactions(final List<DateTime> createdAts, final int pageSize) {
+        return request -> {
+            // Let other windows overlap
+            Uninterruptibles.sleepUninterruptibly(2, TimeUnit.MILLISECONDS);
+            final Map<String, String> params = params(request);
+            final DateTime beginTime = DateTime.parse(params.get("begin_time"));
+            final DateTime endTime = DateTime.parse(params.get("end_time"));
+            final int offset = params.containsKey("cursor") ? Integer.parseInt(params.get("cursor")) : 0;
+
+            final List<DateTime> matching = new ArrayList<DateTime>();
+            for (final DateTime createdAt : createdAts) {
+                if (!createdAt.isBefore(beginTime) && !createdAt.isAfter(endTime)) {
+                    matching.add(createdAt);
+                }
+            }
+            final StringBuilder body = new StringBuilder("<transactions type=\"array\">");
+            for (int i = offset; i < Math.min(offset + pageSize, matching.size()); i++) {
+                body.append("<transaction><uuid>").append(i).append("</uuid><created_at type=\"datetime\">")
+                    .append(matching.get(i)).append("</created_at></transaction>");
+            }
+            body.append("</transactions>");
+
+            final StubTransport.StubHttpResponse response = StubTransport.response(200, body.toString());
+            if (offset + pageSize < matching.size()) {
+                final String url = request.getURI().toString().replaceAll("&cursor=\\d+", "");
+                response.setHeader("Link", "<" + url + "&cursor=" + (offset + pageSize) + ">; rel=\"next\"");
+            }
+            return response;
+        };
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.io.ByteArrayOutputStream;
+import java.util.UUID;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.ning.billing.recurly.model.Accounts;
+
+public class TestTransferMetrics {
+
+    private static final String ACCOUNTS = "<accounts type=\"array\">" +
+                                           "<account><account_code>1</account_code><email>verena@example.com</email></account>" +
+                                           "<account><account_code>2</account_code><email>verena@example.com</email></account>" +
+                                           "<account><account_code>3</account_code><email>verena@example.com</email></account>" +
+                                           "</accounts>";
+
+    @Test(groups = "fast")
+    public void testAcceptEncoding() {
+        final HttpGet request = new HttpGet("https://api.recurly.com/v2/accounts");
+        final RecurlyClientConfig config = RecurlyClientConfig.builder().setCompressionEnabled(false).build();
+        new RecurlyClient(UUID.randomUUID().toString(), config).prepareXmlRequest(request);
+        Assert.assertNull(request.getFirstHeader(HttpHeaders.ACCEPT_ENCODING));
+
+        new RecurlyClient(UUID.randomUUID().toString()).prepareXmlRequest(request);
+        Assert.assertEquals(request.getFirstHeader(HttpHeaders.ACCEPT_ENCODING).getValue(), "gzip,deflate");
+    }
+
+    @Test(groups = "fast")
+    public void testDefaultClientRequestsCompression() throws Exception {
+        final StubTransport transport = new StubTransport();
+        final RecurlyClient recurlyClient = new RecurlyClient(UUID.randomUUID().toString());
+        recurlyClient.open(transport);
+        final byte[] compressed = gzip(ACCOUNTS.getBytes(Charsets.UTF_8));
+        final ByteArrayEntity entity = new ByteArrayEntity(compressed, ContentType.APPLICATION_XML);
+        entity.setContentEncoding("gzip");
+        transport.respond(200, "").setEntity(entity);
+
+        // As HttpClient did before the client decompressed responses itself
+        Assert.assertEquals(recurlyClient.getAccounts().size(), 3);
+        Assert.assertEquals(transport.requests.get(0).getFirstHeader(HttpHeaders.ACCEPT_ENCODING).getValue(), "gzip,deflate");
+        Assert.assertEquals(recurlyClient.getTransferMetrics().getEndpoint("GET /accounts").getTransferredBytes(), compressed.length);
+    }
+
+    @Test(groups = "fast")
+    public void testDeflatedResponse() throws Exception {
+        final RecurlyClient recurlyClient = new RecurlyClient(UUID.randomUUID().toString());
+        final byte[] uncompressed = ACCOUNTS.getBytes(Charsets.UTF_8);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+        deflater.write(uncompressed);
+        deflater.close();
+
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, null);
+        final ByteArrayEntity entity = new ByteArrayEntity(out.toByteArray(), ContentType.APPLICATION_XML);
+        entity.setContentEncoding("deflate");
+        response.setEntity(entity);
+
+        final Accounts accounts = recurlyClient.handleXmlResponse(new HttpGet("https://api.recurly.com/v2/accounts"), response, Accounts.class);
+        Assert.assertEquals(accounts.size(), 3);
+        final TransferMetrics.Endpoint endpoint = recurlyClient.getTransferMetrics().getEndpoint("GET /accounts");
+        Assert.assertEquals(endpoint.getCompressedResponses(), 1);
+        Assert.assertEquals(endpoint.getDecodedBytes(), uncompressed.length);
+    }
+
+    @Test(groups = "fast")
+    public void testCompressedResponse() throws Exception {
+        final RecurlyClient recurlyClient = new RecurlyClient(UUID.randomUUID().toString());
+        final byte[] uncompressed = ACCOUNTS.getBytes(Charsets.UTF_8);
+        final byte[] compressed = gzip(uncompressed);
+
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, null);
+        final ByteArrayEntity entity = new ByteArrayEntity(compressed, ContentType.APPLICATION_XML);
+        entity.setContentEncoding("gzip");
+        response.setEntity(entity);
+
+        final Accounts accounts = recurlyClient.handleXmlResponse(new HttpGet("https://api.recurly.com/v2/accounts?per_page=200"), response, Accounts.class);
+        Assert.assertEquals(accounts.size(), 3);
+        Assert.assertEquals(accounts.get(2).getAccountCode(), "3");
+
+        final TransferMetrics.Endpoint endpoint = recurlyClient.getTransferMetrics().getEndpoint("GET /accounts");
+        Assert.assertEquals(endpoint.getResponses(), 1);
+        Assert.assertEquals(endpoint.getCompressedResponses(), 1);
+        Assert.assertEquals(endpoint.getTransferredBytes(), compressed.length);
+        Assert.assertEquals(endpoint.getDecodedBytes(), uncompressed.length);
+    }
+
+    @Test(groups = "fast")
+    public void testUncompressedResponse() throws Exception {
+        final RecurlyClient recurlyClient = new RecurlyClient(UUID.randomUUID().toString());
+        final byte[] uncompressed = ACCOUNTS.getBytes(Charsets.UTF_8);
+
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, null);
+        response.setEntity(new ByteArrayEntity(uncompressed, ContentType.APPLICATION_XML));
+        recurlyClient.handleXmlResponse(new HttpGet("https://api.recurly.com/v2/accounts/1/invoices"), response, Accounts.class);
+
+        final TransferMetrics.Endpoint endpoint = recurlyClient.getTransferMetrics().getEndpoint("GET /accounts/{id}/invoices");
+        Assert.assertEquals(endpoint.getCompressedResponses(), 0);
+        Assert.assertEquals(endpoint.getTransferredBytes(), uncompressed.length);
+        Assert.assertEquals(endpoint.getDecodedBytes(), uncompressed.length);
+        Assert.assertEquals(recurlyClient.getTransferMetrics().getTransferredBytes(), uncompressed.length);
+    }
+
+    @Test(groups = "fast")
+    public void testResourcePath() {
+        Assert.assertEquals(TransferMetrics.resourcePath("/v2/accounts"), "/accounts");
+        Assert.assertEquals(TransferMetrics.resourcePath("/v2/accounts/abc"), "/accounts/{id}");
+        Assert.assertEquals(TransferMetrics.resourcePath("/v2/plans/gold/add_ons/ipaddresses"), "/plans/{id}/add_ons/{id}");
+        Assert.assertEquals(TransferMetrics.resourcePath("/v2"), "/");
+    }
+
+    private static byte[] gzip(final byte[] content) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(content);
+        gzip.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.google.common.base.Charsets;
+import com.ning.billing.recurly.model.Accounts;
+import com.ning.billing.recurly.model.Invoices;
+import com.ning.billing.recurly.model.RecurlyObject;
+import com.ning.billing.recurly.model.RecurlyObjects;
+
+/**
+ * Compares the bytes allocated to decode a 200 rows page, when buffering the body as a String
+ * (previous behavior) and when streaming it into the parser.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+public class TestXmlDecodingAllocations {
+
+    private static final Logger log = LoggerFactory.getLogger(TestXmlDecodingAllocations.class);
+
+    private static final int ROWS = 200;
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 500;
+
+    private final XmlMapper xmlMapper = RecurlyObject.newXmlMapper();
+    private final RecurlyClient recurlyClient = new RecurlyClient(UUID.randomUUID().toString(), "api");
+
+    @Test(groups = "benchmark")
+    public void testAccountsPage() throws Exception {
+        compare("accounts", Accounts.class, page("accounts", "<account href=\"https://api.recurly.com/v2/accounts/%1$d\">\n" +
+                                                             "  <invoices href=\"https://api.recurly.com/v2/accounts/%1$d/invoices\"/>\n" +
+                                                             "  <account_code>%1$d</account_code>\n" +
+                                                             "  <state>active</state>\n" +
+                                                             "  <username nil=\"nil\"></username>\n" +
+                                                             "  <email>verena%1$d@example.com</email>\n" +
+                                                             "  <first_name>Verena</first_name>\n" +
+                                                             "  <last_name>Example</last_name>\n" +
+                                                             "  <created_at type=\"dateTime\">2011-10-25T12:00:00Z</created_at>\n" +
+                                                             "  <address>\n" +
+                                                             "    <address1>123 Main St.</address1>\n" +
+                                                             "    <city>San Francisco</city>\n" +
+                                                             "    <zip>94105-1804</zip>\n" +
+                                                             "    <country>US</country>\n" +
+                                                             "  </address>\n" +
+                                                             "</account>\n"));
+    }
+
+    @Test(groups = "benchmark")
+    public void testInvoicesPage() throws Exception {
+        compare("invoices", Invoices.class, page("invoices", "<invoice href=\"https://api.recurly.com/v2/invoices/%1$d\">\n" +
+                                                             "  <account href=\"https://api.recurly.com/v2/accounts/1\"/>\n" +
+                                                             "  <uuid>421f7b7d414e4c6792938e7c49d552%1$d</uuid>\n" +
+                                                             "  <state>paid</state>\n" +
+                                                             "  <invoice_number type=\"integer\">%1$d</invoice_number>\n" +
+                                                             "  <subtotal_in_cents type=\"integer\">1000</subtotal_in_cents>\n" +
+                                                             "  <total_in_cents type=\"integer\">1000</total_in_cents>\n" +
+                                                             "  <currency>USD</currency>\n" +
+                                                             "  <created_at type=\"datetime\">2011-08-25T12:00:00Z</created_at>\n" +
+                                                             "  <line_items type=\"array\">\n" +
+                                                             "    <adjustment href=\"https://api.recurly.com/v2/adjustments/%1$d\">\n" +
+                                                             "      <description>Setup fee</description>\n" +
+                                                             "      <unit_amount_in_cents type=\"integer\">1000</unit_amount_in_cents>\n" +
+                                                             "      <quantity type=\"integer\">1</quantity>\n" +
+                                                             "    </adjustment>\n" +
+                                                             "  </line_items>\n" +
+                                                             "</invoice>\n"));
+    }
+
+    private <T extends RecurlyObjects> void compare(final String name, final Class<T> clazz, final byte[] page) throws Exception {
+        // Sanity check: both paths decode the same page
+        Assert.assertEquals(decodeBuffered(clazz, page).size(), ROWS);
+        Assert.assertEquals(decodeStreamed(clazz, page).size(), ROWS);
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            decodeBuffered(clazz, page);
+            decodeStreamed(clazz, page);
+        }
+
+        final long buffered = allocatedBytes(clazz, page, false);
+        final long streamed = allocatedBytes(clazz, page, true);
+        log.info("{} page of {} rows ({} bytes): buffered={} bytes/op, streamed={} bytes/op ({}% less)",
+                 name, ROWS, page.length, buffered, streamed, 100 * (buffered - streamed) / buffered);
+        Assert.assertTrue(streamed < buffered);
+    }
+
+    private <T> long allocatedBytes(final Class<T> clazz, final byte[] page, final boolean streamed) throws Exception {
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (streamed) {
+                decodeStreamed(clazz, page);
+            } else {
+                decodeBuffered(clazz, page);
+            }
+        }
+        return (threadMXBean.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+    }
+
+    // Previous behavior: decode the body into a String, then parse the String
+    private <T> T decodeBuffered(final Class<T> clazz, final byte[] page) throws Exception {
+        final String payload = EntityUtils.toString(new ByteArrayEntity(page, ContentType.APPLICATION_XML), Charsets.UTF_8);
+        return xmlMapper.readValue(payload, clazz);
+    }
+
+    private <T> T decodeStreamed(final Class<T> clazz, final byte[] page) throws Exception {
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, null);
+        response.setEntity(new ByteArrayEntity(page, ContentType.APPLICATION_XML));
+        return recurlyClient.handleXmlResponse(new HttpGet("https://api.recurly.com/v2/" + clazz.getSimpleName().toLowerCase()), response, clazz);
+    }
+
+    private static byte[] page(final String root, final String rowTemplate) {
+        final StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<").append(root).append(" type=\"array\">\n");
+        for (int i = 1; i <= ROWS; i++) {
+            builder.append(String.format(rowTemplate, i));
+        }
+        builder.append("</").append(root).append(">");
+        return builder.toString().getBytes(Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.model.push;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.CaseFormat;
+import com.google.common.base.Charsets;
+import com.ning.billing.recurly.model.push.account.NewAccountNotification;
+import com.ning.billing.recurly.model.push.payment.SuccessfulPaymentNotification;
+
+public class TestNotificationDecoder {
+
+    static final String NEW_ACCOUNT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                      "<new_account_notification>\n" +
+                                      "  <account>\n" +
+                                      "    <account_code>%s</account_code>\n" +
+                                      "    <email>verena@example.com</email>\n" +
+                                      "  </account>\n" +
+                                      "</new_account_notification>";
+
+    static final String SUCCESSFUL_PAYMENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                             "<successful_payment_notification>\n" +
+                                             "  <account>\n" +
+                                             "    <account_code>1</account_code>\n" +
+                                             "  </account>\n" +
+                                             "  <transaction>\n" +
+                                             "    <id>a5143c1d3a6f4a8287d0e2cc1d4c0427</id>\n" +
+                                             "    <invoice_number type=\"integer\">2059</invoice_number>\n" +
+                                             "    <amount_in_cents type=\"integer\">1000</amount_in_cents>\n" +
+                                             "  </transaction>\n" +
+                                             "</successful_payment_notification>";
+
+    private final NotificationDecoder decoder = new NotificationDecoder();
+
+    @Test(groups = "fast")
+    public void testDecode() throws Exception {
+        final Notification account = decoder.decode(String.format(NEW_ACCOUNT, "abc"));
+        Assert.assertTrue(account instanceof NewAccountNotification);
+        Assert.assertEquals(((NewAccountNotification) account).getAccount().getAccountCode(), "abc");
+
+        final SuccessfulPaymentNotification payment = decoder.read(SUCCESSFUL_PAYMENT, SuccessfulPaymentNotification.class);
+        Assert.assertEquals(payment.getTransaction().getId(), "a5143c1d3a6f4a8287d0e2cc1d4c0427");
+        Assert.assertEquals(payment.getTransaction().getInvoiceNumber(), (Integer) 2059);
+        Assert.assertTrue(decoder.read(SUCCESSFUL_PAYMENT, Notification.Type.SuccessfulPaymentNotification) instanceof SuccessfulPaymentNotification);
+
+        // Same result through the static helper
+        Assert.assertEquals(Notification.read(String.format(NEW_ACCOUNT, "abc"), NewAccountNotification.class).getAccount().getAccountCode(), "abc");
+    }
+
+    @Test(groups = "fast")
+    public void testUnknownType() throws Exception {
+        Assert.assertNull(decoder.decode("<unknown_notification></unknown_notification>"));
+        Assert.assertNull(Notification.read("<new_account_notification><account>", NewAccountNotification.class));
+    }
+
+    @Test(groups = "fast", expectedExceptions = IOException.class)
+    public void testInvalidPayload() throws Exception {
+        decoder.decode("<new_account_notification><account>");
+    }
+
+    @Test(groups = "fast")
+    public void testDecodeStream() throws Exception {
+        final ClosingTrackingInputStream payload = new ClosingTrackingInputStream(SUCCESSFUL_PAYMENT);
+        final Notification notification = decoder.decode(payload);
+        Assert.assertTrue(notification instanceof SuccessfulPaymentNotification);
+        Assert.assertEquals(((SuccessfulPaymentNotification) notification).getTransaction().getAmountInCents(), (Integer) 1000);
+        Assert.assertEquals(((SuccessfulPaymentNotification) notification).getAccount().getAccountCode(), "1");
+        Assert.assertFalse(payload.closed);
+
+        // Leading comments and no prolog
+        Assert.assertTrue(decoder.decode(new ClosingTrackingInputStream("<!-- webhook -->\n" + String.format(NEW_ACCOUNT, "abc").replaceFirst("<\\?xml.*\\?>", ""))) instanceof NewAccountNotification);
+        Assert.assertNull(decoder.decode(new ClosingTrackingInputStream("<unknown_notification><account/></unknown_notification>")));
+    }
+
+    @Test(groups = "fast")
+    public void testDecodeStreamEveryType() throws Exception {
+        for (final Notification.Type type : Notification.Type.values()) {
+            final String root = CaseFormat.UPPER_CAMEL.to(CaseFormat.LOWER_UNDERSCORE, type.name());
+            final String payload = "<" + root + "><account><account_code>1</account_code></account></" + root + ">";
+            Assert.assertEquals(decoder.decode(new ClosingTrackingInputStream(payload)).getClass(), type.getJavaType());
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = IOException.class)
+    public void testInvalidStream() throws Exception {
+        decoder.decode(new ClosingTrackingInputStream("not xml"));
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentDecoding() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<String>> accountCodes = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++) {
+                final String accountCode = String.valueOf(i);
+                accountCodes.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return ((NewAccountNotification) decoder.decode(String.format(NEW_ACCOUNT, accountCode))).getAccount().getAccountCode();
+                    }
+                }));
+            }
+            for (int i = 0; i < accountCodes.size(); i++) {
+                Assert.assertEquals(accountCodes.get(i).get(), String.valueOf(i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static final class ClosingTrackingInputStream extends ByteArrayInputStream {
+
+        private boolean closed;
+
+        private ClosingTrackingInputStream(final String payload) {
+            super(payload.getBytes(Charsets.UTF_8));
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.model.push;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.ning.billing.recurly.model.RecurlyObject;
+import com.ning.billing.recurly.model.push.payment.SuccessfulPaymentNotification;
+
+/**
+ * Compares the throughput of webhook decoding with a new mapper per payload (previous behavior of
+ * {@link Notification#read(String, Class)}) and with the shared {@link NotificationDecoder}, as well as
+ * detecting the type of a body buffered as a String and detecting it while streaming.
+ * Run with {@code mvn test -Pbenchmark}.
+ */
+public class TestNotificationDecoding {
+
+    private static final Logger log = LoggerFactory.getLogger(TestNotificationDecoding.class);
+
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 500;
+
+    private final NotificationDecoder decoder = new NotificationDecoder();
+
+    @Test(groups = "benchmark")
+    public void testDecodingThroughput() throws Exception {
+        final String payload = TestNotificationDecoder.SUCCESSFUL_PAYMENT;
+        // Sanity check: both paths decode the same payload
+        Assert.assertEquals(decodeWithNewMapper(payload).getTransaction().getId(), decodeShared(payload).getTransaction().getId());
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            decodeWithNewMapper(payload);
+            decodeShared(payload);
+        }
+
+        final long newMapperNanos = nanosPerOp(payload, false);
+        final long sharedNanos = nanosPerOp(payload, true);
+        log.info("{} bytes webhook: new mapper={}us/op, shared decoder={}us/op ({}x)",
+                 payload.length(), TimeUnit.NANOSECONDS.toMicros(newMapperNanos), TimeUnit.NANOSECONDS.toMicros(sharedNanos),
+                 newMapperNanos / Math.max(sharedNanos, 1));
+        Assert.assertTrue(sharedNanos < newMapperNanos);
+    }
+
+    @Test(groups = "benchmark")
+    public void testStreamedDecodingThroughput() throws Exception {
+        final byte[] body = TestNotificationDecoder.SUCCESSFUL_PAYMENT.getBytes(Charsets.UTF_8);
+        Assert.assertEquals(decodeBuffered(body).getClass(), decoder.decode(new ByteArrayInputStream(body)).getClass());
+
+        for (int i = 0; i < WARMUP_ITERATIONS * 10; i++) {
+            decodeBuffered(body);
+            decoder.decode(new ByteArrayInputStream(body));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS * 10; i++) {
+            decodeBuffered(body);
+        }
+        final long bufferedNanos = (System.nanoTime() - start) / (ITERATIONS * 10);
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS * 10; i++) {
+            decoder.decode(new ByteArrayInputStream(body));
+        }
+        final long streamedNanos = (System.nanoTime() - start) / (ITERATIONS * 10);
+        log.info("{} bytes webhook: buffered and detected by regex={}us/op, streamed={}us/op",
+                 body.length, TimeUnit.NANOSECONDS.toMicros(bufferedNanos), TimeUnit.NANOSECONDS.toMicros(streamedNanos));
+    }
+
+    private long nanosPerOp(final String payload, final boolean shared) throws Exception {
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (shared) {
+                decodeShared(payload);
+            } else {
+                decodeWithNewMapper(payload);
+            }
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    // Previous behavior: a new mapper per payload
+    private SuccessfulPaymentNotification decodeWithNewMapper(final String payload) throws Exception {
+        return RecurlyObject.newXmlMapper().readValue(payload, SuccessfulPaymentNotification.class);
+    }
+
+    // Body read as a String, type detected by regex, then decoded
+    private Notification decodeBuffered(final byte[] body) throws Exception {
+        return decoder.decode(new String(body, Charsets.UTF_8));
+    }
+
+    private SuccessfulPaymentNotification decodeShared(final String payload) throws Exception {
+        return (SuccessfulPaymentNotification) decoder.decode(payload);
+    }
+}
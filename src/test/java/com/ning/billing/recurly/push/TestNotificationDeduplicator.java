@@ -0,0 +1,212 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.push;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ning.billing.recurly.model.push.NotificationDecoder;
+import com.ning.billing.recurly.model.push.account.BillingInfoUpdatedNotification;
+import com.ning.billing.recurly.model.push.payment.SuccessfulPaymentNotification;
+import com.ning.billing.recurly.model.push.subscription.RenewedSubscriptionNotification;
+
+public class TestNotificationDeduplicator {
+
+    private static final String SUCCESSFUL_PAYMENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                                     "<successful_payment_notification>\n" +
+                                                     "  <account>\n" +
+                                                     "    <account_code>1</account_code>\n" +
+                                                     "  </account>\n" +
+                                                     "  <transaction>\n" +
+                                                     "    <id>%s</id>\n" +
+                                                     "    <action>purchase</action>\n" +
+                                                     "    <date type=\"datetime\">%s</date>\n" +
+                                                     "    <amount_in_cents type=\"integer\">1000</amount_in_cents>\n" +
+                                                     "    <status>success</status>\n" +
+                                                     "  </transaction>\n" +
+                                                     "</successful_payment_notification>";
+
+    private static final String RENEWED_SUBSCRIPTION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                                       "<renewed_subscription_notification>\n" +
+                                                       "  <account>\n" +
+                                                       "    <account_code>1</account_code>\n" +
+                                                       "  </account>\n" +
+                                                       "  <subscription>\n" +
+                                                       "    <uuid>292332928954ca62fa48048be5ac98ec</uuid>\n" +
+                                                       "    <state>active</state>\n" +
+                                                       "    <current_period_started_at type=\"datetime\">%s</current_period_started_at>\n" +
+                                                       "  </subscription>\n" +
+                                                       "</renewed_subscription_notification>";
+
+    private final NotificationDecoder decoder = NotificationDecoder.getDefault();
+
+    @Test(groups = "fast")
+    public void testFingerprint() throws Exception {
+        final Long payment = NotificationDeduplicator.fingerprint(payment("a5143c1d", "2020-01-01T10:00:00Z"));
+        Assert.assertNotNull(payment);
+        // Delivered again
+        Assert.assertEquals(NotificationDeduplicator.fingerprint(payment("a5143c1d", "2020-01-01T10:00:00Z")), payment);
+        // Same instant, other time zone
+        Assert.assertEquals(NotificationDeduplicator.fingerprint(payment("a5143c1d", "2020-01-01T11:00:00+01:00")), payment);
+        // Other transaction
+        Assert.assertNotEquals(NotificationDeduplicator.fingerprint(payment("b5143c1d", "2020-01-01T10:00:00Z")), payment);
+
+        // Next renewal of the same subscription
+        Assert.assertNotEquals(NotificationDeduplicator.fingerprint(renewal("2020-01-01T00:00:00Z")),
+                               NotificationDeduplicator.fingerprint(renewal("2020-02-01T00:00:00Z")));
+
+        // No object id
+        final BillingInfoUpdatedNotification billingInfoUpdated = new BillingInfoUpdatedNotification();
+        Assert.assertNull(NotificationDeduplicator.fingerprint(billingInfoUpdated));
+    }
+
+    @Test(groups = "fast")
+    public void testWindow() throws Exception {
+        final FakeTicker ticker = new FakeTicker();
+        final NotificationDeduplicator deduplicator = new NotificationDeduplicator(10, TimeUnit.MINUTES, 1000, ticker);
+        Assert.assertTrue(deduplicator.accept(payment("a5143c1d", "2020-01-01T10:00:00Z")));
+        Assert.assertFalse(deduplicator.accept(payment("a5143c1d", "2020-01-01T10:00:00Z")));
+        Assert.assertTrue(deduplicator.accept(renewal("2020-01-01T00:00:00Z")));
+        // Never deduplicated
+        Assert.assertTrue(deduplicator.accept(new BillingInfoUpdatedNotification()));
+        Assert.assertTrue(deduplicator.accept(new BillingInfoUpdatedNotification()));
+
+        ticker.nanos.addAndGet(TimeUnit.MINUTES.toNanos(11));
+        Assert.assertTrue(deduplicator.accept(payment("a5143c1d", "2020-01-01T10:00:00Z")));
+        Assert.assertEquals(deduplicator.getAccepted(), 5);
+        Assert.assertEquals(deduplicator.getDuplicates(), 1);
+
+        deduplicator.forget(payment("a5143c1d", "2020-01-01T10:00:00Z"));
+        Assert.assertTrue(deduplicator.accept(payment("a5143c1d", "2020-01-01T10:00:00Z")));
+    }
+
+    @Test(groups = "fast")
+    public void testMaxEntries() throws Exception {
+        final NotificationDeduplicator deduplicator = new NotificationDeduplicator(1, TimeUnit.HOURS, 100);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(deduplicator.accept(payment("transaction-" + i, "2020-01-01T10:00:00Z")));
+        }
+        Assert.assertTrue(deduplicator.getSize() <= 100, "size: " + deduplicator.getSize());
+        // The most recent ones are remembered
+        Assert.assertFalse(deduplicator.accept(payment("transaction-999", "2020-01-01T10:00:00Z")));
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentDeliveries() throws Exception {
+        final NotificationDeduplicator deduplicator = new NotificationDeduplicator(1, TimeUnit.HOURS, 10000);
+        final List<SuccessfulPaymentNotification> notifications = new ArrayList<SuccessfulPaymentNotification>();
+        for (int i = 0; i < 500; i++) {
+            notifications.add(payment("transaction-" + i, "2020-01-01T10:00:00Z"));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        Uninterruptibles.awaitUninterruptibly(start);
+                        int accepted = 0;
+                        for (final SuccessfulPaymentNotification notification : notifications) {
+                            if (deduplicator.accept(notification)) {
+                                accepted++;
+                            }
+                        }
+                        return accepted;
+                    }
+                }));
+            }
+            start.countDown();
+            int accepted = 0;
+            for (final Future<Integer> result : results) {
+                accepted += result.get();
+            }
+            // Each notification accepted once, whatever the thread
+            Assert.assertEquals(accepted, 500);
+            Assert.assertEquals(deduplicator.getDuplicates(), 7 * 500);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDispatcher() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicLong handled = new AtomicLong();
+        final NotificationDeduplicator deduplicator = new NotificationDeduplicator(10, TimeUnit.MINUTES, 1000);
+        final NotificationDispatcher dispatcher = NotificationDispatcher.builder()
+                                                                        .on(SuccessfulPaymentNotification.class, notification -> {
+                                                                            Uninterruptibles.awaitUninterruptibly(release);
+                                                                            handled.incrementAndGet();
+                                                                        })
+                                                                        .setQueueCapacity(1)
+                                                                        .setDeduplicator(deduplicator)
+                                                                        .build();
+        try {
+            // One running, one queued
+            Assert.assertTrue(dispatcher.dispatch(payment("1", "2020-01-01T10:00:00Z")));
+            Assert.assertTrue(dispatcher.dispatch(payment("2", "2020-01-01T10:00:00Z")));
+            // Duplicate: acknowledged, not queued
+            Assert.assertTrue(dispatcher.dispatch(payment("1", "2020-01-01T10:00:00Z")));
+            // Queue full: forgotten, for the next delivery to be handled
+            Assert.assertFalse(dispatcher.dispatch(payment("3", "2020-01-01T10:00:00Z")));
+        } finally {
+            release.countDown();
+        }
+        final long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (dispatcher.getRemainingCapacity(NotificationFamily.PAYMENT) == 0 && System.nanoTime() < deadlineNanos) {
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+        Assert.assertTrue(dispatcher.dispatch(payment("3", "2020-01-01T10:00:00Z")));
+        Assert.assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+        Assert.assertEquals(handled.get(), 3);
+        Assert.assertEquals(dispatcher.getDispatched(), 3);
+        Assert.assertEquals(deduplicator.getDuplicates(), 1);
+    }
+
+    private SuccessfulPaymentNotification payment(final String id, final String date) throws Exception {
+        return decoder.read(String.format(SUCCESSFUL_PAYMENT, id, date), SuccessfulPaymentNotification.class);
+    }
+
+    private RenewedSubscriptionNotification renewal(final String currentPeriodStartedAt) throws Exception {
+        return decoder.read(String.format(RENEWED_SUBSCRIPTION, currentPeriodStartedAt), RenewedSubscriptionNotification.class);
+    }
+
+    private static final class FakeTicker extends Ticker {
+
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.push;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ning.billing.recurly.model.Account;
+import com.ning.billing.recurly.model.push.Notification;
+import com.ning.billing.recurly.model.push.account.AccountNotification;
+import com.ning.billing.recurly.model.push.account.NewAccountNotification;
+import com.ning.billing.recurly.model.push.invoice.ClosedInvoiceNotification;
+import com.ning.billing.recurly.model.push.invoice.NewInvoiceNotification;
+import com.ning.billing.recurly.model.push.item.NewItemNotification;
+import com.ning.billing.recurly.model.push.payment.PaymentNotification;
+import com.ning.billing.recurly.model.push.payment.SuccessfulPaymentNotification;
+import com.ning.billing.recurly.model.push.subscription.LowBalanceGiftCardNotification;
+import com.ning.billing.recurly.model.push.subscription.NewSubscriptionNotification;
+import com.ning.billing.recurly.model.push.subscription.SubscriptionNotification;
+import com.ning.billing.recurly.model.push.subscription.UpdatedSubscriptionNotification;
+
+public class TestNotificationDispatcher {
+
+    @Test(groups = "fast")
+    public void testFamilies() throws Exception {
+        Assert.assertEquals(NotificationFamily.of(new SuccessfulPaymentNotification()), NotificationFamily.PAYMENT);
+        Assert.assertEquals(NotificationFamily.of(new NewInvoiceNotification()), NotificationFamily.INVOICE);
+        Assert.assertEquals(NotificationFamily.of(new NewAccountNotification()), NotificationFamily.ACCOUNT);
+        Assert.assertEquals(NotificationFamily.of(new NewItemNotification()), NotificationFamily.ITEM);
+        // Modeled as a subscription notification
+        Assert.assertEquals(NotificationFamily.of(LowBalanceGiftCardNotification.class), NotificationFamily.SUBSCRIPTION);
+        for (final Notification.Type type : Notification.Type.values()) {
+            Assert.assertNotNull(NotificationFamily.of(type.getJavaType()));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRouting() throws Exception {
+        final List<String> handled = new CopyOnWriteArrayList<String>();
+        final NotificationDispatcher dispatcher = NotificationDispatcher.builder()
+                                                                        .on(SuccessfulPaymentNotification.class, notification -> handled.add("successful payment"))
+                                                                        .on(PaymentNotification.class, notification -> handled.add("payment"))
+                                                                        .on(NotificationFamily.INVOICE, notification -> handled.add("invoice"))
+                                                                        // All the account notifications, payments and invoices included
+                                                                        .on(AccountNotification.class, notification -> handled.add("account"))
+                                                                        .on(NotificationFamily.ACCOUNT, notification -> handled.add("account family"))
+                                                                        .build();
+
+        Assert.assertTrue(dispatcher.dispatch(new SuccessfulPaymentNotification()));
+        Assert.assertTrue(dispatcher.dispatch(new ClosedInvoiceNotification()));
+        Assert.assertTrue(dispatcher.dispatch(new NewAccountNotification()));
+        // No handler
+        Assert.assertTrue(dispatcher.dispatch(new NewItemNotification()));
+        Assert.assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(handled.size(), 7);
+        Assert.assertTrue(handled.containsAll(Arrays.asList("successful payment", "payment", "invoice", "account", "account family")));
+        // Handlers of a notification run in registration order
+        Assert.assertTrue(handled.indexOf("successful payment") < handled.indexOf("payment"));
+        Assert.assertEquals(dispatcher.getDispatched(), 3);
+        Assert.assertEquals(dispatcher.getUnhandled(), 1);
+        // Closed
+        Assert.assertFalse(dispatcher.dispatch(new NewAccountNotification()));
+    }
+
+    @Test(groups = "fast")
+    public void testBackpressure() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch paymentHandled = new CountDownLatch(1);
+        final NotificationDispatcher dispatcher = NotificationDispatcher.builder()
+                                                                        .on(NotificationFamily.INVOICE, notification -> Uninterruptibles.awaitUninterruptibly(release))
+                                                                        .on(NotificationFamily.PAYMENT, notification -> paymentHandled.countDown())
+                                                                        .setWorkers(NotificationFamily.INVOICE, 2)
+                                                                        .setQueueCapacity(NotificationFamily.INVOICE, 3)
+                                                                        .build();
+        try {
+            // 2 running and 3 queued
+            for (int i = 0; i < 5; i++) {
+                Assert.assertTrue(dispatcher.dispatch(new NewInvoiceNotification()));
+            }
+            Assert.assertFalse(dispatcher.dispatch(new NewInvoiceNotification()));
+            Assert.assertEquals(dispatcher.getRejected(), 1);
+            Assert.assertEquals(dispatcher.getRemainingCapacity(NotificationFamily.INVOICE), 0);
+
+            // Slow invoice handlers do not hold payments back
+            Assert.assertTrue(dispatcher.dispatch(new SuccessfulPaymentNotification()));
+            Assert.assertTrue(paymentHandled.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+        Assert.assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+        Assert.assertEquals(dispatcher.getDispatched(), 6);
+    }
+
+    @Test(groups = "fast")
+    public void testFailingHandler() throws Exception {
+        final List<String> handled = new CopyOnWriteArrayList<String>();
+        final NotificationDispatcher dispatcher = NotificationDispatcher.builder()
+                                                                        .on(NewAccountNotification.class, notification -> {
+                                                                            throw new IllegalStateException("Down");
+                                                                        })
+                                                                        .on(NewAccountNotification.class, notification -> handled.add("second"))
+                                                                        .build();
+        Assert.assertTrue(dispatcher.dispatch(new NewAccountNotification()));
+        Assert.assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+        Assert.assertEquals(dispatcher.getFailed(), 1);
+        Assert.assertEquals(handled.size(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testOrderedByAccount() throws Exception {
+        // Last sequence number handled, and number of notifications out of order, per account
+        final ConcurrentMap<String, Integer> lastSequences = new ConcurrentHashMap<String, Integer>();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final Set<String> threads = Sets.newConcurrentHashSet();
+        final Consumer<SubscriptionNotification> handler = notification -> {
+            threads.add(Thread.currentThread().getName());
+            final int sequence = Integer.parseInt(notification.getAccount().getEmail());
+            final Integer previous = lastSequences.put(notification.getAccount().getAccountCode(), sequence);
+            if (previous != null && previous != sequence - 1) {
+                outOfOrder.incrementAndGet();
+            }
+            Uninterruptibles.sleepUninterruptibly(ThreadLocalRandom.current().nextInt(100), TimeUnit.MICROSECONDS);
+        };
+        final NotificationDispatcher dispatcher = NotificationDispatcher.builder()
+                                                                        .on(NewSubscriptionNotification.class, handler)
+                                                                        .on(UpdatedSubscriptionNotification.class, handler)
+                                                                        .setWorkers(NotificationFamily.SUBSCRIPTION, 4)
+                                                                        .setQueueCapacity(10000)
+                                                                        .setOrderedByAccount(true)
+                                                                        .build();
+        for (int sequence = 0; sequence < 100; sequence++) {
+            for (int account = 0; account < 20; account++) {
+                final SubscriptionNotification notification = sequence % 2 == 0 ? new NewSubscriptionNotification() : new UpdatedSubscriptionNotification();
+                notification.setAccount(account("account-" + account, String.valueOf(sequence)));
+                Assert.assertTrue(dispatcher.dispatch(notification));
+            }
+        }
+        Assert.assertTrue(dispatcher.shutdown(30, TimeUnit.SECONDS));
+
+        Assert.assertEquals(outOfOrder.get(), 0);
+        Assert.assertEquals(lastSequences.size(), 20);
+        for (final Integer lastSequence : lastSequences.values()) {
+            Assert.assertEquals(lastSequence, (Integer) 99);
+        }
+        // Accounts are spread over the lanes
+        Assert.assertTrue(threads.size() > 1, threads.toString());
+        Assert.assertTrue(threads.size() <= 4, threads.toString());
+    }
+
+    @Test(groups = "fast")
+    public void testOrderedByAccountAcrossFamilies() throws Exception {
+        // Notification classes handled, per account
+        final ConcurrentMap<String, List<String>> handled = new ConcurrentHashMap<String, List<String>>();
+        final Consumer<AccountNotification> handler = notification -> {
+            // The first families dispatched are the slowest to handle
+            if (notification instanceof NewAccountNotification) {
+                Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MICROSECONDS);
+            }
+            handled.computeIfAbsent(notification.getAccount().getAccountCode(), accountCode -> new CopyOnWriteArrayList<String>())
+                   .add(notification.getClass().getSimpleName());
+        };
+        final NotificationDispatcher dispatcher = NotificationDispatcher.builder()
+                                                                        .on(NewAccountNotification.class, handler)
+                                                                        .on(NewSubscriptionNotification.class, handler)
+                                                                        .on(SuccessfulPaymentNotification.class, handler)
+                                                                        .setWorkers(4)
+                                                                        .setQueueCapacity(10000)
+                                                                        .setOrderedByAccount(true)
+                                                                        .build();
+        final List<String> expected = Arrays.asList("NewAccountNotification", "NewSubscriptionNotification", "SuccessfulPaymentNotification");
+        for (int account = 0; account < 50; account++) {
+            final NewAccountNotification newAccount = new NewAccountNotification();
+            newAccount.setAccount(account("account-" + account, null));
+            final NewSubscriptionNotification newSubscription = new NewSubscriptionNotification();
+            newSubscription.setAccount(account("account-" + account, null));
+            final SuccessfulPaymentNotification payment = new SuccessfulPaymentNotification();
+            payment.setAccount(account("account-" + account, null));
+            Assert.assertTrue(dispatcher.dispatch(newAccount));
+            Assert.assertTrue(dispatcher.dispatch(newSubscription));
+            Assert.assertTrue(dispatcher.dispatch(payment));
+        }
+        Assert.assertTrue(dispatcher.shutdown(30, TimeUnit.SECONDS));
+
+        Assert.assertEquals(handled.size(), 50);
+        for (final List<String> notifications : handled.values()) {
+            Assert.assertEquals(notifications, expected);
+        }
+        Assert.assertEquals(dispatcher.getOrderedQueueSize(), 0);
+        Assert.assertEquals(dispatcher.getQueueSize(NotificationFamily.PAYMENT), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testAccountCode() throws Exception {
+        final NewInvoiceNotification invoiceNotification = new NewInvoiceNotification();
+        Assert.assertNull(NotificationDispatcher.accountCode(invoiceNotification));
+        invoiceNotification.setAccount(account("abc", null));
+        Assert.assertEquals(NotificationDispatcher.accountCode(invoiceNotification), "abc");
+        Assert.assertNull(NotificationDispatcher.accountCode(new NewItemNotification()));
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidWorkers() throws Exception {
+        NotificationDispatcher.builder().setWorkers(NotificationFamily.INVOICE, 0);
+    }
+
+    private static Account account(final String accountCode, final String email) {
+        final Account account = new Account();
+        account.setAccountCode(accountCode);
+        account.setEmail(email);
+        return account;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.push;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ning.billing.recurly.model.push.Notification;
+import com.ning.billing.recurly.model.push.account.NewAccountNotification;
+import com.ning.billing.recurly.model.push.payment.SuccessfulPaymentNotification;
+
+public class TestNotificationJournal {
+
+    private static final String NEW_ACCOUNT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                              "<new_account_notification>\n" +
+                                              "  <account>\n" +
+                                              "    <account_code>%s</account_code>\n" +
+                                              "  </account>\n" +
+                                              "</new_account_notification>";
+
+    private static final String SUCCESSFUL_PAYMENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                                     "<successful_payment_notification>\n" +
+                                                     "  <account>\n" +
+                                                     "    <account_code>1</account_code>\n" +
+                                                     "  </account>\n" +
+                                                     "  <transaction>\n" +
+                                                     "    <id>a5143c1d3a6f4a8287d0e2cc1d4c0427</id>\n" +
+                                                     "    <amount_in_cents type=\"integer\">1000</amount_in_cents>\n" +
+                                                     "  </transaction>\n" +
+                                                     "</successful_payment_notification>";
+
+    private File directory;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testAppendAndReplay() throws Exception {
+        final DateTime start = DateTime.now().minusSeconds(1);
+        final NotificationJournal journal = NotificationJournal.builder(directory).build();
+        try {
+            final long first = journal.append(Notification.Type.NewAccountNotification, newAccount("1"));
+            final long second = journal.append(null, newAccount("2"));
+            Assert.assertTrue(second > first);
+            Assert.assertEquals(journal.getPosition(), second);
+
+            final List<NotificationJournal.Entry> entries = replay(journal, 0);
+            Assert.assertEquals(entries.size(), 2);
+            Assert.assertEquals(entries.get(0).getPosition(), 0);
+            Assert.assertEquals(entries.get(0).getType(), Notification.Type.NewAccountNotification);
+            Assert.assertEquals(entries.get(0).getPayload(), newAccount("1"));
+            Assert.assertFalse(entries.get(0).getReceivedAt().isBefore(start));
+            Assert.assertEquals(entries.get(1).getPosition(), first);
+            Assert.assertNull(entries.get(1).getType());
+            Assert.assertEquals(entries.get(1).getPayload(), newAccount("2"));
+
+            // Resume from a position
+            final List<NotificationJournal.Entry> resumed = new ArrayList<NotificationJournal.Entry>();
+            Assert.assertEquals(journal.replay(first, resumed::add), second);
+            Assert.assertEquals(resumed.size(), 1);
+            Assert.assertEquals(resumed.get(0).getPayload(), newAccount("2"));
+            Assert.assertEquals(journal.replay(second, resumed::add), second);
+            Assert.assertEquals(resumed.size(), 1);
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSegments() throws Exception {
+        final NotificationJournal journal = NotificationJournal.builder(directory)
+                                                               .setSegmentSize(512)
+                                                               .build();
+        try {
+            final List<Long> positions = new ArrayList<Long>();
+            for (int i = 0; i < 20; i++) {
+                positions.add(journal.append(Notification.Type.NewAccountNotification, newAccount(String.valueOf(i))));
+            }
+            Assert.assertTrue(directory.list().length > 5, "segments: " + directory.list().length);
+
+            final List<NotificationJournal.Entry> entries = replay(journal, 0);
+            Assert.assertEquals(entries.size(), 20);
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals(entries.get(i).getPayload(), newAccount(String.valueOf(i)));
+            }
+
+            // Segments of the first ten records
+            final int segments = directory.list().length;
+            Assert.assertTrue(journal.deleteSegmentsBefore(positions.get(9)) > 0);
+            Assert.assertTrue(directory.list().length < segments);
+            final List<NotificationJournal.Entry> remaining = replay(journal, positions.get(9));
+            Assert.assertEquals(remaining.size(), 10);
+            Assert.assertEquals(remaining.get(0).getPayload(), newAccount("10"));
+            // The current segment is never deleted
+            journal.deleteSegmentsBefore(Long.MAX_VALUE);
+            Assert.assertEquals(directory.list().length, 1);
+            Assert.assertTrue(journal.append(null, newAccount("20")) > positions.get(19));
+
+            try {
+                journal.append(null, new byte[512]);
+                Assert.fail();
+            } catch (final IllegalArgumentException e) {
+                // Larger than a segment
+            }
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testReopen() throws Exception {
+        NotificationJournal journal = NotificationJournal.builder(directory).setSegmentSize(4096).build();
+        final long first = journal.append(Notification.Type.NewAccountNotification, newAccount("1"));
+        final long second = journal.append(Notification.Type.NewAccountNotification, newAccount("2"));
+        journal.close();
+
+        // Tear the last record, as a crash while writing it would
+        final File segment = directory.listFiles()[0];
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(second - 10);
+            file.write(new byte[]{'x', 'x', 'x'});
+        } finally {
+            file.close();
+        }
+
+        journal = NotificationJournal.builder(directory).setSegmentSize(4096).build();
+        try {
+            Assert.assertEquals(journal.getPosition(), first);
+            Assert.assertEquals(replay(journal, 0).size(), 1);
+            // Overwrites the torn record
+            Assert.assertEquals(journal.append(Notification.Type.NewAccountNotification, newAccount("3")), second);
+            final List<NotificationJournal.Entry> entries = replay(journal, 0);
+            Assert.assertEquals(entries.size(), 2);
+            Assert.assertEquals(entries.get(1).getPayload(), newAccount("3"));
+        } finally {
+            journal.close();
+        }
+
+        try {
+            journal.append(null, newAccount("4"));
+            Assert.fail();
+        } catch (final IOException e) {
+            // Closed
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testGroupCommit() throws Exception {
+        final NotificationJournal journal = NotificationJournal.builder(directory).setSegmentSize(64 * 1024).build();
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 8; i++) {
+                final int thread = i;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Uninterruptibles.awaitUninterruptibly(start);
+                        for (int j = 0; j < 200; j++) {
+                            journal.append(Notification.Type.NewAccountNotification, newAccount(thread + "-" + j));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (final Future<Void> result : results) {
+                result.get();
+            }
+            Assert.assertEquals(journal.getAppended(), 1600);
+            // Flushes are shared between the appenders waiting at the same time
+            Assert.assertTrue(journal.getSyncs() <= journal.getAppended(), journal.toString());
+            Assert.assertEquals(replay(journal, 0).size(), 1600);
+        } finally {
+            executor.shutdown();
+            journal.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testReplayToDispatcher() throws Exception {
+        final List<String> accounts = new CopyOnWriteArrayList<String>();
+        final List<String> transactions = new CopyOnWriteArrayList<String>();
+        final NotificationDispatcher dispatcher = NotificationDispatcher.builder()
+                                                                        .on(NewAccountNotification.class, notification -> {
+                                                                            // Slower than the replay, which waits for the queue
+                                                                            Uninterruptibles.sleepUninterruptibly(1, TimeUnit.MILLISECONDS);
+                                                                            accounts.add(notification.getAccount().getAccountCode());
+                                                                        })
+                                                                        .on(SuccessfulPaymentNotification.class, notification -> transactions.add(notification.getTransaction().getId()))
+                                                                        .setQueueCapacity(1)
+                                                                        .setOrderedByAccount(true)
+                                                                        .build();
+        final NotificationJournal journal = NotificationJournal.builder(directory).setSync(false).build();
+        try {
+            final List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < 50; i++) {
+                journal.append(Notification.Type.NewAccountNotification, newAccount(String.valueOf(i)));
+                expected.add(String.valueOf(i));
+            }
+            // Types unknown when appended are detected
+            journal.append(null, SUCCESSFUL_PAYMENT.getBytes(Charsets.UTF_8));
+            journal.append(null, "<unknown_notification/>".getBytes(Charsets.UTF_8));
+            journal.append(Notification.Type.NewAccountNotification, "<new_account_notification>".getBytes(Charsets.UTF_8));
+            journal.sync();
+
+            Assert.assertEquals(journal.replay(0, dispatcher), journal.getPosition());
+            Assert.assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+            Assert.assertEquals(accounts, expected);
+            Assert.assertEquals(transactions.size(), 1);
+
+            try {
+                journal.replay(0, dispatcher);
+                Assert.fail();
+            } catch (final InterruptedIOException e) {
+                // The dispatcher is shut down
+            }
+        } finally {
+            dispatcher.close();
+            journal.close();
+        }
+    }
+
+    private static List<NotificationJournal.Entry> replay(final NotificationJournal journal, final long from) throws Exception {
+        final List<NotificationJournal.Entry> entries = new ArrayList<NotificationJournal.Entry>();
+        journal.replay(from, entries::add);
+        return entries;
+    }
+
+    private static byte[] newAccount(final String accountCode) {
+        return String.format(NEW_ACCOUNT, accountCode).getBytes(Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.push;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ning.billing.recurly.model.push.Notification;
+import com.ning.billing.recurly.model.push.account.NewAccountNotification;
+import com.ning.billing.recurly.model.push.payment.SuccessfulPaymentNotification;
+
+public class TestNotificationReceiver {
+
+    private static final String NEW_ACCOUNT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                              "<new_account_notification>\n" +
+                                              "  <account>\n" +
+                                              "    <account_code>%s</account_code>\n" +
+                                              "  </account>\n" +
+                                              "</new_account_notification>";
+
+    private static final String SUCCESSFUL_PAYMENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                                     "<successful_payment_notification>\n" +
+                                                     "  <account>\n" +
+                                                     "    <account_code>1</account_code>\n" +
+                                                     "  </account>\n" +
+                                                     "  <transaction>\n" +
+                                                     "    <id>a5143c1d3a6f4a8287d0e2cc1d4c0427</id>\n" +
+                                                     "    <amount_in_cents type=\"integer\">1000</amount_in_cents>\n" +
+                                                     "  </transaction>\n" +
+                                                     "</successful_payment_notification>";
+
+    private CloseableHttpClient httpClient;
+    private NotificationReceiver receiver;
+    private NotificationDispatcher dispatcher;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        httpClient = HttpClients.createDefault();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        httpClient.close();
+        if (receiver != null) {
+            receiver.close();
+        }
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testAcknowledgeBeforeHandling() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> handled = new CopyOnWriteArrayList<String>();
+        dispatcher = NotificationDispatcher.builder()
+                                           .on(NewAccountNotification.class, notification -> {
+                                               try {
+                                                   release.await();
+                                               } catch (InterruptedException e) {
+                                                   Thread.currentThread().interrupt();
+                                               }
+                                               handled.add(notification.getAccount().getAccountCode());
+                                           })
+                                           .build();
+        start(NotificationReceiver.builder(dispatcher).setCredentials("recurly", "secret"));
+
+        // The handler is still blocked
+        Assert.assertEquals(post(String.format(NEW_ACCOUNT, "abc"), "recurly", "secret"), 200);
+        Assert.assertTrue(handled.isEmpty());
+        release.countDown();
+        Assert.assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+        Assert.assertEquals(handled, Collections.singletonList("abc"));
+        Assert.assertEquals(receiver.getAccepted(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testAuthentication() throws Exception {
+        dispatcher = NotificationDispatcher.builder().build();
+        start(NotificationReceiver.builder(dispatcher).setCredentials("recurly", "secret"));
+
+        Assert.assertEquals(post(String.format(NEW_ACCOUNT, "abc"), "recurly", "wrong"), 401);
+        Assert.assertEquals(post(String.format(NEW_ACCOUNT, "abc"), null, null), 401);
+        Assert.assertEquals(receiver.getReceived(), 0);
+        Assert.assertEquals(post(String.format(NEW_ACCOUNT, "abc"), "recurly", "secret"), 200);
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidRequests() throws Exception {
+        dispatcher = NotificationDispatcher.builder().build();
+        start(NotificationReceiver.builder(dispatcher));
+
+        Assert.assertEquals(post("<new_account_notification><account>", null, null), 400);
+        Assert.assertEquals(receiver.getInvalid(), 1);
+        // Acknowledged: delivering it again would not help
+        Assert.assertEquals(post("<unknown_notification/>", null, null), 200);
+        Assert.assertEquals(execute(new HttpGet(url())), 405);
+    }
+
+    @Test(groups = "fast")
+    public void testMaxBodyBytes() throws Exception {
+        dispatcher = NotificationDispatcher.builder().build();
+        start(NotificationReceiver.builder(dispatcher).setMaxBodyBytes(512));
+        final String padding = Strings.repeat(" ", 1024);
+
+        Assert.assertEquals(post(String.format(NEW_ACCOUNT, "abc"), null, null), 200);
+        Assert.assertEquals(post(String.format(NEW_ACCOUNT, "abc") + padding, null, null), 413);
+        // Chunked, without a length: while decoding, and after the root element
+        Assert.assertEquals(postChunked("<!--" + padding + "-->" + String.format(NEW_ACCOUNT, "abc").replaceFirst("<\\?xml.*\\?>", "")), 413);
+        Assert.assertEquals(postChunked(String.format(NEW_ACCOUNT, "abc") + padding), 413);
+        Assert.assertEquals(postChunked(String.format(NEW_ACCOUNT, "abc")), 200);
+        Assert.assertEquals(receiver.getInvalid(), 3);
+        Assert.assertEquals(receiver.getAccepted(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testBackpressure() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher = NotificationDispatcher.builder()
+                                           .on(Notification.class, notification -> {
+                                               try {
+                                                   release.await();
+                                               } catch (InterruptedException e) {
+                                                   Thread.currentThread().interrupt();
+                                               }
+                                           })
+                                           .setQueueCapacity(1)
+                                           .build();
+        start(NotificationReceiver.builder(dispatcher));
+        try {
+            // One handled, one queued
+            Assert.assertEquals(post(String.format(NEW_ACCOUNT, "1"), null, null), 200);
+            Assert.assertEquals(post(String.format(NEW_ACCOUNT, "2"), null, null), 200);
+            Assert.assertEquals(post(String.format(NEW_ACCOUNT, "3"), null, null), 503);
+            Assert.assertEquals(receiver.getRejected(), 1);
+            // Other families are not affected
+            Assert.assertEquals(post(SUCCESSFUL_PAYMENT, null, null), 200);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testJournal() throws Exception {
+        final File directory = Files.createTempDir();
+        final NotificationJournal journal = NotificationJournal.builder(directory).build();
+        try {
+            dispatcher = NotificationDispatcher.builder().build();
+            start(NotificationReceiver.builder(dispatcher).setJournal(journal));
+
+            Assert.assertEquals(post(SUCCESSFUL_PAYMENT, null, null), 200);
+            Assert.assertEquals(post("<unknown_notification/>", null, null), 200);
+            // Not journaled
+            Assert.assertEquals(post("<new_account_notification><account>", null, null), 400);
+
+            final List<NotificationJournal.Entry> entries = new ArrayList<NotificationJournal.Entry>();
+            journal.replay(0, entries::add);
+            Assert.assertEquals(entries.size(), 2);
+            Assert.assertEquals(entries.get(0).getType(), Notification.Type.SuccessfulPaymentNotification);
+            Assert.assertEquals(new String(entries.get(0).getPayload(), Charsets.UTF_8), SUCCESSFUL_PAYMENT);
+            Assert.assertNull(entries.get(1).getType());
+        } finally {
+            journal.close();
+            for (final File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testJournalOnceDispatched() throws Exception {
+        final File directory = Files.createTempDir();
+        final NotificationJournal journal = NotificationJournal.builder(directory).build();
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            dispatcher = NotificationDispatcher.builder()
+                                               .on(Notification.class, notification -> Uninterruptibles.awaitUninterruptibly(release))
+                                               .setQueueCapacity(1)
+                                               .build();
+            start(NotificationReceiver.builder(dispatcher).setJournal(journal));
+
+            Assert.assertEquals(post(String.format(NEW_ACCOUNT, "1"), null, null), 200);
+            Assert.assertEquals(post(String.format(NEW_ACCOUNT, "2"), null, null), 200);
+            // Journaled when delivered again, not twice
+            Assert.assertEquals(post(String.format(NEW_ACCOUNT, "3"), null, null), 503);
+
+            final List<NotificationJournal.Entry> entries = new ArrayList<NotificationJournal.Entry>();
+            journal.replay(0, entries::add);
+            Assert.assertEquals(entries.size(), 2);
+            Assert.assertEquals(new String(entries.get(1).getPayload(), Charsets.UTF_8), String.format(NEW_ACCOUNT, "2"));
+        } finally {
+            release.countDown();
+            journal.close();
+            for (final File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private void start(final NotificationReceiver.Builder builder) throws Exception {
+        receiver = builder.setAddress(new InetSocketAddress("127.0.0.1", 0))
+                          .setPath("/recurly")
+                          .build();
+        receiver.start();
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + receiver.getPort() + "/recurly";
+    }
+
+    private int post(final String payload, final String username, final String password) throws Exception {
+        final HttpPost request = new HttpPost(url());
+        request.setEntity(new StringEntity(payload, ContentType.APPLICATION_XML.withCharset(Charsets.UTF_8)));
+        if (username != null) {
+            request.setHeader(HttpHeaders.AUTHORIZATION, "Basic " + BaseEncoding.base64().encode((username + ":" + password).getBytes(Charsets.UTF_8)));
+        }
+        return execute(request);
+    }
+
+    private int postChunked(final String payload) throws Exception {
+        final HttpPost request = new HttpPost(url());
+        request.setEntity(new InputStreamEntity(new ByteArrayInputStream(payload.getBytes(Charsets.UTF_8)), -1, ContentType.APPLICATION_XML));
+        return execute(request);
+    }
+
+    private int execute(final HttpRequestBase request) throws Exception {
+        final CloseableHttpResponse response = httpClient.execute(request);
+        try {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.ning.billing.recurly.transport.ApacheHttpTransport;
+import com.ning.billing.recurly.transport.HttpTransport;
+import com.ning.billing.recurly.transport.JdkHttpTransport;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Compares the throughput of the transports, with many threads issuing GET calls concurrently.
+ * The local server only speaks HTTP/1.1: point both transports at an HTTP/2 endpoint to measure multiplexing.
+ * Run with {@code mvn test -Pbenchmark} on Java 11+.
+ */
+public class TestTransportThroughput {
+
+    private static final Logger log = LoggerFactory.getLogger(TestTransportThroughput.class);
+
+    private static final int THREADS = 32;
+    private static final int CALLS_PER_THREAD = 200;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String url;
+
+    @BeforeClass(groups = "benchmark")
+    public void setUp() throws Exception {
+        final StringBuilder accounts = new StringBuilder("<accounts type=\"array\">");
+        for (int i = 0; i < 50; i++) {
+            accounts.append("<account><account_code>").append(i).append("</account_code><email>verena@example.com</email></account>");
+        }
+        final byte[] body = accounts.append("</accounts>").toString().getBytes(Charsets.UTF_8);
+
+        serverExecutor = Executors.newFixedThreadPool(THREADS);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.setExecutor(serverExecutor);
+        server.createContext("/v2/accounts", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/xml; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/v2/accounts";
+    }
+
+    @AfterClass(groups = "benchmark")
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test(groups = "benchmark")
+    public void testThroughput() throws Exception {
+        final RecurlyClient recurlyClient = new RecurlyClient(UUID.randomUUID().toString());
+        try (HttpTransport apache = new ApacheHttpTransport(recurlyClient.createHttpClient());
+             HttpTransport jdk = new JdkHttpTransport(recurlyClient.getConfig())) {
+            // Warm-up
+            run(apache);
+            run(jdk);
+
+            final double apacheCallsPerSecond = run(apache);
+            final double jdkCallsPerSecond = run(jdk);
+            log.info("{} threads x {} calls: apache={} calls/s, jdk={} calls/s",
+                     THREADS, CALLS_PER_THREAD, (long) apacheCallsPerSecond, (long) jdkCallsPerSecond);
+        }
+    }
+
+    private double run(final HttpTransport transport) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final long start = System.nanoTime();
+            final List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(() -> {
+                    int ok = 0;
+                    for (int j = 0; j < CALLS_PER_THREAD; j++) {
+                        try (CloseableHttpResponse response = transport.execute(new HttpGet(url))) {
+                            EntityUtils.consume(response.getEntity());
+                            if (response.getStatusLine().getStatusCode() == 200) {
+                                ok++;
+                            }
+                        }
+                    }
+                    return ok;
+                }));
+            }
+            for (final Future<Integer> result : results) {
+                Assert.assertEquals((int) result.get(), CALLS_PER_THREAD);
+            }
+            return THREADS * CALLS_PER_THREAD / ((System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
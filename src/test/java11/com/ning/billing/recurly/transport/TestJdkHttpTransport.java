@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.billing.recurly.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.ning.billing.recurly.RecurlyClientConfig;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestJdkHttpTransport {
+
+    private HttpServer server;
+    private JdkHttpTransport transport;
+    private String baseUrl;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v2/accounts", exchange -> {
+            final byte[] request = ByteStreams.toByteArray(exchange.getRequestBody());
+            final byte[] body;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                body = (exchange.getRequestHeaders().getFirst(HttpHeaders.CONTENT_TYPE) + "|" + new String(request, Charsets.UTF_8)).getBytes(Charsets.UTF_8);
+                exchange.getResponseHeaders().add(HttpHeaders.CONTENT_TYPE, "text/plain");
+                exchange.sendResponseHeaders(201, body.length);
+            } else if (exchange.getRequestURI().getPath().endsWith("/missing")) {
+                body = "<error><symbol>not_found</symbol></error>".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(404, body.length);
+            } else {
+                body = ("<accounts type=\"array\"/>" + exchange.getRequestHeaders().getFirst("X-Api-Version")).getBytes(Charsets.UTF_8);
+                exchange.getResponseHeaders().add(HttpHeaders.CONTENT_TYPE, "application/xml; charset=utf-8");
+                exchange.getResponseHeaders().add("X-Records", "0");
+                exchange.sendResponseHeaders(200, body.length);
+            }
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/v2";
+        transport = new JdkHttpTransport(RecurlyClientConfig.defaults());
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        transport.close();
+        server.stop(0);
+    }
+
+    @Test(groups = "fast")
+    public void testGet() throws Exception {
+        final HttpGet request = new HttpGet(baseUrl + "/accounts");
+        request.setHeader("X-Api-Version", "2.25");
+        request.setHeader(HttpHeaders.CONNECTION, "close");
+
+        try (CloseableHttpResponse response = transport.execute(request)) {
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 200);
+            Assert.assertEquals(response.getStatusLine().getReasonPhrase(), "OK");
+            Assert.assertEquals(response.getFirstHeader("x-records").getValue(), "0");
+            Assert.assertEquals(response.getEntity().getContentType().getValue(), "application/xml; charset=utf-8");
+            Assert.assertEquals(EntityUtils.toString(response.getEntity()), "<accounts type=\"array\"/>2.25");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testPost() throws Exception {
+        final HttpPost request = new HttpPost(baseUrl + "/accounts");
+        request.setEntity(new StringEntity("<account/>", ContentType.APPLICATION_XML.withCharset(Charsets.UTF_8)));
+
+        try (CloseableHttpResponse response = transport.execute(request)) {
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 201);
+            Assert.assertEquals(EntityUtils.toString(response.getEntity()), "application/xml; charset=UTF-8|<account/>");
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testErrorStatus() throws Exception {
+        try (CloseableHttpResponse response = transport.execute(new HttpGet(baseUrl + "/accounts/missing"))) {
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 404);
+            Assert.assertEquals(response.getStatusLine().getReasonPhrase(), "Not Found");
+            Assert.assertEquals(EntityUtils.toString(response.getEntity()), "<error><symbol>not_found</symbol></error>");
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = ConnectException.class)
+    public void testConnectionRefused() throws Exception {
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        transport.execute(new HttpGet("http://127.0.0.1:" + port + "/v2/accounts"));
+    }
+}